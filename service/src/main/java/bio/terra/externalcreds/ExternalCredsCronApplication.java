@@ -1,6 +1,9 @@
 package bio.terra.externalcreds;
 
 import bio.terra.common.logging.LoggingInitializer;
+import bio.terra.externalcreds.models.CronShard;
+import bio.terra.externalcreds.services.AccessTokenCacheService;
+import bio.terra.externalcreds.services.CronShardService;
 import bio.terra.externalcreds.services.PassportProviderService;
 import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
@@ -33,30 +36,94 @@ public class ExternalCredsCronApplication {
   }
 
   private final PassportProviderService passportProviderService;
+  private final AccessTokenCacheService accessTokenCacheService;
+  private final CronShardService cronShardService;
 
-  public ExternalCredsCronApplication(PassportProviderService passportProviderService) {
+  public ExternalCredsCronApplication(
+      PassportProviderService passportProviderService,
+      AccessTokenCacheService accessTokenCacheService,
+      CronShardService cronShardService) {
     this.passportProviderService = passportProviderService;
+    this.accessTokenCacheService = accessTokenCacheService;
+    this.cronShardService = cronShardService;
   }
 
+  /**
+   * Each cron replica only checks the linked accounts in the shards it claims, so any number of
+   * replicas can share the work without checking the same linked account twice.
+   */
   @Scheduled(fixedRateString = "#{${externalcreds.background-job-interval-mins} * 60 * 1000}")
   public void checkForExpiringCredentials() {
-    log.info("beginning check for expired linked accounts with passports");
+    var claimedShardCount =
+        cronShardService.runForClaimedShards(
+            "checkForExpiringCredentials", this::checkForExpiringCredentials);
+    log.info(
+        "completed check for expiring credentials",
+        Map.of("claimed_shard_count", claimedShardCount));
+  }
+
+  private void checkForExpiringCredentials(CronShard shard) {
+    var shardIndex = shard.getIndex();
+    log.info(
+        "beginning check for expired linked accounts with passports",
+        Map.of("shard_index", shardIndex));
     var expiredLinkedAccountCount =
-        passportProviderService.invalidateExpiredLinkedAccountsWithPassports();
+        passportProviderService.invalidateExpiredLinkedAccountsWithPassports(shard);
     log.info(
         "completed check for expired linked accounts with passports",
-        Map.of("expired_linked_account_count", expiredLinkedAccountCount));
+        Map.of(
+            "shard_index", shardIndex, "expired_linked_account_count", expiredLinkedAccountCount));
 
     // check and refresh expiring visas and passports
-    log.info("beginning check for expiring passports and visas");
-    var expiringPassportCount = passportProviderService.refreshExpiringPassports();
+    log.info("beginning check for expiring passports and visas", Map.of("shard_index", shardIndex));
+    var refreshSummary = passportProviderService.refreshExpiringPassports(shard);
     log.info(
         "complete check for expiring passports and visas",
-        Map.of("expiring_passport_count", expiringPassportCount));
+        Map.of(
+            "shard_index",
+            shardIndex,
+            "expiring_passport_count",
+            refreshSummary.getRefreshedCount() + refreshSummary.getFailedCount(),
+            "refreshed_passport_count",
+            refreshSummary.getRefreshedCount(),
+            "failed_passport_count",
+            refreshSummary.getFailedCount()));
 
     // check and validate visas not validated since job was last run
-    log.info("beginning validateVisas");
-    var checkedPassportCount = passportProviderService.validateAccessTokenVisas();
-    log.info("completed validateVisas", Map.of("checked_passport_count", checkedPassportCount));
+    log.info("beginning validateVisas", Map.of("shard_index", shardIndex));
+    var checkedPassportCount = passportProviderService.validateAccessTokenVisas(shard);
+    log.info(
+        "completed validateVisas",
+        Map.of("shard_index", shardIndex, "checked_passport_count", checkedPassportCount));
+
+    // store the dbGaP permissions of visas saved without them
+    log.info("beginning save of missing dbGaP permissions", Map.of("shard_index", shardIndex));
+    var savedVisaCount = passportProviderService.saveMissingDbGapPermissions(shard);
+    log.info(
+        "completed save of missing dbGaP permissions",
+        Map.of("shard_index", shardIndex, "saved_visa_count", savedVisaCount));
+  }
+
+  /** Shares the renewals between the cron replicas in the same way as the credential checks. */
+  @Scheduled(fixedRateString = "#{${externalcreds.background-job-interval-mins} * 60 * 1000}")
+  public void renewExpiringAccessTokens() {
+    var claimedShardCount =
+        cronShardService.runForClaimedShards(
+            "renewExpiringAccessTokens", this::renewExpiringAccessTokens);
+    log.info(
+        "completed renewal of expiring access tokens",
+        Map.of("claimed_shard_count", claimedShardCount));
+  }
+
+  private void renewExpiringAccessTokens(CronShard shard) {
+    var shardIndex = shard.getIndex();
+    log.info("beginning renewal of expiring access tokens", Map.of("shard_index", shardIndex));
+    var renewalSummary = accessTokenCacheService.renewExpiringAccessTokens(shard);
+    log.info(
+        "completed renewal of expiring access tokens for shard",
+        Map.of(
+            "shard_index", shardIndex,
+            "renewed_access_token_count", renewalSummary.getRenewedCount(),
+            "failed_access_token_count", renewalSummary.getFailedCount()));
   }
 }
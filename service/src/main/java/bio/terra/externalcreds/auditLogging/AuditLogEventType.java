@@ -9,6 +9,7 @@ public enum AuditLogEventType {
   GetServiceAccountKey,
   LinkRefreshed,
   GetProviderAccessToken,
+  ProviderAccessTokenRenewed,
   SshKeyPairCreated,
   SshKeyPairCreationFailed,
   GetSshKeyPairSucceeded,
@@ -0,0 +1,20 @@
+package bio.terra.externalcreds.config;
+
+import java.time.Duration;
+import org.immutables.value.Value;
+
+@Value.Modifiable
+@PropertiesInterfaceStyle
+public interface AccessTokenRenewalConfigurationInterface {
+  /**
+   * Access tokens expiring within this duration are renewed in the background. This should be
+   * longer than the access token expiration buffer plus the background job interval.
+   */
+  Duration getRenewalWindow();
+
+  /** Only access tokens served within this duration are renewed */
+  Duration getRecentUseWindow();
+
+  /** Maximum number of access tokens renewed per second for each provider */
+  double getMaxRenewalsPerSecond();
+}
@@ -0,0 +1,17 @@
+package bio.terra.externalcreds.config;
+
+import java.time.Duration;
+import org.immutables.value.Value;
+
+@Value.Modifiable
+@PropertiesInterfaceStyle
+public interface BulkAccessTokenConfigurationInterface {
+  /** Maximum number of refresh tokens exchanged at once for one bulk request */
+  int getMaxConcurrentExchanges();
+
+  /** Maximum number of refresh tokens exchanged at once for each provider in one bulk request */
+  int getMaxConcurrentExchangesPerProvider();
+
+  /** How long a bulk request waits for its exchanges, the items not done by then get an error */
+  Duration getExchangeTimeout();
+}
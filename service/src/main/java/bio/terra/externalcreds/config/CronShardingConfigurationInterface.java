@@ -0,0 +1,22 @@
+package bio.terra.externalcreds.config;
+
+import java.time.Duration;
+import org.immutables.value.Value;
+
+@Value.Modifiable
+@PropertiesInterfaceStyle
+public interface CronShardingConfigurationInterface {
+  /**
+   * Number of shards the linked accounts are split into for background jobs. This is the maximum
+   * number of cron replicas that can share the work.
+   */
+  int getShardCount();
+
+  /**
+   * How long a cron replica's claim on a shard lasts. The claim is renewed while the replica works
+   * on the shard, however long that takes, and once the work is done it expires this long after it
+   * was made. This must be shorter than the background job interval so every shard can be claimed
+   * again at the next run.
+   */
+  Duration getShardLeaseDuration();
+}
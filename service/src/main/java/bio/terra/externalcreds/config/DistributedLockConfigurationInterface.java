@@ -7,4 +7,10 @@ import org.immutables.value.Value;
 @PropertiesInterfaceStyle
 public interface DistributedLockConfigurationInterface {
   Duration getLockTimeout();
+
+  /** How often to check whether a lock held by another pod has been released */
+  @Value.Default
+  default Duration getLockPollInterval() {
+    return Duration.ofMillis(100);
+  }
 }
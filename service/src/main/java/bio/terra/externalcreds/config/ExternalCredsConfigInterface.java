@@ -41,6 +41,76 @@ public interface ExternalCredsConfigInterface {
 
   Duration getAccessTokenExpirationBuffer();
 
+  /** Maximum number of access tokens held in memory by each pod */
+  long getAccessTokenCacheMaximumSize();
+
+  /** Maximum number of verified passport and visa jwts held in memory by each pod */
+  @Value.Default
+  default long getVerifiedJwtCacheMaximumSize() {
+    return 10000;
+  }
+
+  /** Maximum number of Sam users held in memory by each pod */
+  @Value.Default
+  default long getSamUserCacheMaximumSize() {
+    return 10000;
+  }
+
+  /**
+   * How long each pod remembers that Sam rejected a bearer token. Rejected tokens are not
+   * remembered when empty.
+   */
+  Optional<Duration> getSamUserUnauthorizedCacheDuration();
+
+  @Value.Default
+  default AccessTokenRenewalConfiguration getAccessTokenRenewalConfiguration() {
+    return AccessTokenRenewalConfiguration.create()
+        .setRenewalWindow(Duration.ofMinutes(15))
+        .setRecentUseWindow(Duration.ofHours(1))
+        .setMaxRenewalsPerSecond(5);
+  }
+
+  @Value.Default
+  default PassportRefreshConfiguration getPassportRefreshConfiguration() {
+    return PassportRefreshConfiguration.create()
+        .setMaxConcurrentRefreshes(8)
+        .setMaxConcurrentRefreshesPerProvider(4);
+  }
+
+  @Value.Default
+  default BulkAccessTokenConfiguration getBulkAccessTokenConfiguration() {
+    return BulkAccessTokenConfiguration.create()
+        .setMaxConcurrentExchanges(8)
+        .setMaxConcurrentExchangesPerProvider(4)
+        .setExchangeTimeout(Duration.ofSeconds(30));
+  }
+
+  @Value.Default
+  default VisaValidationConfiguration getVisaValidationConfiguration() {
+    return VisaValidationConfiguration.create().setMaxConcurrentValidationsPerProvider(16);
+  }
+
+  /**
+   * Background jobs load their work in pages of this many rows, each processed before the next is
+   * loaded, so memory use does not grow with the size of the backlog.
+   */
+  @Value.Default
+  default int getBackgroundJobPageSize() {
+    return 500;
+  }
+
+  @Value.Default
+  default CronShardingConfiguration getCronShardingConfiguration() {
+    return CronShardingConfiguration.create()
+        .setShardCount(16)
+        .setShardLeaseDuration(Duration.ofMinutes(4));
+  }
+
+  @Value.Default
+  default WarmupConfiguration getWarmupConfiguration() {
+    return WarmupConfiguration.create().setEnabled(true).setTimeout(Duration.ofSeconds(30));
+  }
+
   /** List of algorithms that are allowable in JWT headers */
   @Value.Default
   default Collection<String> getAllowedJwtAlgorithms() {
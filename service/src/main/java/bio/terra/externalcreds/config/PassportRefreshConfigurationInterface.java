@@ -0,0 +1,13 @@
+package bio.terra.externalcreds.config;
+
+import org.immutables.value.Value;
+
+@Value.Modifiable
+@PropertiesInterfaceStyle
+public interface PassportRefreshConfigurationInterface {
+  /** Maximum number of linked accounts refreshed at once across all providers */
+  int getMaxConcurrentRefreshes();
+
+  /** Maximum number of linked accounts refreshed at once for each provider */
+  int getMaxConcurrentRefreshesPerProvider();
+}
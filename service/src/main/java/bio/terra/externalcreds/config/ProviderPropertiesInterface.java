@@ -42,4 +42,41 @@ public interface ProviderPropertiesInterface {
   Optional<String> getJwksUri();
 
   Optional<String> getValidationEndpoint();
+
+  // limits for the pooled http clients shared by all calls to the provider
+  @Value.Default
+  default Duration getConnectTimeout() {
+    return Duration.ofSeconds(5);
+  }
+
+  @Value.Default
+  default Duration getReadTimeout() {
+    return Duration.ofSeconds(30);
+  }
+
+  @Value.Default
+  default int getMaxConcurrentRequests() {
+    return 20;
+  }
+
+  // timeouts for whole requests, including reading the response, to the provider's other endpoints
+  @Value.Default
+  default Duration getRevokeTimeout() {
+    return Duration.ofSeconds(1);
+  }
+
+  @Value.Default
+  default Duration getKeyCreationTimeout() {
+    return Duration.ofSeconds(30);
+  }
+
+  @Value.Default
+  default Duration getKeyDeletionTimeout() {
+    return Duration.ofSeconds(11);
+  }
+
+  @Value.Default
+  default Duration getValidationTimeout() {
+    return Duration.ofSeconds(1);
+  }
 }
@@ -0,0 +1,10 @@
+package bio.terra.externalcreds.config;
+
+import org.immutables.value.Value;
+
+@Value.Modifiable
+@PropertiesInterfaceStyle
+public interface VisaValidationConfigurationInterface {
+  /** Maximum number of visa validation requests in flight to each provider */
+  int getMaxConcurrentValidationsPerProvider();
+}
@@ -0,0 +1,17 @@
+package bio.terra.externalcreds.config;
+
+import java.time.Duration;
+import org.immutables.value.Value;
+
+@Value.Modifiable
+@PropertiesInterfaceStyle
+public interface WarmupConfigurationInterface {
+  /** Whether provider clients and jwt decoders are loaded at startup, before traffic is accepted */
+  boolean getEnabled();
+
+  /**
+   * Longest startup waits for the warm-up. Anything not loaded by then is loaded by the first
+   * request that needs it.
+   */
+  Duration getTimeout();
+}
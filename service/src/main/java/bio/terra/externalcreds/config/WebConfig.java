@@ -1,6 +1,8 @@
 package bio.terra.externalcreds.config;
 
 import bio.terra.externalcreds.logging.LoggerInterceptor;
+import java.time.OffsetDateTime;
+import java.util.Date;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.convert.ApplicationConversionService;
 import org.springframework.format.FormatterRegistry;
@@ -20,5 +22,8 @@ public class WebConfig implements WebMvcConfigurer {
   @Override
   public void addFormatters(FormatterRegistry registry) {
     ApplicationConversionService.configure(registry);
+    // date-time query parameters are ISO-8601, like date-times in request and response bodies
+    registry.addConverter(
+        String.class, Date.class, value -> Date.from(OffsetDateTime.parse(value).toInstant()));
   }
 }
@@ -1,29 +1,46 @@
 package bio.terra.externalcreds.controllers;
 
+import bio.terra.common.exception.BadRequestException;
 import bio.terra.common.exception.ForbiddenException;
 import bio.terra.externalcreds.config.ExternalCredsConfig;
 import bio.terra.externalcreds.generated.api.AdminApi;
+import bio.terra.externalcreds.generated.model.AdminAccessTokenRequest;
+import bio.terra.externalcreds.generated.model.AdminAccessTokenResult;
+import bio.terra.externalcreds.generated.model.AdminDbGapStudyUserInfo;
 import bio.terra.externalcreds.generated.model.AdminLinkInfo;
+import bio.terra.externalcreds.generated.model.AdminPassportInfo;
 import bio.terra.externalcreds.generated.model.Provider;
 import bio.terra.externalcreds.models.LinkedAccount;
 import bio.terra.externalcreds.services.LinkedAccountService;
 import bio.terra.externalcreds.services.PassportService;
+import bio.terra.externalcreds.services.TokenProviderService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Date;
 import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 
 @Controller
 public record AdminApiController(
     HttpServletRequest request,
+    HttpServletResponse response,
     ObjectMapper mapper,
     LinkedAccountService linkedAccountService,
     PassportService passportService,
+    TokenProviderService tokenProviderService,
     ExternalCredsSamUserFactory samUserFactory,
     ExternalCredsConfig externalCredsConfig)
     implements AdminApi {
+  // matches the maximum of the pageSize parameter in openapi.yml
+  private static final int MAX_PAGE_SIZE = 10000;
+  // matches the maxItems of AdminAccessTokenRequest.items in openapi.yml
+  private static final int MAX_ACCESS_TOKEN_ITEMS = 1000;
 
   @Override
   public ResponseEntity<Void> putLinkedAccountWithFakeToken(
@@ -61,6 +78,23 @@ public record AdminApiController(
         activeLinkedAccounts.stream().map(OpenApiConverters.Output::convertAdmin).toList());
   }
 
+  @Override
+  public ResponseEntity<AdminLinkInfo> getActiveLinkedAccountsPage(
+      Provider provider, Integer pageSize, String afterUserId) {
+    requireAdmin();
+    requireValidPageSize(pageSize);
+    return NdjsonResponses.write(
+        response,
+        mapper,
+        writeValue ->
+            linkedAccountService.forEachActiveLinkedAccount(
+                provider,
+                Objects.requireNonNullElse(afterUserId, ""),
+                pageSize,
+                linkedAccount ->
+                    writeValue.accept(OpenApiConverters.Output.convertAdmin(linkedAccount))));
+  }
+
   @Override
   public ResponseEntity<AdminLinkInfo> getLinkedAccountForExternalId(
       Provider provider, String externalId) {
@@ -69,6 +103,50 @@ public record AdminApiController(
     return ResponseEntity.of(linkedAccount.map(OpenApiConverters.Output::convertAdmin));
   }
 
+  @Override
+  public ResponseEntity<AdminPassportInfo> getProviderPassports(
+      Provider provider, Integer pageSize, String afterUserId) {
+    requireAdmin();
+    requireValidPageSize(pageSize);
+    return NdjsonResponses.write(
+        response,
+        mapper,
+        writeValue ->
+            passportService.forEachPassport(
+                provider,
+                Objects.requireNonNullElse(afterUserId, ""),
+                pageSize,
+                userPassport -> writeValue.accept(OpenApiConverters.Output.convert(userPassport))));
+  }
+
+  @Override
+  public ResponseEntity<AdminDbGapStudyUserInfo> getDbGapStudyUsers(
+      Provider provider,
+      String phsId,
+      String consentGroup,
+      Date expiresAfter,
+      Integer pageSize,
+      String afterUserId) {
+    requireAdmin();
+    requireValidPageSize(pageSize);
+    var expiresAfterTimestamp =
+        expiresAfter == null
+            ? Timestamp.from(Instant.now())
+            : new Timestamp(expiresAfter.getTime());
+    return NdjsonResponses.write(
+        response,
+        mapper,
+        writeValue ->
+            passportService.forEachDbGapStudyUser(
+                provider,
+                phsId,
+                Optional.ofNullable(consentGroup),
+                expiresAfterTimestamp,
+                Objects.requireNonNullElse(afterUserId, ""),
+                pageSize,
+                studyUser -> writeValue.accept(OpenApiConverters.Output.convert(studyUser))));
+  }
+
   @Override
   public ResponseEntity<List<Object>> getVisas(
       Provider provider, String userId, String issuer, String visaType) {
@@ -79,6 +157,23 @@ public record AdminApiController(
             .toList());
   }
 
+  @Override
+  public ResponseEntity<AdminAccessTokenResult> getProviderAccessTokens(
+      AdminAccessTokenRequest body) {
+    requireAdmin();
+    if (body.getItems().size() > MAX_ACCESS_TOKEN_ITEMS) {
+      throw new BadRequestException(
+          String.format("At most %d items can be requested at once", MAX_ACCESS_TOKEN_ITEMS));
+    }
+    var results =
+        tokenProviderService.getProviderAccessTokens(
+            body.getItems().stream().map(OpenApiConverters.Input::convert).toList(),
+            Optional.ofNullable(request.getRemoteAddr()));
+    return ResponseEntity.ok(
+        new AdminAccessTokenResult()
+            .results(results.stream().map(OpenApiConverters.Output::convert).toList()));
+  }
+
   private void requireAdmin() {
     var samUser = samUserFactory.from(request);
     if (!externalCredsConfig.getAuthorizedAdmins().contains(samUser.getEmail())) {
@@ -86,6 +181,13 @@ public record AdminApiController(
     }
   }
 
+  private void requireValidPageSize(int pageSize) {
+    if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+      throw new BadRequestException(
+          String.format("pageSize must be between 1 and %d", MAX_PAGE_SIZE));
+    }
+  }
+
   private void requireEraCommons(Provider provider) {
     if (provider != Provider.ERA_COMMONS) {
       throw new ForbiddenException("Only eRA Commons is supported");
@@ -1,42 +1,161 @@
 package bio.terra.externalcreds.controllers;
 
+import bio.terra.common.exception.UnauthorizedException;
 import bio.terra.common.iam.BearerTokenFactory;
 import bio.terra.common.iam.SamUser;
 import bio.terra.common.iam.SamUserFactory;
 import bio.terra.externalcreds.config.ExternalCredsConfig;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.servlet.http.HttpServletRequest;
-import java.util.Collections;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
-import org.apache.commons.collections4.map.PassiveExpiringMap;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import org.springframework.stereotype.Component;
 
+/**
+ * Per-pod cache of the Sam user behind each bearer token, so ECM does not hit Sam on every request
+ * given the bursty loads ECM handles. Entries are keyed by a SHA-256 hash of the token and expire
+ * after {@link #SAM_USER_LIFETIME}. Concurrent requests with the same token wait on a single call
+ * to Sam. No lock is held during the call to Sam, so it does not hold up requests with other
+ * tokens.
+ *
+ * <p>When samUserUnauthorizedCacheDuration is set, tokens Sam rejects are also remembered for that
+ * long so a client retrying with a bad token does not reach Sam on every attempt.
+ */
 @Component
 public class ExternalCredsSamUserFactory {
+  static final Duration SAM_USER_LIFETIME = Duration.ofMinutes(1);
 
-  private SamUserFactory samUserFactory;
-  private ExternalCredsConfig externalCredsConfig;
-
-  private BearerTokenFactory bearerTokenFactory;
-
-  // This is per-pod cache, not shared across pods.
-  // This is just to keep ECM from hitting Sam too much given the bursty loads ECM handles.
-  private final Map<Integer, SamUser> samUserCache =
-      Collections.synchronizedMap(new PassiveExpiringMap<>(1, TimeUnit.MINUTES));
+  private final SamUserFactory samUserFactory;
+  private final ExternalCredsConfig externalCredsConfig;
+  private final BearerTokenFactory bearerTokenFactory;
+  private final AsyncCache<String, CachedSamUser> samUserCache;
+  private final MeterRegistry meterRegistry;
+  private final Counter hitCounter;
+  private final Counter missCounter;
+  private final Counter joinCounter;
 
   public ExternalCredsSamUserFactory(
       SamUserFactory samUserFactory,
       BearerTokenFactory bearerTokenFactory,
-      ExternalCredsConfig externalCredsConfig) {
+      ExternalCredsConfig externalCredsConfig,
+      MeterRegistry meterRegistry) {
     this.samUserFactory = samUserFactory;
     this.bearerTokenFactory = bearerTokenFactory;
     this.externalCredsConfig = externalCredsConfig;
+    this.meterRegistry = meterRegistry;
+    this.samUserCache =
+        Caffeine.newBuilder()
+            .maximumSize(externalCredsConfig.getSamUserCacheMaximumSize())
+            .expireAfter(
+                new CachedSamUserExpiry(externalCredsConfig.getSamUserUnauthorizedCacheDuration()))
+            .buildAsync();
+    this.hitCounter = lookupCounter(meterRegistry, "hit");
+    this.missCounter = lookupCounter(meterRegistry, "miss");
+    this.joinCounter = lookupCounter(meterRegistry, "join");
   }
 
   public SamUser from(HttpServletRequest request) {
     var bearerToken = bearerTokenFactory.from(request);
-    return samUserCache.computeIfAbsent(
-        bearerToken.hashCode(),
-        hash -> samUserFactory.from(request, externalCredsConfig.getSamBasePath()));
+    var key =
+        Hashing.sha256().hashString(bearerToken.getToken(), StandardCharsets.UTF_8).toString();
+    var loading = new CompletableFuture<CachedSamUser>();
+    var existing = samUserCache.asMap().putIfAbsent(key, loading);
+    CachedSamUser cached;
+    if (existing != null) {
+      // a request waiting on another request's call to Sam is not served from the cache
+      (existing.isDone() ? hitCounter : joinCounter).increment();
+      cached = join(existing);
+    } else {
+      missCounter.increment();
+      try {
+        cached = loadSamUser(request);
+        loading.complete(cached);
+      } catch (RuntimeException e) {
+        // a failed load is removed from the cache so the next request tries again
+        loading.completeExceptionally(e);
+        throw e;
+      }
+    }
+    if (cached.unauthorizedMessage() != null) {
+      // a new exception per request, an exception shared across threads would carry one stack trace
+      // and the suppressed exceptions added by every request that rethrew it
+      throw new UnauthorizedException(cached.unauthorizedMessage());
+    }
+    return cached.samUser();
+  }
+
+  private CachedSamUser loadSamUser(HttpServletRequest request) {
+    var sample = Timer.start(meterRegistry);
+    var outcome = "error";
+    try {
+      var samUser = samUserFactory.from(request, externalCredsConfig.getSamBasePath());
+      outcome = "success";
+      return new CachedSamUser(samUser, null);
+    } catch (UnauthorizedException e) {
+      outcome = "unauthorized";
+      if (externalCredsConfig.getSamUserUnauthorizedCacheDuration().isEmpty()) {
+        throw e;
+      }
+      return new CachedSamUser(null, e.getMessage());
+    } finally {
+      sample.stop(
+          Timer.builder("externalcreds.sam_user_cache.loads")
+              .description("Calls to Sam to load users missing from the per-pod cache")
+              .tag("outcome", outcome)
+              .register(meterRegistry));
+    }
   }
+
+  private static CachedSamUser join(CompletableFuture<CachedSamUser> loading) {
+    try {
+      return loading.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  private static Counter lookupCounter(MeterRegistry meterRegistry, String result) {
+    return Counter.builder("externalcreds.sam_user_cache.lookups")
+        .description("Lookups of Sam users in the per-pod cache")
+        .tag("result", result)
+        .register(meterRegistry);
+  }
+
+  /** Expires Sam users after SAM_USER_LIFETIME and rejected tokens after their own lifetime. */
+  private record CachedSamUserExpiry(Optional<Duration> unauthorizedLifetime)
+      implements Expiry<String, CachedSamUser> {
+    @Override
+    public long expireAfterCreate(String key, CachedSamUser cached, long currentTime) {
+      return cached.unauthorizedMessage() == null
+          ? SAM_USER_LIFETIME.toNanos()
+          : unauthorizedLifetime.orElse(Duration.ZERO).toNanos();
+    }
+
+    @Override
+    public long expireAfterUpdate(
+        String key, CachedSamUser cached, long currentTime, long currentDuration) {
+      return expireAfterCreate(key, cached, currentTime);
+    }
+
+    @Override
+    public long expireAfterRead(
+        String key, CachedSamUser cached, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+  /** Either the Sam user of a token, or the message Sam rejected the token with. */
+  private record CachedSamUser(SamUser samUser, String unauthorizedMessage) {}
 }
@@ -0,0 +1,54 @@
+package bio.terra.externalcreds.controllers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * Writes listings as newline delimited JSON, one value per line, straight to the response as the
+ * values are produced so that the listing is never held in memory. The response is committed once
+ * the first lines are flushed, so a failure part way through cannot change the status. Instead, a
+ * listing that was written in full ends with a {@link #COMPLETE} line, and a client that reads a
+ * body without it must treat the page as failed and request it again.
+ */
+class NdjsonResponses {
+  static final String CONTENT_TYPE = "application/x-ndjson";
+  static final Map<String, Boolean> COMPLETE = Map.of("complete", true);
+
+  private NdjsonResponses() {}
+
+  /**
+   * @param writeValues passes each value of the listing, in order, to the consumer it is given
+   * @return null, the response has already been written so there is nothing for Spring to write
+   */
+  static <T> ResponseEntity<T> write(
+      HttpServletResponse response, ObjectMapper mapper, Consumer<Consumer<Object>> writeValues) {
+    response.setStatus(HttpStatus.OK.value());
+    response.setContentType(CONTENT_TYPE);
+    var writer = mapper.writer();
+    try {
+      var out = response.getOutputStream();
+      Consumer<Object> writeLine =
+          value -> {
+            try {
+              out.write(writer.writeValueAsBytes(value));
+              out.write('\n');
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          };
+      writeValues.accept(writeLine);
+      // only reached when every value was written, see the class doc
+      writeLine.accept(COMPLETE);
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return null;
+  }
+}
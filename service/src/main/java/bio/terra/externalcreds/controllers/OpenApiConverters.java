@@ -1,14 +1,29 @@
 package bio.terra.externalcreds.controllers;
 
 import bio.terra.common.exception.BadRequestException;
+import bio.terra.common.exception.ErrorReportException;
 import bio.terra.externalcreds.ExternalCredsException;
+import bio.terra.externalcreds.generated.model.AdminAccessTokenRequestItem;
+import bio.terra.externalcreds.generated.model.AdminAccessTokenResultItem;
+import bio.terra.externalcreds.generated.model.AdminDbGapStudyUserInfo;
 import bio.terra.externalcreds.generated.model.AdminLinkInfo;
+import bio.terra.externalcreds.generated.model.AdminPassportInfo;
+import bio.terra.externalcreds.generated.model.ErrorReport;
 import bio.terra.externalcreds.generated.model.LinkInfo;
 import bio.terra.externalcreds.generated.model.OneOfValidatePassportRequestCriteriaItems;
 import bio.terra.externalcreds.generated.model.OneOfValidatePassportResultMatchedCriterion;
 import bio.terra.externalcreds.generated.model.RASv1Dot1VisaCriterion;
+import bio.terra.externalcreds.generated.model.ValidatePassportBatchResultItem;
+import bio.terra.externalcreds.generated.model.ValidatePassportRequest;
 import bio.terra.externalcreds.generated.model.ValidatePassportResult;
+import bio.terra.externalcreds.models.AccessTokenRequestInternal;
+import bio.terra.externalcreds.models.AccessTokenResultInternal;
+import bio.terra.externalcreds.models.DbGapStudyUser;
 import bio.terra.externalcreds.models.LinkedAccount;
+import bio.terra.externalcreds.models.LinkedAccountSummary;
+import bio.terra.externalcreds.models.UserPassport;
+import bio.terra.externalcreds.models.ValidatePassportBatchResultItemInternal;
+import bio.terra.externalcreds.models.ValidatePassportRequestInternal;
 import bio.terra.externalcreds.models.ValidatePassportResultInternal;
 import bio.terra.externalcreds.visaComparators.RASv1Dot1VisaCriterionInternal;
 import bio.terra.externalcreds.visaComparators.VisaCriterionInternal;
@@ -40,6 +55,20 @@ public class OpenApiConverters {
               })
           .collect(Collectors.toList());
     }
+
+    public static AccessTokenRequestInternal convert(AdminAccessTokenRequestItem item) {
+      return new AccessTokenRequestInternal.Builder()
+          .userId(item.getUserId())
+          .provider(item.getProvider())
+          .build();
+    }
+
+    public static ValidatePassportRequestInternal convert(ValidatePassportRequest request) {
+      return new ValidatePassportRequestInternal.Builder()
+          .passportJwts(request.getPassports())
+          .criteria(convert(request.getCriteria()))
+          .build();
+    }
   }
 
   /** Converts internal ECM models to openapi outputs */
@@ -52,6 +81,28 @@ public class OpenApiConverters {
       return returnVal;
     }
 
+    public static AdminAccessTokenResultItem convert(AccessTokenResultInternal result) {
+      var returnVal =
+          new AdminAccessTokenResultItem()
+              .userId(result.getUserId())
+              .provider(result.getProvider());
+      result.getAccessToken().ifPresent(returnVal::setAccessToken);
+      result.getError().ifPresent(e -> returnVal.setError(convert(e)));
+      return returnVal;
+    }
+
+    public static ValidatePassportBatchResultItem convert(
+        ValidatePassportBatchResultItemInternal resultItem) {
+      var returnVal = new ValidatePassportBatchResultItem();
+      resultItem.getResult().ifPresent(r -> returnVal.setResult(convert(r)));
+      resultItem.getError().ifPresent(e -> returnVal.setError(convert(e)));
+      return returnVal;
+    }
+
+    public static ErrorReport convert(ErrorReportException e) {
+      return new ErrorReport().message(e.getMessage()).statusCode(e.getStatusCode().value());
+    }
+
     public static OneOfValidatePassportResultMatchedCriterion convert(
         VisaCriterionInternal visaCriterion) {
       if (visaCriterion instanceof RASv1Dot1VisaCriterionInternal rasCrit) {
@@ -73,11 +124,32 @@ public class OpenApiConverters {
           .authenticated(linkedAccount.isAuthenticated());
     }
 
+    public static AdminPassportInfo convert(UserPassport userPassport) {
+      return new AdminPassportInfo()
+          .userId(userPassport.getUserId())
+          .passportJwt(userPassport.getJwt())
+          .expires(userPassport.getExpires());
+    }
+
+    public static AdminDbGapStudyUserInfo convert(DbGapStudyUser dbGapStudyUser) {
+      return new AdminDbGapStudyUserInfo()
+          .userId(dbGapStudyUser.getUserId())
+          .consentGroups(dbGapStudyUser.getConsentGroups())
+          .expires(dbGapStudyUser.getExpires());
+    }
+
     public static AdminLinkInfo convertAdmin(LinkedAccount linkedAccount) {
       return new AdminLinkInfo()
           .linkedExternalId(linkedAccount.getExternalUserId())
           .linkExpireTime(linkedAccount.getExpires())
           .userId(linkedAccount.getUserId());
     }
+
+    public static AdminLinkInfo convertAdmin(LinkedAccountSummary linkedAccount) {
+      return new AdminLinkInfo()
+          .linkedExternalId(linkedAccount.getExternalUserId())
+          .linkExpireTime(linkedAccount.getExpires())
+          .userId(linkedAccount.getUserId());
+    }
   }
 }
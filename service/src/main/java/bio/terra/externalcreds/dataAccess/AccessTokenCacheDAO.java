@@ -53,8 +53,8 @@ public class AccessTokenCacheDAO {
   public AccessTokenCacheEntry upsertAccessTokenCacheEntry(
       AccessTokenCacheEntry accessTokenCacheEntry) {
     var query =
-        "INSERT INTO access_token_cache (linked_account_id, access_token, expires_at)"
-            + " VALUES (:linkedAccountId, :accessToken, :expiresAt)"
+        "INSERT INTO access_token_cache (linked_account_id, access_token, expires_at, last_used_at)"
+            + " VALUES (:linkedAccountId, :accessToken, :expiresAt, :lastUsedAt)"
             + " ON CONFLICT (linked_account_id) DO UPDATE SET"
             + " linked_account_id = excluded.linked_account_id,"
             + " access_token = excluded.access_token,"
@@ -64,7 +64,8 @@ public class AccessTokenCacheDAO {
         new MapSqlParameterSource()
             .addValue("linkedAccountId", accessTokenCacheEntry.getLinkedAccountId())
             .addValue("accessToken", accessTokenCacheEntry.getAccessToken())
-            .addValue("expiresAt", Timestamp.from(accessTokenCacheEntry.getExpiresAt()));
+            .addValue("expiresAt", Timestamp.from(accessTokenCacheEntry.getExpiresAt()))
+            .addValue("lastUsedAt", new Timestamp(System.currentTimeMillis()));
 
     // generatedKeyHolder will hold the id returned by the query as specified by the RETURNING
     // clause
@@ -80,6 +81,42 @@ public class AccessTokenCacheDAO {
     }
   }
 
+  /**
+   * Records that the cached access token was served. A new entry is considered used when it is
+   * inserted, but replacing an existing entry does not count as a use, so that tokens renewed in
+   * the background stop being renewed once their users go away.
+   *
+   * @param linkedAccountId id of the linked account
+   * @param lastUsedAt when the access token was last served
+   */
+  @WithSpan
+  public void updateLastUsed(int linkedAccountId, Timestamp lastUsedAt) {
+    var namedParameters =
+        new MapSqlParameterSource()
+            .addValue("linkedAccountId", linkedAccountId)
+            .addValue("lastUsedAt", lastUsedAt);
+    var query =
+        "UPDATE access_token_cache SET last_used_at = :lastUsedAt"
+            + " WHERE linked_account_id = :linkedAccountId";
+    jdbcTemplate.update(query, namedParameters);
+  }
+
+  /**
+   * Records that the cached access tokens of many linked accounts were served, see {@link
+   * #updateLastUsed(int, Timestamp)}.
+   */
+  @WithSpan
+  public void updateLastUsed(Collection<Integer> linkedAccountIds, Timestamp lastUsedAt) {
+    var namedParameters =
+        new MapSqlParameterSource()
+            .addValue("linkedAccountIds", linkedAccountIds)
+            .addValue("lastUsedAt", lastUsedAt);
+    var query =
+        "UPDATE access_token_cache SET last_used_at = :lastUsedAt"
+            + " WHERE linked_account_id IN (:linkedAccountIds)";
+    jdbcTemplate.update(query, namedParameters);
+  }
+
   /**
    * @param linkedAccountId id of the linked account
    * @return boolean whether a access token cache entry was deleted
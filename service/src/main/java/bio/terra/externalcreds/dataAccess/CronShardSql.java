@@ -0,0 +1,15 @@
+package bio.terra.externalcreds.dataAccess;
+
+import bio.terra.externalcreds.models.CronShard;
+import java.util.Map;
+
+/** Restricts queries on linked_account, aliased la, to the linked accounts in one cron shard. */
+final class CronShardSql {
+  static final String SHARD_CONDITION = "la.id % :shardCount = :shardIndex";
+
+  private CronShardSql() {}
+
+  static Map<String, Object> shardParameters(CronShard shard) {
+    return Map.of("shardCount", shard.getCount(), "shardIndex", shard.getIndex());
+  }
+}
@@ -5,6 +5,7 @@ import bio.terra.common.db.WriteTransaction;
 import bio.terra.externalcreds.models.DistributedLock;
 import io.opentelemetry.instrumentation.annotations.WithSpan;
 import java.sql.Timestamp;
+import java.time.Instant;
 import java.util.Optional;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.dao.support.DataAccessUtils;
@@ -70,6 +71,80 @@ public class DistributedLockDAO {
     return distributedLock;
   }
 
+  /**
+   * Inserts the lock unless a lock with the same lockName and userId is already held. A held lock
+   * that has expired is taken over, so a lock left behind by a pod that died is not held forever.
+   *
+   * @param distributedLock The DistributedLock to insert
+   * @return boolean whether the lock was obtained
+   */
+  @WithSpan
+  @WriteTransaction
+  public boolean tryInsertDistributedLock(DistributedLock distributedLock) {
+    var query =
+        "INSERT INTO distributed_lock (lock_name, user_id, expires_at)"
+            + " VALUES (:lockName, :userId, :expiresAt)"
+            + " ON CONFLICT (lock_name, user_id) DO UPDATE SET expires_at = excluded.expires_at"
+            + " WHERE distributed_lock.expires_at < :now";
+
+    var namedParameters =
+        new MapSqlParameterSource()
+            .addValue("lockName", distributedLock.getLockName())
+            .addValue("userId", distributedLock.getUserId())
+            .addValue("expiresAt", Timestamp.from(distributedLock.getExpiresAt()))
+            .addValue("now", Timestamp.from(Instant.now()));
+
+    return jdbcTemplate.update(query, namedParameters) > 0;
+  }
+
+  /**
+   * Moves the expiry of a lock the caller holds. A lock is only treated as held by the caller while
+   * it still has the expiry the caller set, so a lock that expired and was taken over by someone
+   * else is left alone.
+   *
+   * @param distributedLock The DistributedLock as held by the caller
+   * @param newExpiresAt The new expiry of the lock
+   * @return boolean whether the lock was still held by the caller and was updated
+   */
+  @WithSpan
+  @WriteTransaction
+  public boolean renewDistributedLock(DistributedLock distributedLock, Instant newExpiresAt) {
+    var query =
+        "UPDATE distributed_lock SET expires_at = :newExpiresAt"
+            + " WHERE lock_name = :lockName AND user_id = :userId AND expires_at = :expiresAt";
+
+    var namedParameters =
+        new MapSqlParameterSource()
+            .addValue("lockName", distributedLock.getLockName())
+            .addValue("userId", distributedLock.getUserId())
+            .addValue("expiresAt", Timestamp.from(distributedLock.getExpiresAt()))
+            .addValue("newExpiresAt", Timestamp.from(newExpiresAt));
+
+    return jdbcTemplate.update(query, namedParameters) > 0;
+  }
+
+  /**
+   * Deletes a lock the caller holds, see {@link #renewDistributedLock}. A lock that was taken over
+   * by someone else is left alone.
+   *
+   * @param distributedLock The DistributedLock as held by the caller
+   * @return boolean whether the lock was still held by the caller and was deleted
+   */
+  @WithSpan
+  @WriteTransaction
+  public boolean deleteHeldDistributedLock(DistributedLock distributedLock) {
+    var query =
+        "DELETE FROM distributed_lock"
+            + " WHERE lock_name = :lockName AND user_id = :userId AND expires_at = :expiresAt";
+    var namedParameters =
+        new MapSqlParameterSource()
+            .addValue("lockName", distributedLock.getLockName())
+            .addValue("userId", distributedLock.getUserId())
+            .addValue("expiresAt", Timestamp.from(distributedLock.getExpiresAt()));
+
+    return jdbcTemplate.update(query, namedParameters) > 0;
+  }
+
   /**
    * @param lockName The name of the lock, e.g {provider}-createKey
    * @param userId The Sam user id
@@ -1,12 +1,22 @@
 package bio.terra.externalcreds.dataAccess;
 
 import bio.terra.externalcreds.generated.model.Provider;
+import bio.terra.externalcreds.models.DbGapPermission;
 import bio.terra.externalcreds.models.GA4GHPassport;
+import bio.terra.externalcreds.models.GA4GHVisa;
+import bio.terra.externalcreds.models.PassportWithVisas;
+import bio.terra.externalcreds.models.UserPassport;
 import io.opentelemetry.instrumentation.annotations.WithSpan;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.dao.support.DataAccessUtils;
 import org.springframework.jdbc.core.RowMapper;
@@ -20,9 +30,11 @@ import org.springframework.stereotype.Repository;
 public class GA4GHPassportDAO {
 
   private final NamedParameterJdbcTemplate jdbcTemplate;
+  private final NamedParameterJdbcTemplate streamingJdbcTemplate;
 
   public GA4GHPassportDAO(NamedParameterJdbcTemplate jdbcTemplate) {
     this.jdbcTemplate = jdbcTemplate;
+    this.streamingJdbcTemplate = StreamingQueries.withFetchSize(jdbcTemplate);
   }
 
   /**
@@ -60,6 +72,106 @@ public class GA4GHPassportDAO {
     return passport.withId(Objects.requireNonNull(generatedKeyHolder.getKey()).intValue());
   }
 
+  /**
+   * Saves the passport of a linked account, replacing any passport it has, along with its visas and
+   * their dbGaP permissions in a single statement. An existing passport row is updated rather than
+   * deleted so its linked account can be reused in the same statement, its old visas are deleted.
+   *
+   * @return the passport and visas with their ids
+   */
+  @WithSpan
+  public PassportWithVisas upsertPassportWithVisas(GA4GHPassport passport, List<GA4GHVisa> visas) {
+    var permissionVisaIndexes = new ArrayList<Integer>();
+    var permissions = new ArrayList<DbGapPermission>();
+    var permissionExpires = new ArrayList<Timestamp>();
+    for (var i = 0; i < visas.size(); i++) {
+      var visa = visas.get(i);
+      for (var permission : visa.getDbGapPermissions().orElse(Set.of())) {
+        // WITH ORDINALITY numbers the visas from 1
+        permissionVisaIndexes.add(i + 1);
+        permissions.add(permission);
+        permissionExpires.add(permission.getExpires(visa.getExpires()));
+      }
+    }
+
+    var namedParameters =
+        new MapSqlParameterSource()
+            .addValue("linkedAccountId", passport.getLinkedAccountId().orElseThrow())
+            .addValue("jwt", passport.getJwt())
+            .addValue("expires", passport.getExpires())
+            .addValue("jwtId", passport.getJwtId())
+            .addValue(
+                "visaTypes", visas.stream().map(GA4GHVisa::getVisaType).toArray(String[]::new))
+            .addValue("visaJwts", visas.stream().map(GA4GHVisa::getJwt).toArray(String[]::new))
+            .addValue(
+                "visaExpires", visas.stream().map(GA4GHVisa::getExpires).toArray(Timestamp[]::new))
+            .addValue("issuers", visas.stream().map(GA4GHVisa::getIssuer).toArray(String[]::new))
+            .addValue(
+                "tokenTypes",
+                visas.stream().map(visa -> visa.getTokenType().name()).toArray(String[]::new))
+            .addValue(
+                "lastValidated",
+                visas.stream()
+                    .map(visa -> visa.getLastValidated().orElse(null))
+                    .toArray(Timestamp[]::new))
+            .addValue(
+                "permissionsSaved",
+                visas.stream()
+                    .map(visa -> visa.getDbGapPermissions().isPresent())
+                    .toArray(Boolean[]::new))
+            .addValue("permissionVisaIndexes", permissionVisaIndexes.toArray(Integer[]::new))
+            .addValue(
+                "phsIds",
+                permissions.stream().map(DbGapPermission::getPhsId).toArray(String[]::new))
+            .addValue(
+                "consentGroups",
+                permissions.stream().map(DbGapPermission::getConsentGroup).toArray(String[]::new))
+            .addValue(
+                "roles", permissions.stream().map(DbGapPermission::getRole).toArray(String[]::new))
+            .addValue("permissionExpires", permissionExpires.toArray(Timestamp[]::new));
+
+    // visa ids are taken from the sequence up front, so the permissions can reference them and they
+    // can be returned in the order of the visas; new_visas is MATERIALIZED so nextval is evaluated
+    // once per visa however many times it is read
+    var query =
+        "WITH passport AS (INSERT INTO ga4gh_passport (linked_account_id, jwt, expires, jwt_id)"
+            + " VALUES (:linkedAccountId, :jwt, :expires, :jwtId) ON CONFLICT (linked_account_id)"
+            + " DO UPDATE SET jwt = excluded.jwt, expires = excluded.expires, jwt_id ="
+            + " excluded.jwt_id RETURNING id), old_visas AS (DELETE FROM ga4gh_visa WHERE"
+            + " passport_id IN (SELECT id FROM passport)), new_visas AS MATERIALIZED (SELECT"
+            + " nextval(pg_get_serial_sequence('ga4gh_visa', 'id'))::int AS id, v.* FROM"
+            + " unnest(:visaTypes::text[], :visaJwts::text[], :visaExpires::timestamp[],"
+            + " :issuers::text[], :tokenTypes::token_type_enum[], :lastValidated::timestamp[],"
+            + " :permissionsSaved::boolean[]) WITH ORDINALITY AS v(visa_type, jwt, expires, issuer,"
+            + " token_type, last_validated, dbgap_permissions_saved, visa_index)), inserted_visas"
+            + " AS (INSERT INTO ga4gh_visa (id, passport_id, visa_type, jwt, expires, issuer,"
+            + " token_type, last_validated, dbgap_permissions_saved) SELECT v.id, p.id,"
+            + " v.visa_type, v.jwt, v.expires, v.issuer, v.token_type, v.last_validated,"
+            + " v.dbgap_permissions_saved FROM new_visas v, passport p), inserted_permissions AS (INSERT INTO"
+            + " visa_dbgap_permission (visa_id, phs_id, consent_group, role, expires) SELECT v.id,"
+            + " dp.phs_id, dp.consent_group, dp.role, dp.expires FROM"
+            + " unnest(:permissionVisaIndexes::bigint[], :phsIds::text[], :consentGroups::text[],"
+            + " :roles::text[], :permissionExpires::timestamp[]) AS dp(visa_index, phs_id,"
+            + " consent_group, role, expires) INNER JOIN new_visas v ON v.visa_index ="
+            + " dp.visa_index) SELECT (SELECT id FROM passport) AS passport_id, array(SELECT id"
+            + " FROM new_visas ORDER BY visa_index) AS visa_ids";
+
+    return jdbcTemplate.queryForObject(
+        query,
+        namedParameters,
+        (rs, rowNum) -> {
+          var passportId = rs.getInt("passport_id");
+          var visaIds = (Integer[]) rs.getArray("visa_ids").getArray();
+          return new PassportWithVisas.Builder()
+              .passport(passport.withId(passportId))
+              .visas(
+                  IntStream.range(0, visas.size())
+                      .mapToObj(i -> visas.get(i).withId(visaIds[i]).withPassportId(passportId))
+                      .toList())
+              .build();
+        });
+  }
+
   @WithSpan
   public Optional<GA4GHPassport> getPassport(String userId, Provider provider) {
     var namedParameters =
@@ -76,6 +188,40 @@ public class GA4GHPassportDAO {
             jdbcTemplate.query(query, namedParameters, new GA4GHPassportRowMapper())));
   }
 
+  /**
+   * Passes the passports of the next pageSize users linked to the provider, in user id order, to
+   * the consumer as they are read. Must be called in a transaction, see {@link StreamingQueries}.
+   *
+   * @param afterUserId only users with ids after this one are included, empty to start at the first
+   */
+  @WithSpan
+  public void forEachPassport(
+      Provider provider, String afterUserId, int pageSize, Consumer<UserPassport> consumer) {
+    var namedParameters =
+        new MapSqlParameterSource()
+            .addValue("provider", provider.name())
+            .addValue("afterUserId", afterUserId)
+            .addValue("pageSize", pageSize);
+    var query =
+        "SELECT la.user_id, p.jwt, p.expires FROM linked_account la"
+            + " INNER JOIN ga4gh_passport p ON p.linked_account_id = la.id"
+            + " WHERE la.provider = :provider::provider_enum"
+            + " AND la.user_id > :afterUserId"
+            + " ORDER BY la.user_id LIMIT :pageSize";
+    StreamingQueries.query(
+        streamingJdbcTemplate,
+        query,
+        namedParameters,
+        rs -> {
+          consumer.accept(
+              new UserPassport.Builder()
+                  .userId(rs.getString("user_id"))
+                  .jwt(rs.getString("jwt"))
+                  .expires(rs.getTimestamp("expires"))
+                  .build());
+        });
+  }
+
   private static class GA4GHPassportRowMapper implements RowMapper<GA4GHPassport> {
 
     @Override
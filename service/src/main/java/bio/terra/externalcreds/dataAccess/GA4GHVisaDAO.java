@@ -1,6 +1,12 @@
 package bio.terra.externalcreds.dataAccess;
 
+import static bio.terra.externalcreds.dataAccess.CronShardSql.SHARD_CONDITION;
+import static bio.terra.externalcreds.dataAccess.CronShardSql.shardParameters;
+
 import bio.terra.externalcreds.generated.model.Provider;
+import bio.terra.externalcreds.models.CronShard;
+import bio.terra.externalcreds.models.DbGapPermission;
+import bio.terra.externalcreds.models.DbGapStudyUser;
 import bio.terra.externalcreds.models.GA4GHVisa;
 import bio.terra.externalcreds.models.TokenTypeEnum;
 import bio.terra.externalcreds.models.VisaVerificationDetails;
@@ -9,13 +15,22 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.stereotype.Repository;
 
@@ -24,9 +39,11 @@ import org.springframework.stereotype.Repository;
 public class GA4GHVisaDAO {
 
   final NamedParameterJdbcTemplate jdbcTemplate;
+  private final NamedParameterJdbcTemplate streamingJdbcTemplate;
 
   public GA4GHVisaDAO(NamedParameterJdbcTemplate jdbcTemplate) {
     this.jdbcTemplate = jdbcTemplate;
+    this.streamingJdbcTemplate = StreamingQueries.withFetchSize(jdbcTemplate);
   }
 
   @WithSpan
@@ -57,19 +74,96 @@ public class GA4GHVisaDAO {
     return visa.withId(Objects.requireNonNull(generatedKeyHolder.getKey()).intValue());
   }
 
+  /**
+   * Saves the dbGaP permissions of a visa that was saved without them, so they can be queried
+   * without parsing its jwt, and records that they were saved even when there are none.
+   */
+  @WithSpan
+  public void saveDbGapPermissions(
+      int visaId, Timestamp visaExpires, Collection<DbGapPermission> permissions) {
+    jdbcTemplate.update(
+        "UPDATE ga4gh_visa SET dbgap_permissions_saved = true WHERE id = :visaId",
+        new MapSqlParameterSource("visaId", visaId));
+    if (permissions.isEmpty()) {
+      return;
+    }
+    var query =
+        "INSERT INTO visa_dbgap_permission (visa_id, phs_id, consent_group, role, expires)"
+            + " VALUES (:visaId, :phsId, :consentGroup, :role, :expires)";
+
+    var batchParameters =
+        permissions.stream()
+            .map(
+                permission ->
+                    new MapSqlParameterSource("visaId", visaId)
+                        .addValue("phsId", permission.getPhsId())
+                        .addValue("consentGroup", permission.getConsentGroup())
+                        .addValue("role", permission.getRole())
+                        .addValue("expires", permission.getExpires(visaExpires)))
+            .toArray(SqlParameterSource[]::new);
+
+    jdbcTemplate.batchUpdate(query, batchParameters);
+  }
+
+  /**
+   * @return the visas of the linked account with the dbGaP permissions stored with them, a visa
+   *     saved before its permissions were stored is returned without them so its jwt is parsed
+   *     instead
+   */
   @WithSpan
   public List<GA4GHVisa> listVisas(String userId, Provider provider) {
     var namedParameters =
         new MapSqlParameterSource()
             .addValue("userId", userId)
             .addValue("provider", provider.name());
+    // one row per permission, or one row for a visa without any, in the order visas were saved
     var query =
-        "SELECT v.* FROM ga4gh_visa v"
+        "SELECT v.*, dp.phs_id, dp.consent_group, dp.role, dp.expires AS permission_expires"
+            + " FROM ga4gh_visa v"
             + " INNER JOIN ga4gh_passport p ON p.id = v.passport_id"
             + " INNER JOIN linked_account la ON la.id = p.linked_account_id"
+            + " LEFT JOIN visa_dbgap_permission dp ON dp.visa_id = v.id"
             + " WHERE la.user_id = :userId"
-            + " AND la.provider = :provider::provider_enum";
-    return jdbcTemplate.query(query, namedParameters, new GA4GHVisaRowMapper());
+            + " AND la.provider = :provider::provider_enum"
+            + " ORDER BY v.id";
+
+    var visasById = new LinkedHashMap<Integer, GA4GHVisa>();
+    var permissionsByVisaId = new HashMap<Integer, Set<DbGapPermission>>();
+    var visaRowMapper = new GA4GHVisaRowMapper();
+    jdbcTemplate.query(
+        query,
+        namedParameters,
+        (RowCallbackHandler)
+            rs -> {
+              var visaId = rs.getInt("id");
+              if (!visasById.containsKey(visaId)) {
+                visasById.put(visaId, visaRowMapper.mapRow(rs, visasById.size()));
+                if (rs.getBoolean("dbgap_permissions_saved")) {
+                  permissionsByVisaId.put(visaId, new HashSet<>());
+                }
+              }
+              if (rs.getString("phs_id") != null) {
+                permissionsByVisaId
+                    .computeIfAbsent(visaId, id -> new HashSet<>())
+                    .add(
+                        new DbGapPermission.Builder()
+                            .phsId(rs.getString("phs_id"))
+                            .consentGroup(rs.getString("consent_group"))
+                            .role(rs.getString("role"))
+                            .expiration(
+                                TimeUnit.MILLISECONDS.toSeconds(
+                                    rs.getTimestamp("permission_expires").getTime()))
+                            .build());
+              }
+            });
+
+    return visasById.values().stream()
+        .map(
+            visa ->
+                Optional.ofNullable(permissionsByVisaId.get(visa.getId().orElseThrow()))
+                    .map(visa::withDbGapPermissions)
+                    .orElse(visa))
+        .toList();
   }
 
   @WithSpan
@@ -93,30 +187,134 @@ public class GA4GHVisaDAO {
     return jdbcTemplate.query(query, namedParameters, new GA4GHVisaRowMapper());
   }
 
+  /**
+   * Passes the first pageSize users linked to the provider, ordered by user id, with a user id
+   * greater than afterUserId and a dbGaP permission for the study (and consent group if present)
+   * that expires after expiresAfter to the consumer as they are read from the database.
+   */
+  @WithSpan
+  public void forEachDbGapStudyUser(
+      Provider provider,
+      String phsId,
+      Optional<String> consentGroup,
+      Timestamp expiresAfter,
+      String afterUserId,
+      int pageSize,
+      Consumer<DbGapStudyUser> consumer) {
+    var namedParameters =
+        new MapSqlParameterSource()
+            .addValue("provider", provider.name())
+            .addValue("phsId", phsId)
+            .addValue("consentGroup", consentGroup.orElse(null))
+            .addValue("expiresAfter", expiresAfter)
+            .addValue("afterUserId", afterUserId)
+            .addValue("pageSize", pageSize);
+    // the consent group condition is only added when filtering on it so the
+    // (phs_id, consent_group, expires) index can be used for both
+    var permissionCondition =
+        " dp.phs_id = :phsId"
+            + (consentGroup.isPresent() ? " AND dp.consent_group = :consentGroup" : "")
+            + " AND dp.expires > :expiresAfter";
+    // the page of users is found walking the (provider, user_id) index from the cursor and stops
+    // after pageSize users, so only their permissions are aggregated rather than every
+    // permission after the cursor
+    var query =
+        "WITH page AS (SELECT la.id, la.user_id FROM linked_account la"
+            + " WHERE la.provider = :provider::provider_enum"
+            + " AND la.user_id > :afterUserId"
+            + " AND EXISTS (SELECT 1 FROM ga4gh_passport p"
+            + " INNER JOIN ga4gh_visa v ON v.passport_id = p.id"
+            + " INNER JOIN visa_dbgap_permission dp ON dp.visa_id = v.id"
+            + " WHERE p.linked_account_id = la.id AND"
+            + permissionCondition
+            + ") ORDER BY la.user_id LIMIT :pageSize)"
+            + " SELECT page.user_id,"
+            + " array_agg(DISTINCT dp.consent_group ORDER BY dp.consent_group) AS consent_groups,"
+            + " max(dp.expires) AS expires FROM page"
+            + " INNER JOIN ga4gh_passport p ON p.linked_account_id = page.id"
+            + " INNER JOIN ga4gh_visa v ON v.passport_id = p.id"
+            + " INNER JOIN visa_dbgap_permission dp ON dp.visa_id = v.id"
+            + " WHERE"
+            + permissionCondition
+            + " GROUP BY page.user_id ORDER BY page.user_id";
+    StreamingQueries.query(
+        streamingJdbcTemplate,
+        query,
+        namedParameters,
+        rs ->
+            consumer.accept(
+                new DbGapStudyUser.Builder()
+                    .userId(rs.getString("user_id"))
+                    .consentGroups(List.of((String[]) rs.getArray("consent_groups").getArray()))
+                    .expires(rs.getTimestamp("expires"))
+                    .build()));
+  }
+
+  /**
+   * @return the first pageSize access token visas of linked accounts in the shard, ordered by visa
+   *     id, with a visa id greater than afterVisaId and last validated by validationCutoff
+   */
   public List<VisaVerificationDetails> getUnvalidatedAccessTokenVisaDetails(
-      Timestamp validationCutoff) {
+      Timestamp validationCutoff, CronShard shard, int afterVisaId, int pageSize) {
     var namedParameters =
         new MapSqlParameterSource("tokenType", TokenTypeEnum.access_token.toString())
-            .addValue("validationCutoff", validationCutoff);
+            .addValue("validationCutoff", validationCutoff)
+            .addValues(shardParameters(shard))
+            .addValue("afterVisaId", afterVisaId)
+            .addValue("pageSize", pageSize);
 
     var query =
-        "SELECT DISTINCT la.id as linked_account_id, la.provider as provider, v.jwt as jwt, v.id as visa_id FROM linked_account la"
-            + " JOIN ga4gh_passport p"
-            + " ON p.linked_account_id = la.id"
-            + " JOIN ga4gh_visa v"
-            + " ON v.passport_id = p.id"
-            + " WHERE v.token_type = :tokenType::token_type_enum"
-            + " AND v.last_validated <= :validationCutoff";
+        "SELECT DISTINCT la.id as linked_account_id, la.provider as provider, v.jwt as jwt, v.id as"
+            + " visa_id FROM linked_account la JOIN ga4gh_passport p ON p.linked_account_id = la.id"
+            + " JOIN ga4gh_visa v ON v.passport_id = p.id WHERE v.token_type ="
+            + " :tokenType::token_type_enum AND v.last_validated <= :validationCutoff AND"
+            + " v.id > :afterVisaId AND "
+            + SHARD_CONDITION
+            + " ORDER BY v.id LIMIT :pageSize";
 
     return jdbcTemplate.query(query, namedParameters, new VisaVerificationDetailsRowMapper());
   }
 
+  /**
+   * Finds visas saved before their dbGaP permissions were stored, by a version of ECM that did not
+   * store them, so they can be repaired. Visas are only returned until their permissions are saved,
+   * including visas that grant no permissions.
+   *
+   * @return the first pageSize visas of the visa type of linked accounts in the shard, ordered by
+   *     visa id, with a visa id greater than afterVisaId and no saved dbGaP permissions
+   */
+  @WithSpan
+  public List<GA4GHVisa> getVisasWithoutDbGapPermissions(
+      String visaType, CronShard shard, int afterVisaId, int pageSize) {
+    var namedParameters =
+        new MapSqlParameterSource("visaType", visaType)
+            .addValues(shardParameters(shard))
+            .addValue("afterVisaId", afterVisaId)
+            .addValue("pageSize", pageSize);
+
+    var query =
+        "SELECT v.* FROM linked_account la"
+            + " JOIN ga4gh_passport p ON p.linked_account_id = la.id"
+            + " JOIN ga4gh_visa v ON v.passport_id = p.id"
+            + " WHERE lower(v.visa_type) = lower(:visaType)"
+            + " AND v.id > :afterVisaId"
+            + " AND NOT v.dbgap_permissions_saved"
+            + " AND "
+            + SHARD_CONDITION
+            + " ORDER BY v.id LIMIT :pageSize";
+
+    return jdbcTemplate.query(query, namedParameters, new GA4GHVisaRowMapper());
+  }
+
+  /** Sets last_validated for all the visas with a single statement. */
   @WithSpan
-  public void updateLastValidated(int visaId, Timestamp newLastValidated) {
+  public void updateLastValidated(Collection<Integer> visaIds, Timestamp newLastValidated) {
     var namedParameters =
-        new MapSqlParameterSource("id", visaId).addValue("newLastValidated", newLastValidated);
+        new MapSqlParameterSource("ids", visaIds.toArray(Integer[]::new))
+            .addValue("newLastValidated", newLastValidated);
 
-    var query = "UPDATE ga4gh_visa set last_validated = :newLastValidated where id = :id";
+    // = ANY of an array parameter, unlike IN, has no limit on the number of ids
+    var query = "UPDATE ga4gh_visa set last_validated = :newLastValidated where id = ANY(:ids)";
 
     jdbcTemplate.update(query, namedParameters);
   }
@@ -1,15 +1,24 @@
 package bio.terra.externalcreds.dataAccess;
 
+import static bio.terra.externalcreds.dataAccess.CronShardSql.SHARD_CONDITION;
+import static bio.terra.externalcreds.dataAccess.CronShardSql.shardParameters;
+
 import bio.terra.externalcreds.generated.model.Provider;
+import bio.terra.externalcreds.models.AccessTokenCacheEntry;
+import bio.terra.externalcreds.models.CronShard;
 import bio.terra.externalcreds.models.LinkedAccount;
+import bio.terra.externalcreds.models.LinkedAccountSummary;
+import bio.terra.externalcreds.models.LinkedAccountWithAccessToken;
 import io.opentelemetry.instrumentation.annotations.WithSpan;
 import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.dao.support.DataAccessUtils;
 import org.springframework.jdbc.core.RowMapper;
@@ -35,9 +44,11 @@ public class LinkedAccountDAO {
               .build());
 
   final NamedParameterJdbcTemplate jdbcTemplate;
+  private final NamedParameterJdbcTemplate streamingJdbcTemplate;
 
   public LinkedAccountDAO(NamedParameterJdbcTemplate jdbcTemplate) {
     this.jdbcTemplate = jdbcTemplate;
+    this.streamingJdbcTemplate = StreamingQueries.withFetchSize(jdbcTemplate);
   }
 
   @WithSpan
@@ -62,10 +73,18 @@ public class LinkedAccountDAO {
             jdbcTemplate.query(query, namedParameters, LINKED_ACCOUNT_ROW_MAPPER)));
   }
 
+  /**
+   * @return the first pageSize linked accounts in the shard, ordered by id, with an id greater than
+   *     afterLinkedAccountId and a passport or visa expiring by expirationCutoff
+   */
   @WithSpan
   public List<LinkedAccount> getLinkedAccountsWithExpiringPassportsOrVisas(
-      Timestamp expirationCutoff) {
-    var namedParameters = new MapSqlParameterSource("expirationCutoff", expirationCutoff);
+      Timestamp expirationCutoff, CronShard shard, int afterLinkedAccountId, int pageSize) {
+    var namedParameters =
+        new MapSqlParameterSource("expirationCutoff", expirationCutoff)
+            .addValues(shardParameters(shard))
+            .addValue("afterLinkedAccountId", afterLinkedAccountId)
+            .addValue("pageSize", pageSize);
     var query =
         "SELECT DISTINCT la.* FROM linked_account la"
             + " JOIN ga4gh_passport passport"
@@ -74,10 +93,70 @@ public class LinkedAccountDAO {
             + " ON visa.passport_id = passport.id"
             + " WHERE (passport.expires <= :expirationCutoff"
             + " OR visa.expires <= :expirationCutoff)"
-            + " AND la.is_authenticated = true";
+            + " AND la.is_authenticated = true"
+            + " AND la.id > :afterLinkedAccountId AND "
+            + SHARD_CONDITION
+            + " ORDER BY la.id LIMIT :pageSize";
     return jdbcTemplate.query(query, namedParameters, LINKED_ACCOUNT_ROW_MAPPER);
   }
 
+  @WithSpan
+  public List<LinkedAccount> getLinkedAccountsWithRecentlyUsedExpiringAccessTokens(
+      Timestamp expirationCutoff, Timestamp usedSince, CronShard shard) {
+    var namedParameters =
+        new MapSqlParameterSource()
+            .addValue("expirationCutoff", expirationCutoff)
+            .addValue("usedSince", usedSince)
+            .addValues(shardParameters(shard));
+    var query =
+        "SELECT la.* FROM linked_account la"
+            + " JOIN access_token_cache token"
+            + " ON token.linked_account_id = la.id"
+            + " WHERE token.expires_at <= :expirationCutoff"
+            + " AND token.last_used_at >= :usedSince"
+            + " AND la.expires > now()"
+            + " AND la.is_authenticated = true AND "
+            + SHARD_CONDITION;
+    return jdbcTemplate.query(query, namedParameters, LINKED_ACCOUNT_ROW_MAPPER);
+  }
+
+  /**
+   * Loads the linked accounts of many users along with their cached access tokens in one query.
+   *
+   * @return all linked accounts of the users, for every provider
+   */
+  @WithSpan
+  public List<LinkedAccountWithAccessToken> getLinkedAccountsWithAccessTokens(
+      Collection<String> userIds) {
+    var namedParameters = new MapSqlParameterSource("userIds", userIds);
+    var query =
+        "SELECT la.*, token.access_token, token.expires_at AS token_expires_at"
+            + " FROM linked_account la"
+            + " LEFT JOIN access_token_cache token"
+            + " ON token.linked_account_id = la.id"
+            + " WHERE la.user_id IN (:userIds)";
+    return jdbcTemplate.query(
+        query,
+        namedParameters,
+        (rs, rowNum) -> {
+          var linkedAccount = LINKED_ACCOUNT_ROW_MAPPER.mapRow(rs, rowNum);
+          var accessToken = rs.getString("access_token");
+          var tokenExpiresAt = rs.getTimestamp("token_expires_at");
+          return new LinkedAccountWithAccessToken.Builder()
+              .linkedAccount(linkedAccount)
+              .accessTokenCacheEntry(
+                  Optional.ofNullable(accessToken)
+                      .map(
+                          token ->
+                              new AccessTokenCacheEntry.Builder()
+                                  .linkedAccountId(linkedAccount.getId().orElseThrow())
+                                  .accessToken(token)
+                                  .expiresAt(tokenExpiresAt.toInstant())
+                                  .build()))
+              .build();
+        });
+  }
+
   @WithSpan
   public LinkedAccount upsertLinkedAccount(LinkedAccount linkedAccount) {
     var query =
@@ -159,15 +238,63 @@ public class LinkedAccountDAO {
     return jdbcTemplate.query(query, namedParameters, LINKED_ACCOUNT_ROW_MAPPER);
   }
 
-  public List<LinkedAccount> getExpiredLinkedAccountsWithPassports() {
+  /**
+   * Passes the next pageSize active linked accounts of the provider, in user id order, to the
+   * consumer as they are read. Must be called in a transaction, see {@link StreamingQueries}.
+   *
+   * @param afterUserId only users with ids after this one are included, empty to start at the first
+   */
+  @WithSpan
+  public void forEachActiveLinkedAccount(
+      Provider provider,
+      String afterUserId,
+      int pageSize,
+      Consumer<LinkedAccountSummary> consumer) {
     var namedParameters =
         new MapSqlParameterSource()
-            .addValue("expirationCutoff", new Timestamp(System.currentTimeMillis()));
+            .addValue("expirationCutoff", new Timestamp(System.currentTimeMillis()))
+            .addValue("provider", provider.name())
+            .addValue("afterUserId", afterUserId)
+            .addValue("pageSize", pageSize);
     var query =
-        "SELECT la.id, la.user_id, la.provider, la.refresh_token, la.expires, la.external_user_id, la.is_authenticated"
-            + " FROM linked_account la"
-            + " WHERE la.expires < :expirationCutoff"
-            + " AND exists (SELECT 1 FROM ga4gh_passport p WHERE p.linked_account_id = la.id)";
+        "SELECT la.user_id, la.external_user_id, la.expires FROM linked_account la"
+            + " WHERE la.provider = :provider::provider_enum"
+            + " AND la.user_id > :afterUserId"
+            + " AND la.expires > :expirationCutoff AND la.is_authenticated = true"
+            + " ORDER BY la.user_id LIMIT :pageSize";
+    StreamingQueries.query(
+        streamingJdbcTemplate,
+        query,
+        namedParameters,
+        rs -> {
+          consumer.accept(
+              new LinkedAccountSummary.Builder()
+                  .userId(rs.getString("user_id"))
+                  .externalUserId(rs.getString("external_user_id"))
+                  .expires(rs.getTimestamp("expires"))
+                  .build());
+        });
+  }
+
+  /**
+   * @return the first pageSize expired linked accounts with passports in the shard, ordered by id,
+   *     with an id greater than afterLinkedAccountId
+   */
+  public List<LinkedAccount> getExpiredLinkedAccountsWithPassports(
+      CronShard shard, int afterLinkedAccountId, int pageSize) {
+    var namedParameters =
+        new MapSqlParameterSource()
+            .addValue("expirationCutoff", new Timestamp(System.currentTimeMillis()))
+            .addValues(shardParameters(shard))
+            .addValue("afterLinkedAccountId", afterLinkedAccountId)
+            .addValue("pageSize", pageSize);
+    var query =
+        "SELECT la.id, la.user_id, la.provider, la.refresh_token, la.expires, la.external_user_id,"
+            + " la.is_authenticated FROM linked_account la WHERE la.expires < :expirationCutoff AND"
+            + " exists (SELECT 1 FROM ga4gh_passport p WHERE p.linked_account_id = la.id) AND"
+            + " la.id > :afterLinkedAccountId AND "
+            + SHARD_CONDITION
+            + " ORDER BY la.id LIMIT :pageSize";
     return jdbcTemplate.query(query, namedParameters, LINKED_ACCOUNT_ROW_MAPPER);
   }
 
@@ -0,0 +1,54 @@
+package bio.terra.externalcreds.dataAccess;
+
+import java.time.Duration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+/**
+ * Queries whose results are handed to a callback one row at a time, for listings too large to hold
+ * in memory. The postgres driver only reads a result in batches of the fetch size when it runs in a
+ * transaction, otherwise it reads the whole result at once, so these queries must be run from
+ * transactional service methods.
+ *
+ * <p>The trade-off is that a caller writing the rows to a slow client holds the transaction, and
+ * its connection, open for as long as the client takes to read them. Listings are paged so this is
+ * at most one page, and postgres ends a transaction left idle between batches for longer than
+ * {@link #MAX_IDLE_BETWEEN_BATCHES}, which closes the connection and fails the listing part way
+ * through.
+ */
+class StreamingQueries {
+  static final int FETCH_SIZE = 500;
+  static final Duration MAX_IDLE_BETWEEN_BATCHES = Duration.ofMinutes(1);
+
+  private StreamingQueries() {}
+
+  /**
+   * @return a template on the same data source, so that it takes part in the same transactions,
+   *     that reads results in batches of {@link #FETCH_SIZE} rows
+   */
+  static NamedParameterJdbcTemplate withFetchSize(NamedParameterJdbcTemplate jdbcTemplate) {
+    var streamingJdbcTemplate = new JdbcTemplate(jdbcTemplate.getJdbcTemplate().getDataSource());
+    streamingJdbcTemplate.setFetchSize(FETCH_SIZE);
+    return new NamedParameterJdbcTemplate(streamingJdbcTemplate);
+  }
+
+  /**
+   * Runs the query on a template from {@link #withFetchSize}, passing each row to rowHandler as it
+   * is read, after limiting how long the rest of the transaction may sit idle.
+   */
+  static void query(
+      NamedParameterJdbcTemplate streamingJdbcTemplate,
+      String query,
+      SqlParameterSource namedParameters,
+      RowCallbackHandler rowHandler) {
+    // local to the transaction, so the connection goes back to the pool without the limit
+    streamingJdbcTemplate.queryForObject(
+        "SELECT set_config('idle_in_transaction_session_timeout', :timeout, true)",
+        new MapSqlParameterSource("timeout", MAX_IDLE_BETWEEN_BATCHES.toMillis() + "ms"),
+        String.class);
+    streamingJdbcTemplate.query(query, namedParameters, rowHandler);
+  }
+}
@@ -0,0 +1,12 @@
+package bio.terra.externalcreds.models;
+
+import org.immutables.value.Value;
+
+@Value.Immutable
+public interface AccessTokenRenewalSummary extends WithAccessTokenRenewalSummary {
+  int getRenewedCount();
+
+  int getFailedCount();
+
+  class Builder extends ImmutableAccessTokenRenewalSummary.Builder {}
+}
@@ -0,0 +1,13 @@
+package bio.terra.externalcreds.models;
+
+import bio.terra.externalcreds.generated.model.Provider;
+import org.immutables.value.Value;
+
+@Value.Immutable
+public interface AccessTokenRequestInternal extends WithAccessTokenRequestInternal {
+  String getUserId();
+
+  Provider getProvider();
+
+  class Builder extends ImmutableAccessTokenRequestInternal.Builder {}
+}
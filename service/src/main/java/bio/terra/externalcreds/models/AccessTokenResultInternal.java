@@ -0,0 +1,20 @@
+package bio.terra.externalcreds.models;
+
+import bio.terra.common.exception.ErrorReportException;
+import bio.terra.externalcreds.generated.model.Provider;
+import java.util.Optional;
+import org.immutables.value.Value;
+
+/** The access token for one item of a bulk request, or the error that prevented getting it */
+@Value.Immutable
+public interface AccessTokenResultInternal extends WithAccessTokenResultInternal {
+  String getUserId();
+
+  Provider getProvider();
+
+  Optional<String> getAccessToken();
+
+  Optional<ErrorReportException> getError();
+
+  class Builder extends ImmutableAccessTokenResultInternal.Builder {}
+}
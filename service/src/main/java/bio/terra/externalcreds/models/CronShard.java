@@ -0,0 +1,24 @@
+package bio.terra.externalcreds.models;
+
+import org.immutables.value.Value;
+
+/**
+ * One of count disjoint slices of the linked accounts that background jobs work on, the linked
+ * accounts whose id modulo count is index.
+ */
+@Value.Immutable
+public interface CronShard extends WithCronShard {
+  int getIndex();
+
+  int getCount();
+
+  @Value.Check
+  default void check() {
+    if (getCount() < 1 || getIndex() < 0 || getIndex() >= getCount()) {
+      throw new IllegalArgumentException(
+          String.format("invalid shard %d of %d", getIndex(), getCount()));
+    }
+  }
+
+  class Builder extends ImmutableCronShard.Builder {}
+}
@@ -0,0 +1,45 @@
+package bio.terra.externalcreds.models;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import java.sql.Timestamp;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.immutables.value.Value;
+
+/**
+ * Object representing fields of interest in the ras_dbgap_permissions array of a RASv1.1 visa.
+ * Stored with the visa when it is saved so its authorizations can be compared and queried without
+ * parsing the jwt.
+ */
+@Value.Immutable
+@JsonDeserialize(as = ImmutableDbGapPermission.class)
+public interface DbGapPermission extends WithDbGapPermission {
+  @JsonProperty("phs_id")
+  String getPhsId();
+
+  @JsonProperty("consent_group")
+  String getConsentGroup();
+
+  String getRole();
+
+  /**
+   * Seconds since the epoch when the permission expires, if earlier than its visa. Not part of the
+   * authorizations a permission represents.
+   */
+  @Value.Auxiliary
+  @JsonProperty("expiration")
+  Optional<Long> getExpiration();
+
+  /**
+   * @return when the permission expires, its own expiration or its visa's whichever is earlier
+   */
+  default Timestamp getExpires(Timestamp visaExpires) {
+    return getExpiration()
+        .map(expiration -> new Timestamp(TimeUnit.SECONDS.toMillis(expiration)))
+        .filter(expires -> expires.before(visaExpires))
+        .orElse(visaExpires);
+  }
+
+  class Builder extends ImmutableDbGapPermission.Builder {}
+}
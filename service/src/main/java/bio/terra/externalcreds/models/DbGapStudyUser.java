@@ -0,0 +1,18 @@
+package bio.terra.externalcreds.models;
+
+import java.sql.Timestamp;
+import java.util.List;
+import org.immutables.value.Value;
+
+/** A user whose visas grant access to a dbGaP study */
+@Value.Immutable
+public interface DbGapStudyUser extends WithDbGapStudyUser {
+  String getUserId();
+
+  List<String> getConsentGroups();
+
+  /** When the last of the user's permissions for the study expires */
+  Timestamp getExpires();
+
+  class Builder extends ImmutableDbGapStudyUser.Builder {}
+}
@@ -1,6 +1,7 @@
 package bio.terra.externalcreds.models;
 
 import java.sql.Timestamp;
+import java.time.Instant;
 import java.util.Optional;
 import org.immutables.value.Value;
 
@@ -20,5 +21,17 @@ public interface GA4GHPassport extends WithGA4GHPassport {
    */
   String getJwtId();
 
+  /**
+   * The txn claim of the verified jwt. Like {@link #getIssuedAt()} it is only set on passports
+   * decoded from a jwt, not on passports read from the database, so the jwt does not have to be
+   * parsed and verified again to read it.
+   */
+  @Value.Auxiliary
+  Optional<String> getTransactionClaim();
+
+  /** The iat claim of the verified jwt, see {@link #getTransactionClaim()} */
+  @Value.Auxiliary
+  Optional<Instant> getIssuedAt();
+
   class Builder extends ImmutableGA4GHPassport.Builder {}
 }
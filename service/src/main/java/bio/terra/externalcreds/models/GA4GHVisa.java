@@ -1,7 +1,9 @@
 package bio.terra.externalcreds.models;
 
 import java.sql.Timestamp;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import org.immutables.value.Value;
 
 @Value.Immutable
@@ -22,5 +24,19 @@ public interface GA4GHVisa extends WithGA4GHVisa {
 
   Optional<Timestamp> getLastValidated();
 
+  /**
+   * The claims of the verified jwt. Only set on visas decoded from a jwt, not on visas read from
+   * the database, so the jwt does not have to be parsed again to read them.
+   */
+  @Value.Auxiliary
+  Optional<Map<String, Object>> getClaims();
+
+  /**
+   * The dbGaP permissions stored with a visa when it was saved. Set on visas read from the
+   * database, so their authorizations can be compared without parsing the jwt.
+   */
+  @Value.Auxiliary
+  Optional<Set<DbGapPermission>> getDbGapPermissions();
+
   class Builder extends ImmutableGA4GHVisa.Builder {}
 }
@@ -0,0 +1,16 @@
+package bio.terra.externalcreds.models;
+
+import java.sql.Timestamp;
+import org.immutables.value.Value;
+
+/** The columns of a linked account needed to list it, without its refresh token */
+@Value.Immutable
+public interface LinkedAccountSummary extends WithLinkedAccountSummary {
+  String getUserId();
+
+  String getExternalUserId();
+
+  Timestamp getExpires();
+
+  class Builder extends ImmutableLinkedAccountSummary.Builder {}
+}
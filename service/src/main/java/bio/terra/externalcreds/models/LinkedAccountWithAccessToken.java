@@ -0,0 +1,13 @@
+package bio.terra.externalcreds.models;
+
+import java.util.Optional;
+import org.immutables.value.Value;
+
+@Value.Immutable
+public interface LinkedAccountWithAccessToken extends WithLinkedAccountWithAccessToken {
+  LinkedAccount getLinkedAccount();
+
+  Optional<AccessTokenCacheEntry> getAccessTokenCacheEntry();
+
+  class Builder extends ImmutableLinkedAccountWithAccessToken.Builder {}
+}
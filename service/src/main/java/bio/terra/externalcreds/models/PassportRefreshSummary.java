@@ -0,0 +1,14 @@
+package bio.terra.externalcreds.models;
+
+import org.immutables.value.Value;
+
+@Value.Immutable
+public interface PassportRefreshSummary extends WithPassportRefreshSummary {
+  /** Linked accounts whose passports were refreshed, or invalidated because they can't be */
+  int getRefreshedCount();
+
+  /** Linked accounts that failed to refresh and will be tried again at the next interval */
+  int getFailedCount();
+
+  class Builder extends ImmutablePassportRefreshSummary.Builder {}
+}
@@ -0,0 +1,16 @@
+package bio.terra.externalcreds.models;
+
+import java.sql.Timestamp;
+import org.immutables.value.Value;
+
+/** A passport along with the id of the user whose linked account it belongs to */
+@Value.Immutable
+public interface UserPassport extends WithUserPassport {
+  String getUserId();
+
+  String getJwt();
+
+  Timestamp getExpires();
+
+  class Builder extends ImmutableUserPassport.Builder {}
+}
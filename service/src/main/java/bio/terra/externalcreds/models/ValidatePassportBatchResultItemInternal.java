@@ -0,0 +1,16 @@
+package bio.terra.externalcreds.models;
+
+import bio.terra.common.exception.ErrorReportException;
+import java.util.Optional;
+import org.immutables.value.Value;
+
+/** The result of validating one item of a batch, or the error that prevented it */
+@Value.Immutable
+public interface ValidatePassportBatchResultItemInternal
+    extends WithValidatePassportBatchResultItemInternal {
+  Optional<ValidatePassportResultInternal> getResult();
+
+  Optional<ErrorReportException> getError();
+
+  class Builder extends ImmutableValidatePassportBatchResultItemInternal.Builder {}
+}
@@ -1,16 +1,37 @@
 package bio.terra.externalcreds.services;
 
-import bio.terra.common.db.WriteTransaction;
+import bio.terra.common.exception.NotFoundException;
+import bio.terra.externalcreds.ExternalCredsException;
 import bio.terra.externalcreds.auditLogging.AuditLogEvent;
 import bio.terra.externalcreds.auditLogging.AuditLogEventType;
 import bio.terra.externalcreds.auditLogging.AuditLogger;
 import bio.terra.externalcreds.config.ExternalCredsConfig;
 import bio.terra.externalcreds.dataAccess.AccessTokenCacheDAO;
+import bio.terra.externalcreds.dataAccess.DistributedLockDAO;
+import bio.terra.externalcreds.exception.DistributedLockException;
+import bio.terra.externalcreds.generated.model.Provider;
 import bio.terra.externalcreds.models.AccessTokenCacheEntry;
+import bio.terra.externalcreds.models.AccessTokenRenewalSummary;
+import bio.terra.externalcreds.models.CronShard;
+import bio.terra.externalcreds.models.DistributedLock;
 import bio.terra.externalcreds.models.LinkedAccount;
+import bio.terra.externalcreds.models.LinkedAccountWithAccessToken;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.util.concurrent.RateLimiter;
+import java.sql.Timestamp;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.security.oauth2.core.OAuth2RefreshToken;
 import org.springframework.stereotype.Service;
@@ -25,6 +46,11 @@ public class AccessTokenCacheService {
   private final AccessTokenCacheDAO accessTokenCacheDAO;
   private final ExternalCredsConfig externalCredsConfig;
   private final AuditLogger auditLogger;
+  private final LocalAccessTokenCache localAccessTokenCache;
+  private final DistributedLockDAO distributedLockDAO;
+  private final ConcurrentHashMap<ExchangeKey, CompletableFuture<String>> inFlightExchanges =
+      new ConcurrentHashMap<>();
+  private final Cache<Integer, Boolean> recordedAccessTokenUses;
 
   public AccessTokenCacheService(
       ProviderTokenClientCache providerTokenClientCache,
@@ -32,38 +58,289 @@ public class AccessTokenCacheService {
       OAuth2Service oAuth2Service,
       AccessTokenCacheDAO accessTokenCacheDAO,
       ExternalCredsConfig externalCredsConfig,
-      AuditLogger auditLogger) {
+      AuditLogger auditLogger,
+      LocalAccessTokenCache localAccessTokenCache,
+      DistributedLockDAO distributedLockDAO) {
     this.providerTokenClientCache = providerTokenClientCache;
     this.linkedAccountService = linkedAccountService;
     this.oAuth2Service = oAuth2Service;
     this.accessTokenCacheDAO = accessTokenCacheDAO;
     this.externalCredsConfig = externalCredsConfig;
     this.auditLogger = auditLogger;
+    this.localAccessTokenCache = localAccessTokenCache;
+    this.distributedLockDAO = distributedLockDAO;
+    this.recordedAccessTokenUses =
+        Caffeine.newBuilder()
+            .maximumSize(externalCredsConfig.getAccessTokenCacheMaximumSize())
+            .expireAfterWrite(Duration.ofMinutes(1))
+            .build();
   }
 
-  @WriteTransaction
+  /**
+   * Tokens are served from the per-pod {@link LocalAccessTokenCache} first, then from the
+   * access_token_cache table and finally from the provider. This is intentionally not wrapped in a
+   * transaction: each database statement stands alone, and a hit in the local cache must not check
+   * out a database connection at all.
+   */
   public String getLinkedAccountAccessToken(
       LinkedAccount linkedAccount, Set<String> scopes, AuditLogEvent.Builder auditLogEventBuilder) {
-    var tokenCacheEntry =
-        getAccessTokenCacheEntry(linkedAccount)
-            .flatMap(
-                tokenEntry -> {
-                  if (tokenEntry
-                      .getExpiresAt()
-                      .isAfter(
-                          Instant.now()
-                              .plus(externalCredsConfig.getAccessTokenExpirationBuffer()))) {
-                    return Optional.of(tokenEntry.getAccessToken());
-                  }
-                  return Optional.empty();
-                });
-
-    return tokenCacheEntry.orElseGet(
-        () -> getNewProviderAccessToken(linkedAccount, scopes, auditLogEventBuilder));
+    var accessToken =
+        localAccessTokenCache
+            .get(linkedAccount)
+            .or(
+                () ->
+                    getDatabaseCachedAccessToken(
+                        linkedAccount, externalCredsConfig.getAccessTokenExpirationBuffer()))
+            .orElseGet(
+                () -> getNewProviderAccessToken(linkedAccount, scopes, auditLogEventBuilder));
+    linkedAccount.getId().ifPresent(this::recordAccessTokenUse);
+    return accessToken;
   }
 
+  /**
+   * Serves the access token from the per-pod {@link LocalAccessTokenCache} or from the
+   * access_token_cache entry that was loaded along with the linked account, without any database
+   * round trip. Callers serving many tokens at once use this with {@link
+   * #getNewLinkedAccountAccessToken} and {@link #recordAccessTokenUses} in place of {@link
+   * #getLinkedAccountAccessToken}.
+   *
+   * @return the cached access token, or empty if a new one must be exchanged
+   */
+  public Optional<String> getCachedLinkedAccountAccessToken(
+      LinkedAccountWithAccessToken linkedAccountWithAccessToken) {
+    var linkedAccount = linkedAccountWithAccessToken.getLinkedAccount();
+    return localAccessTokenCache
+        .get(linkedAccount)
+        .or(
+            () ->
+                getUsableAccessToken(
+                    linkedAccount,
+                    linkedAccountWithAccessToken.getAccessTokenCacheEntry(),
+                    externalCredsConfig.getAccessTokenExpirationBuffer()));
+  }
+
+  /**
+   * Exchanges the linked account's refresh token for a new access token, see {@link
+   * #getCachedLinkedAccountAccessToken}.
+   */
+  public String getNewLinkedAccountAccessToken(
+      LinkedAccount linkedAccount, Set<String> scopes, AuditLogEvent.Builder auditLogEventBuilder) {
+    return getNewProviderAccessToken(linkedAccount, scopes, auditLogEventBuilder);
+  }
+
+  /**
+   * Records that the access tokens of the linked accounts were served, with a single database
+   * update, see {@link #recordAccessTokenUse}.
+   */
+  public void recordAccessTokenUses(Collection<LinkedAccount> linkedAccounts) {
+    var linkedAccountIds =
+        linkedAccounts.stream()
+            .flatMap(linkedAccount -> linkedAccount.getId().stream())
+            .filter(
+                linkedAccountId ->
+                    recordedAccessTokenUses.asMap().putIfAbsent(linkedAccountId, Boolean.TRUE)
+                        == null)
+            .toList();
+    if (!linkedAccountIds.isEmpty()) {
+      accessTokenCacheDAO.updateLastUsed(linkedAccountIds, Timestamp.from(Instant.now()));
+    }
+  }
+
+  /**
+   * Renews access tokens that were recently served and will expire soon, so that their users get
+   * them from the cache instead of waiting on the provider. Renewals are rate limited per provider.
+   * A renewed token replaces the cached one, which stays usable until it enters the expiration
+   * buffer, so callers never see an expired token.
+   *
+   * @param shard the slice of linked accounts to check
+   */
+  public AccessTokenRenewalSummary renewExpiringAccessTokens(CronShard shard) {
+    var renewalConfiguration = externalCredsConfig.getAccessTokenRenewalConfiguration();
+    var now = Instant.now();
+    var linkedAccounts =
+        linkedAccountService.getLinkedAccountsWithRecentlyUsedExpiringAccessTokens(
+            Timestamp.from(now.plus(renewalConfiguration.getRenewalWindow())),
+            Timestamp.from(now.minus(renewalConfiguration.getRecentUseWindow())),
+            shard);
+
+    var rateLimiters = new EnumMap<Provider, RateLimiter>(Provider.class);
+    var renewedCount = 0;
+    var failedCount = 0;
+    for (var linkedAccount : linkedAccounts) {
+      rateLimiters
+          .computeIfAbsent(
+              linkedAccount.getProvider(),
+              provider -> RateLimiter.create(renewalConfiguration.getMaxRenewalsPerSecond()))
+          .acquire();
+      try {
+        renewAccessToken(linkedAccount, renewalConfiguration.getRenewalWindow());
+        renewedCount++;
+      } catch (Exception e) {
+        log.info("Failed to renew access token, will try again at the next interval.", e);
+        failedCount++;
+      }
+    }
+    return new AccessTokenRenewalSummary.Builder()
+        .renewedCount(renewedCount)
+        .failedCount(failedCount)
+        .build();
+  }
+
+  private void renewAccessToken(LinkedAccount linkedAccount, Duration renewalWindow) {
+    // the refresh token may have been rotated since the linked account was loaded
+    var currentLinkedAccount =
+        linkedAccountService
+            .getLinkedAccount(linkedAccount.getId().orElseThrow())
+            .orElseThrow(() -> new NotFoundException("Linked account no longer exists"));
+    var providerProperties = externalCredsConfig.getProviderProperties(linkedAccount.getProvider());
+    exchangeRefreshTokenUnderLock(
+        currentLinkedAccount,
+        new HashSet<>(providerProperties.getScopes()),
+        new AuditLogEvent.Builder().auditLogEventType(AuditLogEventType.ProviderAccessTokenRenewed),
+        renewalWindow);
+  }
+
+  /**
+   * Records in the database that the access token was served, which makes it eligible for
+   * background renewal. Uses are recorded at most once per minute per linked account and pod.
+   */
+  private void recordAccessTokenUse(int linkedAccountId) {
+    if (recordedAccessTokenUses.asMap().putIfAbsent(linkedAccountId, Boolean.TRUE) == null) {
+      accessTokenCacheDAO.updateLastUsed(linkedAccountId, Timestamp.from(Instant.now()));
+    }
+  }
+
+  /**
+   * @param minimumLifetime how long the cached access token must remain valid to be used
+   */
+  private Optional<String> getDatabaseCachedAccessToken(
+      LinkedAccount linkedAccount, Duration minimumLifetime) {
+    return getUsableAccessToken(
+        linkedAccount, getAccessTokenCacheEntry(linkedAccount), minimumLifetime);
+  }
+
+  private Optional<String> getUsableAccessToken(
+      LinkedAccount linkedAccount,
+      Optional<AccessTokenCacheEntry> accessTokenCacheEntry,
+      Duration minimumLifetime) {
+    return accessTokenCacheEntry
+        .filter(
+            tokenEntry -> tokenEntry.getExpiresAt().isAfter(Instant.now().plus(minimumLifetime)))
+        .map(
+            tokenEntry -> {
+              localAccessTokenCache.put(linkedAccount, tokenEntry);
+              return tokenEntry.getAccessToken();
+            });
+  }
+
+  /**
+   * At most one refresh token exchange per linked account is in flight at a time. Within a pod,
+   * concurrent callers wait for and share the result of the first caller's exchange. Across pods,
+   * the exchange is guarded by a distributed lock and pods that don't hold the lock wait for the
+   * new token to show up in the access_token_cache table. This keeps bursts of requests from
+   * stampeding the provider, and keeps concurrent exchanges of a rotating refresh token from
+   * invalidating each other.
+   */
   private String getNewProviderAccessToken(
       LinkedAccount linkedAccount, Set<String> scopes, AuditLogEvent.Builder auditLogEventBuilder) {
+    var exchangeKey = new ExchangeKey(linkedAccount.getUserId(), linkedAccount.getProvider());
+    var exchange = new CompletableFuture<String>();
+    var inFlightExchange = inFlightExchanges.putIfAbsent(exchangeKey, exchange);
+    if (inFlightExchange != null) {
+      return awaitInFlightExchange(inFlightExchange);
+    }
+    try {
+      var accessToken =
+          exchangeRefreshTokenUnderLock(
+              linkedAccount,
+              scopes,
+              auditLogEventBuilder.auditLogEventType(AuditLogEventType.GetProviderAccessToken),
+              externalCredsConfig.getAccessTokenExpirationBuffer());
+      exchange.complete(accessToken);
+      return accessToken;
+    } catch (RuntimeException e) {
+      exchange.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlightExchanges.remove(exchangeKey, exchange);
+    }
+  }
+
+  /**
+   * Waits at most the lock timeout for another caller's exchange, the same bound as waiting on
+   * another pod's exchange.
+   */
+  private String awaitInFlightExchange(CompletableFuture<String> inFlightExchange) {
+    var lockTimeout = externalCredsConfig.getDistributedLockConfiguration().getLockTimeout();
+    try {
+      // copied so that timing out does not fail the exchange for the caller running it
+      return inFlightExchange
+          .copy()
+          .orTimeout(lockTimeout.toMillis(), TimeUnit.MILLISECONDS)
+          .join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        throw new DistributedLockException(
+            "Timed out waiting for an in-flight refresh token exchange");
+      }
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @param minimumLifetime how long an access token cached by another pod must remain valid to be
+   *     used instead of exchanging the refresh token
+   */
+  private String exchangeRefreshTokenUnderLock(
+      LinkedAccount linkedAccount,
+      Set<String> scopes,
+      AuditLogEvent.Builder auditLogEventBuilder,
+      Duration minimumLifetime) {
+    var lockConfiguration = externalCredsConfig.getDistributedLockConfiguration();
+    var lockName = "getProviderAccessToken-" + linkedAccount.getProvider();
+    var deadline = Instant.now().plus(lockConfiguration.getLockTimeout());
+    while (true) {
+      var lock =
+          new DistributedLock.Builder()
+              .lockName(lockName)
+              .userId(linkedAccount.getUserId())
+              .expiresAt(Instant.now().plus(lockConfiguration.getLockTimeout()))
+              .build();
+      if (distributedLockDAO.tryInsertDistributedLock(lock)) {
+        try {
+          // another pod may have stored a new token between our cache miss and obtaining the lock
+          return getDatabaseCachedAccessToken(linkedAccount, minimumLifetime)
+              .orElseGet(() -> exchangeRefreshToken(linkedAccount, scopes, auditLogEventBuilder));
+        } finally {
+          // the lock may have expired and been taken over by another pod during a slow exchange
+          distributedLockDAO.deleteHeldDistributedLock(lock);
+        }
+      }
+
+      var accessToken = getDatabaseCachedAccessToken(linkedAccount, minimumLifetime);
+      if (accessToken.isPresent()) {
+        return accessToken.get();
+      }
+      if (Instant.now().isAfter(deadline)) {
+        throw new DistributedLockException(
+            String.format(
+                "Timed out waiting for lock %s for user %s", lockName, linkedAccount.getUserId()));
+      }
+      log.debug("Lock {} is held by another pod, waiting for it to be released.", lockName);
+      try {
+        Thread.sleep(lockConfiguration.getLockPollInterval().toMillis());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ExternalCredsException("Interrupted waiting for lock " + lockName, e);
+      }
+    }
+  }
+
+  private String exchangeRefreshToken(
+      LinkedAccount linkedAccount, Set<String> scopes, AuditLogEvent.Builder auditLogEventBuilder) {
     // get client registration from provider client cache
     var clientRegistration =
         providerTokenClientCache.getProviderClient(linkedAccount.getProvider());
@@ -81,15 +358,17 @@ public class AccessTokenCacheService {
       linkedAccountService.upsertLinkedAccount(
           linkedAccount.withRefreshToken(refreshToken.getTokenValue()));
     }
-    logGetProviderAccessToken(linkedAccount, auditLogEventBuilder);
+    logAccessTokenEvent(linkedAccount, auditLogEventBuilder);
 
-    return upsertAccessTokenCacheEntry(
+    var accessTokenCacheEntry =
+        upsertAccessTokenCacheEntry(
             new AccessTokenCacheEntry.Builder()
                 .linkedAccountId(linkedAccount.getId().orElseThrow())
                 .accessToken(accessTokenResponse.getAccessToken().getTokenValue())
                 .expiresAt(accessTokenResponse.getAccessToken().getExpiresAt())
-                .build())
-        .getAccessToken();
+                .build());
+    localAccessTokenCache.put(linkedAccount, accessTokenCacheEntry);
+    return accessTokenCacheEntry.getAccessToken();
   }
 
   private Optional<AccessTokenCacheEntry> getAccessTokenCacheEntry(LinkedAccount linkedAccount) {
@@ -101,14 +380,15 @@ public class AccessTokenCacheService {
     return accessTokenCacheDAO.upsertAccessTokenCacheEntry(accessTokenCacheEntry);
   }
 
-  public void logGetProviderAccessToken(
+  private void logAccessTokenEvent(
       LinkedAccount linkedAccount, AuditLogEvent.Builder auditLogEventBuilder) {
     auditLogger.logEvent(
         auditLogEventBuilder
             .externalUserId(linkedAccount.getExternalUserId())
             .userId(linkedAccount.getUserId())
             .provider(linkedAccount.getProvider())
-            .auditLogEventType(AuditLogEventType.GetProviderAccessToken)
             .build());
   }
+
+  private record ExchangeKey(String userId, Provider provider) {}
 }
@@ -0,0 +1,133 @@
+package bio.terra.externalcreds.services;
+
+import bio.terra.externalcreds.config.ExternalCredsConfig;
+import bio.terra.externalcreds.generated.model.Provider;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Loads the provider clients and jwt decoders of every configured provider and allowed issuer and
+ * jku at startup, so a new pod's first requests don't wait on OIDC discovery or key downloads.
+ * Spring Boot only reports the application ready once this has run, so the readiness probe waits
+ * for the warm-up, up to the configured timeout.
+ */
+@Component
+@ConditionalOnProperty(name = "externalcreds.warmup-configuration.enabled", havingValue = "true")
+@Slf4j
+public class CacheWarmer implements ApplicationRunner {
+  private final ExternalCredsConfig externalCredsConfig;
+  private final ProviderOAuthClientCache providerOAuthClientCache;
+  private final ProviderTokenClientCache providerTokenClientCache;
+  private final JwtDecoderCache jwtDecoderCache;
+  private final MeterRegistry meterRegistry;
+
+  public CacheWarmer(
+      ExternalCredsConfig externalCredsConfig,
+      ProviderOAuthClientCache providerOAuthClientCache,
+      ProviderTokenClientCache providerTokenClientCache,
+      JwtDecoderCache jwtDecoderCache,
+      MeterRegistry meterRegistry) {
+    this.externalCredsConfig = externalCredsConfig;
+    this.providerOAuthClientCache = providerOAuthClientCache;
+    this.providerTokenClientCache = providerTokenClientCache;
+    this.jwtDecoderCache = jwtDecoderCache;
+    this.meterRegistry = meterRegistry;
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    warmUp();
+  }
+
+  void warmUp() {
+    var timeout = externalCredsConfig.getWarmupConfiguration().getTimeout();
+    var tasks = getWarmupTasks();
+    var executor =
+        Executors.newFixedThreadPool(
+            Math.max(tasks.size(), 1),
+            new ThreadFactoryBuilder().setNameFormat("cache-warmer-%d").setDaemon(true).build());
+    var sample = Timer.start(meterRegistry);
+    var outcome = "completed";
+    try {
+      CompletableFuture.allOf(
+              tasks.stream()
+                  .map(task -> CompletableFuture.runAsync(task, executor))
+                  .toArray(CompletableFuture[]::new))
+          .get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      outcome = "timeout";
+      log.warn("Cache warm-up did not finish within {}, continuing startup", timeout);
+    } catch (ExecutionException e) {
+      // each task logs its own failure, the rest of the warm-up still ran
+      outcome = "failed";
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      outcome = "interrupted";
+    } finally {
+      // tasks still running finish in the background and their results are kept
+      executor.shutdown();
+      var duration =
+          sample.stop(
+              Timer.builder("externalcreds.cache_warmup.duration")
+                  .description("Time taken to warm up provider clients and jwt decoders at startup")
+                  .tag("outcome", outcome)
+                  .register(meterRegistry));
+      log.info(
+          "Cache warm-up of {} entries {} in {} ms",
+          tasks.size(),
+          outcome,
+          TimeUnit.NANOSECONDS.toMillis(duration));
+    }
+  }
+
+  private List<Runnable> getWarmupTasks() {
+    var tasks = new ArrayList<Runnable>();
+    for (var provider : externalCredsConfig.getProviders().keySet()) {
+      // eRA Commons does not use OAuth so it has no clients to load
+      if (provider != Provider.ERA_COMMONS) {
+        tasks.add(
+            warmupTask(
+                "OAuth client for " + provider,
+                () -> providerOAuthClientCache.getProviderClient(provider)));
+        tasks.add(
+            warmupTask(
+                "token client for " + provider,
+                () -> providerTokenClientCache.getProviderClient(provider)));
+      }
+    }
+    for (var issuer : externalCredsConfig.getAllowedJwtIssuers()) {
+      tasks.add(
+          warmupTask(
+              "jwt decoder for issuer " + issuer,
+              () -> jwtDecoderCache.fromIssuer(issuer.toString())));
+    }
+    for (var jku : externalCredsConfig.getAllowedJwksUris()) {
+      tasks.add(warmupTask("jwt decoder for jku " + jku, () -> jwtDecoderCache.fromJku(jku)));
+    }
+    return tasks;
+  }
+
+  private Runnable warmupTask(String description, Runnable load) {
+    return () -> {
+      try {
+        load.run();
+      } catch (RuntimeException e) {
+        log.warn("Cache warm-up failed to load {}", description, e);
+        throw e;
+      }
+    };
+  }
+}
@@ -0,0 +1,171 @@
+package bio.terra.externalcreds.services;
+
+import bio.terra.externalcreds.config.ExternalCredsConfig;
+import bio.terra.externalcreds.dataAccess.DistributedLockDAO;
+import bio.terra.externalcreds.models.CronShard;
+import bio.terra.externalcreds.models.DistributedLock;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+/**
+ * Splits the work of a background job between the cron replicas. The linked accounts are divided
+ * into externalCredsConfig.getCronShardingConfiguration().getShardCount() shards and each replica
+ * works on the shards it manages to claim.
+ *
+ * <p>A claim is a lease in the distributed_lock table that expires after the shard lease duration.
+ * While the job runs on a shard its lease is renewed, so a shard that takes longer than the lease
+ * duration is not picked up by another replica. When the job finishes the lease goes back to
+ * expiring one lease duration after it was claimed, which is before the next run. So each shard is
+ * worked on by one replica per job interval, and the shards of a replica that died are picked up by
+ * the others once their leases expire.
+ */
+@Service
+@Slf4j
+public class CronShardService {
+  private static final String LOCK_NAME_PREFIX = "cronShard-";
+
+  private final DistributedLockDAO distributedLockDAO;
+  private final ExternalCredsConfig externalCredsConfig;
+  private final ScheduledExecutorService leaseRenewalExecutor;
+
+  public CronShardService(
+      DistributedLockDAO distributedLockDAO, ExternalCredsConfig externalCredsConfig) {
+    this.distributedLockDAO = distributedLockDAO;
+    this.externalCredsConfig = externalCredsConfig;
+    this.leaseRenewalExecutor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("cron-shard-lease-renewal-%d")
+                .setDaemon(true)
+                .build());
+  }
+
+  @PreDestroy
+  public void shutdownLeaseRenewalExecutor() {
+    leaseRenewalExecutor.shutdown();
+  }
+
+  /**
+   * Claims shards one at a time and runs the job on each one claimed. Replicas start claiming at a
+   * random shard so that they tend to work on different shards at the same time. A job that fails
+   * for one shard is logged and does not stop the remaining shards.
+   *
+   * @param jobName identifies the job, shards are claimed separately for each job
+   * @return the number of shards claimed
+   */
+  public int runForClaimedShards(String jobName, Consumer<CronShard> job) {
+    var shardingConfig = externalCredsConfig.getCronShardingConfiguration();
+    var shardCount = shardingConfig.getShardCount();
+    var firstShardIndex = ThreadLocalRandom.current().nextInt(shardCount);
+    var claimedCount = 0;
+    for (var i = 0; i < shardCount; i++) {
+      var shard =
+          new CronShard.Builder()
+              .index((firstShardIndex + i) % shardCount)
+              .count(shardCount)
+              .build();
+      var lease = claimShard(jobName, shard, shardingConfig.getShardLeaseDuration());
+      if (lease.isPresent()) {
+        claimedCount++;
+        runHoldingLease(jobName, shard, lease.get(), job);
+      }
+    }
+    return claimedCount;
+  }
+
+  private void runHoldingLease(
+      String jobName, CronShard shard, ShardLease lease, Consumer<CronShard> job) {
+    var renewalInterval = lease.leaseDuration.dividedBy(2).toNanos();
+    var renewal =
+        leaseRenewalExecutor.scheduleAtFixedRate(
+            lease::renew, renewalInterval, renewalInterval, TimeUnit.NANOSECONDS);
+    try {
+      job.accept(shard);
+    } catch (Exception e) {
+      log.error(
+          "Failed to run {} for shard, it will be retried at the next interval",
+          jobName,
+          Map.of("shard_index", shard.getIndex()),
+          e);
+    } finally {
+      renewal.cancel(false);
+      lease.release();
+    }
+  }
+
+  private Optional<ShardLease> claimShard(String jobName, CronShard shard, Duration leaseDuration) {
+    var claim =
+        new DistributedLock.Builder()
+            .lockName(LOCK_NAME_PREFIX + jobName)
+            .userId(shard.getIndex() + "/" + shard.getCount())
+            .expiresAt(Instant.now().plus(leaseDuration))
+            .build();
+    return distributedLockDAO.tryInsertDistributedLock(claim)
+        ? Optional.of(new ShardLease(claim, leaseDuration))
+        : Optional.empty();
+  }
+
+  /**
+   * The lease on a claimed shard. Renewals run on the lease renewal thread and the release on the
+   * job's thread, so both are synchronized to keep track of the expiry the lease currently has.
+   */
+  private class ShardLease {
+    private final DistributedLock claim;
+    private final Duration leaseDuration;
+    private DistributedLock current;
+    private boolean released;
+
+    ShardLease(DistributedLock claim, Duration leaseDuration) {
+      this.claim = claim;
+      this.leaseDuration = leaseDuration;
+      this.current = claim;
+    }
+
+    synchronized void renew() {
+      if (released) {
+        return;
+      }
+      var newExpiresAt = Instant.now().plus(leaseDuration);
+      try {
+        if (distributedLockDAO.renewDistributedLock(current, newExpiresAt)) {
+          current = current.withExpiresAt(newExpiresAt);
+        } else {
+          log.warn(
+              "Lost the lease on shard {}, another replica may be working on it",
+              current.getUserId(),
+              Map.of("lock_name", current.getLockName()));
+        }
+      } catch (Exception e) {
+        // an exception would cancel the scheduled renewals, the next one may well succeed
+        log.error(
+            "Failed to renew the lease on shard {}, it will be retried",
+            current.getUserId(),
+            Map.of("lock_name", current.getLockName()),
+            e);
+      }
+    }
+
+    synchronized void release() {
+      released = true;
+      if (current.equals(claim)) {
+        return;
+      }
+      if (claim.getExpiresAt().isAfter(Instant.now())) {
+        distributedLockDAO.renewDistributedLock(current, claim.getExpiresAt());
+      } else {
+        distributedLockDAO.deleteHeldDistributedLock(current);
+      }
+    }
+  }
+}
@@ -2,84 +2,265 @@ package bio.terra.externalcreds.services;
 
 import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.KeySourceException;
-import com.nimbusds.jose.jwk.JWK;
-import com.nimbusds.jose.jwk.JWKMatcher;
-import com.nimbusds.jose.jwk.JWKSelector;
-import com.nimbusds.jose.jwk.KeyType;
-import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.source.JWKSetCacheRefreshEvaluator;
+import com.nimbusds.jose.jwk.source.JWKSetSource;
 import com.nimbusds.jose.jwk.source.JWKSource;
-import com.nimbusds.jose.jwk.source.RemoteJWKSet;
+import com.nimbusds.jose.jwk.source.JWKSourceBuilder;
+import com.nimbusds.jose.jwk.source.URLBasedJWKSetSource;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
 import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jose.util.DefaultResourceRetriever;
+import com.nimbusds.jose.util.ResourceRetriever;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URL;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.RequestEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.security.oauth2.core.OAuth2TokenValidator;
-import org.springframework.security.oauth2.jose.jws.SignatureAlgorithm;
 import org.springframework.security.oauth2.jwt.Jwt;
-import org.springframework.security.oauth2.jwt.JwtDecoder;
 import org.springframework.security.oauth2.jwt.JwtDecoders;
 import org.springframework.security.oauth2.jwt.JwtValidators;
 import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
-import org.springframework.util.Assert;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
 
-/** provides decoders that are not in {@link JwtDecoders} */
+/**
+ * Provides decoders that are not in {@link JwtDecoders}, and decoders whose key sets are managed
+ * here rather than by {@link NimbusJwtDecoder}.
+ *
+ * <p>Each decoder fetches its key set once and refreshes it in the background before it expires, so
+ * validations do not wait on the key set endpoint. A jwt signed with a key that is not in the
+ * cached key set, as happens when a key is rotated in, triggers an immediate refresh, at most once
+ * every {@link #MIN_KEY_SET_REFRESH_INTERVAL}. If the key set endpoint is down the last key set
+ * keeps being used for up to {@link #KEY_SET_OUTAGE_TOLERANCE}. The key set of an issuer is fetched
+ * from the jwks_uri of its current configuration, which is looked up again at every refresh.
+ *
+ * <p>Decoders accept every allowed algorithm rather than only those of the keys in the key set when
+ * the decoder was created, so a key rotated in with a new algorithm is accepted too. The key that
+ * verifies a jwt is selected by the kid and alg of its header.
+ */
+@Slf4j
 public class ExternalCredsJwtDecoders {
+  static final Duration KEY_SET_TIME_TO_LIVE = Duration.ofMinutes(5);
+  static final Duration KEY_SET_REFRESH_AHEAD_TIME = Duration.ofSeconds(30);
+  static final Duration KEY_SET_REFRESH_TIMEOUT = Duration.ofSeconds(15);
+  static final Duration MIN_KEY_SET_REFRESH_INTERVAL = Duration.ofSeconds(30);
+  static final Duration KEY_SET_OUTAGE_TOLERANCE = Duration.ofHours(1);
+
+  private static final String OIDC_METADATA_PATH = "/.well-known/openid-configuration";
+  private static final String OAUTH_METADATA_PATH = "/.well-known/oauth-authorization-server";
+  private static final ParameterizedTypeReference<Map<String, Object>> METADATA_TYPE =
+      new ParameterizedTypeReference<>() {};
+
   private ExternalCredsJwtDecoders() {}
 
-  /** Adapted from {@link JwtDecoders#withProviderConfiguration(java.util.Map, String)} */
-  public static JwtDecoder fromJku(URI jku) throws MalformedURLException {
-    OAuth2TokenValidator<Jwt> jwtValidator = JwtValidators.createDefault();
-    RemoteJWKSet<SecurityContext> jwkSource = new RemoteJWKSet<>(jku.toURL());
-    Set<SignatureAlgorithm> signatureAlgorithms = getSignatureAlgorithms(jwkSource);
-    NimbusJwtDecoder jwtDecoder =
-        NimbusJwtDecoder.withJwkSetUri(jku.toString())
-            .jwsAlgorithms((algs) -> algs.addAll(signatureAlgorithms))
-            .build();
+  /**
+   * Adapted from {@link JwtDecoders#fromIssuerLocation(String)}
+   *
+   * @param algorithms the allowed signature algorithms, all RSA and EC algorithms if empty
+   * @param connectTimeout used for discovery and key set requests
+   * @param readTimeout used for discovery and key set requests
+   * @throws IllegalArgumentException if the configuration of the issuer cannot be resolved
+   */
+  public static KeySetJwtDecoder fromIssuer(
+      String issuer, Collection<String> algorithms, Duration connectTimeout, Duration readTimeout) {
+    // resolved up front so that an issuer without a configuration fails here
+    var jwksUrl = getJwksUrl(issuer, connectTimeout, readTimeout);
+    var jwkSetSource =
+        new IssuerJWKSetSource(
+            issuer,
+            jwksUrl,
+            createResourceRetriever(connectTimeout, readTimeout),
+            connectTimeout,
+            readTimeout);
+    return fromJwkSource(
+        createJwkSource(jwkSetSource), algorithms, JwtValidators.createDefaultWithIssuer(issuer));
+  }
+
+  /**
+   * Adapted from {@link JwtDecoders#withProviderConfiguration(java.util.Map, String)}
+   *
+   * @param algorithms the allowed signature algorithms, all RSA and EC algorithms if empty
+   * @param connectTimeout used for key set requests
+   * @param readTimeout used for key set requests
+   */
+  public static KeySetJwtDecoder fromJku(
+      URI jku, Collection<String> algorithms, Duration connectTimeout, Duration readTimeout)
+      throws MalformedURLException {
+    return fromJwkSource(
+        createJwkSource(jku.toURL(), connectTimeout, readTimeout),
+        algorithms,
+        JwtValidators.createDefault());
+  }
+
+  private static KeySetJwtDecoder fromJwkSource(
+      JWKSource<SecurityContext> jwkSource,
+      Collection<String> algorithms,
+      OAuth2TokenValidator<Jwt> jwtValidator) {
+    var jwsAlgorithms = getJwsAlgorithms(algorithms);
+    // as in NimbusJwtDecoder.JwkSetUriJwtDecoderBuilder, claims are checked by the jwt validator
+    var jwtProcessor = new DefaultJWTProcessor<>();
+    jwtProcessor.setJWSKeySelector(new JWSVerificationKeySelector<>(jwsAlgorithms, jwkSource));
+    jwtProcessor.setJWTClaimsSetVerifier((claims, context) -> {});
+    var jwtDecoder = new NimbusJwtDecoder(jwtProcessor);
     jwtDecoder.setJwtValidator(jwtValidator);
-    return jwtDecoder;
+    return new KeySetJwtDecoder(jwtDecoder, jwkSource);
+  }
+
+  static JWKSource<SecurityContext> createJwkSource(
+      URL jwksUrl, Duration connectTimeout, Duration readTimeout) {
+    return createJwkSource(
+        new URLBasedJWKSetSource<>(jwksUrl, createResourceRetriever(connectTimeout, readTimeout)));
+  }
+
+  private static JWKSource<SecurityContext> createJwkSource(
+      JWKSetSource<SecurityContext> jwkSetSource) {
+    return JWKSourceBuilder.create(jwkSetSource)
+        .cache(KEY_SET_TIME_TO_LIVE.toMillis(), KEY_SET_REFRESH_TIMEOUT.toMillis())
+        .refreshAheadCache(KEY_SET_REFRESH_AHEAD_TIME.toMillis(), true)
+        .rateLimited(MIN_KEY_SET_REFRESH_INTERVAL.toMillis())
+        .outageTolerant(KEY_SET_OUTAGE_TOLERANCE.toMillis())
+        .build();
+  }
+
+  private static ResourceRetriever createResourceRetriever(
+      Duration connectTimeout, Duration readTimeout) {
+    return new DefaultResourceRetriever(
+        (int) connectTimeout.toMillis(),
+        (int) readTimeout.toMillis(),
+        JWKSourceBuilder.DEFAULT_HTTP_SIZE_LIMIT);
+  }
+
+  private static Set<JWSAlgorithm> getJwsAlgorithms(Collection<String> algorithms) {
+    if (algorithms.isEmpty()) {
+      var jwsAlgorithms = new HashSet<JWSAlgorithm>(JWSAlgorithm.Family.RSA);
+      jwsAlgorithms.addAll(JWSAlgorithm.Family.EC);
+      return jwsAlgorithms;
+    }
+    return algorithms.stream().map(JWSAlgorithm::parse).collect(Collectors.toSet());
   }
 
   /**
-   * Copied from {@link
-   * org.springframework.security.oauth2.jwt.JwtDecoderProviderConfigurationUtils#getSignatureAlgorithms(JWKSource)}
-   * because it is private
+   * Adapted from {@link
+   * org.springframework.security.oauth2.jwt.JwtDecoderProviderConfigurationUtils#getConfigurationForIssuerLocation(String)}
+   * because it is not public and does not take timeouts. The same locations are tried in the same
+   * order, moving on to the next location when one responds with a client error.
    */
-  private static Set<SignatureAlgorithm> getSignatureAlgorithms(
-      JWKSource<SecurityContext> jwkSource) {
-    JWKMatcher jwkMatcher =
-        new JWKMatcher.Builder()
-            .publicOnly(true)
-            .keyUses(KeyUse.SIGNATURE, null)
-            .keyTypes(KeyType.RSA, KeyType.EC)
-            .build();
-    Set<JWSAlgorithm> jwsAlgorithms = new HashSet<>();
-    try {
-      List<? extends JWK> jwks = jwkSource.get(new JWKSelector(jwkMatcher), null);
-      for (JWK jwk : jwks) {
-        if (jwk.getAlgorithm() != null) {
-          JWSAlgorithm jwsAlgorithm = JWSAlgorithm.parse(jwk.getAlgorithm().getName());
-          jwsAlgorithms.add(jwsAlgorithm);
-        } else {
-          if (jwk.getKeyType() == KeyType.RSA) {
-            jwsAlgorithms.addAll(JWSAlgorithm.Family.RSA);
-          } else if (jwk.getKeyType() == KeyType.EC) {
-            jwsAlgorithms.addAll(JWSAlgorithm.Family.EC);
-          }
+  private static URL getJwksUrl(String issuer, Duration connectTimeout, Duration readTimeout) {
+    var requestFactory = new SimpleClientHttpRequestFactory();
+    requestFactory.setConnectTimeout(connectTimeout);
+    requestFactory.setReadTimeout(readTimeout);
+    var restTemplate = new RestTemplate(requestFactory);
+    for (var metadataUri : getMetadataUris(issuer)) {
+      try {
+        var metadata =
+            restTemplate.exchange(RequestEntity.get(metadataUri).build(), METADATA_TYPE).getBody();
+        if (metadata == null) {
+          throw new IllegalStateException(
+              "Configuration of issuer [%s] at [%s] is empty".formatted(issuer, metadataUri));
+        }
+        var metadataIssuer = metadata.get("issuer");
+        if (!issuer.equals(metadataIssuer)) {
+          throw new IllegalStateException(
+              "Issuer [%s] in the configuration does not match [%s]"
+                  .formatted(metadataIssuer, issuer));
         }
+        if (!(metadata.get("jwks_uri") instanceof String jwksUri)) {
+          throw new IllegalStateException(
+              "Configuration of issuer [%s] has no jwks_uri".formatted(issuer));
+        }
+        return URI.create(jwksUri).toURL();
+      } catch (HttpClientErrorException e) {
+        // not found at this location, try the next one
+      } catch (RestClientException | IllegalArgumentException | MalformedURLException e) {
+        throw new IllegalArgumentException(
+            "Unable to resolve the configuration of issuer [%s]".formatted(issuer), e);
       }
-    } catch (KeySourceException ex) {
-      throw new IllegalStateException(ex);
     }
-    Set<SignatureAlgorithm> signatureAlgorithms = new HashSet<>();
-    for (JWSAlgorithm jwsAlgorithm : jwsAlgorithms) {
-      SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.from(jwsAlgorithm.getName());
-      if (signatureAlgorithm != null) {
-        signatureAlgorithms.add(signatureAlgorithm);
+    throw new IllegalArgumentException(
+        "Unable to resolve the configuration of issuer [%s]".formatted(issuer));
+  }
+
+  /**
+   * @return the OpenID Connect location, the OpenID Connect location with the path inserted as in
+   *     RFC 8414 and the OAuth 2.0 authorization server metadata location
+   */
+  private static List<URI> getMetadataUris(String issuer) {
+    var issuerUri = URI.create(issuer);
+    var path = issuerUri.getPath().replaceAll("/$", "");
+    return Stream.of(
+            path + OIDC_METADATA_PATH, OIDC_METADATA_PATH + path, OAUTH_METADATA_PATH + path)
+        .map(
+            metadataPath ->
+                UriComponentsBuilder.fromUri(issuerUri)
+                    .replacePath(metadataPath)
+                    .build(Collections.emptyMap()))
+        .toList();
+  }
+
+  /**
+   * Fetches the key set of an issuer from the jwks_uri of its configuration. The configuration is
+   * looked up again whenever the key set is refreshed, so a moved jwks_uri is picked up. If the
+   * configuration cannot be resolved, the last jwks_uri keeps being used.
+   */
+  private static class IssuerJWKSetSource implements JWKSetSource<SecurityContext> {
+    private final String issuer;
+    private final ResourceRetriever resourceRetriever;
+    private final Duration connectTimeout;
+    private final Duration readTimeout;
+    private volatile URL jwksUrl;
+    private volatile boolean loaded;
+
+    IssuerJWKSetSource(
+        String issuer,
+        URL jwksUrl,
+        ResourceRetriever resourceRetriever,
+        Duration connectTimeout,
+        Duration readTimeout) {
+      this.issuer = issuer;
+      this.jwksUrl = jwksUrl;
+      this.resourceRetriever = resourceRetriever;
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public JWKSet getJWKSet(
+        JWKSetCacheRefreshEvaluator refreshEvaluator, long currentTime, SecurityContext context)
+        throws KeySourceException {
+      // the first load uses the jwks_uri resolved when the decoder was created
+      if (loaded) {
+        try {
+          jwksUrl = getJwksUrl(issuer, connectTimeout, readTimeout);
+        } catch (IllegalArgumentException e) {
+          log.warn(
+              "Unable to resolve the configuration of issuer {}, using jwks_uri {}",
+              issuer,
+              jwksUrl,
+              e);
+        }
       }
+      loaded = true;
+      return new URLBasedJWKSetSource<SecurityContext>(jwksUrl, resourceRetriever)
+          .getJWKSet(refreshEvaluator, currentTime, context);
     }
-    Assert.notEmpty(signatureAlgorithms, "Failed to find any algorithms from the JWK set");
-    return signatureAlgorithms;
+
+    @Override
+    public void close() {}
   }
 }
@@ -9,21 +9,18 @@ import bio.terra.externalcreds.generated.model.Provider;
 import bio.terra.externalcreds.models.DistributedLock;
 import bio.terra.externalcreds.models.FenceAccountKey;
 import bio.terra.externalcreds.models.LinkedAccount;
+import bio.terra.externalcreds.services.ProviderHttpClientCache.ProviderEndpoint;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.HashSet;
 import java.util.Optional;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.dao.DataAccessException;
-import org.springframework.http.HttpStatusCode;
 import org.springframework.retry.annotation.Backoff;
 import org.springframework.retry.annotation.Retryable;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
-import reactor.core.publisher.Mono;
 
 @Slf4j
 @Service
@@ -32,6 +29,7 @@ public class FenceKeyRetriever {
   private final FenceAccountKeyService fenceAccountKeyService;
   private final DistributedLockDAO distributedLockDAO;
   private final AccessTokenCacheService accessTokenCacheService;
+  private final ProviderHttpClientCache providerHttpClientCache;
   private final ExternalCredsConfig externalCredsConfig;
   private final ObjectMapper objectMapper;
 
@@ -39,11 +37,13 @@ public class FenceKeyRetriever {
       FenceAccountKeyService fenceAccountKeyService,
       DistributedLockDAO distributedLockDAO,
       AccessTokenCacheService accessTokenCacheService,
+      ProviderHttpClientCache providerHttpClientCache,
       ExternalCredsConfig externalCredsConfig,
       ObjectMapper objectMapper) {
     this.fenceAccountKeyService = fenceAccountKeyService;
     this.distributedLockDAO = distributedLockDAO;
     this.accessTokenCacheService = accessTokenCacheService;
+    this.providerHttpClientCache = providerHttpClientCache;
     this.externalCredsConfig = externalCredsConfig;
     this.objectMapper = objectMapper;
   }
@@ -138,16 +138,15 @@ public class FenceKeyRetriever {
       throw new IllegalArgumentException(
           "Provider " + linkedAccount.getProvider() + " does not have a key endpoint");
     }
-    WebClient.ResponseSpec response =
-        WebClient.create(keyEndpoint.get())
-            .post()
-            .header("Authorization", "Bearer " + accessToken)
-            .retrieve();
     String responseBody =
-        response
-            .onStatus(HttpStatusCode::isError, clientResponse -> Mono.empty())
-            .bodyToMono(String.class)
-            .block(Duration.of(30, ChronoUnit.SECONDS));
+        providerHttpClientCache.retrieveBody(
+            linkedAccount.getProvider(),
+            ProviderEndpoint.KEY_CREATION,
+            webClient ->
+                webClient
+                    .post()
+                    .uri(keyEndpoint.get())
+                    .header("Authorization", "Bearer " + accessToken));
     validateResponse(responseBody, linkedAccount.getProvider());
     return new FenceAccountKey.Builder()
         .linkedAccountId(linkedAccount.getId().get())
@@ -26,6 +26,7 @@ public class FenceProviderService extends ProviderService {
       ProviderOAuthClientCache providerOAuthClientCache,
       ProviderTokenClientCache providerTokenClientCache,
       OAuth2Service oAuth2Service,
+      ProviderHttpClientCache providerHttpClientCache,
       LinkedAccountService linkedAccountService,
       AuditLogger auditLogger,
       ObjectMapper objectMapper,
@@ -36,6 +37,7 @@ public class FenceProviderService extends ProviderService {
         providerOAuthClientCache,
         providerTokenClientCache,
         oAuth2Service,
+        providerHttpClientCache,
         linkedAccountService,
         fenceAccountKeyService,
         auditLogger,
@@ -67,7 +69,7 @@ public class FenceProviderService extends ProviderService {
                   encodedState,
                   providerClient)
               .getLeft();
-      var linkedAccount = linkedAccountService.upsertLinkedAccount(account);
+      var linkedAccount = linkedAccountService.upsertNewLinkedAccount(account);
       logLinkCreation(Optional.of(linkedAccount), auditLogEventBuilder);
       return linkedAccount;
     } catch (OAuth2AuthorizationException oauthEx) {
@@ -1,46 +1,65 @@
 package bio.terra.externalcreds.services;
 
+import bio.terra.externalcreds.config.ExternalCredsConfig;
+import bio.terra.externalcreds.config.ProviderProperties;
 import java.net.MalformedURLException;
 import java.net.URI;
-import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
-import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.security.oauth2.jwt.JwtDecoder;
-import org.springframework.security.oauth2.jwt.JwtDecoders;
 import org.springframework.stereotype.Component;
 
 /**
  * Creating a jwt decoder requires external calls to get public keys. That information almost never
  * changes and we don't want to hammer that api. Therefore this cache.
  *
- * <p>The cache is reset every 6 hours to detect infrequent changes.
+ * <p>Decoders are kept for the life of the pod. Each one refreshes its own key set in the
+ * background, see {@link ExternalCredsJwtDecoders}. Requests for an issuer or jku under a
+ * provider's issuer use that provider's connect and read timeouts, others use the default ones.
  */
 @Component
 @Slf4j
 public class JwtDecoderCache {
+  private final ExternalCredsConfig externalCredsConfig;
+
+  public JwtDecoderCache(ExternalCredsConfig externalCredsConfig) {
+    this.externalCredsConfig = externalCredsConfig;
+  }
+
   @Cacheable(cacheNames = "jwtDecodersFromIssuer")
-  public JwtDecoder fromIssuer(String issuer) {
+  public KeySetJwtDecoder fromIssuer(String issuer) {
     log.info("Loading JwtDecoder from issuer {}", issuer);
-    return JwtDecoders.fromIssuerLocation(issuer);
+    var providerProperties = getProviderProperties(issuer);
+    return ExternalCredsJwtDecoders.fromIssuer(
+        issuer,
+        externalCredsConfig.getAllowedJwtAlgorithms(),
+        providerProperties.getConnectTimeout(),
+        providerProperties.getReadTimeout());
   }
 
   @Cacheable(cacheNames = "jwtDecodersFromJku")
-  public JwtDecoder fromJku(URI jku) {
+  public KeySetJwtDecoder fromJku(URI jku) {
     try {
       log.info("Loading JwtDecoder from jku {}", jku);
-      return ExternalCredsJwtDecoders.fromJku(jku);
+      var providerProperties = getProviderProperties(jku.toString());
+      return ExternalCredsJwtDecoders.fromJku(
+          jku,
+          externalCredsConfig.getAllowedJwtAlgorithms(),
+          providerProperties.getConnectTimeout(),
+          providerProperties.getReadTimeout());
     } catch (MalformedURLException e) {
       throw new InvalidJwtException(e);
     }
   }
 
-  @Scheduled(fixedRateString = "6", timeUnit = TimeUnit.HOURS)
-  @CacheEvict(
-      allEntries = true,
-      cacheNames = {"jwtDecodersFromIssuer", "jwtDecodersFromJku"})
-  public void resetCache() {
-    log.info("JwtDecoderCache reset");
+  /** The properties of the provider whose issuer the url is under, or the defaults */
+  private ProviderProperties getProviderProperties(String url) {
+    return externalCredsConfig.getProviders().values().stream()
+        .filter(
+            providerProperties -> {
+              var issuer = providerProperties.getIssuer().replaceAll("/$", "");
+              return url.equals(issuer) || url.startsWith(issuer + "/");
+            })
+        .findFirst()
+        .orElseGet(ProviderProperties::create);
   }
 }
@@ -15,7 +15,6 @@ import java.sql.Timestamp;
 import java.text.ParseException;
 import java.time.Instant;
 import java.util.Collections;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -26,7 +25,10 @@ import org.springframework.security.oauth2.jwt.JwtException;
 import org.springframework.stereotype.Service;
 
 @Service
-public record JwtUtils(ExternalCredsConfig externalCredsConfig, JwtDecoderCache jwtDecoderCache) {
+public record JwtUtils(
+    ExternalCredsConfig externalCredsConfig,
+    JwtDecoderCache jwtDecoderCache,
+    VerifiedJwtCache verifiedJwtCache) {
 
   public static final String PASSPORT_JWT_V11_CLAIM = "passport_jwt_v11";
   public static final String GA4GH_PASSPORT_V1_CLAIM = "ga4gh_passport_v1";
@@ -68,19 +70,6 @@ public record JwtUtils(ExternalCredsConfig externalCredsConfig, JwtDecoderCache
         .build();
   }
 
-  public Optional<String> getJwtTransactionClaim(String jwtString) {
-    var txnClaim = decodeAndValidateJwt(jwtString).getClaims().get(JWT_TRANSACTION_CLAIM);
-    return Optional.ofNullable(txnClaim).map(Objects::toString);
-  }
-
-  public Date getJwtIssuedAt(String jwtString) {
-    try {
-      return JWTParser.parse(jwtString).getJWTClaimsSet().getIssueTime();
-    } catch (ParseException e) {
-      throw new InvalidJwtException(e);
-    }
-  }
-
   private static GA4GHPassport buildPassport(Jwt passportJwt) {
     var passportExpiresAt = getJwtExpires(passportJwt);
 
@@ -88,6 +77,10 @@ public record JwtUtils(ExternalCredsConfig externalCredsConfig, JwtDecoderCache
         .jwt(passportJwt.getTokenValue())
         .expires(passportExpiresAt)
         .jwtId(getJwtClaim(passportJwt, JWT_ID_CLAIM))
+        .transactionClaim(
+            Optional.ofNullable(passportJwt.getClaims().get(JWT_TRANSACTION_CLAIM))
+                .map(Objects::toString))
+        .issuedAt(Optional.ofNullable(passportJwt.getIssuedAt()))
         .build();
   }
 
@@ -104,6 +97,7 @@ public record JwtUtils(ExternalCredsConfig externalCredsConfig, JwtDecoderCache
         .issuer(visaJwt.getIssuer().toString())
         .lastValidated(new Timestamp(Instant.now().toEpochMilli()))
         .tokenType(determineTokenType(visaJwt))
+        .claims(visaJwt.getClaims())
         .build();
   }
 
@@ -162,14 +156,14 @@ public record JwtUtils(ExternalCredsConfig externalCredsConfig, JwtDecoderCache
         // used validate the signature
         URI jku = jkuOption.get();
         if (externalCredsConfig.getAllowedJwksUris().contains(jku)) {
-          return jwtDecoderCache.fromJku(jku).decode(jwtString);
+          return verifiedJwtCache.decode(jwtString, jwtDecoderCache.fromJku(jku));
         } else {
           throw new InvalidJwtException(
               String.format("URI [%s] specified by jku header not on allowed list", jku));
         }
       } else {
         // no jku means use the issuer to lookup configuration and location of key set
-        return jwtDecoderCache.fromIssuer(issuer).decode(jwtString);
+        return verifiedJwtCache.decode(jwtString, jwtDecoderCache.fromIssuer(issuer));
       }
     } catch (ParseException | JwtException | IllegalArgumentException | IllegalStateException e) {
       throw new InvalidJwtException(e);
@@ -0,0 +1,45 @@
+package bio.terra.externalcreds.services;
+
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.SecurityContext;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+
+/**
+ * A jwt decoder that can tell whether a key is still in the key set it verifies signatures with, so
+ * that a signature it verified earlier is only trusted for as long as its key is.
+ */
+public class KeySetJwtDecoder implements JwtDecoder {
+  private final JwtDecoder jwtDecoder;
+  private final JWKSource<SecurityContext> jwkSource;
+
+  KeySetJwtDecoder(JwtDecoder jwtDecoder, JWKSource<SecurityContext> jwkSource) {
+    this.jwtDecoder = jwtDecoder;
+    this.jwkSource = jwkSource;
+  }
+
+  @Override
+  public Jwt decode(String token) {
+    return jwtDecoder.decode(token);
+  }
+
+  /**
+   * Looks the key up the same way decoding does, so an unknown key id refreshes the key set subject
+   * to the same rate limit.
+   *
+   * @return whether the current key set has a key with the key id
+   */
+  public boolean hasKey(String keyId) {
+    try {
+      return !jwkSource
+          .get(new JWKSelector(new JWKMatcher.Builder().keyID(keyId).build()), null)
+          .isEmpty();
+    } catch (KeySourceException e) {
+      // the key set could not be loaded, so nothing verified with it can be trusted
+      return false;
+    }
+  }
+}
@@ -2,21 +2,32 @@ package bio.terra.externalcreds.services;
 
 import bio.terra.common.db.ReadTransaction;
 import bio.terra.common.db.WriteTransaction;
+import bio.terra.externalcreds.ExternalCredsException;
+import bio.terra.externalcreds.dataAccess.AccessTokenCacheDAO;
 import bio.terra.externalcreds.dataAccess.GA4GHPassportDAO;
 import bio.terra.externalcreds.dataAccess.GA4GHVisaDAO;
 import bio.terra.externalcreds.dataAccess.LinkedAccountDAO;
 import bio.terra.externalcreds.dataAccess.OAuth2StateDAO;
 import bio.terra.externalcreds.generated.model.Provider;
 import bio.terra.externalcreds.models.AuthorizationChangeEvent;
+import bio.terra.externalcreds.models.CronShard;
+import bio.terra.externalcreds.models.DbGapPermission;
 import bio.terra.externalcreds.models.GA4GHVisa;
 import bio.terra.externalcreds.models.LinkedAccount;
+import bio.terra.externalcreds.models.LinkedAccountSummary;
+import bio.terra.externalcreds.models.LinkedAccountWithAccessToken;
 import bio.terra.externalcreds.models.LinkedAccountWithPassportAndVisas;
 import bio.terra.externalcreds.models.OAuth2State;
+import bio.terra.externalcreds.visaComparators.RASv1Dot1VisaComparator;
 import bio.terra.externalcreds.visaComparators.VisaComparator;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
 import java.sql.Timestamp;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
@@ -28,22 +39,31 @@ public class LinkedAccountService {
   private final GA4GHPassportDAO ga4ghPassportDAO;
   private final GA4GHVisaDAO ga4ghVisaDAO;
   private final Collection<VisaComparator> visaComparators;
+  private final RASv1Dot1VisaComparator rasVisaComparator;
   private final EventPublisher eventPublisher;
   private final OAuth2StateDAO oAuth2StateDAO;
+  private final AccessTokenCacheDAO accessTokenCacheDAO;
+  private final LocalAccessTokenCache localAccessTokenCache;
 
   public LinkedAccountService(
       LinkedAccountDAO linkedAccountDAO,
       GA4GHPassportDAO ga4ghPassportDAO,
       GA4GHVisaDAO ga4ghVisaDAO,
       Collection<VisaComparator> visaComparators,
+      RASv1Dot1VisaComparator rasVisaComparator,
       EventPublisher eventPublisher,
-      OAuth2StateDAO oAuth2StateDAO) {
+      OAuth2StateDAO oAuth2StateDAO,
+      AccessTokenCacheDAO accessTokenCacheDAO,
+      LocalAccessTokenCache localAccessTokenCache) {
     this.linkedAccountDAO = linkedAccountDAO;
     this.ga4ghPassportDAO = ga4ghPassportDAO;
     this.ga4ghVisaDAO = ga4ghVisaDAO;
     this.visaComparators = visaComparators;
+    this.rasVisaComparator = rasVisaComparator;
     this.eventPublisher = eventPublisher;
     this.oAuth2StateDAO = oAuth2StateDAO;
+    this.accessTokenCacheDAO = accessTokenCacheDAO;
+    this.localAccessTokenCache = localAccessTokenCache;
   }
 
   @ReadTransaction
@@ -56,6 +76,12 @@ public class LinkedAccountService {
     return linkedAccountDAO.getLinkedAccount(userId, provider);
   }
 
+  @ReadTransaction
+  public List<LinkedAccountWithAccessToken> getLinkedAccountsWithAccessTokens(
+      Collection<String> userIds) {
+    return linkedAccountDAO.getLinkedAccountsWithAccessTokens(userIds);
+  }
+
   @WriteTransaction
   public LinkedAccountWithPassportAndVisas upsertLinkedAccountWithPassportAndVisas(
       LinkedAccountWithPassportAndVisas linkedAccountWithPassportAndVisas) {
@@ -64,9 +90,7 @@ public class LinkedAccountService {
         ga4ghVisaDAO.listVisas(linkedAccount.getUserId(), linkedAccount.getProvider());
     var savedLinkedAccount = linkedAccountDAO.upsertLinkedAccount(linkedAccount);
 
-    // clear out any passport and visas that may exist and save the new one
-    ga4ghPassportDAO.deletePassport(savedLinkedAccount.getId().orElseThrow());
-
+    // replace any passport and visas that may exist with the new ones
     var savedLinkedAccountWithPassportAndVisas =
         savePassportAndVisasIfPresent(
             linkedAccountWithPassportAndVisas.withLinkedAccount(savedLinkedAccount));
@@ -87,6 +111,19 @@ public class LinkedAccountService {
     return linkedAccountDAO.upsertLinkedAccount(linkedAccount);
   }
 
+  /**
+   * Saves a newly created link. A user re-linking reuses the existing linked account row, so any
+   * access token cached for the previous link is discarded.
+   */
+  @WriteTransaction
+  public LinkedAccount upsertNewLinkedAccount(LinkedAccount linkedAccount) {
+    var savedLinkedAccount = linkedAccountDAO.upsertLinkedAccount(linkedAccount);
+    var linkedAccountId = savedLinkedAccount.getId().orElseThrow();
+    accessTokenCacheDAO.deleteAccessTokenCacheEntry(linkedAccountId);
+    localAccessTokenCache.invalidate(linkedAccountId);
+    return savedLinkedAccount;
+  }
+
   @WriteTransaction
   public OAuth2State upsertOAuth2State(String userId, OAuth2State oAuth2State) {
     return oAuth2StateDAO.upsertOidcState(userId, oAuth2State);
@@ -111,39 +148,92 @@ public class LinkedAccountService {
   }
 
   @ReadTransaction
-  public List<LinkedAccount> getExpiredLinkedAccountsWithPassports() {
-    return linkedAccountDAO.getExpiredLinkedAccountsWithPassports();
+  public List<LinkedAccount> getExpiredLinkedAccountsWithPassports(
+      CronShard shard, int afterLinkedAccountId, int pageSize) {
+    return linkedAccountDAO.getExpiredLinkedAccountsWithPassports(
+        shard, afterLinkedAccountId, pageSize);
   }
 
   @ReadTransaction
   public List<LinkedAccount> getLinkedAccountsWithExpiringPassportsOrVisas(
-      Timestamp expirationCutoff) {
-    return linkedAccountDAO.getLinkedAccountsWithExpiringPassportsOrVisas(expirationCutoff);
+      Timestamp expirationCutoff, CronShard shard, int afterLinkedAccountId, int pageSize) {
+    return linkedAccountDAO.getLinkedAccountsWithExpiringPassportsOrVisas(
+        expirationCutoff, shard, afterLinkedAccountId, pageSize);
+  }
+
+  @ReadTransaction
+  public List<LinkedAccount> getLinkedAccountsWithRecentlyUsedExpiringAccessTokens(
+      Timestamp expirationCutoff, Timestamp usedSince, CronShard shard) {
+    return linkedAccountDAO.getLinkedAccountsWithRecentlyUsedExpiringAccessTokens(
+        expirationCutoff, usedSince, shard);
+  }
+
+  @ReadTransaction
+  public List<GA4GHVisa> getVisasWithoutDbGapPermissions(
+      CronShard shard, int afterVisaId, int pageSize) {
+    return ga4ghVisaDAO.getVisasWithoutDbGapPermissions(
+        RASv1Dot1VisaComparator.RAS_VISAS_V_1_1, shard, afterVisaId, pageSize);
+  }
+
+  /**
+   * Stores the dbGaP permissions of visas that were saved without them, recording that each visa
+   * was processed even when it grants no permissions. A visa whose permissions cannot be parsed is
+   * skipped, it is checked again the next time.
+   *
+   * @return the number of visas permissions were stored for
+   */
+  @WriteTransaction
+  public int saveDbGapPermissions(Collection<GA4GHVisa> visas) {
+    var savedCount = 0;
+    for (var visa : visas) {
+      Set<DbGapPermission> permissions;
+      try {
+        permissions = rasVisaComparator.getDbGapPermissions(visa);
+      } catch (ExternalCredsException | IllegalArgumentException e) {
+        log.warn("Could not parse the dbGaP permissions of visa {}", visa.getId().orElseThrow(), e);
+        continue;
+      }
+      ga4ghVisaDAO.saveDbGapPermissions(visa.getId().orElseThrow(), visa.getExpires(), permissions);
+      savedCount++;
+    }
+    return savedCount;
   }
 
   private LinkedAccountWithPassportAndVisas savePassportAndVisasIfPresent(
       LinkedAccountWithPassportAndVisas linkedAccountWithPassportAndVisas) {
+    var linkedAccountId = linkedAccountWithPassportAndVisas.getLinkedAccount().getId();
     if (linkedAccountWithPassportAndVisas.getPassport().isPresent()) {
-
-      var savedPassport =
-          ga4ghPassportDAO.insertPassport(
+      // the passport, visas and their permissions are saved in a single statement
+      var savedPassportWithVisas =
+          ga4ghPassportDAO.upsertPassportWithVisas(
               linkedAccountWithPassportAndVisas
                   .getPassport()
                   .get()
-                  .withLinkedAccountId(
-                      linkedAccountWithPassportAndVisas.getLinkedAccount().getId()));
-
-      var savedVisas =
-          linkedAccountWithPassportAndVisas.getVisas().stream()
-              .map(v -> ga4ghVisaDAO.insertVisa(v.withPassportId(savedPassport.getId())))
-              .toList();
+                  .withLinkedAccountId(linkedAccountId),
+              linkedAccountWithPassportAndVisas.getVisas().stream()
+                  .map(this::withDbGapPermissions)
+                  .toList());
 
-      return linkedAccountWithPassportAndVisas.withPassport(savedPassport).withVisas(savedVisas);
+      return linkedAccountWithPassportAndVisas
+          .withPassport(savedPassportWithVisas.getPassport())
+          .withVisas(savedPassportWithVisas.getVisas());
     } else {
+      ga4ghPassportDAO.deletePassport(linkedAccountId.orElseThrow());
       return linkedAccountWithPassportAndVisas;
     }
   }
 
+  /**
+   * The dbGaP permissions are extracted once, when the visa is saved, so they can be compared and
+   * queried without parsing the jwt again.
+   */
+  private GA4GHVisa withDbGapPermissions(GA4GHVisa visa) {
+    return visa.withDbGapPermissions(
+        rasVisaComparator.visaTypeSupported(visa)
+            ? rasVisaComparator.getDbGapPermissions(visa)
+            : Set.of());
+  }
+
   private boolean authorizationsDiffer(
       Collection<GA4GHVisa> existingVisas, Collection<GA4GHVisa> newVisas) {
     if (existingVisas.size() != newVisas.size()) {
@@ -151,31 +241,30 @@ public class LinkedAccountService {
       return true;
     }
 
-    // We want to make sure there is a 1 to 1 match between newVisas and existingVisas
-    // order does not matter and there is no way to sort such that we can compare pairwise.
-    // Match all newVisas to an existingVisa
-    var matchingVisas =
-        newVisas.stream().flatMap(newVisa -> findMatchingVisa(newVisa, existingVisas).stream());
-    // If the count of distinct matchingVisas is not the same as the count of distinct
-    // existingVisas, either at least 1 newVisa did not find a match or at least 1 existingVisa was
-    // matched more than once, thus authorizations differ.
-    return matchingVisas.distinct().count() != existingVisas.stream().distinct().count();
-  }
-
-  private Optional<GA4GHVisa> findMatchingVisa(
-      GA4GHVisa newVisa, Collection<GA4GHVisa> visasToCheck) {
-    return getVisaComparator(newVisa)
-        .map(
-            visaComparator ->
-                visasToCheck.stream()
-                    .filter(
-                        existingVisa -> visaComparator.authorizationsMatch(newVisa, existingVisa))
-                    .findFirst())
-        .orElseGet(
-            () -> {
-              log.error("could not find visa comparator for visa type {}", newVisa.getVisaType());
-              return Optional.empty();
-            });
+    // We want to make sure there is a 1 to 1 match between newVisas and existingVisas, order does
+    // not matter. Visas match when their authorization fingerprints are equal, so there is a 1 to 1
+    // match when both have the same number of each fingerprint.
+    var existingFingerprints = getAuthorizationFingerprints(existingVisas);
+    var newFingerprints = getAuthorizationFingerprints(newVisas);
+    return existingFingerprints.isEmpty()
+        || newFingerprints.isEmpty()
+        || !existingFingerprints.get().equals(newFingerprints.get());
+  }
+
+  /**
+   * @return the authorization fingerprint of each visa, empty if a visa has no visa comparator
+   */
+  private Optional<Multiset<Object>> getAuthorizationFingerprints(Collection<GA4GHVisa> visas) {
+    var fingerprints = HashMultiset.create();
+    for (var visa : visas) {
+      var visaComparator = getVisaComparator(visa);
+      if (visaComparator.isEmpty()) {
+        log.error("could not find visa comparator for visa type {}", visa.getVisaType());
+        return Optional.empty();
+      }
+      fingerprints.add(visaComparator.get().authorizationFingerprint(visa));
+    }
+    return Optional.of(fingerprints);
   }
 
   private Optional<VisaComparator> getVisaComparator(GA4GHVisa visa) {
@@ -186,6 +275,21 @@ public class LinkedAccountService {
     return linkedAccountDAO.getActiveLinkedAccounts(provider);
   }
 
+  /**
+   * Passes one page of the provider's active linked accounts to the consumer as they are read from
+   * the database, without holding the page in memory. The read transaction stays open while the
+   * consumer runs, so a consumer writing to a slow client holds a database connection for up to one
+   * page, until the database ends the transaction for sitting idle.
+   */
+  @ReadTransaction
+  public void forEachActiveLinkedAccount(
+      Provider provider,
+      String afterUserId,
+      int pageSize,
+      Consumer<LinkedAccountSummary> consumer) {
+    linkedAccountDAO.forEachActiveLinkedAccount(provider, afterUserId, pageSize, consumer);
+  }
+
   public Optional<LinkedAccount> getLinkedAccountForExternalId(
       Provider provider, String externalId) {
     return linkedAccountDAO.getLinkedAccountForExternalId(provider, externalId);
@@ -0,0 +1,150 @@
+package bio.terra.externalcreds.services;
+
+import bio.terra.externalcreds.config.ExternalCredsConfig;
+import bio.terra.externalcreds.models.AccessTokenCacheEntry;
+import bio.terra.externalcreds.models.LinkedAccount;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Optional;
+import org.springframework.stereotype.Component;
+
+/**
+ * Per-pod cache of provider access tokens that sits in front of the access_token_cache table so
+ * that still-valid tokens can be served without a database round trip.
+ *
+ * <p>Entries expire from this cache once they fall within the access token expiration buffer, at
+ * which point callers fall back to the database and then the provider.
+ *
+ * <p>Entries are only served to a caller whose linked account has the same external user id and
+ * link expiration as the linked account the token was cached for. Deleting and re-linking an
+ * account always changes one of those, so a token cached by any pod can never be served for a link
+ * other than the one it was issued for, without pods having to notify each other.
+ */
+@Component
+public class LocalAccessTokenCache {
+  private final ExternalCredsConfig externalCredsConfig;
+  private final MeterRegistry meterRegistry;
+  private final Cache<Integer, CachedAccessToken> cache;
+  private final Counter hitCounter;
+  private final Counter missCounter;
+
+  public LocalAccessTokenCache(
+      ExternalCredsConfig externalCredsConfig, MeterRegistry meterRegistry) {
+    this.externalCredsConfig = externalCredsConfig;
+    this.meterRegistry = meterRegistry;
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumSize(externalCredsConfig.getAccessTokenCacheMaximumSize())
+            .expireAfter(new UsableTokenExpiry())
+            .removalListener(
+                (Integer linkedAccountId, CachedAccessToken cached, RemovalCause cause) ->
+                    recordRemoval(cause))
+            .build();
+    this.hitCounter = lookupCounter("hit");
+    this.missCounter = lookupCounter("miss");
+  }
+
+  /**
+   * @param linkedAccount the saved linked account the access token is for
+   * @return the cached access token if it is still usable and was cached for this link
+   */
+  public Optional<String> get(LinkedAccount linkedAccount) {
+    var cachedAccessToken =
+        linkedAccount
+            .getId()
+            .map(cache::getIfPresent)
+            .filter(cached -> cached.isFor(linkedAccount))
+            .filter(cached -> !timeUntilUnusable(cached).isZero());
+    if (cachedAccessToken.isPresent()) {
+      hitCounter.increment();
+    } else {
+      missCounter.increment();
+    }
+    return cachedAccessToken.map(CachedAccessToken::accessToken);
+  }
+
+  /** Caches the access token if it is not already within the expiration buffer. */
+  public void put(LinkedAccount linkedAccount, AccessTokenCacheEntry accessTokenCacheEntry) {
+    var cachedAccessToken =
+        new CachedAccessToken(
+            accessTokenCacheEntry.getAccessToken(),
+            accessTokenCacheEntry.getExpiresAt(),
+            linkedAccount.getExternalUserId(),
+            linkedAccount.getExpires());
+    if (!timeUntilUnusable(cachedAccessToken).isZero()) {
+      cache.put(accessTokenCacheEntry.getLinkedAccountId(), cachedAccessToken);
+    }
+  }
+
+  public void invalidate(int linkedAccountId) {
+    cache.invalidate(linkedAccountId);
+  }
+
+  private Duration timeUntilUnusable(CachedAccessToken cachedAccessToken) {
+    var usableUntil =
+        cachedAccessToken.expiresAt().minus(externalCredsConfig.getAccessTokenExpirationBuffer());
+    var remaining = Duration.between(Instant.now(), usableUntil);
+    return remaining.isNegative() ? Duration.ZERO : remaining;
+  }
+
+  private Counter lookupCounter(String result) {
+    return Counter.builder("externalcreds.access_token_cache.lookups")
+        .description("Lookups of provider access tokens in the per-pod cache")
+        .tag("result", result)
+        .register(meterRegistry);
+  }
+
+  private void recordRemoval(RemovalCause cause) {
+    if (cause != RemovalCause.REPLACED) {
+      meterRegistry
+          .counter(
+              "externalcreds.access_token_cache.evictions",
+              "cause",
+              cause.name().toLowerCase(Locale.ROOT))
+          .increment();
+    }
+  }
+
+  /** Expires each entry when its token enters the expiration buffer. */
+  private class UsableTokenExpiry implements Expiry<Integer, CachedAccessToken> {
+    @Override
+    public long expireAfterCreate(
+        Integer linkedAccountId, CachedAccessToken cachedAccessToken, long currentTime) {
+      return timeUntilUnusable(cachedAccessToken).toNanos();
+    }
+
+    @Override
+    public long expireAfterUpdate(
+        Integer linkedAccountId,
+        CachedAccessToken cachedAccessToken,
+        long currentTime,
+        long currentDuration) {
+      return timeUntilUnusable(cachedAccessToken).toNanos();
+    }
+
+    @Override
+    public long expireAfterRead(
+        Integer linkedAccountId,
+        CachedAccessToken cachedAccessToken,
+        long currentTime,
+        long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+  private record CachedAccessToken(
+      String accessToken, Instant expiresAt, String externalUserId, Timestamp linkExpires) {
+    boolean isFor(LinkedAccount linkedAccount) {
+      return externalUserId.equals(linkedAccount.getExternalUserId())
+          && linkExpires.equals(linkedAccount.getExpires());
+    }
+  }
+}
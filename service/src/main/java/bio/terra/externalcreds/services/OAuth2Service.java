@@ -1,12 +1,16 @@
 package bio.terra.externalcreds.services;
 
+import bio.terra.externalcreds.generated.model.Provider;
 import java.time.Instant;
 import java.util.Map;
 import java.util.Set;
-import org.springframework.security.oauth2.client.endpoint.DefaultAuthorizationCodeTokenResponseClient;
-import org.springframework.security.oauth2.client.endpoint.DefaultRefreshTokenTokenResponseClient;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.http.converter.FormHttpMessageConverter;
 import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
 import org.springframework.security.oauth2.client.endpoint.OAuth2RefreshTokenGrantRequest;
+import org.springframework.security.oauth2.client.endpoint.RestClientAuthorizationCodeTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.RestClientRefreshTokenTokenResponseClient;
+import org.springframework.security.oauth2.client.http.OAuth2ErrorResponseErrorHandler;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
 import org.springframework.security.oauth2.client.userinfo.DefaultOAuth2UserService;
 import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
@@ -16,8 +20,11 @@ import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenRespon
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationResponse;
+import org.springframework.security.oauth2.core.http.converter.OAuth2AccessTokenResponseHttpMessageConverter;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.client.RestTemplate;
 
 /**
  * Service that encapsulates all OAuth2 features need by ECM. General flow:
@@ -30,9 +37,19 @@ import org.springframework.stereotype.Service;
  *       updated user info
  *   <li>authorizeWithRefreshToken - get a new access token using a refresh token when required
  * </ol>
+ *
+ * <p>Calls to each provider's token and user info endpoints share that provider's pooled http
+ * client, see {@link ProviderHttpClientCache}.
  */
 @Service
 public class OAuth2Service {
+  private final ProviderHttpClientCache providerHttpClientCache;
+  private final Map<Provider, ProviderClients> providerClients = new ConcurrentHashMap<>();
+
+  public OAuth2Service(ProviderHttpClientCache providerHttpClientCache) {
+    this.providerHttpClientCache = providerHttpClientCache;
+  }
+
   /**
    * Construct authorization uri user should visit to authenticate
    *
@@ -100,12 +117,13 @@ public class OAuth2Service {
             .state(state)
             .build();
 
-    var tokenResponseClient = new DefaultAuthorizationCodeTokenResponseClient();
     var codeGrantRequest =
         new OAuth2AuthorizationCodeGrantRequest(
             providerClient, new OAuth2AuthorizationExchange(authRequest, authResponse));
 
-    return tokenResponseClient.getTokenResponse(codeGrantRequest);
+    return getProviderClients(providerClient)
+        .authorizationCodeTokenResponseClient()
+        .getTokenResponse(codeGrantRequest);
   }
 
   /**
@@ -127,13 +145,59 @@ public class OAuth2Service {
     var refreshTokenGrantRequest =
         new OAuth2RefreshTokenGrantRequest(providerClient, dummyAccessToken, refreshToken, scopes);
 
-    var refreshTokenTokenResponseClient = new DefaultRefreshTokenTokenResponseClient();
-
-    return refreshTokenTokenResponseClient.getTokenResponse(refreshTokenGrantRequest);
+    return getProviderClients(providerClient)
+        .refreshTokenTokenResponseClient()
+        .getTokenResponse(refreshTokenGrantRequest);
   }
 
   public OAuth2User getUserInfo(ClientRegistration providerClient, OAuth2AccessToken accessToken) {
     var userRequest = new OAuth2UserRequest(providerClient, accessToken);
-    return new DefaultOAuth2UserService().loadUser(userRequest);
+    return getProviderClients(providerClient).userService().loadUser(userRequest);
+  }
+
+  private ProviderClients getProviderClients(ClientRegistration providerClient) {
+    var provider = Provider.fromValue(providerClient.getRegistrationId());
+    if (provider == null) {
+      throw new IllegalArgumentException(
+          String.format("Unknown provider registration %s", providerClient.getRegistrationId()));
+    }
+    return providerClients.computeIfAbsent(provider, this::createProviderClients);
+  }
+
+  /**
+   * The token response clients and user service are configured the same way spring security
+   * configures its defaults, but on top of the provider's shared request factory.
+   */
+  private ProviderClients createProviderClients(Provider provider) {
+    var requestFactory = providerHttpClientCache.getRequestFactory(provider);
+
+    var tokenRestClient =
+        RestClient.builder()
+            .requestFactory(requestFactory)
+            .messageConverters(
+                converters -> {
+                  converters.clear();
+                  converters.add(new FormHttpMessageConverter());
+                  converters.add(new OAuth2AccessTokenResponseHttpMessageConverter());
+                })
+            .defaultStatusHandler(new OAuth2ErrorResponseErrorHandler())
+            .build();
+    var authorizationCodeTokenResponseClient = new RestClientAuthorizationCodeTokenResponseClient();
+    authorizationCodeTokenResponseClient.setRestClient(tokenRestClient);
+    var refreshTokenTokenResponseClient = new RestClientRefreshTokenTokenResponseClient();
+    refreshTokenTokenResponseClient.setRestClient(tokenRestClient);
+
+    var userInfoRestTemplate = new RestTemplate(requestFactory);
+    userInfoRestTemplate.setErrorHandler(new OAuth2ErrorResponseErrorHandler());
+    var userService = new DefaultOAuth2UserService();
+    userService.setRestOperations(userInfoRestTemplate);
+
+    return new ProviderClients(
+        authorizationCodeTokenResponseClient, refreshTokenTokenResponseClient, userService);
   }
+
+  private record ProviderClients(
+      RestClientAuthorizationCodeTokenResponseClient authorizationCodeTokenResponseClient,
+      RestClientRefreshTokenTokenResponseClient refreshTokenTokenResponseClient,
+      DefaultOAuth2UserService userService) {}
 }
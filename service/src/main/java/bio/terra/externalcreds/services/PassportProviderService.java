@@ -9,20 +9,24 @@ import bio.terra.externalcreds.auditLogging.AuditLogger;
 import bio.terra.externalcreds.config.ExternalCredsConfig;
 import bio.terra.externalcreds.generated.model.Provider;
 import bio.terra.externalcreds.models.*;
+import bio.terra.externalcreds.services.ProviderHttpClientCache.ProviderEndpoint;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import java.sql.Timestamp;
-import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.http.HttpStatusCode;
+import org.springframework.dao.DataAccessException;
 import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
 import org.springframework.security.oauth2.core.OAuth2RefreshToken;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 @Service
@@ -36,6 +40,7 @@ public class PassportProviderService extends ProviderService {
       ProviderOAuthClientCache providerOAuthClientCache,
       ProviderTokenClientCache providerTokenClientCache,
       OAuth2Service oAuth2Service,
+      ProviderHttpClientCache providerHttpClientCache,
       LinkedAccountService linkedAccountService,
       FenceAccountKeyService fenceAccountKeyService,
       PassportService passportService,
@@ -47,6 +52,7 @@ public class PassportProviderService extends ProviderService {
         providerOAuthClientCache,
         providerTokenClientCache,
         oAuth2Service,
+        providerHttpClientCache,
         linkedAccountService,
         fenceAccountKeyService,
         auditLogger,
@@ -92,13 +98,22 @@ public class PassportProviderService extends ProviderService {
    * need to revoke authorizations that it grants. We don't need to actively do this when there are
    * no passports, we just stop serving access token requests.
    *
+   * @param shard the slice of linked accounts to check
    * @return the number of links invalidated
    */
-  public int invalidateExpiredLinkedAccountsWithPassports() {
-    var expiredLinkedAccountsWithPassports =
-        linkedAccountService.getExpiredLinkedAccountsWithPassports();
-    expiredLinkedAccountsWithPassports.forEach(this::invalidateLinkedAccountAndRemovePassport);
-    return expiredLinkedAccountsWithPassports.size();
+  public int invalidateExpiredLinkedAccountsWithPassports(CronShard shard) {
+    var invalidatedCount = new AtomicInteger();
+    forEachPage(
+        (afterLinkedAccountId, pageSize) ->
+            linkedAccountService.getExpiredLinkedAccountsWithPassports(
+                shard, afterLinkedAccountId, pageSize),
+        linkedAccount -> linkedAccount.getId().orElseThrow(),
+        expiredLinkedAccountsWithPassports -> {
+          expiredLinkedAccountsWithPassports.forEach(
+              this::invalidateLinkedAccountAndRemovePassport);
+          invalidatedCount.addAndGet(expiredLinkedAccountsWithPassports.size());
+        });
+    return invalidatedCount.get();
   }
 
   private void logLinkCreation(
@@ -106,7 +121,7 @@ public class PassportProviderService extends ProviderService {
       AuditLogEvent.Builder auditLogEventBuilder) {
     var passport =
         linkedAccountWithPassportAndVisas.flatMap(LinkedAccountWithPassportAndVisas::getPassport);
-    var transactionClaim = passport.flatMap(p -> jwtUtils.getJwtTransactionClaim(p.getJwt()));
+    var transactionClaim = passport.flatMap(GA4GHPassport::getTransactionClaim);
     auditLogger.logEvent(
         auditLogEventBuilder
             .externalUserId(
@@ -120,54 +135,204 @@ public class PassportProviderService extends ProviderService {
             .build());
   }
 
-  public int validateAccessTokenVisas() {
-    var visaDetailsList = passportService.getUnvalidatedAccessTokenVisaDetails();
-
-    var linkedAccountIdsToRefresh =
-        visaDetailsList.stream()
-            .flatMap(
-                visaDetails ->
-                    validateVisaWithProvider(visaDetails)
-                        ? Stream.empty()
-                        : Stream.of(visaDetails.getLinkedAccountId()))
-            .distinct();
+  /**
+   * Validate each access token visa that has not been validated within
+   * externalCredsConfig.getTokenValidationDuration with its provider. Validation requests are sent
+   * concurrently, up to the limit in externalCredsConfig.getVisaValidationConfiguration for each
+   * provider. Visas are loaded a page at a time, the valid visas in each page are marked as
+   * validated with a single update and passports with invalid visas are refreshed.
+   *
+   * @param shard the slice of linked accounts whose visas to check
+   * @return the number of visas checked
+   */
+  public int validateAccessTokenVisas(CronShard shard) {
+    var checkedCount = new AtomicInteger();
+    try (var executor = createRefreshExecutor()) {
+      forEachPage(
+          (afterVisaId, pageSize) ->
+              passportService.getUnvalidatedAccessTokenVisaDetails(shard, afterVisaId, pageSize),
+          VisaVerificationDetails::getVisaId,
+          visaDetailsPage -> {
+            validateAccessTokenVisas(executor, visaDetailsPage);
+            checkedCount.addAndGet(visaDetailsPage.size());
+          });
+    }
+    return checkedCount.get();
+  }
 
-    linkedAccountIdsToRefresh.forEach(
-        linkedAccountId -> {
-          var linkedAccount = linkedAccountService.getLinkedAccount(linkedAccountId);
+  /**
+   * Stores the dbGaP permissions of RAS visas saved without them, by a version of ECM that did not
+   * store them. Each visa is parsed once, after which it is marked as saved even if it grants no
+   * permissions. A page that fails to save, for example because a passport refresh replaced its
+   * visas, is tried again at the next interval.
+   *
+   * @param shard the slice of linked accounts whose visas to check
+   * @return the number of visas permissions were stored for
+   */
+  public int saveMissingDbGapPermissions(CronShard shard) {
+    var savedCount = new AtomicInteger();
+    forEachPage(
+        (afterVisaId, pageSize) ->
+            linkedAccountService.getVisasWithoutDbGapPermissions(shard, afterVisaId, pageSize),
+        visa -> visa.getId().orElseThrow(),
+        visas -> {
           try {
-            linkedAccount.ifPresentOrElse(
-                this::authAndRefreshPassport,
-                () -> log.info("No linked account found when trying to validate passport."));
-          } catch (Exception e) {
-            log.info("Failed to refresh passport, will try again at the next interval.", e);
+            savedCount.addAndGet(linkedAccountService.saveDbGapPermissions(visas));
+          } catch (DataAccessException e) {
+            log.info(
+                "Failed to save dbGaP permissions of visas, will try again at the next interval.",
+                e);
           }
         });
+    return savedCount.get();
+  }
+
+  private void validateAccessTokenVisas(
+      ProviderTaskExecutor executor, List<VisaVerificationDetails> visaDetailsList) {
+    var maxConcurrentValidationsPerProvider =
+        externalCredsConfig
+            .getVisaValidationConfiguration()
+            .getMaxConcurrentValidationsPerProvider();
+
+    var visaDetailsByValidity =
+        Flux.fromIterable(visaDetailsList)
+            .groupBy(VisaVerificationDetails::getProvider)
+            .flatMap(
+                providerVisaDetails ->
+                    providerVisaDetails.flatMap(
+                        visaDetails ->
+                            Mono.defer(() -> validateVisaWithProviderAsync(visaDetails))
+                                .map(visaValid -> Map.entry(visaDetails, visaValid))
+                                .onErrorResume(
+                                    e -> {
+                                      log.info(
+                                          "Failed to validate visa, will try again at the next"
+                                              + " interval.",
+                                          e);
+                                      return Mono.empty();
+                                    }),
+                        maxConcurrentValidationsPerProvider),
+                Provider.values().length)
+            .collect(
+                Collectors.partitioningBy(
+                    Map.Entry::getValue,
+                    Collectors.mapping(Map.Entry::getKey, Collectors.toList())))
+            .block();
+
+    passportService.updateVisasLastValidated(
+        visaDetailsByValidity.get(true).stream().map(VisaVerificationDetails::getVisaId).toList());
 
-    return visaDetailsList.size();
+    var linkedAccountsToRefresh =
+        visaDetailsByValidity.get(false).stream()
+            .map(VisaVerificationDetails::getLinkedAccountId)
+            .distinct()
+            .flatMap(
+                linkedAccountId -> {
+                  var linkedAccount = linkedAccountService.getLinkedAccount(linkedAccountId);
+                  if (linkedAccount.isEmpty()) {
+                    log.info("No linked account found when trying to validate passport.");
+                  }
+                  return linkedAccount.stream();
+                })
+            .toList();
+    refreshPassports(executor, linkedAccountsToRefresh);
   }
 
   /**
    * Get a new passport for each linked accounts with visas or passports expiring within
-   * externalCredsConfig.getVisaAndPassportRefreshInterval time from now
+   * externalCredsConfig.getVisaAndPassportRefreshInterval time from now.
    *
-   * @return the number of linked accounts with expiring visas or passports
+   * @param shard the slice of linked accounts to check
+   * @return the number of linked accounts refreshed and failed to refresh
    */
-  public int refreshExpiringPassports() {
+  public PassportRefreshSummary refreshExpiringPassports(CronShard shard) {
     var refreshInterval = externalCredsConfig.getVisaAndPassportRefreshDuration();
     var expirationCutoff = new Timestamp(Instant.now().plus(refreshInterval).toEpochMilli());
-    var expiringLinkedAccounts =
-        linkedAccountService.getLinkedAccountsWithExpiringPassportsOrVisas(expirationCutoff);
+    var refreshedCount = new AtomicInteger();
+    var failedCount = new AtomicInteger();
+    try (var executor = createRefreshExecutor()) {
+      forEachPage(
+          (afterLinkedAccountId, pageSize) ->
+              linkedAccountService.getLinkedAccountsWithExpiringPassportsOrVisas(
+                  expirationCutoff, shard, afterLinkedAccountId, pageSize),
+          linkedAccount -> linkedAccount.getId().orElseThrow(),
+          expiringLinkedAccounts -> {
+            var pageSummary = refreshPassports(executor, expiringLinkedAccounts);
+            refreshedCount.addAndGet(pageSummary.getRefreshedCount());
+            failedCount.addAndGet(pageSummary.getFailedCount());
+          });
+    }
+    return new PassportRefreshSummary.Builder()
+        .refreshedCount(refreshedCount.get())
+        .failedCount(failedCount.get())
+        .build();
+  }
 
-    for (LinkedAccount linkedAccount : expiringLinkedAccounts) {
-      try {
-        authAndRefreshPassport(linkedAccount);
-      } catch (Exception e) {
-        log.info("Failed to refresh passport, will try again at the next interval.", e);
+  /**
+   * Loads a background job's work one page at a time and processes each page before loading the
+   * next, until a page comes back short. Each page starts after the key of the last item in the
+   * previous page (keyset pagination), so pages are found through an index however deep the scan
+   * is, and rows changed by processing earlier pages do not shift the later pages.
+   *
+   * @param getPage loads up to pageSize items, ordered by key, with a key greater than the first
+   *     argument
+   */
+  private <T> void forEachPage(
+      BiFunction<Integer, Integer, List<T>> getPage,
+      ToIntFunction<T> getKey,
+      Consumer<List<T>> processPage) {
+    var pageSize = externalCredsConfig.getBackgroundJobPageSize();
+    var afterKey = 0;
+    List<T> page;
+    do {
+      page = getPage.apply(afterKey, pageSize);
+      if (!page.isEmpty()) {
+        processPage.accept(page);
+        afterKey = getKey.applyAsInt(page.get(page.size() - 1));
       }
-    }
+    } while (!page.isEmpty() && page.size() >= pageSize);
+  }
+
+  private ProviderTaskExecutor createRefreshExecutor() {
+    var refreshConfig = externalCredsConfig.getPassportRefreshConfiguration();
+    return new ProviderTaskExecutor(
+        "passport-refresh",
+        refreshConfig.getMaxConcurrentRefreshes(),
+        refreshConfig.getMaxConcurrentRefreshesPerProvider());
+  }
+
+  /**
+   * Linked accounts are refreshed concurrently, up to the limits in
+   * externalCredsConfig.getPassportRefreshConfiguration, and a failure to refresh one linked
+   * account does not affect the others.
+   */
+  private PassportRefreshSummary refreshPassports(
+      ProviderTaskExecutor executor, List<LinkedAccount> linkedAccounts) {
+    var refreshResults =
+        linkedAccounts.stream()
+            .map(
+                linkedAccount ->
+                    executor.submit(
+                        linkedAccount.getProvider(),
+                        () -> tryAuthAndRefreshPassport(linkedAccount)))
+            .toList();
 
-    return expiringLinkedAccounts.size();
+    var refreshedCount =
+        (int) refreshResults.stream().map(CompletableFuture::join).filter(r -> r).count();
+    return new PassportRefreshSummary.Builder()
+        .refreshedCount(refreshedCount)
+        .failedCount(linkedAccounts.size() - refreshedCount)
+        .build();
+  }
+
+  private boolean tryAuthAndRefreshPassport(LinkedAccount linkedAccount) {
+    try {
+      authAndRefreshPassport(linkedAccount);
+      return true;
+    } catch (Exception e) {
+      log.info("Failed to refresh passport, will try again at the next interval.", e);
+      return false;
+    }
   }
 
   @VisibleForTesting
@@ -182,7 +347,7 @@ public class PassportProviderService extends ProviderService {
         var transactionClaim =
             linkedAccountWithRefreshedPassport
                 .getPassport()
-                .flatMap(p -> jwtUtils.getJwtTransactionClaim(p.getJwt()));
+                .flatMap(GA4GHPassport::getTransactionClaim);
         auditLogger.logEvent(
             new AuditLogEvent.Builder()
                 .auditLogEventType(AuditLogEventType.LinkRefreshed)
@@ -241,8 +406,12 @@ public class PassportProviderService extends ProviderService {
     return jwtUtils.enrichAccountWithPassportAndVisas(linkedAccountWithRefreshToken, userInfo);
   }
 
+  /**
+   * @return whether the provider says the visa is valid, the provider's endpoint is called without
+   *     blocking
+   */
   @VisibleForTesting
-  boolean validateVisaWithProvider(VisaVerificationDetails visaDetails) {
+  Mono<Boolean> validateVisaWithProviderAsync(VisaVerificationDetails visaDetails) {
     var providerProperties = externalCredsConfig.getProviderProperties(visaDetails.getProvider());
     if (providerProperties == null) {
       throw new NotFoundException(
@@ -259,29 +428,27 @@ public class PassportProviderService extends ProviderService {
                             "Validation endpoint for provider %s not found",
                             visaDetails.getProvider())));
 
-    var response =
-        WebClient.create(validationEndpoint)
-            .get()
-            .uri(uriBuilder -> uriBuilder.queryParam("visa", visaDetails.getVisaJwt()).build())
-            .retrieve();
-    var responseBody =
-        response
-            .onStatus(HttpStatusCode::isError, clientResponse -> Mono.empty())
-            .bodyToMono(String.class)
-            .block(Duration.of(1000, ChronoUnit.MILLIS));
-
-    log.info(
-        "Got visa validation response.",
-        Map.of(
-            "linkedAccountId", visaDetails.getLinkedAccountId(),
-            "providerName", visaDetails.getProvider().toString(),
-            "validationResponse", Objects.requireNonNullElse(responseBody, "[null]")));
-
-    var visaValid = "valid".equalsIgnoreCase(responseBody);
-
-    if (visaValid) {
-      passportService.updateVisaLastValidated(visaDetails.getVisaId());
-    }
-    return visaValid;
+    return providerHttpClientCache
+        .retrieveBodyAsync(
+            visaDetails.getProvider(),
+            ProviderEndpoint.VISA_VALIDATION,
+            webClient ->
+                webClient
+                    .get()
+                    .uri(
+                        validationEndpoint,
+                        uriBuilder ->
+                            uriBuilder.queryParam("visa", visaDetails.getVisaJwt()).build()))
+        .defaultIfEmpty("[null]")
+        .map(
+            responseBody -> {
+              log.info(
+                  "Got visa validation response.",
+                  Map.of(
+                      "linkedAccountId", visaDetails.getLinkedAccountId(),
+                      "providerName", visaDetails.getProvider().toString(),
+                      "validationResponse", responseBody));
+              return "valid".equalsIgnoreCase(responseBody);
+            });
   }
 }
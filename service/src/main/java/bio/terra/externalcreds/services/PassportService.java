@@ -3,29 +3,46 @@ package bio.terra.externalcreds.services;
 import bio.terra.common.db.ReadTransaction;
 import bio.terra.common.db.WriteTransaction;
 import bio.terra.common.exception.BadRequestException;
+import bio.terra.common.exception.ErrorReportException;
 import bio.terra.externalcreds.ExternalCredsException;
 import bio.terra.externalcreds.config.ExternalCredsConfig;
 import bio.terra.externalcreds.dataAccess.GA4GHPassportDAO;
 import bio.terra.externalcreds.dataAccess.GA4GHVisaDAO;
 import bio.terra.externalcreds.dataAccess.LinkedAccountDAO;
 import bio.terra.externalcreds.generated.model.Provider;
+import bio.terra.externalcreds.models.CronShard;
+import bio.terra.externalcreds.models.DbGapStudyUser;
 import bio.terra.externalcreds.models.GA4GHPassport;
 import bio.terra.externalcreds.models.GA4GHVisa;
 import bio.terra.externalcreds.models.LinkedAccount;
 import bio.terra.externalcreds.models.PassportWithVisas;
+import bio.terra.externalcreds.models.UserPassport;
+import bio.terra.externalcreds.models.ValidatePassportBatchResultItemInternal;
+import bio.terra.externalcreds.models.ValidatePassportRequestInternal;
 import bio.terra.externalcreds.models.ValidatePassportResultInternal;
 import bio.terra.externalcreds.models.VisaVerificationDetails;
 import bio.terra.externalcreds.visaComparators.VisaComparator;
 import bio.terra.externalcreds.visaComparators.VisaCriterionInternal;
+import bio.terra.externalcreds.visaComparators.VisaCriterionKey;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.annotation.PreDestroy;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.security.oauth2.jwt.Jwt;
@@ -41,6 +58,7 @@ public class PassportService {
   private final GA4GHVisaDAO visaDAO;
   private final JwtUtils jwtUtils;
   private final Collection<VisaComparator> visaComparators;
+  private final ExecutorService passportVerificationExecutor;
 
   private static final Duration VISA_VALIDITY_TIME = Duration.of(1, ChronoUnit.HOURS);
 
@@ -57,6 +75,19 @@ public class PassportService {
     this.visaDAO = visaDAO;
     this.jwtUtils = jwtUtils;
     this.visaComparators = visaComparators;
+    // signature verification is cpu bound
+    this.passportVerificationExecutor =
+        Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("passport-verification-%d")
+                .setDaemon(true)
+                .build());
+  }
+
+  @PreDestroy
+  public void shutdownPassportVerificationExecutor() {
+    passportVerificationExecutor.shutdown();
   }
 
   @ReadTransaction
@@ -64,20 +95,58 @@ public class PassportService {
     return passportDAO.getPassport(userId, provider);
   }
 
+  /**
+   * Passes one page of the passports of users linked to the provider to the consumer as they are
+   * read from the database, without holding the page in memory. The read transaction stays open
+   * while the consumer runs, see {@link LinkedAccountService#forEachActiveLinkedAccount}.
+   */
+  @ReadTransaction
+  public void forEachPassport(
+      Provider provider, String afterUserId, int pageSize, Consumer<UserPassport> consumer) {
+    passportDAO.forEachPassport(provider, afterUserId, pageSize, consumer);
+  }
+
+  /**
+   * Passes one page of the users linked to the provider with access to a dbGaP study to the
+   * consumer as they are read from the stored visa permissions, without parsing any jwts. The read
+   * transaction stays open while the consumer runs, see {@link
+   * LinkedAccountService#forEachActiveLinkedAccount}.
+   */
+  @ReadTransaction
+  public void forEachDbGapStudyUser(
+      Provider provider,
+      String phsId,
+      Optional<String> consentGroup,
+      Timestamp expiresAfter,
+      String afterUserId,
+      int pageSize,
+      Consumer<DbGapStudyUser> consumer) {
+    visaDAO.forEachDbGapStudyUser(
+        provider, phsId, consentGroup, expiresAfter, afterUserId, pageSize, consumer);
+  }
+
   @ReadTransaction
-  public List<VisaVerificationDetails> getUnvalidatedAccessTokenVisaDetails() {
+  public List<VisaVerificationDetails> getUnvalidatedAccessTokenVisaDetails(
+      CronShard shard, int afterVisaId, int pageSize) {
     var validationCutoff =
         new Timestamp(
             Instant.now().minus(externalCredsConfig.getTokenValidationDuration()).toEpochMilli());
-    return visaDAO.getUnvalidatedAccessTokenVisaDetails(validationCutoff);
+    return visaDAO.getUnvalidatedAccessTokenVisaDetails(
+        validationCutoff, shard, afterVisaId, pageSize);
   }
 
   @WriteTransaction
-  public void updateVisaLastValidated(int visaId) {
-    visaDAO.updateLastValidated(visaId, new Timestamp(Instant.now().toEpochMilli()));
+  public void updateVisasLastValidated(Collection<Integer> visaIds) {
+    if (!visaIds.isEmpty()) {
+      visaDAO.updateLastValidated(visaIds, new Timestamp(Instant.now().toEpochMilli()));
+    }
   }
 
   /**
+   * Each passport's visas are indexed once, by issuer and comparator, into the keys of the criteria
+   * they match. Checking a criterion against a passport is then a single set lookup no matter how
+   * many visas the passport has or how many criteria there are.
+   *
    * @param passportJwtStrings
    * @param criteria
    * @return
@@ -87,51 +156,136 @@ public class PassportService {
       Collection<String> passportJwtStrings, Collection<VisaCriterionInternal> criteria) {
 
     var passports = decodeAndValidatePassports(passportJwtStrings);
-    var linkedAccountsByJwtId = getLinkedAccountsForAllPassports(passports);
+    var linkedAccountsByJwtId =
+        getLinkedAccountsForAllPassports(
+            linkedAccountDAO.getLinkedAccountByPassportJwtIds(getJwtIds(passports)));
+    return matchPassports(passports, linkedAccountsByJwtId, criteria, new HashMap<>());
+  }
+
+  /**
+   * Validates each item of the batch as {@link #validatePassport} does. The signatures of all the
+   * passports in the batch are verified in parallel and the linked accounts of all the passports
+   * are looked up with a single query. An item with an invalid passport, or with passports of
+   * different users, gets an error without affecting the other items.
+   *
+   * <p>Not a transaction: the single linked account query runs on its own so that no database
+   * connection is held while signatures are verified.
+   *
+   * @return a result for each item, in the same order
+   */
+  public List<ValidatePassportBatchResultItemInternal> validatePassportBatch(
+      List<ValidatePassportRequestInternal> items) {
+    var decodedPassports = new HashMap<String, CompletableFuture<PassportWithVisas>>();
+    items.stream()
+        .flatMap(item -> item.getPassportJwts().stream())
+        .forEach(
+            passportJwtString ->
+                decodedPassports.computeIfAbsent(
+                    passportJwtString,
+                    jwt ->
+                        CompletableFuture.supplyAsync(
+                            () -> jwtUtils.decodeAndValidatePassportJwtString(jwt),
+                            passportVerificationExecutor)));
+
+    var validPassports =
+        decodedPassports.values().stream()
+            .map(decodedPassport -> decodedPassport.exceptionally(e -> null).join())
+            .filter(Objects::nonNull)
+            .toList();
+    var jwtIds = getJwtIds(validPassports);
+    Map<String, LinkedAccount> allLinkedAccountsByJwtId =
+        jwtIds.isEmpty() ? Map.of() : linkedAccountDAO.getLinkedAccountByPassportJwtIds(jwtIds);
 
+    var criterionComparators = new HashMap<Class<?>, VisaComparator>();
+    return items.stream()
+        .<ValidatePassportBatchResultItemInternal>map(
+            item -> {
+              var resultItem = new ValidatePassportBatchResultItemInternal.Builder();
+              try {
+                var passports =
+                    item.getPassportJwts().stream()
+                        .map(jwt -> getDecodedPassport(decodedPassports.get(jwt)))
+                        .toList();
+                var linkedAccountsByJwtId =
+                    getLinkedAccountsForAllPassports(
+                        getJwtIds(passports).stream()
+                            .filter(allLinkedAccountsByJwtId::containsKey)
+                            .collect(
+                                Collectors.toMap(jwtId -> jwtId, allLinkedAccountsByJwtId::get)));
+                resultItem.result(
+                    matchPassports(
+                        passports,
+                        linkedAccountsByJwtId,
+                        item.getCriteria(),
+                        criterionComparators));
+              } catch (ErrorReportException e) {
+                resultItem.error(e);
+              }
+              return resultItem.build();
+            })
+        .toList();
+  }
+
+  /**
+   * @param criterionComparators the comparator for each criterion type, filled in as needed
+   */
+  private ValidatePassportResultInternal matchPassports(
+      Collection<PassportWithVisas> passports,
+      Map<String, LinkedAccount> linkedAccountsByJwtId,
+      Collection<VisaCriterionInternal> criteria,
+      Map<Class<?>, VisaComparator> criterionComparators) {
+    var indexedKeys =
+        criteria.stream()
+            .map(criterion -> getCriterionIndexKey(criterion, criterionComparators))
+            .collect(Collectors.toSet());
     for (var passportWithVisas : passports) {
-      var transactionClaim =
-          jwtUtils.getJwtTransactionClaim(passportWithVisas.getPassport().getJwt());
-      for (var criterion : criteria) {
-        for (var visa : passportWithVisas.getVisas()) {
-          VisaComparator visaComparator = getVisaComparator(criterion);
-          if (visaComparator.visaTypeSupported(visa)
-              && visa.getIssuer().equals(criterion.getIssuer())
-              && visaComparator.matchesCriterion(visa, criterion)) {
-            var auditInfoMap =
-                new HashMap<>(Map.of("passport_jti", passportWithVisas.getPassport().getJwtId()));
-            transactionClaim.map(t -> auditInfoMap.put("txn", t));
-            var jwtId = passportWithVisas.getPassport().getJwtId();
-            var linkedAccount =
-                Optional.ofNullable(
-                    linkedAccountsByJwtId.get(passportWithVisas.getPassport().getJwtId()));
-            var passportValid =
-                linkedAccount
-                    .map(
-                        l -> {
-                          log.info("Found internal user {} for passport {}", l.getUserId(), jwtId);
-                          auditInfoMap.putAll(
-                              Map.of(
-                                  "external_user_id", l.getExternalUserId(),
-                                  "internal_user_id", l.getUserId()));
-                          return true;
-                        })
-                    .orElseGet(
-                        () -> {
-                          log.info(
-                              "No internal user found for passport {}. Checking issue time...",
-                              passportWithVisas.getPassport().getJwtId());
-                          return isPassportIssueTimeValid(passportWithVisas.getPassport());
-                        });
-            if (passportValid) {
-              return new ValidatePassportResultInternal.Builder()
-                  .valid(true)
-                  .matchedCriterion(criterion)
-                  .auditInfo(auditInfoMap)
-                  .build();
-            }
-          }
-        }
+      var criterionKeyIndex = indexCriterionKeys(passportWithVisas.getVisas(), indexedKeys);
+      var matchedCriterion =
+          criteria.stream()
+              .filter(
+                  criterion -> {
+                    var indexKey = getCriterionIndexKey(criterion, criterionComparators);
+                    return criterionKeyIndex
+                        .getOrDefault(indexKey, Set.of())
+                        .contains(indexKey.visaComparator().criterionKey(criterion));
+                  })
+              .findFirst();
+      if (matchedCriterion.isEmpty()) {
+        continue;
+      }
+
+      var transactionClaim = passportWithVisas.getPassport().getTransactionClaim();
+      var auditInfoMap =
+          new HashMap<>(Map.of("passport_jti", passportWithVisas.getPassport().getJwtId()));
+      transactionClaim.map(t -> auditInfoMap.put("txn", t));
+      var jwtId = passportWithVisas.getPassport().getJwtId();
+      var linkedAccount =
+          Optional.ofNullable(
+              linkedAccountsByJwtId.get(passportWithVisas.getPassport().getJwtId()));
+      var passportValid =
+          linkedAccount
+              .map(
+                  l -> {
+                    log.info("Found internal user {} for passport {}", l.getUserId(), jwtId);
+                    auditInfoMap.putAll(
+                        Map.of(
+                            "external_user_id", l.getExternalUserId(),
+                            "internal_user_id", l.getUserId()));
+                    return true;
+                  })
+              .orElseGet(
+                  () -> {
+                    log.info(
+                        "No internal user found for passport {}. Checking issue time...",
+                        passportWithVisas.getPassport().getJwtId());
+                    return isPassportIssueTimeValid(passportWithVisas.getPassport());
+                  });
+      if (passportValid) {
+        return new ValidatePassportResultInternal.Builder()
+            .valid(true)
+            .matchedCriterion(matchedCriterion.get())
+            .auditInfo(auditInfoMap)
+            .build();
       }
     }
 
@@ -155,10 +309,32 @@ public class PassportService {
   }
 
   private boolean isPassportIssueTimeValid(GA4GHPassport passport) {
-    int comparison =
-        Duration.between(jwtUtils.getJwtIssuedAt(passport.getJwt()).toInstant(), Instant.now())
-            .compareTo(VISA_VALIDITY_TIME);
-    return comparison < 0;
+    return passport
+        .getIssuedAt()
+        .map(
+            issuedAt -> Duration.between(issuedAt, Instant.now()).compareTo(VISA_VALIDITY_TIME) < 0)
+        .orElse(false);
+  }
+
+  /** Throws the reason a passport could not be decoded as an error for its batch item. */
+  private static PassportWithVisas getDecodedPassport(
+      CompletableFuture<PassportWithVisas> decodedPassport) {
+    try {
+      return decodedPassport.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof InvalidJwtException invalidJwtException) {
+        throw new BadRequestException("invalid passport jwt", invalidJwtException);
+      }
+      if (e.getCause() instanceof ErrorReportException errorReportException) {
+        throw errorReportException;
+      }
+      log.warn("Failed to decode passport jwt", e.getCause());
+      throw new ExternalCredsException("failed to decode passport jwt", e.getCause());
+    }
+  }
+
+  private static Set<String> getJwtIds(Collection<PassportWithVisas> passports) {
+    return passports.stream().map(p -> p.getPassport().getJwtId()).collect(Collectors.toSet());
   }
 
   private Collection<PassportWithVisas> decodeAndValidatePassports(
@@ -170,14 +346,8 @@ public class PassportService {
     }
   }
 
-  private Map<String, LinkedAccount> getLinkedAccountsForAllPassports(
-      Collection<PassportWithVisas> passportWithVisas) {
-    var linkedAccounts =
-        linkedAccountDAO.getLinkedAccountByPassportJwtIds(
-            passportWithVisas.stream()
-                .map(p -> p.getPassport().getJwtId())
-                .collect(Collectors.toSet()));
-
+  private static Map<String, LinkedAccount> getLinkedAccountsForAllPassports(
+      Map<String, LinkedAccount> linkedAccounts) {
     if (linkedAccounts.values().stream()
             .map(LinkedAccount::getUserId)
             .collect(Collectors.toSet())
@@ -189,6 +359,36 @@ public class PassportService {
     return linkedAccounts;
   }
 
+  /**
+   * Only visas from the issuers of the criteria are parsed, so a malformed visa from some other
+   * issuer does not reject the passport.
+   *
+   * @param indexedKeys the issuer and comparator of every criterion being matched
+   */
+  private Map<CriterionIndexKey, Set<VisaCriterionKey>> indexCriterionKeys(
+      List<GA4GHVisa> visas, Set<CriterionIndexKey> indexedKeys) {
+    var criterionKeyIndex = new HashMap<CriterionIndexKey, Set<VisaCriterionKey>>();
+    for (var visa : visas) {
+      for (var visaComparator : visaComparators) {
+        var indexKey = new CriterionIndexKey(visa.getIssuer(), visaComparator);
+        if (indexedKeys.contains(indexKey) && visaComparator.visaTypeSupported(visa)) {
+          criterionKeyIndex
+              .computeIfAbsent(indexKey, k -> new HashSet<>())
+              .addAll(visaComparator.matchingCriterionKeys(visa));
+        }
+      }
+    }
+    return criterionKeyIndex;
+  }
+
+  private CriterionIndexKey getCriterionIndexKey(
+      VisaCriterionInternal criterion, Map<Class<?>, VisaComparator> criterionComparators) {
+    var visaComparator =
+        criterionComparators.computeIfAbsent(
+            criterion.getClass(), c -> getVisaComparator(criterion));
+    return new CriterionIndexKey(criterion.getIssuer(), visaComparator);
+  }
+
   private VisaComparator getVisaComparator(VisaCriterionInternal criterion) {
     return visaComparators.stream()
         .filter(c -> c.criterionTypeSupported(criterion))
@@ -198,4 +398,6 @@ public class PassportService {
                 new ExternalCredsException(
                     String.format("comparator not found for visa criterion %s", criterion)));
   }
+
+  private record CriterionIndexKey(String issuer, VisaComparator visaComparator) {}
 }
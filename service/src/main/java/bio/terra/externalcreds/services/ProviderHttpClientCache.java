@@ -0,0 +1,297 @@
+package bio.terra.externalcreds.services;
+
+import bio.terra.externalcreds.ExternalCredsException;
+import bio.terra.externalcreds.config.ExternalCredsConfig;
+import bio.terra.externalcreds.config.ProviderProperties;
+import bio.terra.externalcreds.generated.model.Provider;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.netty.channel.ChannelOption;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.InterceptingClientHttpRequestFactory;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Creating an http client per call to a provider means a new TCP connection and TLS handshake for
+ * every token exchange and user info request. This cache holds one long-lived http client per
+ * provider so that connections are kept alive and reused (multiplexed over HTTP/2 where the
+ * provider supports it, otherwise pooled HTTP/1.1 connections).
+ *
+ * <p>Each provider's client has the connect timeout, read timeout and concurrent request limit from
+ * its {@link bio.terra.externalcreds.config.ProviderProperties}. Requests beyond the limit wait up
+ * to the connect timeout for a slot and then fail as if the provider could not be reached.
+ */
+@Component
+@Slf4j
+public class ProviderHttpClientCache {
+  private final ExternalCredsConfig externalCredsConfig;
+  private final MeterRegistry meterRegistry;
+  private final Map<Provider, ClientHttpRequestFactory> requestFactories =
+      new ConcurrentHashMap<>();
+  private final Map<Provider, ConnectionProvider> connectionProviders = new ConcurrentHashMap<>();
+  private final Map<Provider, WebClient> webClients = new ConcurrentHashMap<>();
+
+  // providers may silently drop idle connections, close ours first so they are not reused
+  private static final Duration MAX_CONNECTION_IDLE_TIME = Duration.ofSeconds(30);
+
+  /** The provider endpoints called through {@link #retrieveBody}, each with its own timeout. */
+  public enum ProviderEndpoint {
+    REVOKE(ProviderProperties::getRevokeTimeout),
+    KEY_CREATION(ProviderProperties::getKeyCreationTimeout),
+    KEY_DELETION(ProviderProperties::getKeyDeletionTimeout),
+    VISA_VALIDATION(ProviderProperties::getValidationTimeout);
+
+    private final Function<ProviderProperties, Duration> timeout;
+
+    ProviderEndpoint(Function<ProviderProperties, Duration> timeout) {
+      this.timeout = timeout;
+    }
+  }
+
+  public ProviderHttpClientCache(
+      ExternalCredsConfig externalCredsConfig, MeterRegistry meterRegistry) {
+    this.externalCredsConfig = externalCredsConfig;
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * @return a request factory backed by the provider's shared http client, for use by any
+   *     RestClient or RestTemplate calling the provider
+   */
+  public ClientHttpRequestFactory getRequestFactory(Provider provider) {
+    return requestFactories.computeIfAbsent(provider, this::createRequestFactory);
+  }
+
+  /**
+   * Sends a request to one of the provider's endpoints using the provider's shared web client and
+   * waits for the response body, see {@link #retrieveBodyAsync}.
+   *
+   * @param request builds the request from the provider's web client
+   * @return the response body, whatever the response status, or null if there was no body
+   */
+  public String retrieveBody(
+      Provider provider,
+      ProviderEndpoint endpoint,
+      Function<WebClient, WebClient.RequestHeadersSpec<?>> request) {
+    return retrieveBodyAsync(provider, endpoint, request).block();
+  }
+
+  /**
+   * Sends a request to one of the provider's endpoints using the provider's shared web client
+   * without blocking. The response body must arrive within the endpoint's configured timeout. The
+   * latency and outcome of each call are recorded per provider and endpoint.
+   *
+   * @param request builds the request from the provider's web client
+   * @return the response body, whatever the response status, or empty if there was no body
+   */
+  public Mono<String> retrieveBodyAsync(
+      Provider provider,
+      ProviderEndpoint endpoint,
+      Function<WebClient, WebClient.RequestHeadersSpec<?>> request) {
+    var timeout = endpoint.timeout.apply(externalCredsConfig.getProviderProperties(provider));
+    var webClient = webClients.computeIfAbsent(provider, this::createWebClient);
+
+    return Mono.defer(
+        () -> {
+          var status = new AtomicReference<HttpStatusCode>();
+          var outcome = new AtomicReference<>("error");
+          var sample = Timer.start(meterRegistry);
+          return request
+              .apply(webClient)
+              .exchangeToMono(
+                  response -> {
+                    status.set(response.statusCode());
+                    return response.bodyToMono(String.class);
+                  })
+              .timeout(timeout)
+              .doOnSuccess(responseBody -> outcome.set(getOutcome(status.get())))
+              .onErrorMap(
+                  TimeoutException.class,
+                  e -> {
+                    outcome.set("timeout");
+                    return new ExternalCredsException(
+                        String.format(
+                            "Timed out after %s calling %s endpoint of provider %s",
+                            timeout, endpoint, provider),
+                        e);
+                  })
+              // recorded before the result reaches the caller, unlike doFinally
+              .doOnTerminate(() -> recordRequest(sample, provider, endpoint, outcome.get()))
+              .doOnCancel(() -> recordRequest(sample, provider, endpoint, "cancelled"));
+        });
+  }
+
+  private void recordRequest(
+      Timer.Sample sample, Provider provider, ProviderEndpoint endpoint, String outcome) {
+    sample.stop(
+        Timer.builder("externalcreds.provider_endpoint.requests")
+            .description("Requests to provider endpoints")
+            .tag("provider", provider.toString())
+            .tag("endpoint", endpoint.name().toLowerCase(Locale.ROOT))
+            .tag("outcome", outcome)
+            .register(meterRegistry));
+  }
+
+  @PreDestroy
+  public void disposeConnectionPools() {
+    connectionProviders.values().forEach(ConnectionProvider::dispose);
+  }
+
+  private static String getOutcome(HttpStatusCode status) {
+    if (status == null) {
+      return "error";
+    } else if (status.is2xxSuccessful()) {
+      return "success";
+    } else if (status.is4xxClientError()) {
+      return "client_error";
+    } else if (status.is5xxServerError()) {
+      return "server_error";
+    } else {
+      return "other";
+    }
+  }
+
+  private WebClient createWebClient(Provider provider) {
+    log.info("Creating web client for provider {}", provider);
+    var providerProperties = externalCredsConfig.getProviderProperties(provider);
+
+    var connectionProvider =
+        connectionProviders.computeIfAbsent(
+            provider,
+            p ->
+                ConnectionProvider.builder("externalcreds-" + p)
+                    .maxConnections(providerProperties.getMaxConcurrentRequests())
+                    .pendingAcquireTimeout(providerProperties.getConnectTimeout())
+                    .maxIdleTime(MAX_CONNECTION_IDLE_TIME)
+                    .evictInBackground(MAX_CONNECTION_IDLE_TIME)
+                    .metrics(true)
+                    .build());
+    var httpClient =
+        reactor.netty.http.client.HttpClient.create(connectionProvider)
+            .keepAlive(true)
+            .option(
+                ChannelOption.CONNECT_TIMEOUT_MILLIS,
+                (int) providerProperties.getConnectTimeout().toMillis());
+
+    return WebClient.builder().clientConnector(new ReactorClientHttpConnector(httpClient)).build();
+  }
+
+  private ClientHttpRequestFactory createRequestFactory(Provider provider) {
+    log.info("Creating http client for provider {}", provider);
+    var providerProperties = externalCredsConfig.getProviderProperties(provider);
+
+    var httpClient =
+        HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(providerProperties.getConnectTimeout())
+            .build();
+    var jdkRequestFactory = new JdkClientHttpRequestFactory(httpClient);
+    jdkRequestFactory.setReadTimeout(providerProperties.getReadTimeout());
+
+    var concurrencyLimit =
+        new ConcurrencyLimitInterceptor(
+            provider,
+            providerProperties.getMaxConcurrentRequests(),
+            providerProperties.getConnectTimeout());
+    concurrencyLimit.registerMetrics(meterRegistry);
+
+    return new InterceptingClientHttpRequestFactory(jdkRequestFactory, List.of(concurrencyLimit));
+  }
+
+  /** Bounds the number of requests in flight to a provider and exposes the pool usage. */
+  private static class ConcurrencyLimitInterceptor implements ClientHttpRequestInterceptor {
+    private final Provider provider;
+    private final int maxConcurrentRequests;
+    private final Duration acquireTimeout;
+    private final Semaphore permits;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    ConcurrencyLimitInterceptor(
+        Provider provider, int maxConcurrentRequests, Duration acquireTimeout) {
+      this.provider = provider;
+      this.maxConcurrentRequests = maxConcurrentRequests;
+      this.acquireTimeout = acquireTimeout;
+      this.permits = new Semaphore(maxConcurrentRequests, true);
+    }
+
+    @Override
+    public ClientHttpResponse intercept(
+        HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+      acquire(request);
+      try {
+        return execution.execute(request, body);
+      } finally {
+        permits.release();
+      }
+    }
+
+    private void acquire(HttpRequest request) {
+      pending.incrementAndGet();
+      try {
+        if (!permits.tryAcquire(acquireTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+          throw new ResourceAccessException(
+              String.format(
+                  "Timed out waiting for a connection to provider %s for %s",
+                  provider, request.getURI()));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ResourceAccessException(
+            String.format("Interrupted waiting for a connection to provider %s", provider));
+      } finally {
+        pending.decrementAndGet();
+      }
+    }
+
+    void registerMetrics(MeterRegistry meterRegistry) {
+      var providerName = provider.toString();
+      Gauge.builder(
+              "externalcreds.provider_http_client.requests",
+              this,
+              limit -> limit.maxConcurrentRequests - limit.permits.availablePermits())
+          .description("Requests to the provider by state")
+          .tag("provider", providerName)
+          .tag("state", "active")
+          .register(meterRegistry);
+      Gauge.builder("externalcreds.provider_http_client.requests", pending, AtomicInteger::get)
+          .description("Requests to the provider by state")
+          .tag("provider", providerName)
+          .tag("state", "pending")
+          .register(meterRegistry);
+      Gauge.builder(
+              "externalcreds.provider_http_client.max_requests",
+              this,
+              limit -> limit.maxConcurrentRequests)
+          .description("Maximum concurrent requests to the provider")
+          .tag("provider", providerName)
+          .register(meterRegistry);
+    }
+  }
+}
@@ -2,11 +2,12 @@ package bio.terra.externalcreds.services;
 
 import bio.terra.externalcreds.config.ExternalCredsConfig;
 import bio.terra.externalcreds.generated.model.Provider;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
 import org.springframework.security.oauth2.client.registration.ClientRegistrations;
@@ -18,28 +19,46 @@ import org.springframework.stereotype.Component;
  * issuer]/.well-known/openid-configuration. That information almost never changes and we don't want
  * to hammer that api. Therefore this cache.
  *
- * <p>The cache is reset every 30 minutes to detect infrequent changes and service outages.
+ * <p>The clients are reloaded in the background every 30 minutes to detect infrequent changes and
+ * service outages, see {@link RefreshAheadClientCache}.
  */
 @Component
 @Slf4j
 public class ProviderOAuthClientCache {
   private final ExternalCredsConfig externalCredsConfig;
+  private final RefreshAheadClientCache clients;
 
-  public ProviderOAuthClientCache(ExternalCredsConfig externalCredsConfig) {
+  public ProviderOAuthClientCache(
+      ExternalCredsConfig externalCredsConfig, MeterRegistry meterRegistry) {
     this.externalCredsConfig = externalCredsConfig;
+    this.clients =
+        new RefreshAheadClientCache(
+            "providerOAuthClients", this::loadProviderClient, meterRegistry);
   }
 
-  @Cacheable(cacheNames = "providerOAuthClients", sync = true)
   public ClientRegistration getProviderClient(Provider provider) {
+    return clients.get(provider);
+  }
+
+  /**
+   * @return why the last background reload of the provider's client failed, while the previous
+   *     client is still in use
+   */
+  public Optional<RuntimeException> getRefreshFailure(Provider provider) {
+    return clients.getRefreshFailure(provider);
+  }
+
+  private ClientRegistration loadProviderClient(Provider provider) {
     log.info("Loading ProviderOAuthClient {}", provider);
     var providerInfo = externalCredsConfig.getProviderProperties(provider);
 
     ClientRegistration.Builder builder =
         switch (provider) {
-          case RAS -> ClientRegistrations.fromOidcIssuerLocation(providerInfo.getIssuer())
-              .clientId(providerInfo.getClientId())
-              .clientSecret(providerInfo.getClientSecret())
-              .issuerUri(providerInfo.getIssuer());
+          case RAS ->
+              ClientRegistrations.fromOidcIssuerLocation(providerInfo.getIssuer())
+                  .clientId(providerInfo.getClientId())
+                  .clientSecret(providerInfo.getClientSecret())
+                  .issuerUri(providerInfo.getIssuer());
           case GITHUB -> {
             String redirectUri =
                 providerInfo.getAllowedRedirectUriPatterns().stream()
@@ -54,12 +73,12 @@ public class ProviderOAuthClientCache {
                 .redirectUri(redirectUri)
                 .userNameAttributeName(providerInfo.getUserNameAttributeName());
           }
-          case FENCE, DCF_FENCE, ANVIL, KIDS_FIRST -> ClientRegistrations.fromOidcIssuerLocation(
-                  providerInfo.getIssuer())
-              .clientId(providerInfo.getClientId())
-              .clientSecret(providerInfo.getClientSecret())
-              .issuerUri(providerInfo.getIssuer())
-              .authorizationGrantType(AuthorizationGrantType.CLIENT_CREDENTIALS);
+          case FENCE, DCF_FENCE, ANVIL, KIDS_FIRST ->
+              ClientRegistrations.fromOidcIssuerLocation(providerInfo.getIssuer())
+                  .clientId(providerInfo.getClientId())
+                  .clientSecret(providerInfo.getClientSecret())
+                  .issuerUri(providerInfo.getIssuer())
+                  .authorizationGrantType(AuthorizationGrantType.CLIENT_CREDENTIALS);
           case ERA_COMMONS -> {
             if (externalCredsConfig.getEraCommonsLinkingEnabled()) {
               yield ClientRegistrations.fromOidcIssuerLocation(providerInfo.getIssuer())
@@ -72,6 +91,10 @@ public class ProviderOAuthClientCache {
           }
         };
 
+    // registrations loaded from the issuer are otherwise keyed by the issuer uri, key them by
+    // provider so that calls using them go through the provider's http client
+    builder.registrationId(provider.toString());
+
     // set optional overrides
     providerInfo.getUserInfoEndpoint().ifPresent(builder::userInfoUri);
     providerInfo.getAuthorizationEndpoint().ifPresent(builder::authorizationUri);
@@ -81,9 +104,14 @@ public class ProviderOAuthClientCache {
     return builder.build();
   }
 
-  @Scheduled(fixedRateString = "30", timeUnit = TimeUnit.MINUTES)
-  @CacheEvict(allEntries = true, cacheNames = "providerOAuthClients")
-  public void resetCache() {
-    log.info("ProviderOAuthClientCache reset");
+  @PreDestroy
+  public void shutdownRefreshes() {
+    clients.shutdown();
+  }
+
+  @Scheduled(fixedRateString = "30", timeUnit = TimeUnit.MINUTES, initialDelayString = "30")
+  public void refreshCache() {
+    log.info("ProviderOAuthClientCache refresh");
+    clients.refreshAll();
   }
 }
@@ -13,14 +13,13 @@ import bio.terra.externalcreds.models.CannotDecodeOAuth2State;
 import bio.terra.externalcreds.models.LinkedAccount;
 import bio.terra.externalcreds.models.LinkedAccountWithPassportAndVisas;
 import bio.terra.externalcreds.models.OAuth2State;
+import bio.terra.externalcreds.services.ProviderHttpClientCache.ProviderEndpoint;
 import bio.terra.externalcreds.util.ProviderUtils;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
 import java.security.SecureRandom;
 import java.sql.Timestamp;
-import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -31,15 +30,12 @@ import java.util.Set;
 import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.springframework.http.HttpStatusCode;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
 import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
 import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
 import org.springframework.security.oauth2.core.OAuth2RefreshToken;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
-import reactor.core.publisher.Mono;
 
 @Service
 @Slf4j
@@ -48,6 +44,7 @@ public class ProviderService {
   public final ProviderOAuthClientCache providerOAuthClientCache;
   public final ProviderTokenClientCache providerTokenClientCache;
   public final OAuth2Service oAuth2Service;
+  public final ProviderHttpClientCache providerHttpClientCache;
   public final LinkedAccountService linkedAccountService;
   public final FenceAccountKeyService fenceAccountKeyService;
 
@@ -76,6 +73,7 @@ public class ProviderService {
       ProviderOAuthClientCache providerOAuthClientCache,
       ProviderTokenClientCache providerTokenClientCache,
       OAuth2Service oAuth2Service,
+      ProviderHttpClientCache providerHttpClientCache,
       LinkedAccountService linkedAccountService,
       FenceAccountKeyService fenceAccountKeyService,
       AuditLogger auditLogger,
@@ -84,6 +82,7 @@ public class ProviderService {
     this.providerOAuthClientCache = providerOAuthClientCache;
     this.providerTokenClientCache = providerTokenClientCache;
     this.oAuth2Service = oAuth2Service;
+    this.providerHttpClientCache = providerHttpClientCache;
     this.linkedAccountService = linkedAccountService;
     this.fenceAccountKeyService = fenceAccountKeyService;
     this.auditLogger = auditLogger;
@@ -264,22 +263,20 @@ public class ProviderService {
     String revokeEndpoint =
         String.format(providerProperties.getRevokeEndpoint(), linkedAccount.getRefreshToken());
     // Add authorization information and make request
-    WebClient.ResponseSpec response =
-        WebClient.create(revokeEndpoint)
-            .post()
-            .uri(
-                uriBuilder ->
-                    uriBuilder
-                        .queryParam("client_id", providerProperties.getClientId())
-                        .queryParam("client_secret", providerProperties.getClientSecret())
-                        .build())
-            .retrieve();
-
     String responseBody =
-        response
-            .onStatus(HttpStatusCode::isError, clientResponse -> Mono.empty())
-            .bodyToMono(String.class)
-            .block(Duration.of(1000, ChronoUnit.MILLIS));
+        providerHttpClientCache.retrieveBody(
+            linkedAccount.getProvider(),
+            ProviderEndpoint.REVOKE,
+            webClient ->
+                webClient
+                    .post()
+                    .uri(
+                        revokeEndpoint,
+                        uriBuilder ->
+                            uriBuilder
+                                .queryParam("client_id", providerProperties.getClientId())
+                                .queryParam("client_secret", providerProperties.getClientSecret())
+                                .build()));
 
     log.info(
         "Token revocation request for user [{}], provider [{}] returned with the result: [{}]",
@@ -306,17 +303,17 @@ public class ProviderService {
           try {
             var privateKeyJson = objectMapper.readTree(fenceAccountKey.getKeyJson());
             var privateKeyId = privateKeyJson.get(PRIVATE_KEY_ID_FIELD).asText();
-            WebClient.ResponseSpec response =
-                WebClient.create(keyEndpoint.get() + "/" + privateKeyId)
-                    .delete()
-                    .header(
-                        "Authorization", "Bearer " + accessToken.getAccessToken().getTokenValue())
-                    .retrieve();
             String responseBody =
-                response
-                    .onStatus(HttpStatusCode::isError, clientResponse -> Mono.empty())
-                    .bodyToMono(String.class)
-                    .block(Duration.of(11, ChronoUnit.SECONDS));
+                providerHttpClientCache.retrieveBody(
+                    linkedAccount.getProvider(),
+                    ProviderEndpoint.KEY_DELETION,
+                    webClient ->
+                        webClient
+                            .delete()
+                            .uri(keyEndpoint.get() + "/" + privateKeyId)
+                            .header(
+                                "Authorization",
+                                "Bearer " + accessToken.getAccessToken().getTokenValue()));
             log.info(
                 "Key revocation request for user [{}], provider [{}] returned with the result: [{}]",
                 linkedAccount.getUserId(),
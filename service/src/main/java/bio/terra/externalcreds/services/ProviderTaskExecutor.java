@@ -0,0 +1,84 @@
+package bio.terra.externalcreds.services;
+
+import bio.terra.externalcreds.ExternalCredsException;
+import bio.terra.externalcreds.generated.model.Provider;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Runs tasks against many providers concurrently, with at most maxConcurrency tasks in flight in
+ * total and at most maxConcurrencyPerProvider for any one provider. Each provider has its own
+ * threads so a slow or rate limited provider never holds up tasks for the others.
+ *
+ * <p>Either create one for a run of a background job, submit the run's tasks, wait for the returned
+ * futures then close it, or share one between requests to limit their tasks in flight together.
+ */
+class ProviderTaskExecutor implements AutoCloseable {
+  private final String name;
+  private final int maxConcurrencyPerProvider;
+  private final Semaphore permits;
+  private final Map<Provider, ExecutorService> providerExecutors = new ConcurrentHashMap<>();
+
+  ProviderTaskExecutor(String name, int maxConcurrency, int maxConcurrencyPerProvider) {
+    this.name = name;
+    this.maxConcurrencyPerProvider = Math.min(maxConcurrency, maxConcurrencyPerProvider);
+    this.permits = new Semaphore(maxConcurrency);
+  }
+
+  /**
+   * A task whose future is already complete when its turn comes, because the caller timed it out,
+   * is skipped so that work nobody is waiting for does not hold up the tasks behind it.
+   */
+  <T> CompletableFuture<T> submit(Provider provider, Supplier<T> task) {
+    var result = new CompletableFuture<T>();
+    getProviderExecutor(provider)
+        .execute(
+            () -> {
+              try {
+                acquirePermit();
+                try {
+                  if (!result.isDone()) {
+                    result.complete(task.get());
+                  }
+                } finally {
+                  permits.release();
+                }
+              } catch (Throwable e) {
+                result.completeExceptionally(e);
+              }
+            });
+    return result;
+  }
+
+  @Override
+  public void close() {
+    providerExecutors.values().forEach(ExecutorService::shutdown);
+  }
+
+  private ExecutorService getProviderExecutor(Provider provider) {
+    return providerExecutors.computeIfAbsent(
+        provider,
+        p ->
+            Executors.newFixedThreadPool(
+                maxConcurrencyPerProvider,
+                new ThreadFactoryBuilder()
+                    .setNameFormat(name + "-" + p + "-%d")
+                    .setDaemon(true)
+                    .build()));
+  }
+
+  private void acquirePermit() {
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ExternalCredsException("Interrupted waiting to run " + name + " task", e);
+    }
+  }
+}
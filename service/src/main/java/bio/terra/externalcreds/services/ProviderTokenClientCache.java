@@ -2,11 +2,12 @@ package bio.terra.externalcreds.services;
 
 import bio.terra.externalcreds.config.ExternalCredsConfig;
 import bio.terra.externalcreds.generated.model.Provider;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
 import org.springframework.security.oauth2.client.registration.ClientRegistrations;
@@ -19,29 +20,46 @@ import org.springframework.stereotype.Component;
  * to hammer that api. This cache is for the client info for exchanging refresh tokens for access
  * tokens.
  *
- * <p>The cache is reset every 6 hours to detect infrequent changes.
+ * <p>The clients are reloaded in the background every 6 hours to detect infrequent changes, see
+ * {@link RefreshAheadClientCache}.
  */
 @Component
 @Slf4j
 public class ProviderTokenClientCache {
   private final ExternalCredsConfig externalCredsConfig;
+  private final RefreshAheadClientCache clients;
 
-  public ProviderTokenClientCache(ExternalCredsConfig externalCredsConfig) {
+  public ProviderTokenClientCache(
+      ExternalCredsConfig externalCredsConfig, MeterRegistry meterRegistry) {
     this.externalCredsConfig = externalCredsConfig;
+    this.clients =
+        new RefreshAheadClientCache(
+            "providerTokenClients", this::loadProviderClient, meterRegistry);
   }
 
-  @Cacheable(cacheNames = "providerTokenClients", sync = true)
   public ClientRegistration getProviderClient(Provider provider) {
+    return clients.get(provider);
+  }
+
+  /**
+   * @return why the last background reload of the provider's client failed, while the previous
+   *     client is still in use
+   */
+  public Optional<RuntimeException> getRefreshFailure(Provider provider) {
+    return clients.getRefreshFailure(provider);
+  }
+
+  private ClientRegistration loadProviderClient(Provider provider) {
     log.info("Loading ProviderTokenClient {}", provider);
     var providerInfo = externalCredsConfig.getProviderProperties(provider);
 
     ClientRegistration.Builder builder =
         switch (provider) {
-          case RAS, FENCE, DCF_FENCE, ANVIL, KIDS_FIRST -> ClientRegistrations
-              .fromOidcIssuerLocation(providerInfo.getIssuer())
-              .clientId(providerInfo.getClientId())
-              .clientSecret(providerInfo.getClientSecret())
-              .issuerUri(providerInfo.getIssuer());
+          case RAS, FENCE, DCF_FENCE, ANVIL, KIDS_FIRST ->
+              ClientRegistrations.fromOidcIssuerLocation(providerInfo.getIssuer())
+                  .clientId(providerInfo.getClientId())
+                  .clientSecret(providerInfo.getClientSecret())
+                  .issuerUri(providerInfo.getIssuer());
           case GITHUB -> {
             String redirectUri =
                 providerInfo.getAllowedRedirectUriPatterns().stream()
@@ -68,6 +86,10 @@ public class ProviderTokenClientCache {
           }
         };
 
+    // registrations loaded from the issuer are otherwise keyed by the issuer uri, key them by
+    // provider so that calls using them go through the provider's http client
+    builder.registrationId(provider.toString());
+
     // set optional overrides
     providerInfo.getUserInfoEndpoint().ifPresent(builder::userInfoUri);
     providerInfo.getAuthorizationEndpoint().ifPresent(builder::authorizationUri);
@@ -77,9 +99,14 @@ public class ProviderTokenClientCache {
     return builder.build();
   }
 
-  @Scheduled(fixedRateString = "6", timeUnit = TimeUnit.HOURS)
-  @CacheEvict(allEntries = true, cacheNames = "providerTokenClients")
-  public void resetCache() {
-    log.info("ProviderTokenClientCache reset");
+  @PreDestroy
+  public void shutdownRefreshes() {
+    clients.shutdown();
+  }
+
+  @Scheduled(fixedRateString = "6", timeUnit = TimeUnit.HOURS, initialDelayString = "6")
+  public void refreshCache() {
+    log.info("ProviderTokenClientCache refresh");
+    clients.refreshAll();
   }
 }
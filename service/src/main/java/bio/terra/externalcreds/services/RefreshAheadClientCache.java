@@ -0,0 +1,141 @@
+package bio.terra.externalcreds.services;
+
+import bio.terra.externalcreds.ExternalCredsException;
+import bio.terra.externalcreds.generated.model.Provider;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+
+/**
+ * Provider clients that are reloaded in the background rather than evicted, so requests never wait
+ * on a reload and keep using the last good client while the provider is slow or down. Only the
+ * first load of a provider's client is done by the request that needs it.
+ *
+ * <p>Reloads block on the provider's discovery endpoint, so they run on a pool of their own with a
+ * thread per provider rather than on the common pool, which must be shut down with {@link
+ * #shutdown()}.
+ */
+@Slf4j
+class RefreshAheadClientCache {
+  private final String cacheName;
+  private final Function<Provider, ClientRegistration> loader;
+  private final LoadingCache<Provider, ClientRegistration> cache;
+  private final MeterRegistry meterRegistry;
+  private final ExecutorService refreshExecutor;
+  private final Map<Provider, Instant> loadedAt = new ConcurrentHashMap<>();
+  private final Map<Provider, RuntimeException> refreshFailures = new ConcurrentHashMap<>();
+
+  RefreshAheadClientCache(
+      String cacheName,
+      Function<Provider, ClientRegistration> loader,
+      MeterRegistry meterRegistry) {
+    this.cacheName = cacheName;
+    this.loader = loader;
+    this.meterRegistry = meterRegistry;
+    this.cache = Caffeine.newBuilder().build(this::load);
+    this.refreshExecutor =
+        Executors.newFixedThreadPool(
+            Provider.values().length,
+            new ThreadFactoryBuilder()
+                .setNameFormat(cacheName + "-refresh-%d")
+                .setDaemon(true)
+                .build());
+  }
+
+  ClientRegistration get(Provider provider) {
+    return cache.get(provider);
+  }
+
+  /**
+   * Reloads every client in the background. A client that fails to reload is kept until a later
+   * reload succeeds.
+   *
+   * @return completes when every reload has finished, successfully or not
+   */
+  CompletableFuture<Void> refreshAll() {
+    return CompletableFuture.allOf(
+        cache.asMap().keySet().stream()
+            .map(
+                provider ->
+                    CompletableFuture.supplyAsync(() -> load(provider), refreshExecutor)
+                        .handle(
+                            (client, failure) -> {
+                              recordRefresh(provider, client, failure);
+                              return client;
+                            }))
+            .toArray(CompletableFuture[]::new));
+  }
+
+  /** Stops the background reloads, reloads already running are not waited for. */
+  void shutdown() {
+    refreshExecutor.shutdownNow();
+  }
+
+  /**
+   * @return why the last reload of the provider's client failed, empty if it succeeded
+   */
+  Optional<RuntimeException> getRefreshFailure(Provider provider) {
+    return Optional.ofNullable(refreshFailures.get(provider));
+  }
+
+  private ClientRegistration load(Provider provider) {
+    var client = loader.apply(provider);
+    recordLoaded(provider);
+    return client;
+  }
+
+  private void recordRefresh(Provider provider, ClientRegistration client, Throwable failure) {
+    if (failure == null) {
+      cache.put(provider, client);
+      refreshFailures.remove(provider);
+      refreshCounter(provider, "success").increment();
+    } else {
+      log.warn("Keeping {} client for {} after failing to reload it", cacheName, provider, failure);
+      var cause = failure instanceof CompletionException ? failure.getCause() : failure;
+      refreshFailures.put(
+          provider,
+          cause instanceof RuntimeException runtimeException
+              ? runtimeException
+              : new ExternalCredsException(cause));
+      refreshCounter(provider, "failure").increment();
+    }
+  }
+
+  private void recordLoaded(Provider provider) {
+    if (loadedAt.put(provider, Instant.now()) == null) {
+      Gauge.builder(
+              "externalcreds.provider_client_cache.age",
+              loadedAt,
+              loaded -> Duration.between(loaded.get(provider), Instant.now()).toSeconds())
+          .description("Seconds since the cached provider client was last loaded")
+          .baseUnit("seconds")
+          .tag("cache", cacheName)
+          .tag("provider", provider.toString())
+          .register(meterRegistry);
+    }
+  }
+
+  private Counter refreshCounter(Provider provider, String outcome) {
+    return Counter.builder("externalcreds.provider_client_cache.refreshes")
+        .description("Background reloads of cached provider clients")
+        .tag("cache", cacheName)
+        .tag("provider", provider.toString())
+        .tag("outcome", outcome)
+        .register(meterRegistry);
+  }
+}
@@ -35,9 +35,16 @@ public class StatusServiceCache {
       // When provider OAuth clients are created, they reach out to the provider to validate the
       // configuration. ECM caches these clients as to not completely hammer the provider.
       // If the OAuth client is in the cache, or a new one succeeds in being created, we assume
-      // the provider is reachable.
+      // the provider is reachable, unless the last background reload of the client failed.
       providerOAuthClientCache.getProviderClient(provider);
-      status.ok(true);
+      providerOAuthClientCache
+          .getRefreshFailure(provider)
+          .ifPresentOrElse(
+              e -> {
+                status.ok(false);
+                status.addMessagesItem(e.getMessage());
+              },
+              () -> status.ok(true));
     } catch (Exception e) {
       log.warn("Error checking provider %s status".formatted(provider), e);
       status.ok(false);
@@ -1,20 +1,36 @@
 package bio.terra.externalcreds.services;
 
 import bio.terra.common.exception.BadRequestException;
+import bio.terra.common.exception.ErrorReportException;
 import bio.terra.common.exception.ForbiddenException;
 import bio.terra.common.exception.NotFoundException;
+import bio.terra.externalcreds.ExternalCredsException;
 import bio.terra.externalcreds.auditLogging.AuditLogEvent;
 import bio.terra.externalcreds.auditLogging.AuditLogEventType;
 import bio.terra.externalcreds.auditLogging.AuditLogger;
 import bio.terra.externalcreds.config.ExternalCredsConfig;
 import bio.terra.externalcreds.generated.model.Provider;
+import bio.terra.externalcreds.models.AccessTokenRequestInternal;
+import bio.terra.externalcreds.models.AccessTokenResultInternal;
 import bio.terra.externalcreds.models.LinkedAccount;
+import bio.terra.externalcreds.models.LinkedAccountWithAccessToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
 import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
 import org.springframework.stereotype.Service;
 
@@ -23,12 +39,14 @@ import org.springframework.stereotype.Service;
 public class TokenProviderService extends ProviderService {
 
   private final AccessTokenCacheService accessTokenCacheService;
+  private ProviderTaskExecutor exchangeExecutor;
 
   public TokenProviderService(
       ExternalCredsConfig externalCredsConfig,
       ProviderOAuthClientCache providerOAuthClientCache,
       ProviderTokenClientCache providerTokenClientCache,
       OAuth2Service oAuth2Service,
+      ProviderHttpClientCache providerHttpClientCache,
       LinkedAccountService linkedAccountService,
       FenceAccountKeyService fenceAccountKeyService,
       AuditLogger auditLogger,
@@ -39,6 +57,7 @@ public class TokenProviderService extends ProviderService {
         providerOAuthClientCache,
         providerTokenClientCache,
         oAuth2Service,
+        providerHttpClientCache,
         linkedAccountService,
         fenceAccountKeyService,
         auditLogger,
@@ -46,6 +65,13 @@ public class TokenProviderService extends ProviderService {
     this.accessTokenCacheService = accessTokenCacheService;
   }
 
+  @PreDestroy
+  public synchronized void shutdownExchangeExecutor() {
+    if (exchangeExecutor != null) {
+      exchangeExecutor.close();
+    }
+  }
+
   public LinkedAccount createLink(
       Provider provider,
       String userId,
@@ -67,7 +93,7 @@ public class TokenProviderService extends ProviderService {
                   encodedState,
                   providerClient)
               .getLeft();
-      var linkedAccount = linkedAccountService.upsertLinkedAccount(account);
+      var linkedAccount = linkedAccountService.upsertNewLinkedAccount(account);
       logLinkCreation(Optional.of(linkedAccount), auditLogEventBuilder);
       return linkedAccount;
     } catch (OAuth2AuthorizationException oauthEx) {
@@ -91,17 +117,120 @@ public class TokenProviderService extends ProviderService {
   public String getProviderAccessToken(
       String userId, Provider provider, AuditLogEvent.Builder auditLogEventBuilder) {
     var linkedAccount =
+        getUsableLinkedAccount(
+            userId, provider, linkedAccountService.getLinkedAccount(userId, provider));
+    return accessTokenCacheService.getLinkedAccountAccessToken(
+        linkedAccount, getScopes(provider), auditLogEventBuilder);
+  }
+
+  /**
+   * Gets access tokens for many users and providers as {@link #getProviderAccessToken} does. The
+   * linked accounts and their cached access tokens are loaded with a single query, and refresh
+   * tokens are exchanged concurrently for the access tokens that are not cached. An item without a
+   * usable linked account, or whose exchange fails or does not finish within the exchange timeout,
+   * gets an error without affecting the others.
+   *
+   * @return a result for each item, in the same order
+   */
+  public List<AccessTokenResultInternal> getProviderAccessTokens(
+      List<AccessTokenRequestInternal> items, Optional<String> clientIP) {
+    var linkedAccountsByRequest =
         linkedAccountService
-            .getLinkedAccount(userId, provider)
-            .orElseThrow(
-                () ->
-                    new NotFoundException(
-                        String.format(
-                            "No linked account found for user ID: %s and provider: %s. "
-                                + "Please go to the Terra Profile page External Identities tab "
-                                + "to link your account for this provider.",
-                            userId, provider)));
-    if (linkedAccount.getExpires().before(Timestamp.from(Instant.now()))) {
+            .getLinkedAccountsWithAccessTokens(
+                items.stream()
+                    .map(AccessTokenRequestInternal::getUserId)
+                    .collect(Collectors.toSet()))
+            .stream()
+            .collect(
+                Collectors.toMap(
+                    l ->
+                        new AccessTokenRequestInternal.Builder()
+                            .userId(l.getLinkedAccount().getUserId())
+                            .provider(l.getLinkedAccount().getProvider())
+                            .build(),
+                    l -> l));
+
+    var accessTokens = new HashMap<AccessTokenRequestInternal, CompletableFuture<String>>();
+    var usableLinkedAccounts = new HashMap<AccessTokenRequestInternal, LinkedAccount>();
+    var executor = getExchangeExecutor();
+    items.forEach(
+        item ->
+            accessTokens.computeIfAbsent(
+                item,
+                i -> {
+                  try {
+                    var linkedAccountWithAccessToken =
+                        Optional.ofNullable(linkedAccountsByRequest.get(i));
+                    var linkedAccount =
+                        getUsableLinkedAccount(
+                            i.getUserId(),
+                            i.getProvider(),
+                            linkedAccountWithAccessToken.map(
+                                LinkedAccountWithAccessToken::getLinkedAccount));
+                    usableLinkedAccounts.put(i, linkedAccount);
+                    return accessTokenCacheService
+                        .getCachedLinkedAccountAccessToken(linkedAccountWithAccessToken.get())
+                        .map(CompletableFuture::completedFuture)
+                        .orElseGet(
+                            () ->
+                                executor.submit(
+                                    i.getProvider(),
+                                    () ->
+                                        accessTokenCacheService.getNewLinkedAccountAccessToken(
+                                            linkedAccount,
+                                            getScopes(i.getProvider()),
+                                            new AuditLogEvent.Builder()
+                                                .provider(i.getProvider())
+                                                .userId(i.getUserId())
+                                                .clientIP(clientIP))));
+                  } catch (ErrorReportException e) {
+                    return CompletableFuture.failedFuture(e);
+                  }
+                }));
+    // exchanges still queued or in flight at the deadline are reported as errors, not waited for
+    var exchangeTimeout =
+        externalCredsConfig.getBulkAccessTokenConfiguration().getExchangeTimeout();
+    CompletableFuture.allOf(
+            accessTokens.values().stream()
+                .map(f -> f.orTimeout(exchangeTimeout.toMillis(), TimeUnit.MILLISECONDS))
+                .toArray(CompletableFuture[]::new))
+        .exceptionally(e -> null)
+        .join();
+    accessTokenCacheService.recordAccessTokenUses(
+        usableLinkedAccounts.entrySet().stream()
+            .filter(e -> !accessTokens.get(e.getKey()).isCompletedExceptionally())
+            .map(Map.Entry::getValue)
+            .toList());
+
+    return items.stream()
+        .<AccessTokenResultInternal>map(
+            item -> {
+              var result =
+                  new AccessTokenResultInternal.Builder()
+                      .userId(item.getUserId())
+                      .provider(item.getProvider());
+              try {
+                result.accessToken(accessTokens.get(item).join());
+              } catch (CompletionException e) {
+                result.error(toErrorReport(item, e.getCause()));
+              }
+              return result.build();
+            })
+        .toList();
+  }
+
+  private LinkedAccount getUsableLinkedAccount(
+      String userId, Provider provider, Optional<LinkedAccount> linkedAccount) {
+    var usableLinkedAccount =
+        linkedAccount.orElseThrow(
+            () ->
+                new NotFoundException(
+                    String.format(
+                        "No linked account found for user ID: %s and provider: %s. "
+                            + "Please go to the Terra Profile page External Identities tab "
+                            + "to link your account for this provider.",
+                        userId, provider)));
+    if (usableLinkedAccount.getExpires().before(Timestamp.from(Instant.now()))) {
       throw new ForbiddenException(
           String.format(
               "The linked account found for user ID: %s and provider: %s has expired. "
@@ -109,8 +238,51 @@ public class TokenProviderService extends ProviderService {
                   + "to re-link your account for this provider.",
               userId, provider));
     }
-    var providerProperties = externalCredsConfig.getProviderProperties(provider);
-    return accessTokenCacheService.getLinkedAccountAccessToken(
-        linkedAccount, new HashSet<>(providerProperties.getScopes()), auditLogEventBuilder);
+    return usableLinkedAccount;
+  }
+
+  private Set<String> getScopes(Provider provider) {
+    return new HashSet<>(externalCredsConfig.getProviderProperties(provider).getScopes());
+  }
+
+  /**
+   * All bulk requests share one executor so that the configured limits bound the exchanges in
+   * flight across concurrent requests, not within each request. It is created on first use.
+   */
+  private synchronized ProviderTaskExecutor getExchangeExecutor() {
+    if (exchangeExecutor == null) {
+      var bulkConfig = externalCredsConfig.getBulkAccessTokenConfiguration();
+      exchangeExecutor =
+          new ProviderTaskExecutor(
+              "access-token-exchange",
+              bulkConfig.getMaxConcurrentExchanges(),
+              bulkConfig.getMaxConcurrentExchangesPerProvider());
+    }
+    return exchangeExecutor;
+  }
+
+  private static ErrorReportException toErrorReport(AccessTokenRequestInternal item, Throwable e) {
+    if (e instanceof ErrorReportException errorReportException) {
+      return errorReportException;
+    }
+    if (e instanceof TimeoutException) {
+      return new ExternalCredsException(
+          String.format(
+              "Timed out getting access token for user ID: %s and provider: %s",
+              item.getUserId(), item.getProvider()),
+          e,
+          null,
+          HttpStatus.GATEWAY_TIMEOUT);
+    }
+    log.warn(
+        "Failed to get access token for user {} and provider {}",
+        item.getUserId(),
+        item.getProvider(),
+        e);
+    return new ExternalCredsException(
+        String.format(
+            "Failed to get access token for user ID: %s and provider: %s",
+            item.getUserId(), item.getProvider()),
+        e);
   }
 }
@@ -0,0 +1,112 @@
+package bio.terra.externalcreds.services;
+
+import bio.terra.externalcreds.config.ExternalCredsConfig;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import org.springframework.security.oauth2.core.OAuth2TokenValidator;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtValidationException;
+import org.springframework.security.oauth2.jwt.JwtValidators;
+import org.springframework.stereotype.Component;
+
+/**
+ * Per-pod cache of jwts whose signatures have been verified, so that a passport that is validated
+ * over and over does not have its signature, and the signatures of all its visas, verified every
+ * time. Entries are keyed by a SHA-256 hash of the jwt.
+ *
+ * <p>A cached jwt is only served when the decoder that verified it is still the current decoder for
+ * its issuer or jku, and the key it was signed with, named by its kid header, is still in that
+ * decoder's key set. So a key rotated out of the key set stops being trusted here as soon as it
+ * does in the decoder. Jwts without a kid are verified every time. Entries also expire after {@link
+ * #MAX_VERIFIED_LIFETIME}. The exp and nbf claims of a cached jwt are checked on every hit.
+ */
+@Component
+public class VerifiedJwtCache {
+  static final Duration MAX_VERIFIED_LIFETIME = ExternalCredsJwtDecoders.KEY_SET_TIME_TO_LIVE;
+  private static final String KEY_ID_HEADER = "kid";
+
+  private final Cache<String, VerifiedJwt> cache;
+  private final OAuth2TokenValidator<Jwt> timestampValidator = JwtValidators.createDefault();
+  private final Counter hitCounter;
+  private final Counter missCounter;
+
+  public VerifiedJwtCache(ExternalCredsConfig externalCredsConfig, MeterRegistry meterRegistry) {
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumSize(externalCredsConfig.getVerifiedJwtCacheMaximumSize())
+            .expireAfter(new VerifiedJwtExpiry())
+            .build();
+    this.hitCounter = lookupCounter(meterRegistry, "hit");
+    this.missCounter = lookupCounter(meterRegistry, "miss");
+  }
+
+  /**
+   * @param decoder the current decoder for the jwt's issuer or jku
+   * @return the jwt, from the cache if it was already verified by the same decoder with a key that
+   *     is still in its key set
+   * @throws org.springframework.security.oauth2.jwt.JwtException if the jwt is not valid
+   */
+  public Jwt decode(String jwtString, KeySetJwtDecoder decoder) {
+    var key = Hashing.sha256().hashString(jwtString, StandardCharsets.UTF_8).toString();
+    var cached = cache.getIfPresent(key);
+    if (cached != null
+        && cached.decoder() == decoder
+        && decoder.hasKey(cached.jwt().getHeaders().get(KEY_ID_HEADER).toString())) {
+      hitCounter.increment();
+      var result = timestampValidator.validate(cached.jwt());
+      if (result.hasErrors()) {
+        cache.invalidate(key);
+        throw new JwtValidationException("jwt is no longer valid", result.getErrors());
+      }
+      return cached.jwt();
+    }
+
+    missCounter.increment();
+    var jwt = decoder.decode(jwtString);
+    if (jwt.getHeaders().get(KEY_ID_HEADER) != null) {
+      cache.put(key, new VerifiedJwt(jwt, decoder, Instant.now()));
+    }
+    return jwt;
+  }
+
+  private static Counter lookupCounter(MeterRegistry meterRegistry, String result) {
+    return Counter.builder("externalcreds.verified_jwt_cache.lookups")
+        .description("Lookups of verified jwts in the per-pod cache")
+        .tag("result", result)
+        .register(meterRegistry);
+  }
+
+  /** Expires each entry when its jwt expires or its verification is too old, whichever is first. */
+  private static class VerifiedJwtExpiry implements Expiry<String, VerifiedJwt> {
+    @Override
+    public long expireAfterCreate(String key, VerifiedJwt verifiedJwt, long currentTime) {
+      var verifiedUntil = verifiedJwt.verifiedAt().plus(MAX_VERIFIED_LIFETIME);
+      var expiresAt = verifiedJwt.jwt().getExpiresAt();
+      var usableUntil =
+          expiresAt != null && expiresAt.isBefore(verifiedUntil) ? expiresAt : verifiedUntil;
+      var remaining = Duration.between(Instant.now(), usableUntil);
+      return remaining.isNegative() ? 0 : remaining.toNanos();
+    }
+
+    @Override
+    public long expireAfterUpdate(
+        String key, VerifiedJwt verifiedJwt, long currentTime, long currentDuration) {
+      return expireAfterCreate(key, verifiedJwt, currentTime);
+    }
+
+    @Override
+    public long expireAfterRead(
+        String key, VerifiedJwt verifiedJwt, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+  private record VerifiedJwt(Jwt jwt, KeySetJwtDecoder decoder, Instant verifiedAt) {}
+}
@@ -2,18 +2,21 @@ package bio.terra.externalcreds.visaComparators;
 
 import bio.terra.common.exception.BadRequestException;
 import bio.terra.externalcreds.ExternalCredsException;
+import bio.terra.externalcreds.models.DbGapPermission;
 import bio.terra.externalcreds.models.GA4GHVisa;
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.nimbusds.jwt.JWTParser;
 import java.text.ParseException;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Optional;
 import java.util.Set;
-import org.immutables.value.Value;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
 @Component
+@Slf4j
 public class RASv1Dot1VisaComparator implements VisaComparator {
   public static final String RAS_VISAS_V_1_1 = "https://ras.nih.gov/visas/v1.1";
   public static final String DBGAP_CLAIM = "ras_dbgap_permissions";
@@ -34,36 +37,90 @@ public class RASv1Dot1VisaComparator implements VisaComparator {
           String.format("visa type not supported: [%s]", visa1.getVisaType()));
     }
 
-    try {
-      var visa1Permissions = getVisaPermissions(visa1);
-      var visa2Permissions = getVisaPermissions(visa2);
+    return authorizationFingerprint(visa1).equals(authorizationFingerprint(visa2));
+  }
 
-      return visa1Permissions.equals(visa2Permissions);
-    } catch (ParseException e) {
-      throw new ExternalCredsException("error parsing RAS v1.1 visa", e);
-    }
+  @Override
+  public Object authorizationFingerprint(GA4GHVisa visa) {
+    return new AuthorizationFingerprint(
+        visa.getVisaType().toLowerCase(Locale.ROOT), getDbGapPermissions(visa));
   }
 
   @Override
   public boolean matchesCriterion(GA4GHVisa visa, VisaCriterionInternal criterion) {
+    return matchingCriterionKeys(visa).contains(criterionKey(criterion));
+  }
+
+  @Override
+  public Set<VisaCriterionKey> matchingCriterionKeys(GA4GHVisa visa) {
     try {
-      assert criterion instanceof RASv1Dot1VisaCriterionInternal;
-      var rasCriterion = (RASv1Dot1VisaCriterionInternal) criterion;
-
-      var permissions = getVisaPermissions(visa);
-      return permissions.stream()
-          .anyMatch(
-              p ->
-                  p.getPhsId().equals(rasCriterion.getPhsId())
-                      && p.getConsentGroup().equals(rasCriterion.getConsentCode()));
+      return getVisaPermissions(visa).stream()
+          .<VisaCriterionKey>map(p -> new StudyConsent(p.getPhsId(), p.getConsentGroup()))
+          .collect(Collectors.toSet());
     } catch (ParseException e) {
       throw new BadRequestException("Error parsing visa.", e);
     }
   }
 
+  /**
+   * @return the dbGaP permissions the visa grants
+   */
+  public Set<DbGapPermission> getDbGapPermissions(GA4GHVisa visa) {
+    try {
+      return getVisaPermissions(visa);
+    } catch (ParseException e) {
+      throw new ExternalCredsException("error parsing RAS v1.1 visa", e);
+    }
+  }
+
+  @Override
+  public VisaCriterionKey criterionKey(VisaCriterionInternal criterion) {
+    assert criterion instanceof RASv1Dot1VisaCriterionInternal;
+    var rasCriterion = (RASv1Dot1VisaCriterionInternal) criterion;
+    return new StudyConsent(rasCriterion.getPhsId(), rasCriterion.getConsentCode());
+  }
+
+  /**
+   * Uses the permissions stored with a visa read from the database or the claims of a visa that was
+   * just decoded, other visas are parsed (their signature was verified when they were saved). A
+   * visa without the dbGaP claim grants no permissions, and malformed entries of the claim are
+   * skipped so that one bad entry does not keep the visa from being saved.
+   */
   private Set<DbGapPermission> getVisaPermissions(GA4GHVisa visa) throws ParseException {
-    var visaClaim = JWTParser.parse(visa.getJwt()).getJWTClaimsSet().getClaim(DBGAP_CLAIM);
-    return objectMapper.convertValue(visaClaim, new TypeReference<>() {});
+    if (visa.getDbGapPermissions().isPresent()) {
+      return visa.getDbGapPermissions().get();
+    }
+    var visaClaims =
+        visa.getClaims().isPresent()
+            ? visa.getClaims().get()
+            : JWTParser.parse(visa.getJwt()).getJWTClaimsSet().getClaims();
+    var dbGapClaim = visaClaims.get(DBGAP_CLAIM);
+    if (dbGapClaim == null) {
+      return Set.of();
+    }
+    if (!(dbGapClaim instanceof Collection<?> entries)) {
+      log.warn(
+          "Ignoring {} claim that is not a list in visa from {}", DBGAP_CLAIM, visa.getIssuer());
+      return Set.of();
+    }
+    return entries.stream()
+        .map(entry -> toDbGapPermission(entry, visa))
+        .flatMap(Optional::stream)
+        .collect(Collectors.toSet());
+  }
+
+  private Optional<DbGapPermission> toDbGapPermission(Object entry, GA4GHVisa visa) {
+    try {
+      return Optional.of(objectMapper.convertValue(entry, DbGapPermission.class));
+    } catch (IllegalArgumentException e) {
+      // missing phs_id, consent_group or role, or not an object at all
+      log.warn(
+          "Ignoring malformed {} entry in visa from {}: {}",
+          DBGAP_CLAIM,
+          visa.getIssuer(),
+          e.getMessage());
+      return Optional.empty();
+    }
   }
 
   @Override
@@ -76,21 +133,9 @@ public class RASv1Dot1VisaComparator implements VisaComparator {
     return criterion instanceof RASv1Dot1VisaCriterionInternal;
   }
 
-  /**
-   * Object representing fields of interest in the ras_dbgap_permissions array of a RASv1.1 visa.
-   * This is a nested interface because it is specific to v1.1.
-   */
-  @Value.Immutable
-  @JsonDeserialize(as = ImmutableDbGapPermission.class)
-  public interface DbGapPermission extends WithDbGapPermission {
-    @JsonProperty("phs_id")
-    String getPhsId();
-
-    @JsonProperty("consent_group")
-    String getConsentGroup();
+  /** The authorizations of a visa, permissions that differ only in expiration are equal */
+  private record AuthorizationFingerprint(String visaType, Set<DbGapPermission> permissions) {}
 
-    String getRole();
-
-    class Builder extends ImmutableDbGapPermission.Builder {}
-  }
+  /** A dbGaP study and consent group that a visa grants access to or a criterion requires */
+  private record StudyConsent(String phsId, String consentGroup) implements VisaCriterionKey {}
 }
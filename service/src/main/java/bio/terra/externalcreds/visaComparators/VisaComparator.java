@@ -1,13 +1,35 @@
 package bio.terra.externalcreds.visaComparators;
 
 import bio.terra.externalcreds.models.GA4GHVisa;
+import java.util.Set;
 
 public interface VisaComparator {
-  /** @return true if visas represent the same authorizations */
+  /**
+   * @return true if visas represent the same authorizations
+   */
   boolean authorizationsMatch(GA4GHVisa visa1, GA4GHVisa visa2);
 
+  /**
+   * Used to compare the authorizations of many visas by hashing instead of comparing each pair.
+   *
+   * @return a value that is equal for visas that {@link #authorizationsMatch}
+   */
+  Object authorizationFingerprint(GA4GHVisa visa);
+
   boolean matchesCriterion(GA4GHVisa visa, VisaCriterionInternal criterion);
 
+  /**
+   * Used to match many criteria against a visa without comparing each one to the visa.
+   *
+   * @return the {@link #criterionKey} of every criterion the visa matches, ignoring issuer
+   */
+  Set<VisaCriterionKey> matchingCriterionKeys(GA4GHVisa visa);
+
+  /**
+   * @return a key that is equal for criteria that match the same visas, ignoring issuer
+   */
+  VisaCriterionKey criterionKey(VisaCriterionInternal criterion);
+
   boolean visaTypeSupported(GA4GHVisa visa);
 
   boolean criterionTypeSupported(VisaCriterionInternal criterion);
@@ -0,0 +1,7 @@
+package bio.terra.externalcreds.visaComparators;
+
+/**
+ * A key that is equal for criteria that match the same visas, see {@link
+ * VisaComparator#criterionKey}. Implementations must be value types with equals and hashCode.
+ */
+public interface VisaCriterionKey {}
@@ -3,6 +3,7 @@ package bio.terra.externalcreds;
 import bio.terra.externalcreds.config.ProviderProperties;
 import bio.terra.externalcreds.generated.model.Provider;
 import bio.terra.externalcreds.models.AccessTokenCacheEntry;
+import bio.terra.externalcreds.models.CronShard;
 import bio.terra.externalcreds.models.FenceAccountKey;
 import bio.terra.externalcreds.models.GA4GHPassport;
 import bio.terra.externalcreds.models.GA4GHVisa;
@@ -22,6 +23,10 @@ import org.springframework.security.oauth2.core.AuthorizationGrantType;
 
 public class TestUtils {
 
+  /** A single shard holding every linked account, for tests of background job queries. */
+  public static final CronShard ALL_LINKED_ACCOUNTS_SHARD =
+      new CronShard.Builder().index(0).count(1).build();
+
   public static Timestamp getFutureTimestamp() {
     return new Timestamp(System.currentTimeMillis() + 60 * 1000);
   }
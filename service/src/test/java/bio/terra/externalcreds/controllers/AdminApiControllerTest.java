@@ -1,33 +1,57 @@
 package bio.terra.externalcreds.controllers;
 
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import bio.terra.common.exception.NotFoundException;
 import bio.terra.common.iam.BearerToken;
 import bio.terra.common.iam.SamUser;
 import bio.terra.externalcreds.BaseTest;
 import bio.terra.externalcreds.TestUtils;
 import bio.terra.externalcreds.config.ExternalCredsConfig;
+import bio.terra.externalcreds.generated.model.AdminAccessTokenRequest;
+import bio.terra.externalcreds.generated.model.AdminAccessTokenRequestItem;
+import bio.terra.externalcreds.generated.model.AdminAccessTokenResult;
+import bio.terra.externalcreds.generated.model.AdminAccessTokenResultItem;
 import bio.terra.externalcreds.generated.model.AdminLinkInfo;
+import bio.terra.externalcreds.generated.model.ErrorReport;
 import bio.terra.externalcreds.generated.model.Provider;
+import bio.terra.externalcreds.models.AccessTokenRequestInternal;
+import bio.terra.externalcreds.models.AccessTokenResultInternal;
+import bio.terra.externalcreds.models.DbGapStudyUser;
+import bio.terra.externalcreds.models.LinkedAccountSummary;
+import bio.terra.externalcreds.models.UserPassport;
 import bio.terra.externalcreds.services.LinkedAccountService;
 import bio.terra.externalcreds.services.PassportService;
+import bio.terra.externalcreds.services.TokenProviderService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.servlet.http.HttpServletRequest;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Consumer;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 
@@ -40,6 +64,7 @@ class AdminApiControllerTest extends BaseTest {
 
   @MockBean private LinkedAccountService linkedAccountService;
   @MockBean private PassportService passportService;
+  @MockBean private TokenProviderService tokenProviderService;
   @MockBean private ExternalCredsSamUserFactory samUserFactoryMock;
 
   @Nested
@@ -216,6 +241,56 @@ class AdminApiControllerTest extends BaseTest {
                               OpenApiConverters.Output.convertAdmin(inputLinkedAccount2)))));
     }
 
+    @Test
+    void testGetActiveLinkedAccountsPageAdmin() throws Exception {
+      var accessToken = mockAdminSamUser();
+      var linkedAccounts =
+          List.of(
+              new LinkedAccountSummary.Builder()
+                  .userId("user1")
+                  .externalUserId("external1")
+                  .expires(TestUtils.getFutureTimestamp())
+                  .build(),
+              new LinkedAccountSummary.Builder()
+                  .userId("user2")
+                  .externalUserId("external2")
+                  .expires(TestUtils.getFutureTimestamp())
+                  .build());
+      doAnswer(
+              invocation -> {
+                Consumer<LinkedAccountSummary> consumer = invocation.getArgument(3);
+                linkedAccounts.forEach(consumer);
+                return null;
+              })
+          .when(linkedAccountService)
+          .forEachActiveLinkedAccount(eq(Provider.ERA_COMMONS), eq(""), eq(1000), any());
+
+      var expectedBody = new StringBuilder();
+      for (var linkedAccount : linkedAccounts) {
+        expectedBody
+            .append(mapper.writeValueAsString(OpenApiConverters.Output.convertAdmin(linkedAccount)))
+            .append('\n');
+      }
+      expectedBody.append(mapper.writeValueAsString(NdjsonResponses.COMPLETE)).append('\n');
+
+      mvc.perform(
+              get("/api/admin/v1/" + Provider.ERA_COMMONS + "/activeAccounts/paged")
+                  .header("authorization", "Bearer " + accessToken))
+          .andExpect(status().isOk())
+          .andExpect(content().contentType("application/x-ndjson"))
+          .andExpect(content().string(expectedBody.toString()));
+    }
+
+    @Test
+    void testGetActiveLinkedAccountsPageNonAdmin() throws Exception {
+      var accessToken = mockSamUser("userId");
+
+      mvc.perform(
+              get("/api/admin/v1/" + Provider.ERA_COMMONS + "/activeAccounts/paged")
+                  .header("authorization", "Bearer " + accessToken))
+          .andExpect(status().isForbidden());
+    }
+
     @Test
     void testGetActiveLinkedAccountsNonAdmin() throws Exception {
       var accessToken = mockSamUser("userId");
@@ -272,6 +347,255 @@ class AdminApiControllerTest extends BaseTest {
     }
   }
 
+  @Nested
+  class GetProviderPassports {
+    @Test
+    void testGetProviderPassportsAdmin() throws Exception {
+      var accessToken = mockAdminSamUser();
+      var userPassports =
+          List.of(
+              new UserPassport.Builder()
+                  .userId("user1")
+                  .jwt("jwt1")
+                  .expires(TestUtils.getFutureTimestamp())
+                  .build(),
+              new UserPassport.Builder()
+                  .userId("user2")
+                  .jwt("jwt2")
+                  .expires(TestUtils.getFutureTimestamp())
+                  .build());
+      doAnswer(
+              invocation -> {
+                Consumer<UserPassport> consumer = invocation.getArgument(3);
+                userPassports.forEach(consumer);
+                return null;
+              })
+          .when(passportService)
+          .forEachPassport(eq(Provider.RAS), eq("user0"), eq(2), any());
+
+      var expectedBody = new StringBuilder();
+      for (var userPassport : userPassports) {
+        expectedBody
+            .append(mapper.writeValueAsString(OpenApiConverters.Output.convert(userPassport)))
+            .append('\n');
+      }
+      expectedBody.append(mapper.writeValueAsString(NdjsonResponses.COMPLETE)).append('\n');
+
+      mvc.perform(
+              get("/api/admin/v1/" + Provider.RAS + "/passports")
+                  .queryParam("pageSize", "2")
+                  .queryParam("afterUserId", "user0")
+                  .header("authorization", "Bearer " + accessToken))
+          .andExpect(status().isOk())
+          .andExpect(content().contentType("application/x-ndjson"))
+          .andExpect(content().string(expectedBody.toString()));
+    }
+
+    @Test
+    void testGetProviderPassportsNonAdmin() throws Exception {
+      var accessToken = mockSamUser("userId");
+
+      mvc.perform(
+              get("/api/admin/v1/" + Provider.RAS + "/passports")
+                  .header("authorization", "Bearer " + accessToken))
+          .andExpect(status().isForbidden());
+    }
+
+    @Test
+    void testGetProviderPassportsPageSizeTooLarge() throws Exception {
+      var accessToken = mockAdminSamUser();
+
+      mvc.perform(
+              get("/api/admin/v1/" + Provider.RAS + "/passports")
+                  .queryParam("pageSize", "10001")
+                  .header("authorization", "Bearer " + accessToken))
+          .andExpect(status().isBadRequest());
+    }
+  }
+
+  @Nested
+  class GetDbGapStudyUsers {
+    @Test
+    void testGetDbGapStudyUsersAdmin() throws Exception {
+      var accessToken = mockAdminSamUser();
+      var expiresAfter = Instant.parse("2030-01-01T00:00:00Z");
+      var studyUsers =
+          List.of(
+              new DbGapStudyUser.Builder()
+                  .userId("user1")
+                  .consentGroups(List.of("c1"))
+                  .expires(TestUtils.getFutureTimestamp())
+                  .build(),
+              new DbGapStudyUser.Builder()
+                  .userId("user2")
+                  .consentGroups(List.of("c1"))
+                  .expires(TestUtils.getFutureTimestamp())
+                  .build());
+      doAnswer(
+              invocation -> {
+                Consumer<DbGapStudyUser> consumer = invocation.getArgument(6);
+                studyUsers.forEach(consumer);
+                return null;
+              })
+          .when(passportService)
+          .forEachDbGapStudyUser(
+              eq(Provider.RAS),
+              eq("phs000123"),
+              eq(Optional.of("c1")),
+              eq(Timestamp.from(expiresAfter)),
+              eq("user0"),
+              eq(2),
+              any());
+
+      var expectedBody = new StringBuilder();
+      for (var studyUser : studyUsers) {
+        expectedBody
+            .append(mapper.writeValueAsString(OpenApiConverters.Output.convert(studyUser)))
+            .append('\n');
+      }
+      expectedBody.append(mapper.writeValueAsString(NdjsonResponses.COMPLETE)).append('\n');
+
+      mvc.perform(
+              get("/api/admin/v1/" + Provider.RAS + "/dbGapStudies/phs000123/users")
+                  .queryParam("consentGroup", "c1")
+                  .queryParam("expiresAfter", expiresAfter.toString())
+                  .queryParam("pageSize", "2")
+                  .queryParam("afterUserId", "user0")
+                  .header("authorization", "Bearer " + accessToken))
+          .andExpect(status().isOk())
+          .andExpect(content().contentType("application/x-ndjson"))
+          .andExpect(content().string(expectedBody.toString()));
+    }
+
+    @Test
+    void testGetDbGapStudyUsersDefaultsToUnexpired() throws Exception {
+      var accessToken = mockAdminSamUser();
+      var requestTime = Instant.now();
+
+      mvc.perform(
+              get("/api/admin/v1/" + Provider.RAS + "/dbGapStudies/phs000123/users")
+                  .header("authorization", "Bearer " + accessToken))
+          .andExpect(status().isOk());
+
+      var expiresAfter = ArgumentCaptor.forClass(Timestamp.class);
+      verify(passportService)
+          .forEachDbGapStudyUser(
+              eq(Provider.RAS),
+              eq("phs000123"),
+              eq(Optional.empty()),
+              expiresAfter.capture(),
+              eq(""),
+              eq(1000),
+              any());
+      assertFalse(expiresAfter.getValue().toInstant().isBefore(requestTime));
+    }
+
+    @Test
+    void testGetDbGapStudyUsersNonAdmin() throws Exception {
+      var accessToken = mockSamUser("userId");
+
+      mvc.perform(
+              get("/api/admin/v1/" + Provider.RAS + "/dbGapStudies/phs000123/users")
+                  .header("authorization", "Bearer " + accessToken))
+          .andExpect(status().isForbidden());
+    }
+  }
+
+  @Nested
+  class GetProviderAccessTokens {
+    private final AdminAccessTokenRequest request =
+        new AdminAccessTokenRequest()
+            .items(
+                List.of(
+                    new AdminAccessTokenRequestItem().userId("user1").provider(Provider.GITHUB),
+                    new AdminAccessTokenRequestItem().userId("user2").provider(Provider.FENCE)));
+
+    @Test
+    void testGetProviderAccessTokensAdmin() throws Exception {
+      var accessToken = mockAdminSamUser();
+      var error = new NotFoundException("no linked account");
+      when(tokenProviderService.getProviderAccessTokens(
+              eq(
+                  List.of(
+                      new AccessTokenRequestInternal.Builder()
+                          .userId("user1")
+                          .provider(Provider.GITHUB)
+                          .build(),
+                      new AccessTokenRequestInternal.Builder()
+                          .userId("user2")
+                          .provider(Provider.FENCE)
+                          .build())),
+              any()))
+          .thenReturn(
+              List.of(
+                  new AccessTokenResultInternal.Builder()
+                      .userId("user1")
+                      .provider(Provider.GITHUB)
+                      .accessToken("token1")
+                      .build(),
+                  new AccessTokenResultInternal.Builder()
+                      .userId("user2")
+                      .provider(Provider.FENCE)
+                      .error(error)
+                      .build()));
+
+      var expected =
+          new AdminAccessTokenResult()
+              .results(
+                  List.of(
+                      new AdminAccessTokenResultItem()
+                          .userId("user1")
+                          .provider(Provider.GITHUB)
+                          .accessToken("token1"),
+                      new AdminAccessTokenResultItem()
+                          .userId("user2")
+                          .provider(Provider.FENCE)
+                          .error(
+                              new ErrorReport()
+                                  .message(error.getMessage())
+                                  .statusCode(HttpStatus.NOT_FOUND.value()))));
+
+      mvc.perform(
+              post("/api/admin/v1/accessTokens")
+                  .header("authorization", "Bearer " + accessToken)
+                  .contentType(MediaType.APPLICATION_JSON)
+                  .content(mapper.writeValueAsString(request)))
+          .andExpect(status().isOk())
+          .andExpect(content().json(mapper.writeValueAsString(expected)));
+    }
+
+    @Test
+    void testGetProviderAccessTokensTooManyItems() throws Exception {
+      var accessToken = mockAdminSamUser();
+      var tooManyItems =
+          new AdminAccessTokenRequest()
+              .items(
+                  Collections.nCopies(
+                      1001,
+                      new AdminAccessTokenRequestItem().userId("user1").provider(Provider.GITHUB)));
+
+      mvc.perform(
+              post("/api/admin/v1/accessTokens")
+                  .header("authorization", "Bearer " + accessToken)
+                  .contentType(MediaType.APPLICATION_JSON)
+                  .content(mapper.writeValueAsString(tooManyItems)))
+          .andExpect(status().isBadRequest());
+      verifyNoInteractions(tokenProviderService);
+    }
+
+    @Test
+    void testGetProviderAccessTokensNonAdmin() throws Exception {
+      var accessToken = mockSamUser("userId");
+
+      mvc.perform(
+              post("/api/admin/v1/accessTokens")
+                  .header("authorization", "Bearer " + accessToken)
+                  .contentType(MediaType.APPLICATION_JSON)
+                  .content(mapper.writeValueAsString(request)))
+          .andExpect(status().isForbidden());
+    }
+  }
+
   private String mockSamUser(String userId) {
     var accessToken = UUID.randomUUID().toString();
     when(samUserFactoryMock.from(any(HttpServletRequest.class)))
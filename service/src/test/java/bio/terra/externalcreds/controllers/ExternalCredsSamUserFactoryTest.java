@@ -0,0 +1,168 @@
+package bio.terra.externalcreds.controllers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import bio.terra.common.exception.UnauthorizedException;
+import bio.terra.common.iam.BearerToken;
+import bio.terra.common.iam.BearerTokenFactory;
+import bio.terra.common.iam.SamUser;
+import bio.terra.common.iam.SamUserFactory;
+import bio.terra.externalcreds.config.ExternalCredsConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ExternalCredsSamUserFactoryTest {
+  private static final String SAM_BASE_PATH = "https://sam.test";
+
+  private SamUserFactory samUserFactory;
+  private BearerTokenFactory bearerTokenFactory;
+  private ExternalCredsConfig externalCredsConfig;
+  private SimpleMeterRegistry meterRegistry;
+
+  @BeforeEach
+  void setUp() {
+    samUserFactory = mock(SamUserFactory.class);
+    bearerTokenFactory = mock(BearerTokenFactory.class);
+    externalCredsConfig = mock(ExternalCredsConfig.class);
+    meterRegistry = new SimpleMeterRegistry();
+    when(externalCredsConfig.getSamBasePath()).thenReturn(SAM_BASE_PATH);
+    when(externalCredsConfig.getSamUserCacheMaximumSize()).thenReturn(100L);
+  }
+
+  @Test
+  void testSamUserServedFromCache() {
+    var request = mockRequest(UUID.randomUUID().toString());
+    var samUser = new SamUser("email", "subject", new BearerToken("token"));
+    when(samUserFactory.from(request, SAM_BASE_PATH)).thenReturn(samUser);
+    var factory = createFactory();
+
+    assertSame(samUser, factory.from(request));
+    assertSame(samUser, factory.from(request));
+
+    verify(samUserFactory, times(1)).from(request, SAM_BASE_PATH);
+    assertEquals(1.0, getLookupCount("hit"));
+    assertEquals(1.0, getLookupCount("miss"));
+  }
+
+  @Test
+  void testConcurrentRequestsShareOneSamCall() throws Exception {
+    var request = mockRequest(UUID.randomUUID().toString());
+    var samUser = new SamUser("email", "subject", new BearerToken("token"));
+    var samCalled = new CountDownLatch(1);
+    var secondRequestWaiting = new CountDownLatch(1);
+    when(samUserFactory.from(request, SAM_BASE_PATH))
+        .thenAnswer(
+            invocation -> {
+              samCalled.countDown();
+              // hold the call to Sam until the second request is waiting on it
+              secondRequestWaiting.await();
+              return samUser;
+            });
+    var factory = createFactory();
+
+    var first = new FutureTask<>(() -> factory.from(request));
+    new Thread(first).start();
+    samCalled.await();
+    var second = new FutureTask<>(() -> factory.from(request));
+    var secondThread = new Thread(second);
+    secondThread.start();
+    awaitWaiting(secondThread);
+    secondRequestWaiting.countDown();
+
+    assertSame(samUser, first.get(10, TimeUnit.SECONDS));
+    assertSame(samUser, second.get(10, TimeUnit.SECONDS));
+    verify(samUserFactory, times(1)).from(request, SAM_BASE_PATH);
+    assertEquals(1.0, getLookupCount("miss"));
+    assertEquals(1.0, getLookupCount("join"));
+    assertEquals(0.0, getLookupCount("hit"));
+  }
+
+  @Test
+  void testSamUsersCachedPerToken() {
+    var request = mockRequest(UUID.randomUUID().toString());
+    var otherRequest = mockRequest(UUID.randomUUID().toString());
+    var samUser = new SamUser("email", "subject", new BearerToken("token"));
+    var otherSamUser = new SamUser("other email", "other subject", new BearerToken("other"));
+    when(samUserFactory.from(request, SAM_BASE_PATH)).thenReturn(samUser);
+    when(samUserFactory.from(otherRequest, SAM_BASE_PATH)).thenReturn(otherSamUser);
+    var factory = createFactory();
+
+    assertSame(samUser, factory.from(request));
+    assertSame(otherSamUser, factory.from(otherRequest));
+  }
+
+  @Test
+  void testUnauthorizedNotCachedByDefault() {
+    var request = mockRequest(UUID.randomUUID().toString());
+    when(samUserFactory.from(request, SAM_BASE_PATH))
+        .thenThrow(new UnauthorizedException("bad token"));
+    var factory = createFactory();
+
+    assertThrows(UnauthorizedException.class, () -> factory.from(request));
+    assertThrows(UnauthorizedException.class, () -> factory.from(request));
+
+    verify(samUserFactory, times(2)).from(any(), eq(SAM_BASE_PATH));
+  }
+
+  @Test
+  void testUnauthorizedCachedWhenConfigured() {
+    when(externalCredsConfig.getSamUserUnauthorizedCacheDuration())
+        .thenReturn(Optional.of(Duration.ofMinutes(1)));
+    var request = mockRequest(UUID.randomUUID().toString());
+    when(samUserFactory.from(request, SAM_BASE_PATH))
+        .thenThrow(new UnauthorizedException("bad token"));
+    var factory = createFactory();
+
+    var first = assertThrows(UnauthorizedException.class, () -> factory.from(request));
+    var second = assertThrows(UnauthorizedException.class, () -> factory.from(request));
+
+    verify(samUserFactory, times(1)).from(any(), eq(SAM_BASE_PATH));
+    assertNotSame(first, second);
+    assertEquals("bad token", second.getMessage());
+  }
+
+  private ExternalCredsSamUserFactory createFactory() {
+    return new ExternalCredsSamUserFactory(
+        samUserFactory, bearerTokenFactory, externalCredsConfig, meterRegistry);
+  }
+
+  private HttpServletRequest mockRequest(String token) {
+    var request = mock(HttpServletRequest.class);
+    when(bearerTokenFactory.from(request)).thenReturn(new BearerToken(token));
+    return request;
+  }
+
+  private static void awaitWaiting(Thread thread) throws InterruptedException {
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (thread.getState() != Thread.State.WAITING) {
+      assertTrue(System.nanoTime() < deadline, "request never waited on the call to Sam");
+      Thread.sleep(10);
+    }
+  }
+
+  private double getLookupCount(String result) {
+    return meterRegistry
+        .get("externalcreds.sam_user_cache.lookups")
+        .tag("result", result)
+        .counter()
+        .count();
+  }
+}
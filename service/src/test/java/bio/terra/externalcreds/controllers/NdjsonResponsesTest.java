@@ -0,0 +1,48 @@
+package bio.terra.externalcreds.controllers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+class NdjsonResponsesTest {
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  void testCompleteListingEndsWithCompleteLine() throws Exception {
+    var response = new MockHttpServletResponse();
+
+    NdjsonResponses.write(
+        response,
+        mapper,
+        writeValue -> {
+          writeValue.accept(Map.of("userId", "user1"));
+          writeValue.accept(Map.of("userId", "user2"));
+        });
+
+    assertEquals(
+        "{\"userId\":\"user1\"}\n{\"userId\":\"user2\"}\n{\"complete\":true}\n",
+        response.getContentAsString());
+  }
+
+  @Test
+  void testFailedListingHasNoCompleteLine() throws Exception {
+    var response = new MockHttpServletResponse();
+
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            NdjsonResponses.write(
+                response,
+                mapper,
+                writeValue -> {
+                  writeValue.accept(Map.of("userId", "user1"));
+                  throw new IllegalStateException("connection lost");
+                }));
+
+    assertEquals("{\"userId\":\"user1\"}\n", response.getContentAsString());
+  }
+}
@@ -1,26 +1,36 @@
 package bio.terra.externalcreds.controllers;
 
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import bio.terra.common.exception.BadRequestException;
 import bio.terra.externalcreds.BaseTest;
+import bio.terra.externalcreds.generated.model.ErrorReport;
 import bio.terra.externalcreds.generated.model.OneOfValidatePassportRequestCriteriaItems;
 import bio.terra.externalcreds.generated.model.RASv1Dot1VisaCriterion;
+import bio.terra.externalcreds.generated.model.ValidatePassportBatchRequest;
+import bio.terra.externalcreds.generated.model.ValidatePassportBatchResult;
+import bio.terra.externalcreds.generated.model.ValidatePassportBatchResultItem;
 import bio.terra.externalcreds.generated.model.ValidatePassportRequest;
 import bio.terra.externalcreds.generated.model.ValidatePassportResult;
+import bio.terra.externalcreds.models.ValidatePassportBatchResultItemInternal;
+import bio.terra.externalcreds.models.ValidatePassportRequestInternal;
 import bio.terra.externalcreds.models.ValidatePassportResultInternal;
 import bio.terra.externalcreds.services.PassportService;
 import bio.terra.externalcreds.visaComparators.RASv1Dot1VisaCriterionInternal.Builder;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 
@@ -72,4 +82,93 @@ public class PassportApiControllerTest extends BaseTest {
         .andExpect(status().isOk())
         .andExpect(content().json(objectMapper.writeValueAsString(expected)));
   }
+
+  @Test
+  void testValidatePassportBatch() throws Exception {
+    var criterion = new RASv1Dot1VisaCriterion().consentCode("c1").phsId("phs001234");
+    criterion.issuer("visa issuer");
+    var criteria = new ArrayList<OneOfValidatePassportRequestCriteriaItems>(List.of(criterion));
+    var req =
+        new ValidatePassportBatchRequest()
+            .items(
+                List.of(
+                    new ValidatePassportRequest()
+                        .passports(List.of("I am a passport"))
+                        .criteria(criteria),
+                    new ValidatePassportRequest()
+                        .passports(List.of("I am garbage"))
+                        .criteria(criteria)));
+
+    var internalCriterion =
+        new Builder()
+            .phsId(criterion.getPhsId())
+            .consentCode(criterion.getConsentCode())
+            .issuer(criterion.getIssuer())
+            .build();
+    var resultInternal =
+        new ValidatePassportResultInternal.Builder()
+            .valid(true)
+            .matchedCriterion(internalCriterion)
+            .auditInfo(Map.of("foo", "bar"))
+            .build();
+    var error = new BadRequestException("invalid passport jwt");
+
+    when(passportServiceMock.validatePassportBatch(
+            List.of(
+                new ValidatePassportRequestInternal.Builder()
+                    .passportJwts(List.of("I am a passport"))
+                    .criteria(List.of(internalCriterion))
+                    .build(),
+                new ValidatePassportRequestInternal.Builder()
+                    .passportJwts(List.of("I am garbage"))
+                    .criteria(List.of(internalCriterion))
+                    .build())))
+        .thenReturn(
+            List.of(
+                new ValidatePassportBatchResultItemInternal.Builder()
+                    .result(resultInternal)
+                    .build(),
+                new ValidatePassportBatchResultItemInternal.Builder().error(error).build()));
+
+    var expected =
+        new ValidatePassportBatchResult()
+            .results(
+                List.of(
+                    new ValidatePassportBatchResultItem()
+                        .result(
+                            new ValidatePassportResult()
+                                .auditInfo(Map.of("foo", "bar"))
+                                .valid(true)
+                                .matchedCriterion(criterion)),
+                    new ValidatePassportBatchResultItem()
+                        .error(
+                            new ErrorReport()
+                                .message(error.getMessage())
+                                .statusCode(HttpStatus.BAD_REQUEST.value()))));
+
+    mvc.perform(
+            post("/passport/v1/validate/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(req)))
+        .andExpect(status().isOk())
+        .andExpect(content().json(objectMapper.writeValueAsString(expected)));
+  }
+
+  @Test
+  void testValidatePassportBatchTooManyItems() throws Exception {
+    var criterion = new RASv1Dot1VisaCriterion().consentCode("c1").phsId("phs001234");
+    criterion.issuer("visa issuer");
+    var item =
+        new ValidatePassportRequest()
+            .passports(List.of("I am a passport"))
+            .criteria(new ArrayList<>(List.of(criterion)));
+    var req = new ValidatePassportBatchRequest().items(Collections.nCopies(1001, item));
+
+    mvc.perform(
+            post("/passport/v1/validate/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(req)))
+        .andExpect(status().isBadRequest());
+    verifyNoInteractions(passportServiceMock);
+  }
 }
@@ -5,6 +5,8 @@ import static org.junit.jupiter.api.Assertions.*;
 import bio.terra.externalcreds.BaseTest;
 import bio.terra.externalcreds.TestUtils;
 import bio.terra.externalcreds.models.DistributedLock;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.Optional;
 import java.util.UUID;
 import org.junit.jupiter.api.Nested;
@@ -51,6 +53,89 @@ class DistributedLockDAOTest extends BaseTest {
     }
   }
 
+  @Nested
+  class TryInsertDistributedLock {
+
+    @Test
+    void testTryInsertDistributedLock() {
+      assertTrue(distributedLockDAO.tryInsertDistributedLock(testDistributedLock));
+      assertEquals(
+          Optional.of(testDistributedLock),
+          distributedLockDAO.getDistributedLock(
+              testDistributedLock.getLockName(), testDistributedLock.getUserId()));
+    }
+
+    @Test
+    void testTryInsertHeldDistributedLock() {
+      distributedLockDAO.insertDistributedLock(testDistributedLock);
+      assertFalse(distributedLockDAO.tryInsertDistributedLock(testDistributedLock));
+    }
+
+    @Test
+    void testTryInsertTakesOverExpiredDistributedLock() {
+      distributedLockDAO.insertDistributedLock(
+          testDistributedLock.withExpiresAt(Instant.now().minus(1, ChronoUnit.MINUTES)));
+      assertTrue(distributedLockDAO.tryInsertDistributedLock(testDistributedLock));
+      assertEquals(
+          Optional.of(testDistributedLock),
+          distributedLockDAO.getDistributedLock(
+              testDistributedLock.getLockName(), testDistributedLock.getUserId()));
+    }
+  }
+
+  @Nested
+  class RenewDistributedLock {
+
+    @Test
+    void testRenewHeldDistributedLock() {
+      var heldLock = testDistributedLock.withExpiresAt(Instant.now());
+      distributedLockDAO.insertDistributedLock(heldLock);
+      var newExpiresAt = Instant.now().plus(1, ChronoUnit.HOURS);
+
+      assertTrue(distributedLockDAO.renewDistributedLock(heldLock, newExpiresAt));
+      assertEquals(
+          Optional.of(newExpiresAt.truncatedTo(ChronoUnit.MILLIS)),
+          distributedLockDAO
+              .getDistributedLock(heldLock.getLockName(), heldLock.getUserId())
+              .map(lock -> lock.getExpiresAt().truncatedTo(ChronoUnit.MILLIS)));
+    }
+
+    @Test
+    void testRenewTakenOverDistributedLock() {
+      distributedLockDAO.insertDistributedLock(testDistributedLock);
+      var heldLock = testDistributedLock.withExpiresAt(Instant.now().minus(1, ChronoUnit.MINUTES));
+
+      assertFalse(
+          distributedLockDAO.renewDistributedLock(
+              heldLock, Instant.now().plus(1, ChronoUnit.HOURS)));
+      assertEquals(
+          Optional.of(testDistributedLock),
+          distributedLockDAO.getDistributedLock(
+              testDistributedLock.getLockName(), testDistributedLock.getUserId()));
+    }
+
+    @Test
+    void testDeleteHeldDistributedLock() {
+      var heldLock = testDistributedLock.withExpiresAt(Instant.now());
+      distributedLockDAO.insertDistributedLock(heldLock);
+
+      assertTrue(distributedLockDAO.deleteHeldDistributedLock(heldLock));
+      assertEmpty(
+          distributedLockDAO.getDistributedLock(heldLock.getLockName(), heldLock.getUserId()));
+    }
+
+    @Test
+    void testDeleteTakenOverDistributedLock() {
+      distributedLockDAO.insertDistributedLock(testDistributedLock);
+      var heldLock = testDistributedLock.withExpiresAt(Instant.now().minus(1, ChronoUnit.MINUTES));
+
+      assertFalse(distributedLockDAO.deleteHeldDistributedLock(heldLock));
+      assertPresent(
+          distributedLockDAO.getDistributedLock(
+              testDistributedLock.getLockName(), testDistributedLock.getUserId()));
+    }
+  }
+
   @Nested
   class DeleteDistributedLock {
 
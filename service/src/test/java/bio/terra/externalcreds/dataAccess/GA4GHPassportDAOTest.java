@@ -9,10 +9,18 @@ import bio.terra.externalcreds.BaseTest;
 import bio.terra.externalcreds.TestUtils;
 import bio.terra.externalcreds.config.ExternalCredsConfig;
 import bio.terra.externalcreds.generated.model.Provider;
+import bio.terra.externalcreds.models.DbGapPermission;
 import bio.terra.externalcreds.models.GA4GHVisa;
 import bio.terra.externalcreds.models.TokenTypeEnum;
+import bio.terra.externalcreds.models.UserPassport;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -90,6 +98,84 @@ class GA4GHPassportDAOTest extends BaseTest {
     }
   }
 
+  @Nested
+  class UpsertPassportWithVisas {
+
+    @Test
+    void testUpsertPassportWithVisasReplacesPassportAndVisas() {
+      var savedAccount =
+          linkedAccountDAO.upsertLinkedAccount(TestUtils.createRandomPassportLinkedAccount());
+      var permission =
+          new DbGapPermission.Builder().phsId("phs000021").consentGroup("c1").role("pi").build();
+      var visaWithPermissions =
+          TestUtils.createRandomVisa()
+              .withDbGapPermissions(
+                  Set.of(
+                      permission,
+                      new DbGapPermission.Builder()
+                          .phsId("phs000022")
+                          .consentGroup("c1")
+                          .role("pi")
+                          .build()));
+      var visaWithoutPermissions = TestUtils.createRandomVisa().withDbGapPermissions(Set.of());
+
+      var saved =
+          passportDAO.upsertPassportWithVisas(
+              TestUtils.createRandomPassport().withLinkedAccountId(savedAccount.getId()),
+              List.of(visaWithPermissions, visaWithoutPermissions));
+
+      assertPresent(saved.getPassport().getId());
+      assertEquals(
+          Optional.of(saved.getPassport()),
+          passportDAO.getPassport(savedAccount.getUserId(), savedAccount.getProvider()));
+      assertEquals(
+          List.of(visaWithPermissions.getJwt(), visaWithoutPermissions.getJwt()),
+          saved.getVisas().stream().map(GA4GHVisa::getJwt).toList());
+      assertEquals(
+          Set.copyOf(saved.getVisas()),
+          Set.copyOf(visaDAO.listVisas(savedAccount.getUserId(), savedAccount.getProvider())));
+      assertEquals(
+          Map.of(
+              visaWithPermissions.getJwt(),
+              visaWithPermissions.getDbGapPermissions(),
+              visaWithoutPermissions.getJwt(),
+              Optional.of(Set.of())),
+          visaDAO.listVisas(savedAccount.getUserId(), savedAccount.getProvider()).stream()
+              .collect(Collectors.toMap(GA4GHVisa::getJwt, GA4GHVisa::getDbGapPermissions)));
+
+      // saving a new passport replaces the passport and all of its visas and permissions
+      var newVisa = TestUtils.createRandomVisa().withDbGapPermissions(Set.of(permission));
+      var resaved =
+          passportDAO.upsertPassportWithVisas(
+              TestUtils.createRandomPassport().withLinkedAccountId(savedAccount.getId()),
+              List.of(newVisa));
+
+      assertEquals(
+          Optional.of(resaved.getPassport()),
+          passportDAO.getPassport(savedAccount.getUserId(), savedAccount.getProvider()));
+      var loadedVisas = visaDAO.listVisas(savedAccount.getUserId(), savedAccount.getProvider());
+      assertEquals(resaved.getVisas(), loadedVisas);
+      assertEquals(Optional.of(Set.of(permission)), loadedVisas.get(0).getDbGapPermissions());
+    }
+
+    @Test
+    void testUpsertPassportWithoutVisas() {
+      var savedAccount =
+          linkedAccountDAO.upsertLinkedAccount(TestUtils.createRandomPassportLinkedAccount());
+
+      var saved =
+          passportDAO.upsertPassportWithVisas(
+              TestUtils.createRandomPassport().withLinkedAccountId(savedAccount.getId()),
+              List.of());
+
+      assertEquals(
+          Optional.of(saved.getPassport()),
+          passportDAO.getPassport(savedAccount.getUserId(), savedAccount.getProvider()));
+      assertTrue(saved.getVisas().isEmpty());
+      assertTrue(visaDAO.listVisas(savedAccount.getUserId(), savedAccount.getProvider()).isEmpty());
+    }
+  }
+
   @Nested
   class DeletePassport {
 
@@ -137,4 +223,45 @@ class GA4GHPassportDAOTest extends BaseTest {
           visaDAO.listVisas(linkedAccount.getUserId(), linkedAccount.getProvider()).isEmpty());
     }
   }
+
+  @Nested
+  class ForEachPassport {
+
+    @Test
+    void testPagesPassportsOfProviderByUserId() {
+      // a random prefix keeps users saved by other tests out of the pages
+      var userIdPrefix = UUID.randomUUID().toString();
+      var expectedPassports = new ArrayList<UserPassport>();
+      for (var i = 0; i < 3; i++) {
+        var savedAccount =
+            linkedAccountDAO.upsertLinkedAccount(
+                TestUtils.createRandomPassportLinkedAccount().withUserId(userIdPrefix + i));
+        var savedPassport =
+            passportDAO.insertPassport(
+                TestUtils.createRandomPassport().withLinkedAccountId(savedAccount.getId()));
+        expectedPassports.add(
+            new UserPassport.Builder()
+                .userId(savedAccount.getUserId())
+                .jwt(savedPassport.getJwt())
+                .expires(savedPassport.getExpires())
+                .build());
+      }
+      // neither a linked account of another provider nor one without a passport is included
+      var otherProviderAccount =
+          linkedAccountDAO.upsertLinkedAccount(
+              TestUtils.createRandomLinkedAccount(Provider.GITHUB).withUserId(userIdPrefix + "0a"));
+      passportDAO.insertPassport(
+          TestUtils.createRandomPassport().withLinkedAccountId(otherProviderAccount.getId()));
+      linkedAccountDAO.upsertLinkedAccount(
+          TestUtils.createRandomPassportLinkedAccount().withUserId(userIdPrefix + "0b"));
+
+      var firstPage = new ArrayList<UserPassport>();
+      passportDAO.forEachPassport(Provider.RAS, userIdPrefix, 2, firstPage::add);
+      assertEquals(expectedPassports.subList(0, 2), firstPage);
+
+      var secondPage = new ArrayList<UserPassport>();
+      passportDAO.forEachPassport(Provider.RAS, firstPage.get(1).getUserId(), 2, secondPage::add);
+      assertEquals(expectedPassports.subList(2, 3), secondPage);
+    }
+  }
 }
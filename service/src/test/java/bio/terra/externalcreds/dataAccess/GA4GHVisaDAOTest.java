@@ -7,15 +7,23 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import bio.terra.externalcreds.BaseTest;
 import bio.terra.externalcreds.TestUtils;
 import bio.terra.externalcreds.generated.model.Provider;
+import bio.terra.externalcreds.models.DbGapPermission;
+import bio.terra.externalcreds.models.DbGapStudyUser;
+import bio.terra.externalcreds.models.GA4GHVisa;
 import bio.terra.externalcreds.models.TokenTypeEnum;
 import bio.terra.externalcreds.models.VisaVerificationDetails;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -103,7 +111,8 @@ class GA4GHVisaDAOTest extends BaseTest {
 
       assertEquals(
           List.of(passportWithUnvalidatedVisaDetails, passportWithUnvalidatedVisaDetails2),
-          visaDAO.getUnvalidatedAccessTokenVisaDetails(validationCutoff));
+          visaDAO.getUnvalidatedAccessTokenVisaDetails(
+              validationCutoff, TestUtils.ALL_LINKED_ACCOUNTS_SHARD, 0, 100));
     }
 
     @Test
@@ -149,7 +158,8 @@ class GA4GHVisaDAOTest extends BaseTest {
 
       assertEquals(
           List.of(passportWithUnvalidatedVisaDetails),
-          visaDAO.getUnvalidatedAccessTokenVisaDetails(validationCutoff));
+          visaDAO.getUnvalidatedAccessTokenVisaDetails(
+              validationCutoff, TestUtils.ALL_LINKED_ACCOUNTS_SHARD, 0, 100));
     }
   }
 
@@ -179,6 +189,211 @@ class GA4GHVisaDAOTest extends BaseTest {
     assertEquals(Set.of(savedVisa1, savedVisa2), Set.copyOf(loadedVisas));
   }
 
+  @Test
+  void testListVisasWithDbGapPermissions() {
+    var savedLinkedAccount =
+        linkedAccountDAO.upsertLinkedAccount(TestUtils.createRandomPassportLinkedAccount());
+    var visaExpires =
+        new Timestamp(Instant.now().plus(Duration.ofHours(1)).toEpochMilli() / 1000 * 1000);
+    var permission =
+        new DbGapPermission.Builder().phsId("phs000021").consentGroup("c1").role("pi").build();
+    var expiringPermission =
+        new DbGapPermission.Builder()
+            .phsId("phs000022")
+            .consentGroup("c1")
+            .role("pi")
+            .expiration(Instant.now().plus(Duration.ofMinutes(10)).getEpochSecond())
+            .build();
+    var savedVisas =
+        passportDAO
+            .upsertPassportWithVisas(
+                TestUtils.createRandomPassport().withLinkedAccountId(savedLinkedAccount.getId()),
+                List.of(
+                    TestUtils.createRandomVisa()
+                        .withExpires(visaExpires)
+                        .withDbGapPermissions(Set.of(permission, expiringPermission)),
+                    TestUtils.createRandomVisa().withDbGapPermissions(Set.of())))
+            .getVisas();
+    var savedVisa = savedVisas.get(0);
+    var otherVisa = savedVisas.get(1);
+
+    var loadedVisas =
+        visaDAO.listVisas(savedLinkedAccount.getUserId(), savedLinkedAccount.getProvider());
+    var permissionsByVisaId =
+        loadedVisas.stream()
+            .collect(
+                Collectors.toMap(
+                    visa -> visa.getId().orElseThrow(), GA4GHVisa::getDbGapPermissions));
+    // a visa saved with no permissions is listed with none, so its jwt is not parsed
+    assertEquals(
+        Map.of(
+            savedVisa.getId().orElseThrow(),
+            Optional.of(Set.of(permission, expiringPermission)),
+            otherVisa.getId().orElseThrow(),
+            Optional.of(Set.of())),
+        permissionsByVisaId);
+
+    var loadedExpiresByPhsId =
+        permissionsByVisaId.get(savedVisa.getId().orElseThrow()).orElseThrow().stream()
+            .collect(Collectors.toMap(DbGapPermission::getPhsId, DbGapPermission::getExpiration));
+    assertEquals(
+        Map.of(
+            "phs000021",
+            Optional.of(visaExpires.getTime() / 1000),
+            "phs000022",
+            expiringPermission.getExpiration()),
+        loadedExpiresByPhsId);
+  }
+
+  @Test
+  void testGetVisasWithoutDbGapPermissions() {
+    // a random visa type keeps visas saved by other tests out of the results
+    var visaType = "https://visa.test/" + UUID.randomUUID();
+    var savedLinkedAccount =
+        linkedAccountDAO.upsertLinkedAccount(TestUtils.createRandomPassportLinkedAccount());
+    var savedPassport =
+        passportDAO.insertPassport(
+            TestUtils.createRandomPassport().withLinkedAccountId(savedLinkedAccount.getId()));
+    var visaWithPermissions =
+        visaDAO.insertVisa(
+            TestUtils.createRandomVisa()
+                .withVisaType(visaType)
+                .withPassportId(savedPassport.getId()));
+    visaDAO.saveDbGapPermissions(
+        visaWithPermissions.getId().orElseThrow(),
+        visaWithPermissions.getExpires(),
+        List.of(
+            new DbGapPermission.Builder()
+                .phsId("phs000021")
+                .consentGroup("c1")
+                .role("pi")
+                .build()));
+    // a visa that grants no permissions is not returned once they were saved
+    var visaWithNoPermissions =
+        visaDAO.insertVisa(
+            TestUtils.createRandomVisa()
+                .withVisaType(visaType)
+                .withPassportId(savedPassport.getId()));
+    visaDAO.saveDbGapPermissions(
+        visaWithNoPermissions.getId().orElseThrow(), visaWithNoPermissions.getExpires(), List.of());
+    var visasWithoutPermissions =
+        List.of(
+            visaDAO.insertVisa(
+                TestUtils.createRandomVisa()
+                    .withVisaType(visaType)
+                    .withPassportId(savedPassport.getId())),
+            visaDAO.insertVisa(
+                TestUtils.createRandomVisa()
+                    .withVisaType(visaType.toUpperCase())
+                    .withPassportId(savedPassport.getId())));
+    visaDAO.insertVisa(TestUtils.createRandomVisa().withPassportId(savedPassport.getId()));
+
+    var firstPage =
+        visaDAO.getVisasWithoutDbGapPermissions(
+            visaType, TestUtils.ALL_LINKED_ACCOUNTS_SHARD, 0, 1);
+    var secondPage =
+        visaDAO.getVisasWithoutDbGapPermissions(
+            visaType,
+            TestUtils.ALL_LINKED_ACCOUNTS_SHARD,
+            firstPage.get(0).getId().orElseThrow(),
+            100);
+
+    assertEquals(visasWithoutPermissions.subList(0, 1), firstPage);
+    assertEquals(visasWithoutPermissions.subList(1, 2), secondPage);
+  }
+
+  @Nested
+  class ForEachDbGapStudyUser {
+    // a random study keeps permissions saved by other tests out of the pages
+    private final String phsId = "phs" + UUID.randomUUID();
+
+    @Test
+    void testPagesUsersWithStudyPermissionsByUserId() {
+      var userIdPrefix = UUID.randomUUID().toString();
+      // whole seconds so the timestamps are the same when read back from the database
+      var now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+      var inTenMinutes = Timestamp.from(now.plus(Duration.ofMinutes(10)));
+      var inAnHour = Timestamp.from(now.plus(Duration.ofHours(1)));
+      saveUserWithPermissions(
+          Provider.RAS,
+          userIdPrefix + 0,
+          inAnHour,
+          permission(phsId, "c2"),
+          permission(phsId, "c1"));
+      saveUserWithPermissions(
+          Provider.RAS, userIdPrefix + 1, inTenMinutes, permission(phsId, "c1"));
+      saveUserWithPermissions(Provider.RAS, userIdPrefix + 2, inAnHour, permission(phsId, "c2"));
+      // neither other studies, other providers nor expired permissions are included
+      saveUserWithPermissions(Provider.RAS, userIdPrefix + 3, inAnHour, permission("other", "c1"));
+      saveUserWithPermissions(Provider.GITHUB, userIdPrefix + 4, inAnHour, permission(phsId, "c1"));
+      saveUserWithPermissions(
+          Provider.RAS,
+          userIdPrefix + 5,
+          Timestamp.from(now.minusSeconds(1)),
+          permission(phsId, "c1"));
+
+      var firstPage = new ArrayList<DbGapStudyUser>();
+      visaDAO.forEachDbGapStudyUser(
+          Provider.RAS, phsId, Optional.empty(), Timestamp.from(now), "", 2, firstPage::add);
+      assertEquals(
+          List.of(
+              studyUser(userIdPrefix + 0, inAnHour, "c1", "c2"),
+              studyUser(userIdPrefix + 1, inTenMinutes, "c1")),
+          firstPage);
+
+      var secondPage = new ArrayList<DbGapStudyUser>();
+      visaDAO.forEachDbGapStudyUser(
+          Provider.RAS,
+          phsId,
+          Optional.empty(),
+          Timestamp.from(now),
+          firstPage.get(1).getUserId(),
+          2,
+          secondPage::add);
+      assertEquals(List.of(studyUser(userIdPrefix + 2, inAnHour, "c2")), secondPage);
+
+      var consentGroupUsers = new ArrayList<DbGapStudyUser>();
+      visaDAO.forEachDbGapStudyUser(
+          Provider.RAS,
+          phsId,
+          Optional.of("c1"),
+          Timestamp.from(now.plus(Duration.ofMinutes(30))),
+          "",
+          10,
+          consentGroupUsers::add);
+      assertEquals(List.of(studyUser(userIdPrefix + 0, inAnHour, "c1")), consentGroupUsers);
+    }
+
+    private void saveUserWithPermissions(
+        Provider provider, String userId, Timestamp expires, DbGapPermission... permissions) {
+      var savedLinkedAccount =
+          linkedAccountDAO.upsertLinkedAccount(
+              TestUtils.createRandomLinkedAccount(provider).withUserId(userId));
+      passportDAO.upsertPassportWithVisas(
+          TestUtils.createRandomPassport().withLinkedAccountId(savedLinkedAccount.getId()),
+          List.of(
+              TestUtils.createRandomVisa()
+                  .withExpires(expires)
+                  .withDbGapPermissions(Set.of(permissions))));
+    }
+
+    private DbGapPermission permission(String phsId, String consentGroup) {
+      return new DbGapPermission.Builder()
+          .phsId(phsId)
+          .consentGroup(consentGroup)
+          .role("pi")
+          .build();
+    }
+
+    private DbGapStudyUser studyUser(String userId, Timestamp expires, String... consentGroups) {
+      return new DbGapStudyUser.Builder()
+          .userId(userId)
+          .consentGroups(List.of(consentGroups))
+          .expires(expires)
+          .build();
+    }
+  }
+
   @Test
   void testInsertVisaWithInvalidForeignKey() {
     var invalidKeyVisa = TestUtils.createRandomVisa().withPassportId(-1);
@@ -198,15 +413,26 @@ class GA4GHVisaDAOTest extends BaseTest {
     var savedPassport =
         passportDAO.insertPassport(
             TestUtils.createRandomPassport().withLinkedAccountId(savedLinkedAccount.getId()));
-    var savedVisa =
+    var savedVisas =
+        List.of(
+            visaDAO.insertVisa(TestUtils.createRandomVisa().withPassportId(savedPassport.getId())),
+            visaDAO.insertVisa(TestUtils.createRandomVisa().withPassportId(savedPassport.getId())));
+    var otherVisa =
         visaDAO.insertVisa(TestUtils.createRandomVisa().withPassportId(savedPassport.getId()));
 
     Timestamp expectedLastValidated = new Timestamp(2363245);
-    visaDAO.updateLastValidated(savedVisa.getId().get(), expectedLastValidated);
+    visaDAO.updateLastValidated(
+        savedVisas.stream().map(visa -> visa.getId().get()).toList(), expectedLastValidated);
 
     var visas = visaDAO.listVisas(savedLinkedAccount.getUserId(), savedLinkedAccount.getProvider());
-    assertEquals(1, visas.size());
-    assertEquals(expectedLastValidated, visas.get(0).getLastValidated().get());
+    assertEquals(3, visas.size());
+    visas.forEach(
+        visa ->
+            assertEquals(
+                visa.getId().equals(otherVisa.getId())
+                    ? otherVisa.getLastValidated()
+                    : Optional.of(expectedLastValidated),
+                visa.getLastValidated()));
   }
 
   @Nested
@@ -11,11 +11,15 @@ import bio.terra.externalcreds.TestUtils;
 import bio.terra.externalcreds.config.ExternalCredsConfig;
 import bio.terra.externalcreds.config.ProviderProperties;
 import bio.terra.externalcreds.generated.model.Provider;
+import bio.terra.externalcreds.models.CronShard;
 import bio.terra.externalcreds.models.GA4GHPassport;
 import bio.terra.externalcreds.models.LinkedAccount;
+import bio.terra.externalcreds.models.LinkedAccountSummary;
+import bio.terra.externalcreds.models.LinkedAccountWithAccessToken;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -26,12 +30,14 @@ import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 
 class LinkedAccountDAOTest extends BaseTest {
 
   @Autowired private LinkedAccountDAO linkedAccountDAO;
   @Autowired private GA4GHPassportDAO passportDAO;
   @Autowired private GA4GHVisaDAO visaDAO;
+  @Autowired private NamedParameterJdbcTemplate jdbcTemplate;
   @MockBean private ExternalCredsConfig externalCredsConfig;
 
   @BeforeEach
@@ -179,7 +185,8 @@ class LinkedAccountDAOTest extends BaseTest {
       // Assert that only the expiring linked account is returned
       assertEquals(
           List.of(savedExpiredLinkedAccount),
-          linkedAccountDAO.getLinkedAccountsWithExpiringPassportsOrVisas(testExpirationCutoff));
+          linkedAccountDAO.getLinkedAccountsWithExpiringPassportsOrVisas(
+              testExpirationCutoff, TestUtils.ALL_LINKED_ACCOUNTS_SHARD, 0, 100));
     }
 
     @Test
@@ -193,7 +200,8 @@ class LinkedAccountDAOTest extends BaseTest {
       // Assert that the linked account is returned
       assertEquals(
           List.of(savedLinkedAccount),
-          linkedAccountDAO.getLinkedAccountsWithExpiringPassportsOrVisas(testExpirationCutoff));
+          linkedAccountDAO.getLinkedAccountsWithExpiringPassportsOrVisas(
+              testExpirationCutoff, TestUtils.ALL_LINKED_ACCOUNTS_SHARD, 0, 100));
     }
 
     @Test
@@ -211,7 +219,173 @@ class LinkedAccountDAOTest extends BaseTest {
       // Assert that the linked account is returned
       assertEquals(
           List.of(savedLinkedAccount),
-          linkedAccountDAO.getLinkedAccountsWithExpiringPassportsOrVisas(testExpirationCutoff));
+          linkedAccountDAO.getLinkedAccountsWithExpiringPassportsOrVisas(
+              testExpirationCutoff, TestUtils.ALL_LINKED_ACCOUNTS_SHARD, 0, 100));
+    }
+
+    @Test
+    void testKeysetPagination() {
+      var savedLinkedAccounts = new ArrayList<LinkedAccount>();
+      for (var i = 0; i < 3; i++) {
+        var savedLinkedAccount =
+            linkedAccountDAO.upsertLinkedAccount(TestUtils.createRandomPassportLinkedAccount());
+        passportDAO.insertPassport(
+            TestUtils.createRandomPassport().withLinkedAccountId(savedLinkedAccount.getId()));
+        savedLinkedAccounts.add(savedLinkedAccount);
+      }
+
+      var firstPage =
+          linkedAccountDAO.getLinkedAccountsWithExpiringPassportsOrVisas(
+              testExpirationCutoff, TestUtils.ALL_LINKED_ACCOUNTS_SHARD, 0, 2);
+      assertEquals(savedLinkedAccounts.subList(0, 2), firstPage);
+
+      var secondPage =
+          linkedAccountDAO.getLinkedAccountsWithExpiringPassportsOrVisas(
+              testExpirationCutoff,
+              TestUtils.ALL_LINKED_ACCOUNTS_SHARD,
+              firstPage.get(1).getId().orElseThrow(),
+              2);
+      assertEquals(savedLinkedAccounts.subList(2, 3), secondPage);
+    }
+
+    @Test
+    void testShardsSplitLinkedAccounts() {
+      var savedLinkedAccountIds = new ArrayList<Integer>();
+      for (var i = 0; i < 4; i++) {
+        var savedLinkedAccount =
+            linkedAccountDAO.upsertLinkedAccount(TestUtils.createRandomPassportLinkedAccount());
+        passportDAO.insertPassport(
+            TestUtils.createRandomPassport().withLinkedAccountId(savedLinkedAccount.getId()));
+        savedLinkedAccountIds.add(savedLinkedAccount.getId().orElseThrow());
+      }
+
+      // each linked account is returned for exactly one of the shards
+      var shardedLinkedAccountIds = new ArrayList<Integer>();
+      for (var shardIndex = 0; shardIndex < 2; shardIndex++) {
+        var shard = new CronShard.Builder().index(shardIndex).count(2).build();
+        for (var linkedAccount :
+            linkedAccountDAO.getLinkedAccountsWithExpiringPassportsOrVisas(
+                testExpirationCutoff, shard, 0, 100)) {
+          var linkedAccountId = linkedAccount.getId().orElseThrow();
+          assertEquals(shardIndex, linkedAccountId % 2);
+          shardedLinkedAccountIds.add(linkedAccountId);
+        }
+      }
+      assertEquals(Set.copyOf(savedLinkedAccountIds), Set.copyOf(shardedLinkedAccountIds));
+      assertEquals(savedLinkedAccountIds.size(), shardedLinkedAccountIds.size());
+    }
+  }
+
+  @Nested
+  class GetLinkedAccountsWithRecentlyUsedExpiringAccessTokens {
+    @Autowired private AccessTokenCacheDAO accessTokenCacheDAO;
+
+    private final Timestamp testExpirationCutoff =
+        Timestamp.from(Instant.now().plus(Duration.ofMinutes(15)));
+    private final Timestamp testUsedSince =
+        Timestamp.from(Instant.now().minus(Duration.ofHours(1)));
+
+    @Test
+    void testGetsOnlyRecentlyUsedExpiringAccessTokens() {
+      var expiringLinkedAccount = saveLinkedAccountWithAccessToken(Duration.ofMinutes(10));
+      saveLinkedAccountWithAccessToken(Duration.ofHours(1));
+      var unusedLinkedAccount = saveLinkedAccountWithAccessToken(Duration.ofMinutes(10));
+      accessTokenCacheDAO.updateLastUsed(
+          unusedLinkedAccount.getId().orElseThrow(),
+          Timestamp.from(Instant.now().minus(Duration.ofHours(2))));
+
+      assertEquals(
+          List.of(expiringLinkedAccount),
+          linkedAccountDAO.getLinkedAccountsWithRecentlyUsedExpiringAccessTokens(
+              testExpirationCutoff, testUsedSince, TestUtils.ALL_LINKED_ACCOUNTS_SHARD));
+    }
+
+    @Test
+    void testDoesNotGetExpiredLinkedAccounts() {
+      var expiredLinkedAccount =
+          linkedAccountDAO.upsertLinkedAccount(
+              TestUtils.createRandomLinkedAccount()
+                  .withExpires(Timestamp.from(Instant.now().minus(Duration.ofMinutes(1)))));
+      accessTokenCacheDAO.upsertAccessTokenCacheEntry(
+          TestUtils.createRandomAccessTokenCacheEntry()
+              .withLinkedAccountId(expiredLinkedAccount.getId().orElseThrow()));
+
+      assertEquals(
+          List.of(),
+          linkedAccountDAO.getLinkedAccountsWithRecentlyUsedExpiringAccessTokens(
+              testExpirationCutoff, testUsedSince, TestUtils.ALL_LINKED_ACCOUNTS_SHARD));
+    }
+
+    @Test
+    void testGetsOnlyLinkedAccountsInShard() {
+      var linkedAccountIds =
+          List.of(
+              saveLinkedAccountWithAccessToken(Duration.ofMinutes(10)).getId().orElseThrow(),
+              saveLinkedAccountWithAccessToken(Duration.ofMinutes(10)).getId().orElseThrow());
+
+      for (var shardIndex = 0; shardIndex < 2; shardIndex++) {
+        var shard = new CronShard.Builder().index(shardIndex).count(2).build();
+        var expectedIds = linkedAccountIds.stream().filter(id -> id % 2 == shard.getIndex());
+        assertEquals(
+            expectedIds.toList(),
+            linkedAccountDAO
+                .getLinkedAccountsWithRecentlyUsedExpiringAccessTokens(
+                    testExpirationCutoff, testUsedSince, shard)
+                .stream()
+                .map(linkedAccount -> linkedAccount.getId().orElseThrow())
+                .toList());
+      }
+    }
+
+    private LinkedAccount saveLinkedAccountWithAccessToken(Duration timeUntilExpiration) {
+      var savedLinkedAccount =
+          linkedAccountDAO.upsertLinkedAccount(TestUtils.createRandomLinkedAccount());
+      accessTokenCacheDAO.upsertAccessTokenCacheEntry(
+          TestUtils.createRandomAccessTokenCacheEntry()
+              .withLinkedAccountId(savedLinkedAccount.getId().orElseThrow())
+              .withExpiresAt(Instant.now().plus(timeUntilExpiration)));
+      return savedLinkedAccount;
+    }
+  }
+
+  @Nested
+  class GetLinkedAccountsWithAccessTokens {
+    @Autowired private AccessTokenCacheDAO accessTokenCacheDAO;
+
+    @Test
+    void testGetsLinkedAccountsWithAndWithoutAccessTokens() {
+      var linkedAccountWithToken =
+          linkedAccountDAO.upsertLinkedAccount(
+              TestUtils.createRandomLinkedAccount(Provider.GITHUB));
+      var accessTokenCacheEntry =
+          accessTokenCacheDAO.upsertAccessTokenCacheEntry(
+              TestUtils.createRandomAccessTokenCacheEntry()
+                  .withLinkedAccountId(linkedAccountWithToken.getId().orElseThrow()));
+      var otherProviderLinkedAccount =
+          linkedAccountDAO.upsertLinkedAccount(
+              TestUtils.createRandomLinkedAccount(Provider.RAS)
+                  .withUserId(linkedAccountWithToken.getUserId()));
+      var linkedAccountWithoutToken =
+          linkedAccountDAO.upsertLinkedAccount(TestUtils.createRandomLinkedAccount());
+      linkedAccountDAO.upsertLinkedAccount(TestUtils.createRandomLinkedAccount());
+
+      var expected =
+          Set.of(
+              new LinkedAccountWithAccessToken.Builder()
+                  .linkedAccount(linkedAccountWithToken)
+                  .accessTokenCacheEntry(accessTokenCacheEntry)
+                  .build(),
+              new LinkedAccountWithAccessToken.Builder()
+                  .linkedAccount(otherProviderLinkedAccount)
+                  .build(),
+              new LinkedAccountWithAccessToken.Builder()
+                  .linkedAccount(linkedAccountWithoutToken)
+                  .build());
+      var actual =
+          linkedAccountDAO.getLinkedAccountsWithAccessTokens(
+              List.of(linkedAccountWithToken.getUserId(), linkedAccountWithoutToken.getUserId()));
+      assertEquals(expected, Set.copyOf(actual));
+      assertEquals(expected.size(), actual.size());
     }
   }
 
@@ -247,7 +421,9 @@ class LinkedAccountDAOTest extends BaseTest {
       // Assert that only the expired linked account is returned
       assertEquals(
           List.of(savedExpiredLinkedAccount.getId()),
-          linkedAccountDAO.getExpiredLinkedAccountsWithPassports().stream()
+          linkedAccountDAO
+              .getExpiredLinkedAccountsWithPassports(TestUtils.ALL_LINKED_ACCOUNTS_SHARD, 0, 100)
+              .stream()
               .map(LinkedAccount::getId)
               .toList());
     }
@@ -349,5 +525,58 @@ class LinkedAccountDAOTest extends BaseTest {
           List.of(savedLinkedAccount, savedLinkedAccount2),
           linkedAccountDAO.getActiveLinkedAccounts(Provider.ERA_COMMONS));
     }
+
+    @Test
+    void testPagesActiveLinkedAccountsByUserId() {
+      // a random prefix keeps users saved by other tests out of the pages
+      var userIdPrefix = UUID.randomUUID().toString();
+      var savedLinkedAccounts = new ArrayList<LinkedAccount>();
+      for (var i = 0; i < 3; i++) {
+        savedLinkedAccounts.add(
+            linkedAccountDAO.upsertLinkedAccount(
+                TestUtils.createRandomLinkedAccount(Provider.ERA_COMMONS)
+                    .withUserId(userIdPrefix + i)));
+      }
+      linkedAccountDAO.upsertLinkedAccount(
+          TestUtils.createRandomLinkedAccount(Provider.ERA_COMMONS)
+              .withUserId(userIdPrefix + "0a")
+              .withExpires(Timestamp.from(Instant.now().minus(Duration.ofMinutes(1)))));
+      linkedAccountDAO.upsertLinkedAccount(
+          TestUtils.createRandomLinkedAccount(Provider.ERA_COMMONS)
+              .withUserId(userIdPrefix + "0b")
+              .withIsAuthenticated(false));
+      linkedAccountDAO.upsertLinkedAccount(
+          TestUtils.createRandomLinkedAccount(Provider.GITHUB).withUserId(userIdPrefix + "0c"));
+      var expected =
+          savedLinkedAccounts.stream()
+              .map(
+                  linkedAccount ->
+                      new LinkedAccountSummary.Builder()
+                          .userId(linkedAccount.getUserId())
+                          .externalUserId(linkedAccount.getExternalUserId())
+                          .expires(linkedAccount.getExpires())
+                          .build())
+              .toList();
+
+      var firstPage = new ArrayList<LinkedAccountSummary>();
+      linkedAccountDAO.forEachActiveLinkedAccount(
+          Provider.ERA_COMMONS, userIdPrefix, 2, firstPage::add);
+      assertEquals(expected.subList(0, 2), firstPage);
+
+      var secondPage = new ArrayList<LinkedAccountSummary>();
+      linkedAccountDAO.forEachActiveLinkedAccount(
+          Provider.ERA_COMMONS, firstPage.get(1).getUserId(), 2, secondPage::add);
+      assertEquals(expected.subList(2, 3), secondPage);
+    }
+
+    @Test
+    void testForEachActiveLinkedAccountLimitsIdleTransaction() {
+      linkedAccountDAO.forEachActiveLinkedAccount(Provider.ERA_COMMONS, "", 1, linkedAccount -> {});
+
+      assertEquals(
+          "1min",
+          jdbcTemplate.queryForObject(
+              "SHOW idle_in_transaction_session_timeout", Map.of(), String.class));
+    }
   }
 }
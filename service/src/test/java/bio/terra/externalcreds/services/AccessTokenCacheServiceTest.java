@@ -2,7 +2,10 @@ package bio.terra.externalcreds.services;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -12,24 +15,37 @@ import bio.terra.externalcreds.auditLogging.AuditLogEvent;
 import bio.terra.externalcreds.auditLogging.AuditLogEventType;
 import bio.terra.externalcreds.auditLogging.AuditLogger;
 import bio.terra.externalcreds.dataAccess.AccessTokenCacheDAO;
+import bio.terra.externalcreds.dataAccess.DistributedLockDAO;
 import bio.terra.externalcreds.generated.model.Provider;
 import bio.terra.externalcreds.models.AccessTokenCacheEntry;
+import bio.terra.externalcreds.models.DistributedLock;
+import bio.terra.externalcreds.models.LinkedAccount;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
 import org.springframework.security.oauth2.core.OAuth2RefreshToken;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
 
 class AccessTokenCacheServiceTest extends BaseTest {
 
   @Autowired private AccessTokenCacheService accessTokenCacheService;
+  @Autowired private DistributedLockDAO distributedLockDAO;
 
   @MockBean private LinkedAccountService linkedAccountService;
   @MockBean private ProviderTokenClientCache providerTokenClientCacheMock;
@@ -178,6 +194,216 @@ class AccessTokenCacheServiceTest extends BaseTest {
     verify(auditLoggerMock, never()).logEvent(any());
   }
 
+  @Test
+  void testGetAccessTokenFromLocalCache() {
+    var provider = Provider.FENCE;
+    var linkedAccount = TestUtils.createRandomLinkedAccount(provider).withId(random.nextInt());
+    var accessToken = UUID.randomUUID().toString();
+    var tokenExpiresAt = Instant.now().plus(1, ChronoUnit.HOURS);
+    var scopes = Set.of("scope1", "scope2");
+
+    when(accessTokenCacheDAO.getAccessTokenCacheEntry(linkedAccount))
+        .thenReturn(
+            Optional.of(
+                new AccessTokenCacheEntry.Builder()
+                    .linkedAccountId(linkedAccount.getId().get())
+                    .accessToken(accessToken)
+                    .expiresAt(tokenExpiresAt)
+                    .build()));
+
+    var auditLogEventBuilder = new AuditLogEvent.Builder().provider(provider);
+    var firstResponse =
+        accessTokenCacheService.getLinkedAccountAccessToken(
+            linkedAccount, scopes, auditLogEventBuilder);
+    var secondResponse =
+        accessTokenCacheService.getLinkedAccountAccessToken(
+            linkedAccount, scopes, auditLogEventBuilder);
+
+    assertEquals(accessToken, firstResponse);
+    assertEquals(accessToken, secondResponse);
+    verify(accessTokenCacheDAO, times(1)).getAccessTokenCacheEntry(linkedAccount);
+    verify(oAuth2ServiceMock, never()).authorizeWithRefreshToken(any(), any(), any());
+  }
+
+  @Test
+  void testConcurrentRequestsShareOneRefreshTokenExchange() throws Exception {
+    var provider = Provider.GITHUB;
+    var linkedAccount = TestUtils.createRandomLinkedAccount(provider).withId(random.nextInt());
+    var clientRegistration = TestUtils.createClientRegistration(linkedAccount.getProvider());
+    var accessToken = UUID.randomUUID().toString();
+    var scopes = Set.of("scope1", "scope2");
+
+    when(accessTokenCacheDAO.getAccessTokenCacheEntry(linkedAccount)).thenReturn(Optional.empty());
+    when(accessTokenCacheDAO.upsertAccessTokenCacheEntry(any()))
+        .thenAnswer(invocation -> invocation.getArgument(0, AccessTokenCacheEntry.class));
+    when(providerTokenClientCacheMock.getProviderClient(linkedAccount.getProvider()))
+        .thenReturn(clientRegistration);
+    var exchangeStarted = new CountDownLatch(1);
+    var releaseExchange = new CountDownLatch(1);
+    when(oAuth2ServiceMock.authorizeWithRefreshToken(any(), any(), any()))
+        .thenAnswer(
+            invocation -> {
+              exchangeStarted.countDown();
+              releaseExchange.await(10, TimeUnit.SECONDS);
+              return OAuth2AccessTokenResponse.withToken(accessToken)
+                  .tokenType(OAuth2AccessToken.TokenType.BEARER)
+                  .expiresIn(3600)
+                  .build();
+            });
+
+    var executor = Executors.newFixedThreadPool(5);
+    try {
+      var responses = new ArrayList<Future<String>>();
+      for (var i = 0; i < 5; i++) {
+        responses.add(
+            executor.submit(
+                () ->
+                    accessTokenCacheService.getLinkedAccountAccessToken(
+                        linkedAccount, scopes, new AuditLogEvent.Builder().provider(provider))));
+      }
+      assertTrue(exchangeStarted.await(10, TimeUnit.SECONDS));
+      releaseExchange.countDown();
+      for (var response : responses) {
+        assertEquals(accessToken, response.get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    verify(oAuth2ServiceMock, times(1)).authorizeWithRefreshToken(any(), any(), any());
+  }
+
+  @Test
+  void testWaitsForRefreshTokenExchangeInAnotherPod() {
+    var provider = Provider.GITHUB;
+    var linkedAccount = TestUtils.createRandomLinkedAccount(provider).withId(random.nextInt());
+    var accessToken = UUID.randomUUID().toString();
+
+    // another pod holds the lock and stores the new token while this pod waits
+    distributedLockDAO.insertDistributedLock(
+        new DistributedLock.Builder()
+            .lockName("getProviderAccessToken-" + provider)
+            .userId(linkedAccount.getUserId())
+            .expiresAt(Instant.now().plus(30, ChronoUnit.SECONDS))
+            .build());
+    when(accessTokenCacheDAO.getAccessTokenCacheEntry(linkedAccount))
+        .thenReturn(Optional.empty())
+        .thenReturn(
+            Optional.of(
+                new AccessTokenCacheEntry.Builder()
+                    .linkedAccountId(linkedAccount.getId().get())
+                    .accessToken(accessToken)
+                    .expiresAt(Instant.now().plus(1, ChronoUnit.HOURS))
+                    .build()));
+
+    var response =
+        accessTokenCacheService.getLinkedAccountAccessToken(
+            linkedAccount, Set.of(), new AuditLogEvent.Builder().provider(provider));
+
+    assertEquals(accessToken, response);
+    verify(oAuth2ServiceMock, never()).authorizeWithRefreshToken(any(), any(), any());
+  }
+
+  @Test
+  void testDoesNotReleaseLockTakenOverDuringExchange() {
+    var provider = Provider.GITHUB;
+    var linkedAccount = TestUtils.createRandomLinkedAccount(provider).withId(random.nextInt());
+    var lockName = "getProviderAccessToken-" + provider;
+    var otherPodLock =
+        new DistributedLock.Builder()
+            .lockName(lockName)
+            .userId(linkedAccount.getUserId())
+            .expiresAt(Instant.now().plus(1, ChronoUnit.MINUTES).truncatedTo(ChronoUnit.MILLIS))
+            .build();
+
+    when(accessTokenCacheDAO.getAccessTokenCacheEntry(linkedAccount)).thenReturn(Optional.empty());
+    when(accessTokenCacheDAO.upsertAccessTokenCacheEntry(any()))
+        .thenAnswer(invocation -> invocation.getArgument(0, AccessTokenCacheEntry.class));
+    when(providerTokenClientCacheMock.getProviderClient(provider))
+        .thenReturn(TestUtils.createClientRegistration(provider));
+    when(oAuth2ServiceMock.authorizeWithRefreshToken(any(), any(), any()))
+        .thenAnswer(
+            invocation -> {
+              // the exchange outlasts this pod's lock and another pod takes it over
+              distributedLockDAO.deleteDistributedLock(lockName, linkedAccount.getUserId());
+              distributedLockDAO.insertDistributedLock(otherPodLock);
+              return OAuth2AccessTokenResponse.withToken(UUID.randomUUID().toString())
+                  .tokenType(OAuth2AccessToken.TokenType.BEARER)
+                  .expiresIn(3600)
+                  .build();
+            });
+
+    accessTokenCacheService.getLinkedAccountAccessToken(
+        linkedAccount, Set.of(), new AuditLogEvent.Builder().provider(provider));
+
+    assertEquals(
+        Optional.of(otherPodLock),
+        distributedLockDAO.getDistributedLock(lockName, linkedAccount.getUserId()));
+  }
+
+  @Test
+  void testRenewExpiringAccessTokens() {
+    var provider = Provider.GITHUB;
+    var linkedAccount = TestUtils.createRandomLinkedAccount(provider).withId(random.nextInt());
+    var failingLinkedAccount =
+        TestUtils.createRandomLinkedAccount(provider).withId(random.nextInt());
+    var clientRegistration = TestUtils.createClientRegistration(linkedAccount.getProvider());
+    var renewedAccessToken = UUID.randomUUID().toString();
+
+    when(linkedAccountService.getLinkedAccountsWithRecentlyUsedExpiringAccessTokens(
+            any(), any(), eq(TestUtils.ALL_LINKED_ACCOUNTS_SHARD)))
+        .thenReturn(List.of(linkedAccount, failingLinkedAccount));
+    when(linkedAccountService.getLinkedAccount(linkedAccount.getId().get()))
+        .thenReturn(Optional.of(linkedAccount));
+    when(linkedAccountService.getLinkedAccount(failingLinkedAccount.getId().get()))
+        .thenReturn(Optional.of(failingLinkedAccount));
+    // the cached token is still usable but expires within the renewal window
+    when(accessTokenCacheDAO.getAccessTokenCacheEntry(any()))
+        .thenAnswer(
+            invocation ->
+                Optional.of(
+                    new AccessTokenCacheEntry.Builder()
+                        .linkedAccountId(
+                            invocation.getArgument(0, LinkedAccount.class).getId().get())
+                        .accessToken(UUID.randomUUID().toString())
+                        .expiresAt(Instant.now().plus(10, ChronoUnit.MINUTES))
+                        .build()));
+    when(accessTokenCacheDAO.upsertAccessTokenCacheEntry(any()))
+        .thenAnswer(invocation -> invocation.getArgument(0, AccessTokenCacheEntry.class));
+    when(providerTokenClientCacheMock.getProviderClient(provider)).thenReturn(clientRegistration);
+    when(oAuth2ServiceMock.authorizeWithRefreshToken(
+            eq(clientRegistration),
+            eq(new OAuth2RefreshToken(linkedAccount.getRefreshToken(), null)),
+            any()))
+        .thenReturn(
+            OAuth2AccessTokenResponse.withToken(renewedAccessToken)
+                .tokenType(OAuth2AccessToken.TokenType.BEARER)
+                .expiresIn(3600)
+                .build());
+    when(oAuth2ServiceMock.authorizeWithRefreshToken(
+            eq(clientRegistration),
+            eq(new OAuth2RefreshToken(failingLinkedAccount.getRefreshToken(), null)),
+            any()))
+        .thenThrow(
+            new OAuth2AuthorizationException(new OAuth2Error(OAuth2ErrorCodes.INVALID_GRANT)));
+
+    var renewalSummary =
+        accessTokenCacheService.renewExpiringAccessTokens(TestUtils.ALL_LINKED_ACCOUNTS_SHARD);
+
+    assertEquals(1, renewalSummary.getRenewedCount());
+    assertEquals(1, renewalSummary.getFailedCount());
+    verify(accessTokenCacheDAO)
+        .upsertAccessTokenCacheEntry(
+            argThat(entry -> entry.getAccessToken().equals(renewedAccessToken)));
+    verify(auditLoggerMock)
+        .logEvent(
+            new AuditLogEvent.Builder()
+                .auditLogEventType(AuditLogEventType.ProviderAccessTokenRenewed)
+                .provider(provider)
+                .userId(linkedAccount.getUserId())
+                .externalUserId(linkedAccount.getExternalUserId())
+                .build());
+  }
+
   @Test
   void testGetFenceProviderAccessTokenCacheExpired() {
     var provider = Provider.FENCE;
@@ -14,6 +14,7 @@ import bio.terra.externalcreds.JwtSigningTestUtils;
 import bio.terra.externalcreds.TestUtils;
 import bio.terra.externalcreds.auditLogging.AuditLogEvent;
 import bio.terra.externalcreds.config.ExternalCredsConfig;
+import bio.terra.externalcreds.generated.model.Provider;
 import bio.terra.externalcreds.models.GA4GHPassport;
 import bio.terra.externalcreds.models.GA4GHVisa;
 import bio.terra.externalcreds.models.LinkedAccount;
@@ -25,6 +26,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.SecureRandom;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -289,6 +291,7 @@ class AuthorizationCodeExchangeTest extends BaseTest {
 
     when(externalCredsConfigMock.getProviderProperties(linkedAccount.getProvider()))
         .thenReturn(providerInfo);
+    when(externalCredsConfigMock.getProviders()).thenReturn(new EnumMap<>(Provider.class));
     when(externalCredsConfigMock.getAllowedJwtIssuers())
         .thenReturn(List.of(new URI(jwtSigningTestUtils.getIssuer())));
     when(externalCredsConfigMock.getAllowedJwksUris())
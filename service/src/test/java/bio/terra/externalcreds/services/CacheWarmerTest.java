@@ -0,0 +1,115 @@
+package bio.terra.externalcreds.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import bio.terra.externalcreds.TestUtils;
+import bio.terra.externalcreds.config.ExternalCredsConfig;
+import bio.terra.externalcreds.config.ProviderProperties;
+import bio.terra.externalcreds.config.WarmupConfiguration;
+import bio.terra.externalcreds.generated.model.Provider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.URI;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+
+class CacheWarmerTest {
+
+  private ExternalCredsConfig externalCredsConfig;
+  private ProviderOAuthClientCache providerOAuthClientCache;
+  private ProviderTokenClientCache providerTokenClientCache;
+  private JwtDecoderCache jwtDecoderCache;
+  private SimpleMeterRegistry meterRegistry;
+  private CacheWarmer cacheWarmer;
+
+  @BeforeEach
+  void setUp() {
+    externalCredsConfig = mock(ExternalCredsConfig.class);
+    providerOAuthClientCache = mock(ProviderOAuthClientCache.class);
+    providerTokenClientCache = mock(ProviderTokenClientCache.class);
+    jwtDecoderCache = mock(JwtDecoderCache.class);
+    meterRegistry = new SimpleMeterRegistry();
+    cacheWarmer =
+        new CacheWarmer(
+            externalCredsConfig,
+            providerOAuthClientCache,
+            providerTokenClientCache,
+            jwtDecoderCache,
+            meterRegistry);
+
+    var providers = new EnumMap<Provider, ProviderProperties>(Provider.class);
+    providers.put(Provider.RAS, TestUtils.createRandomProvider());
+    providers.put(Provider.ERA_COMMONS, TestUtils.createRandomProvider());
+    when(externalCredsConfig.getProviders()).thenReturn(providers);
+    when(externalCredsConfig.getAllowedJwtIssuers())
+        .thenReturn(List.of(URI.create("https://issuer.test")));
+    when(externalCredsConfig.getAllowedJwksUris())
+        .thenReturn(List.of(URI.create("https://issuer.test/jwks")));
+    when(externalCredsConfig.getWarmupConfiguration())
+        .thenReturn(
+            WarmupConfiguration.create().setEnabled(true).setTimeout(Duration.ofSeconds(5)));
+  }
+
+  @Test
+  void testLoadsEveryProviderAndDecoder() {
+    cacheWarmer.warmUp();
+
+    verify(providerOAuthClientCache).getProviderClient(Provider.RAS);
+    verify(providerTokenClientCache).getProviderClient(Provider.RAS);
+    verify(providerOAuthClientCache, never()).getProviderClient(Provider.ERA_COMMONS);
+    verify(jwtDecoderCache).fromIssuer("https://issuer.test");
+    verify(jwtDecoderCache).fromJku(URI.create("https://issuer.test/jwks"));
+    assertEquals(1, getWarmupCount("completed"));
+  }
+
+  @Test
+  void testFailedLoadDoesNotStopWarmup() {
+    when(providerOAuthClientCache.getProviderClient(Provider.RAS))
+        .thenThrow(new IllegalStateException("provider down"));
+
+    cacheWarmer.warmUp();
+
+    verify(providerTokenClientCache).getProviderClient(Provider.RAS);
+    verify(jwtDecoderCache).fromIssuer("https://issuer.test");
+    verify(jwtDecoderCache).fromJku(URI.create("https://issuer.test/jwks"));
+    assertEquals(1, getWarmupCount("failed"));
+  }
+
+  @Test
+  void testWarmupGivesUpAfterTimeout() {
+    when(externalCredsConfig.getWarmupConfiguration())
+        .thenReturn(
+            WarmupConfiguration.create().setEnabled(true).setTimeout(Duration.ofMillis(100)));
+    var release = new CountDownLatch(1);
+    when(providerOAuthClientCache.getProviderClient(Provider.RAS))
+        .thenAnswer(
+            invocation -> {
+              release.await();
+              return mock(ClientRegistration.class);
+            });
+
+    try {
+      cacheWarmer.warmUp();
+    } finally {
+      release.countDown();
+    }
+
+    assertEquals(1, getWarmupCount("timeout"));
+  }
+
+  private long getWarmupCount(String outcome) {
+    return meterRegistry
+        .get("externalcreds.cache_warmup.duration")
+        .tag("outcome", outcome)
+        .timer()
+        .count();
+  }
+}
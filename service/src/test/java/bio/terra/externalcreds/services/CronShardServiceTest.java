@@ -0,0 +1,146 @@
+package bio.terra.externalcreds.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.when;
+
+import bio.terra.externalcreds.BaseTest;
+import bio.terra.externalcreds.config.CronShardingConfiguration;
+import bio.terra.externalcreds.config.ExternalCredsConfig;
+import bio.terra.externalcreds.dataAccess.DistributedLockDAO;
+import bio.terra.externalcreds.models.CronShard;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+class CronShardServiceTest extends BaseTest {
+
+  @Autowired private CronShardService cronShardService;
+  @SpyBean private DistributedLockDAO distributedLockDAO;
+  @MockBean private ExternalCredsConfig externalCredsConfig;
+
+  @Test
+  void testEachShardClaimedOncePerLease() {
+    mockShardingConfig(4, Duration.ofMinutes(4));
+    var firstReplicaShards = new ArrayList<CronShard>();
+    var secondReplicaShards = new ArrayList<CronShard>();
+
+    assertEquals(4, cronShardService.runForClaimedShards("testJob", firstReplicaShards::add));
+    assertEquals(0, cronShardService.runForClaimedShards("testJob", secondReplicaShards::add));
+
+    assertEquals(
+        List.of(0, 1, 2, 3),
+        firstReplicaShards.stream().map(CronShard::getIndex).sorted().toList());
+    assertEquals(List.of(), secondReplicaShards);
+  }
+
+  @Test
+  void testShardsClaimedSeparatelyPerJob() {
+    mockShardingConfig(4, Duration.ofMinutes(4));
+
+    assertEquals(4, cronShardService.runForClaimedShards("testJob", shard -> {}));
+    assertEquals(4, cronShardService.runForClaimedShards("otherTestJob", shard -> {}));
+  }
+
+  @Test
+  void testExpiredShardLeaseReclaimed() throws InterruptedException {
+    mockShardingConfig(4, Duration.ofMillis(1));
+
+    assertEquals(4, cronShardService.runForClaimedShards("testJob", shard -> {}));
+    TimeUnit.MILLISECONDS.sleep(10);
+    assertEquals(4, cronShardService.runForClaimedShards("testJob", shard -> {}));
+  }
+
+  @Test
+  // leases are renewed on another thread, which only sees them once they are committed
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  void testLeaseRenewedWhileShardRuns() {
+    mockShardingConfig(1, Duration.ofMillis(200));
+    var jobName = "testJob-" + UUID.randomUUID();
+    var otherReplicaClaims = new AtomicInteger(-1);
+
+    assertEquals(
+        1,
+        cronShardService.runForClaimedShards(
+            jobName,
+            shard -> {
+              sleep(Duration.ofMillis(600));
+              // the lease would have expired by now without renewal
+              otherReplicaClaims.set(cronShardService.runForClaimedShards(jobName, s -> {}));
+            }));
+    assertEquals(0, otherReplicaClaims.get());
+
+    // the lease is released once the shard is done, its original expiry having passed
+    assertEquals(1, cronShardService.runForClaimedShards(jobName, shard -> {}));
+    distributedLockDAO.deleteDistributedLock("cronShard-" + jobName, "0/1");
+  }
+
+  @Test
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  void testLeaseRenewedAfterFailedRenewal() {
+    mockShardingConfig(1, Duration.ofMillis(200));
+    var jobName = "testJob-" + UUID.randomUUID();
+    var otherReplicaClaims = new AtomicInteger(-1);
+    doThrow(new QueryTimeoutException("test exception"))
+        .doCallRealMethod()
+        .when(distributedLockDAO)
+        .renewDistributedLock(any(), any());
+
+    assertEquals(
+        1,
+        cronShardService.runForClaimedShards(
+            jobName,
+            shard -> {
+              sleep(Duration.ofMillis(600));
+              otherReplicaClaims.set(cronShardService.runForClaimedShards(jobName, s -> {}));
+            }));
+    assertEquals(0, otherReplicaClaims.get());
+    distributedLockDAO.deleteDistributedLock("cronShard-" + jobName, "0/1");
+  }
+
+  @Test
+  void testFailedShardDoesNotStopOtherShards() {
+    mockShardingConfig(4, Duration.ofMinutes(4));
+    var completedShards = new ArrayList<CronShard>();
+
+    assertEquals(
+        4,
+        cronShardService.runForClaimedShards(
+            "testJob",
+            shard -> {
+              if (shard.getIndex() == 0) {
+                throw new RuntimeException("test exception");
+              }
+              completedShards.add(shard);
+            }));
+    assertEquals(3, completedShards.size());
+  }
+
+  private static void sleep(Duration duration) {
+    try {
+      TimeUnit.MILLISECONDS.sleep(duration.toMillis());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void mockShardingConfig(int shardCount, Duration shardLeaseDuration) {
+    when(externalCredsConfig.getCronShardingConfiguration())
+        .thenReturn(
+            CronShardingConfiguration.create()
+                .setShardCount(shardCount)
+                .setShardLeaseDuration(shardLeaseDuration));
+  }
+}
@@ -0,0 +1,242 @@
+package bio.terra.externalcreds.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jose.util.JSONObjectUtils;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.MediaType;
+import org.mockserver.verify.VerificationTimes;
+import org.springframework.security.oauth2.jwt.JwtException;
+
+class ExternalCredsJwtDecodersTest {
+  private static final String JKU_PATH = "/jku.json";
+  private static final Duration TIMEOUT = Duration.ofSeconds(5);
+  private static final List<String> ALGORITHMS = List.of("RS256", "ES256");
+
+  private ClientAndServer mockServer;
+  private URI jku;
+
+  @BeforeEach
+  void setUp() {
+    mockServer = ClientAndServer.startClientAndServer();
+    jku = URI.create("http://localhost:" + mockServer.getPort() + JKU_PATH);
+  }
+
+  @AfterEach
+  void tearDown() {
+    mockServer.stop();
+  }
+
+  @Test
+  void testKeySetFetchedOnce() throws Exception {
+    var key = generateKey();
+    serveKeySet(new JWKSet(key));
+
+    var decoder = ExternalCredsJwtDecoders.fromJku(jku, ALGORITHMS, TIMEOUT, TIMEOUT);
+    decoder.decode(createSignedJwt(key));
+    decoder.decode(createSignedJwt(key));
+
+    mockServer.verify(HttpRequest.request(JKU_PATH), VerificationTimes.once());
+  }
+
+  @Test
+  void testRotatedKeyRefreshesKeySet() throws Exception {
+    var oldKey = generateKey();
+    var newKey = generateKey();
+    serveKeySet(new JWKSet(oldKey));
+    var decoder = ExternalCredsJwtDecoders.fromJku(jku, ALGORITHMS, TIMEOUT, TIMEOUT);
+    decoder.decode(createSignedJwt(oldKey));
+
+    mockServer.reset();
+    serveKeySet(new JWKSet(List.of(oldKey.toPublicJWK(), newKey.toPublicJWK())));
+
+    var jwt = decoder.decode(createSignedJwt(newKey));
+
+    assertEquals(newKey.getKeyID(), jwt.getHeaders().get("kid"));
+  }
+
+  @Test
+  void testKeyWithNewAlgorithmAccepted() throws Exception {
+    var rsaKey = generateKey();
+    var ecKey = new ECKeyGenerator(Curve.P_256).keyID(UUID.randomUUID().toString()).generate();
+    serveKeySet(new JWKSet(rsaKey));
+    var decoder = ExternalCredsJwtDecoders.fromJku(jku, ALGORITHMS, TIMEOUT, TIMEOUT);
+    decoder.decode(createSignedJwt(rsaKey));
+
+    mockServer.reset();
+    serveKeySet(new JWKSet(List.of(rsaKey.toPublicJWK(), ecKey.toPublicJWK())));
+
+    var jwt =
+        decoder.decode(
+            createSignedJwt(
+                new JWSHeader.Builder(JWSAlgorithm.ES256).keyID(ecKey.getKeyID()).build(),
+                new ECDSASigner(ecKey),
+                null));
+
+    assertEquals(ecKey.getKeyID(), jwt.getHeaders().get("kid"));
+  }
+
+  @Test
+  void testMovedIssuerKeySetFound() throws Exception {
+    var issuer = "http://localhost:" + mockServer.getPort() + "/issuer";
+    var oldKey = generateKey();
+    var newKey = generateKey();
+    serveKeySet(new JWKSet(oldKey));
+    serveIssuerConfiguration("/issuer/.well-known/openid-configuration", issuer, jku);
+    var decoder = ExternalCredsJwtDecoders.fromIssuer(issuer, ALGORITHMS, TIMEOUT, TIMEOUT);
+    decoder.decode(createSignedJwt(oldKey, issuer));
+
+    mockServer.reset();
+    var movedJku = URI.create("http://localhost:" + mockServer.getPort() + "/moved/jku.json");
+    serveKeySet("/moved/jku.json", new JWKSet(newKey));
+    serveIssuerConfiguration("/issuer/.well-known/openid-configuration", issuer, movedJku);
+
+    var jwt = decoder.decode(createSignedJwt(newKey, issuer));
+
+    assertEquals(newKey.getKeyID(), jwt.getHeaders().get("kid"));
+  }
+
+  @Test
+  void testUnknownKeyRefreshIsRateLimited() throws Exception {
+    var key = generateKey();
+    var unknownKey = generateKey();
+    serveKeySet(new JWKSet(key));
+    var decoder = ExternalCredsJwtDecoders.fromJku(jku, ALGORITHMS, TIMEOUT, TIMEOUT);
+
+    for (var i = 0; i < 5; i++) {
+      var jwt = createSignedJwt(unknownKey);
+      assertThrows(JwtException.class, () -> decoder.decode(jwt));
+    }
+
+    mockServer.verify(HttpRequest.request(JKU_PATH), VerificationTimes.atMost(2));
+  }
+
+  @Test
+  void testHasKey() throws Exception {
+    var key = generateKey();
+    serveKeySet(new JWKSet(key));
+
+    var decoder = ExternalCredsJwtDecoders.fromJku(jku, ALGORITHMS, TIMEOUT, TIMEOUT);
+
+    assertTrue(decoder.hasKey(key.getKeyID()));
+    assertFalse(decoder.hasKey(generateKey().getKeyID()));
+  }
+
+  @Test
+  void testIssuerConfigurationAtPathInsertedLocation() throws Exception {
+    runIssuerDiscoveryTest("/.well-known/openid-configuration/issuer");
+  }
+
+  @Test
+  void testIssuerConfigurationAtOAuthLocation() throws Exception {
+    runIssuerDiscoveryTest("/.well-known/oauth-authorization-server/issuer");
+  }
+
+  @Test
+  void testIssuerConfigurationNotFound() {
+    var issuer = "http://localhost:" + mockServer.getPort() + "/issuer";
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> ExternalCredsJwtDecoders.fromIssuer(issuer, ALGORITHMS, TIMEOUT, TIMEOUT));
+
+    // the OpenID Connect location, then the two fallback locations
+    mockServer.verify(
+        HttpRequest.request("/issuer/.well-known/openid-configuration"),
+        HttpRequest.request("/.well-known/openid-configuration/issuer"),
+        HttpRequest.request("/.well-known/oauth-authorization-server/issuer"));
+  }
+
+  /** Only serves the issuer's configuration at metadataPath, the other locations are not found */
+  private void runIssuerDiscoveryTest(String metadataPath) throws Exception {
+    var issuer = "http://localhost:" + mockServer.getPort() + "/issuer";
+    var key = generateKey();
+    serveKeySet(new JWKSet(key));
+    serveIssuerConfiguration(metadataPath, issuer, jku);
+
+    var decoder = ExternalCredsJwtDecoders.fromIssuer(issuer, ALGORITHMS, TIMEOUT, TIMEOUT);
+    var jwt = decoder.decode(createSignedJwt(key, issuer));
+
+    assertEquals(issuer, jwt.getIssuer().toString());
+  }
+
+  private void serveIssuerConfiguration(String metadataPath, String issuer, URI jwksUri) {
+    mockServer
+        .when(HttpRequest.request(metadataPath).withMethod("GET"))
+        .respond(
+            HttpResponse.response(
+                    JSONObjectUtils.toJSONString(
+                        Map.of("issuer", issuer, "jwks_uri", jwksUri.toString())))
+                .withStatusCode(200)
+                .withContentType(MediaType.APPLICATION_JSON));
+  }
+
+  private void serveKeySet(JWKSet jwkSet) {
+    serveKeySet(JKU_PATH, jwkSet);
+  }
+
+  private void serveKeySet(String path, JWKSet jwkSet) {
+    mockServer
+        .when(HttpRequest.request(path).withMethod("GET"))
+        .respond(
+            HttpResponse.response(jwkSet.toString())
+                .withStatusCode(200)
+                .withContentType(MediaType.APPLICATION_JSON));
+  }
+
+  private static RSAKey generateKey() throws JOSEException {
+    return new RSAKeyGenerator(2048).keyID(UUID.randomUUID().toString()).generate();
+  }
+
+  private static String createSignedJwt(RSAKey key) throws JOSEException {
+    return createSignedJwt(key, null);
+  }
+
+  private static String createSignedJwt(RSAKey key, String issuer) throws JOSEException {
+    return createSignedJwt(
+        new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(),
+        new RSASSASigner(key),
+        issuer);
+  }
+
+  private static String createSignedJwt(JWSHeader header, JWSSigner signer, String issuer)
+      throws JOSEException {
+    var claims =
+        new JWTClaimsSet.Builder()
+            .issuer(issuer)
+            .expirationTime(Date.from(Instant.now().plus(1, ChronoUnit.HOURS)))
+            .build();
+    var jwt = new SignedJWT(header, claims);
+    jwt.sign(signer);
+    return jwt.serialize();
+  }
+}
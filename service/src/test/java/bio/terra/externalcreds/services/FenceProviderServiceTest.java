@@ -91,7 +91,7 @@ class FenceProviderServiceTest extends BaseTest {
   void testCreateLink() {
     var linkedAccountId = random.nextInt();
     var linkedAccount = TestUtils.createRandomLinkedAccount(Provider.FENCE);
-    when(linkedAccountService.upsertLinkedAccount(any()))
+    when(linkedAccountService.upsertNewLinkedAccount(any()))
         .thenReturn(linkedAccount.withId(linkedAccountId));
     var auditLogEventBuilder = new AuditLogEvent.Builder().userId(linkedAccount.getUserId());
     var oauth2State = setupMocksforCreateLink(linkedAccount);
@@ -1,6 +1,7 @@
 package bio.terra.externalcreds.services;
 
 import static bio.terra.externalcreds.TestUtils.getRootCause;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -10,17 +11,24 @@ import static org.mockito.Mockito.when;
 import bio.terra.externalcreds.BaseTest;
 import bio.terra.externalcreds.JwtSigningTestUtils;
 import bio.terra.externalcreds.config.ExternalCredsConfig;
+import bio.terra.externalcreds.generated.model.Provider;
 import bio.terra.externalcreds.models.TokenTypeEnum;
 import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jwt.JWTClaimNames;
 import com.nimbusds.jwt.JWTClaimsSet;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -48,6 +56,12 @@ public class JwtUtilsTest extends BaseTest {
 
     @MockBean ExternalCredsConfig externalCredsConfigMock;
 
+    @BeforeEach
+    void setUp() {
+      // no provider's issuer, so decoders use the default timeouts
+      when(externalCredsConfigMock.getProviders()).thenReturn(new EnumMap<>(Provider.class));
+    }
+
     @Test
     void testInvalidJwtSignature() {
       var visa = jwtSigningTestUtils.createTestVisaWithJwt(TokenTypeEnum.access_token);
@@ -178,8 +192,30 @@ public class JwtUtilsTest extends BaseTest {
     }
 
     @Test
-    void testJwtGetIssuedJkuMalformed() {
-      assertThrows(InvalidJwtException.class, () -> jwtUtils.getJwtIssuedAt("garbage"));
+    void testDecodedPassportCarriesVerifiedClaims() throws URISyntaxException {
+      when(externalCredsConfigMock.getAllowedJwtAlgorithms()).thenReturn(List.of("RS256", "ES256"));
+      when(externalCredsConfigMock.getAllowedJwtIssuers())
+          .thenReturn(List.of(new URI(jwtSigningTestUtils.getIssuer())));
+      var issuedAt = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+      var visa =
+          jwtSigningTestUtils.createTestVisaWithJwtWithClaims(
+              TokenTypeEnum.access_token, Map.of("custom", "claim"), "visaType");
+      var passport =
+          jwtSigningTestUtils.createTestPassport(
+              List.of(visa),
+              Map.of(
+                  JwtUtils.JWT_TRANSACTION_CLAIM,
+                  "testTransactionId",
+                  JWTClaimNames.ISSUED_AT,
+                  Date.from(issuedAt)));
+
+      var passportWithVisas = jwtUtils.decodeAndValidatePassportJwtString(passport.getJwt());
+
+      assertEquals(
+          Optional.of("testTransactionId"), passportWithVisas.getPassport().getTransactionClaim());
+      assertEquals(Optional.of(issuedAt), passportWithVisas.getPassport().getIssuedAt());
+      assertEquals(
+          "claim", passportWithVisas.getVisas().get(0).getClaims().orElseThrow().get("custom"));
     }
   }
 }
@@ -11,19 +11,25 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import bio.terra.externalcreds.BaseTest;
+import bio.terra.externalcreds.ExternalCredsException;
 import bio.terra.externalcreds.TestUtils;
 import bio.terra.externalcreds.dataAccess.GA4GHPassportDAO;
 import bio.terra.externalcreds.dataAccess.GA4GHVisaDAO;
 import bio.terra.externalcreds.dataAccess.LinkedAccountDAO;
 import bio.terra.externalcreds.models.AuthorizationChangeEvent;
+import bio.terra.externalcreds.models.DbGapPermission;
 import bio.terra.externalcreds.models.GA4GHPassport;
 import bio.terra.externalcreds.models.GA4GHVisa;
 import bio.terra.externalcreds.models.LinkedAccount;
 import bio.terra.externalcreds.models.LinkedAccountWithPassportAndVisas;
+import bio.terra.externalcreds.visaComparators.RASv1Dot1VisaComparator;
 import bio.terra.externalcreds.visaComparators.VisaComparator;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentMatcher;
@@ -69,6 +75,8 @@ public class LinkedAccountServiceTest extends BaseTest {
     @MockBean(name = "test2")
     private VisaComparator visaComparatorMock2;
 
+    @MockBean private RASv1Dot1VisaComparator rasVisaComparatorMock;
+
     @Test
     void testSaveLinkedAccountWithPassportAndVisas() {
       var linkedAccount = TestUtils.createRandomLinkedAccount();
@@ -286,15 +294,91 @@ public class LinkedAccountServiceTest extends BaseTest {
       verify(eventPublisherMock, times(2)).publishAuthorizationChangeEvent(expectedEvent);
     }
 
-    private void setupVisaComparatorMocks(GA4GHVisa visa1, GA4GHVisa visa2) {
-      // The default return type is false, so we only need to mock the cases which return true
-      VisaJwtMatcher visa1Matcher = new VisaJwtMatcher(visa1);
-      VisaJwtMatcher visa2Matcher = new VisaJwtMatcher(visa2);
+    @Test
+    void testSavesDbGapPermissions() {
+      var linkedAccount = TestUtils.createRandomLinkedAccount();
+      var passport = TestUtils.createRandomPassport();
+      var visa1 = TestUtils.createRandomVisa().withVisaType("type1");
+      var visa2 = TestUtils.createRandomVisa().withVisaType("type2");
+      Set<DbGapPermission> permissions =
+          Set.of(
+              new DbGapPermission.Builder()
+                  .phsId("phs000021")
+                  .consentGroup("c1")
+                  .role("pi")
+                  .build());
 
-      when(visaComparatorMock1.authorizationsMatch(argThat(visa1Matcher), argThat(visa1Matcher)))
-          .thenReturn(true);
-      when(visaComparatorMock2.authorizationsMatch(argThat(visa2Matcher), argThat(visa2Matcher)))
+      when(rasVisaComparatorMock.visaTypeSupported(argThat(new VisaJwtMatcher(visa1))))
           .thenReturn(true);
+      when(rasVisaComparatorMock.getDbGapPermissions(argThat(new VisaJwtMatcher(visa1))))
+          .thenReturn(permissions);
+
+      var saved =
+          linkedAccountService.upsertLinkedAccountWithPassportAndVisas(
+              new LinkedAccountWithPassportAndVisas.Builder()
+                  .linkedAccount(linkedAccount)
+                  .passport(Optional.ofNullable(passport))
+                  .visas(List.of(visa1, visa2))
+                  .build());
+
+      assertEquals(
+          Map.of(visa1.getJwt(), Optional.of(permissions), visa2.getJwt(), Optional.of(Set.of())),
+          saved.getVisas().stream()
+              .collect(Collectors.toMap(GA4GHVisa::getJwt, GA4GHVisa::getDbGapPermissions)));
+      // a visa without any permissions is listed with none, so its jwt is not parsed
+      assertEquals(
+          Map.of(visa1.getJwt(), Optional.of(permissions), visa2.getJwt(), Optional.of(Set.of())),
+          visaDAO.listVisas(linkedAccount.getUserId(), linkedAccount.getProvider()).stream()
+              .collect(Collectors.toMap(GA4GHVisa::getJwt, GA4GHVisa::getDbGapPermissions)));
+    }
+
+    @Test
+    void testSavesMissingDbGapPermissions() {
+      var linkedAccount = TestUtils.createRandomLinkedAccount();
+      var visa1 = TestUtils.createRandomVisa();
+      var visa2 = TestUtils.createRandomVisa();
+      var visa3 = TestUtils.createRandomVisa();
+      // saved without permissions, as by a version of ECM that did not store them
+      var savedLinkedAccount = linkedAccountService.upsertLinkedAccount(linkedAccount);
+      passportDAO.upsertPassportWithVisas(
+          TestUtils.createRandomPassport().withLinkedAccountId(savedLinkedAccount.getId()),
+          List.of(visa1, visa2, visa3));
+      var savedVisas = visaDAO.listVisas(linkedAccount.getUserId(), linkedAccount.getProvider());
+
+      Set<DbGapPermission> permissions =
+          Set.of(
+              new DbGapPermission.Builder()
+                  .phsId("phs000021")
+                  .consentGroup("c1")
+                  .role("pi")
+                  .build());
+      when(rasVisaComparatorMock.getDbGapPermissions(argThat(new VisaJwtMatcher(visa1))))
+          .thenReturn(permissions);
+      when(rasVisaComparatorMock.getDbGapPermissions(argThat(new VisaJwtMatcher(visa2))))
+          .thenThrow(new ExternalCredsException("error parsing RAS v1.1 visa"));
+      when(rasVisaComparatorMock.getDbGapPermissions(argThat(new VisaJwtMatcher(visa3))))
+          .thenReturn(Set.of());
+
+      assertEquals(2, linkedAccountService.saveDbGapPermissions(savedVisas));
+      // the visa that could not be parsed is still missing its permissions
+      assertEquals(
+          Map.of(
+              visa1.getJwt(),
+              Optional.of(permissions),
+              visa2.getJwt(),
+              Optional.empty(),
+              visa3.getJwt(),
+              Optional.of(Set.of())),
+          visaDAO.listVisas(linkedAccount.getUserId(), linkedAccount.getProvider()).stream()
+              .collect(Collectors.toMap(GA4GHVisa::getJwt, GA4GHVisa::getDbGapPermissions)));
+    }
+
+    private void setupVisaComparatorMocks(GA4GHVisa visa1, GA4GHVisa visa2) {
+      // visas with the same jwt have the same authorizations
+      when(visaComparatorMock1.authorizationFingerprint(argThat(new VisaTypeMatcher(visa1))))
+          .thenAnswer(invocation -> invocation.<GA4GHVisa>getArgument(0).getJwt());
+      when(visaComparatorMock2.authorizationFingerprint(argThat(new VisaTypeMatcher(visa2))))
+          .thenAnswer(invocation -> invocation.<GA4GHVisa>getArgument(0).getJwt());
 
       when(visaComparatorMock1.visaTypeSupported(argThat(new VisaTypeMatcher(visa1))))
           .thenReturn(true);
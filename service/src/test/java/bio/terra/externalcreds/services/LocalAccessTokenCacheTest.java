@@ -0,0 +1,89 @@
+package bio.terra.externalcreds.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import bio.terra.externalcreds.BaseTest;
+import bio.terra.externalcreds.TestUtils;
+import bio.terra.externalcreds.models.AccessTokenCacheEntry;
+import bio.terra.externalcreds.models.LinkedAccount;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+class LocalAccessTokenCacheTest extends BaseTest {
+
+  @Autowired private LocalAccessTokenCache localAccessTokenCache;
+
+  private final Random random = new Random();
+
+  @Test
+  void testGetCachedAccessToken() {
+    var linkedAccount = TestUtils.createRandomLinkedAccount().withId(random.nextInt());
+    var accessTokenCacheEntry = createAccessTokenCacheEntry(linkedAccount, 1);
+
+    localAccessTokenCache.put(linkedAccount, accessTokenCacheEntry);
+
+    assertEquals(
+        Optional.of(accessTokenCacheEntry.getAccessToken()),
+        localAccessTokenCache.get(linkedAccount));
+  }
+
+  @Test
+  void testGetMissingAccessToken() {
+    var linkedAccount = TestUtils.createRandomLinkedAccount().withId(random.nextInt());
+
+    assertEmpty(localAccessTokenCache.get(linkedAccount));
+  }
+
+  @Test
+  void testAccessTokenWithinExpirationBufferNotCached() {
+    var linkedAccount = TestUtils.createRandomLinkedAccount().withId(random.nextInt());
+    // the default expiration buffer is 5 minutes
+    var accessTokenCacheEntry =
+        createAccessTokenCacheEntry(linkedAccount, 1)
+            .withExpiresAt(Instant.now().plus(1, ChronoUnit.MINUTES));
+
+    localAccessTokenCache.put(linkedAccount, accessTokenCacheEntry);
+
+    assertEmpty(localAccessTokenCache.get(linkedAccount));
+  }
+
+  @Test
+  void testAccessTokenNotServedForRelinkedAccount() {
+    var linkedAccount = TestUtils.createRandomLinkedAccount().withId(random.nextInt());
+    localAccessTokenCache.put(linkedAccount, createAccessTokenCacheEntry(linkedAccount, 1));
+
+    var relinkedAccount =
+        linkedAccount.withExpires(
+            new Timestamp(linkedAccount.getExpires().getTime() + 60 * 60 * 1000));
+    assertEmpty(localAccessTokenCache.get(relinkedAccount));
+
+    var linkedToOtherExternalAccount =
+        linkedAccount.withExternalUserId(UUID.randomUUID().toString());
+    assertEmpty(localAccessTokenCache.get(linkedToOtherExternalAccount));
+  }
+
+  @Test
+  void testInvalidate() {
+    var linkedAccount = TestUtils.createRandomLinkedAccount().withId(random.nextInt());
+    localAccessTokenCache.put(linkedAccount, createAccessTokenCacheEntry(linkedAccount, 1));
+
+    localAccessTokenCache.invalidate(linkedAccount.getId().orElseThrow());
+
+    assertEmpty(localAccessTokenCache.get(linkedAccount));
+  }
+
+  private AccessTokenCacheEntry createAccessTokenCacheEntry(
+      LinkedAccount linkedAccount, int hoursUntilExpiration) {
+    return new AccessTokenCacheEntry.Builder()
+        .linkedAccountId(linkedAccount.getId().orElseThrow())
+        .accessToken(UUID.randomUUID().toString())
+        .expiresAt(Instant.now().plus(hoursUntilExpiration, ChronoUnit.HOURS))
+        .build();
+  }
+}
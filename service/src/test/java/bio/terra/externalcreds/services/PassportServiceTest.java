@@ -1,6 +1,7 @@
 package bio.terra.externalcreds.services;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.when;
 
@@ -12,15 +13,17 @@ import bio.terra.externalcreds.config.ExternalCredsConfig;
 import bio.terra.externalcreds.dataAccess.GA4GHPassportDAO;
 import bio.terra.externalcreds.dataAccess.LinkedAccountDAO;
 import bio.terra.externalcreds.generated.model.Provider;
+import bio.terra.externalcreds.models.DbGapPermission;
 import bio.terra.externalcreds.models.GA4GHPassport;
 import bio.terra.externalcreds.models.GA4GHVisa;
 import bio.terra.externalcreds.models.LinkedAccount;
 import bio.terra.externalcreds.models.LinkedAccountWithPassportAndVisas;
 import bio.terra.externalcreds.models.TokenTypeEnum;
+import bio.terra.externalcreds.models.ValidatePassportRequestInternal;
 import bio.terra.externalcreds.models.ValidatePassportResultInternal;
 import bio.terra.externalcreds.visaComparators.RASv1Dot1VisaComparator;
-import bio.terra.externalcreds.visaComparators.RASv1Dot1VisaComparator.DbGapPermission;
 import bio.terra.externalcreds.visaComparators.RASv1Dot1VisaCriterionInternal;
+import bio.terra.externalcreds.visaComparators.VisaCriterionInternal;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jwt.JWTClaimNames;
@@ -31,6 +34,7 @@ import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -38,6 +42,8 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Nested;
@@ -118,6 +124,13 @@ class PassportServiceTest extends BaseTest {
       runValidPassportTest(new ValidPassportTestParams());
     }
 
+    @Test
+    void testValidPassportMatchingOneOfManyCriteria() throws URISyntaxException {
+      var params = new ValidPassportTestParams();
+      params.otherCriteriaCount = 200;
+      runValidPassportTest(params);
+    }
+
     @Test
     void testValidPassportNotMatchingIssuer() throws URISyntaxException {
       var params = new ValidPassportTestParams();
@@ -210,6 +223,89 @@ class PassportServiceTest extends BaseTest {
           () -> passportService.validatePassport(List.of(passport1.getJwt()), List.of(criterion)));
     }
 
+    @Test
+    void testMalformedVisaFromOtherIssuerIgnored() throws URISyntaxException {
+      when(externalCredsConfigMock.getAllowedJwtAlgorithms()).thenReturn(List.of("RS256", "ES256"));
+      mockProviderConfig();
+
+      var malformedVisa =
+          jwtSigningTestUtils.createTestVisaWithJwtWithClaims(
+              TokenTypeEnum.access_token,
+              Map.of(RASv1Dot1VisaComparator.DBGAP_CLAIM, "not a list of permissions"),
+              RASv1Dot1VisaComparator.RAS_VISAS_V_1_1);
+      var passport = jwtSigningTestUtils.createTestPassport(List.of(malformedVisa));
+
+      var criterion =
+          new RASv1Dot1VisaCriterionInternal.Builder()
+              .phsId("phs000123")
+              .consentCode("c1")
+              .issuer("https://some.other.issuer")
+              .build();
+
+      assertEquals(
+          new ValidatePassportResultInternal.Builder().valid(false).build(),
+          passportService.validatePassport(List.of(passport.getJwt()), List.of(criterion)));
+    }
+
+    @Test
+    void testValidatePassportBatch() throws URISyntaxException {
+      when(externalCredsConfigMock.getAllowedJwtAlgorithms()).thenReturn(List.of("RS256", "ES256"));
+      var linkedAccount = TestUtils.createRandomLinkedAccount();
+      mockProviderConfig(linkedAccount);
+
+      var permission =
+          new DbGapPermission.Builder().phsId("phs000123").consentGroup("c1").role("bar").build();
+      var visas = List.of(createDbGapVisa(Set.of(permission)));
+      var passport = jwtSigningTestUtils.createTestPassport(visas);
+      linkedAccountService.upsertLinkedAccountWithPassportAndVisas(
+          new LinkedAccountWithPassportAndVisas.Builder()
+              .linkedAccount(linkedAccount)
+              .passport(passport)
+              .visas(visas)
+              .build());
+
+      var criterion =
+          new RASv1Dot1VisaCriterionInternal.Builder()
+              .phsId(permission.getPhsId())
+              .consentCode(permission.getConsentGroup())
+              .issuer(jwtSigningTestUtils.getIssuer())
+              .build();
+      var otherCriterion = criterion.withPhsId("phsOTHER");
+
+      var results =
+          passportService.validatePassportBatch(
+              List.of(
+                  new ValidatePassportRequestInternal.Builder()
+                      .passportJwts(List.of(passport.getJwt()))
+                      .criteria(List.of(criterion))
+                      .build(),
+                  new ValidatePassportRequestInternal.Builder()
+                      .passportJwts(List.of("garbage", passport.getJwt()))
+                      .criteria(List.of(criterion))
+                      .build(),
+                  new ValidatePassportRequestInternal.Builder()
+                      .passportJwts(List.of(passport.getJwt()))
+                      .criteria(List.of(otherCriterion))
+                      .build()));
+
+      assertEquals(3, results.size());
+      assertEquals(
+          new ValidatePassportResultInternal.Builder()
+              .valid(true)
+              .auditInfo(expectedAuditInfo(linkedAccount, passport, Map.of(), false))
+              .matchedCriterion(criterion)
+              .build(),
+          results.get(0).getResult().orElseThrow());
+      assertEmpty(results.get(1).getResult());
+      assertInstanceOf(BadRequestException.class, results.get(1).getError().orElseThrow());
+      assertEquals(
+          new ValidatePassportResultInternal.Builder()
+              .valid(false)
+              .auditInfo(expectedAuditInfo(linkedAccount, false))
+              .build(),
+          results.get(2).getResult().orElseThrow());
+    }
+
     /**
      * Parameters used to vary how runValidPassportTest works. Default values represent the golden
      * path.
@@ -224,6 +320,7 @@ class PassportServiceTest extends BaseTest {
       boolean noLinkedAccount = false;
       Map<String, Object> customJwtClaims = Collections.emptyMap();
       Map<String, String> customAuditInfoExpected = Collections.emptyMap();
+      int otherCriteriaCount = 0;
     }
 
     private void runValidPassportTest(ValidPassportTestParams params) throws URISyntaxException {
@@ -275,9 +372,18 @@ class PassportServiceTest extends BaseTest {
               .issuer(params.issuer)
               .build();
 
+      // criteria for other studies, listed before the criterion that may match
+      var criteria =
+          Stream.concat(
+                  IntStream.range(0, params.otherCriteriaCount)
+                      .mapToObj(i -> criterion.withPhsId("phsOTHER" + i)),
+                  Stream.of(criterion))
+              .map(VisaCriterionInternal.class::cast)
+              .toList();
+
       var result =
           passportService.validatePassport(
-              List.of(otherPassport.getJwt(), passport.getJwt()), List.of(criterion));
+              List.of(otherPassport.getJwt(), passport.getJwt()), criteria);
 
       if (params.valid) {
         assertEquals(
@@ -334,6 +440,7 @@ class PassportServiceTest extends BaseTest {
                   when(externalCredsConfigMock.getProviderProperties(linkedAccount.getProvider()))
                       .thenReturn(TestUtils.createRandomProvider()));
 
+      when(externalCredsConfigMock.getProviders()).thenReturn(new EnumMap<>(Provider.class));
       when(externalCredsConfigMock.getAllowedJwtIssuers())
           .thenReturn(List.of(new URI(jwtSigningTestUtils.getIssuer())));
       when(externalCredsConfigMock.getAllowedJwksUris())
@@ -0,0 +1,160 @@
+package bio.terra.externalcreds.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
+
+import bio.terra.externalcreds.BaseTest;
+import bio.terra.externalcreds.ExternalCredsException;
+import bio.terra.externalcreds.TestUtils;
+import bio.terra.externalcreds.config.ExternalCredsConfig;
+import bio.terra.externalcreds.generated.model.Provider;
+import bio.terra.externalcreds.services.ProviderHttpClientCache.ProviderEndpoint;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.Delay;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClient;
+
+class ProviderHttpClientCacheTest extends BaseTest {
+
+  @Autowired private ProviderHttpClientCache providerHttpClientCache;
+  @Autowired private MeterRegistry meterRegistry;
+  @MockBean private ExternalCredsConfig externalCredsConfig;
+
+  @Test
+  void testRequestFactorySharedPerProvider() {
+    when(externalCredsConfig.getProviderProperties(Provider.GITHUB))
+        .thenReturn(TestUtils.createRandomProvider());
+
+    assertSame(
+        providerHttpClientCache.getRequestFactory(Provider.GITHUB),
+        providerHttpClientCache.getRequestFactory(Provider.GITHUB));
+  }
+
+  @Test
+  void testConcurrentRequestLimit() throws Exception {
+    try (var mockServer = ClientAndServer.startClientAndServer()) {
+      var provider = Provider.RAS;
+      when(externalCredsConfig.getProviderProperties(provider))
+          .thenReturn(
+              TestUtils.createRandomProvider()
+                  .setMaxConcurrentRequests(1)
+                  .setConnectTimeout(Duration.ofMillis(200)));
+      mockServer
+          .when(HttpRequest.request("/slow").withMethod("GET"))
+          .respond(
+              HttpResponse.response()
+                  .withStatusCode(200)
+                  .withBody("slow")
+                  .withDelay(Delay.seconds(1)));
+      mockServer
+          .when(HttpRequest.request("/fast").withMethod("GET"))
+          .respond(HttpResponse.response().withStatusCode(200).withBody("fast"));
+
+      var restClient =
+          RestClient.builder()
+              .requestFactory(providerHttpClientCache.getRequestFactory(provider))
+              .baseUrl("http://localhost:" + mockServer.getPort())
+              .build();
+
+      var slowResponse =
+          CompletableFuture.supplyAsync(
+              () -> restClient.get().uri("/slow").retrieve().body(String.class));
+      // wait until the slow request holds the only slot
+      var activeRequests =
+          meterRegistry
+              .get("externalcreds.provider_http_client.requests")
+              .tags("provider", provider.toString(), "state", "active")
+              .gauge();
+      while (activeRequests.value() < 1) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+
+      assertThrows(
+          ResourceAccessException.class,
+          () -> restClient.get().uri("/fast").retrieve().body(String.class));
+      assertEquals("slow", slowResponse.get(5, TimeUnit.SECONDS));
+      assertEquals("fast", restClient.get().uri("/fast").retrieve().body(String.class));
+    }
+  }
+
+  @Test
+  void testRetrieveBodyRecordsLatencyAndOutcome() {
+    try (var mockServer = ClientAndServer.startClientAndServer()) {
+      var provider = Provider.FENCE;
+      when(externalCredsConfig.getProviderProperties(provider))
+          .thenReturn(TestUtils.createRandomProvider());
+      mockServer
+          .when(HttpRequest.request("/revoke").withMethod("POST"))
+          .respond(HttpResponse.response().withStatusCode(HttpStatus.OK.value()).withBody("ok"));
+      mockServer
+          .when(HttpRequest.request("/revoke-error").withMethod("POST"))
+          .respond(
+              HttpResponse.response()
+                  .withStatusCode(HttpStatus.BAD_REQUEST.value())
+                  .withBody("bad"));
+      var baseUrl = "http://localhost:" + mockServer.getPort();
+
+      assertEquals(
+          "ok",
+          providerHttpClientCache.retrieveBody(
+              provider,
+              ProviderEndpoint.REVOKE,
+              webClient -> webClient.post().uri(baseUrl + "/revoke")));
+      // error responses are still returned so that callers can log them
+      assertEquals(
+          "bad",
+          providerHttpClientCache.retrieveBody(
+              provider,
+              ProviderEndpoint.REVOKE,
+              webClient -> webClient.post().uri(baseUrl + "/revoke-error")));
+
+      assertEquals(1, getRequestCount(provider, "revoke", "success"));
+      assertEquals(1, getRequestCount(provider, "revoke", "client_error"));
+    }
+  }
+
+  @Test
+  void testRetrieveBodyTimeout() {
+    try (var mockServer = ClientAndServer.startClientAndServer()) {
+      var provider = Provider.KIDS_FIRST;
+      when(externalCredsConfig.getProviderProperties(provider))
+          .thenReturn(
+              TestUtils.createRandomProvider().setValidationTimeout(Duration.ofMillis(100)));
+      mockServer
+          .when(HttpRequest.request("/validate").withMethod("GET"))
+          .respond(HttpResponse.response().withStatusCode(200).withDelay(Delay.seconds(1)));
+
+      assertThrows(
+          ExternalCredsException.class,
+          () ->
+              providerHttpClientCache.retrieveBody(
+                  provider,
+                  ProviderEndpoint.VISA_VALIDATION,
+                  webClient ->
+                      webClient
+                          .get()
+                          .uri("http://localhost:" + mockServer.getPort() + "/validate")));
+      assertEquals(1, getRequestCount(provider, "visa_validation", "timeout"));
+    }
+  }
+
+  private long getRequestCount(Provider provider, String endpoint, String outcome) {
+    return meterRegistry
+        .get("externalcreds.provider_endpoint.requests")
+        .tags("provider", provider.toString(), "endpoint", endpoint, "outcome", outcome)
+        .timer()
+        .count();
+  }
+}
@@ -73,6 +73,7 @@ class ProviderOAuthClientCacheTest extends BaseTest {
           AuthorizationGrantType.AUTHORIZATION_CODE, rasClient.getAuthorizationGrantType());
       assertEquals(providerInfo.getClientId(), rasClient.getClientId());
       assertEquals(providerInfo.getClientSecret(), rasClient.getClientSecret());
+      assertEquals(provider.toString(), rasClient.getRegistrationId());
     }
   }
 
@@ -130,6 +131,7 @@ class ProviderOAuthClientCacheTest extends BaseTest {
           AuthorizationGrantType.CLIENT_CREDENTIALS, fenceClient.getAuthorizationGrantType());
       assertEquals(providerInfo.getClientId(), fenceClient.getClientId());
       assertEquals(providerInfo.getClientSecret(), fenceClient.getClientSecret());
+      assertEquals(provider.toString(), fenceClient.getRegistrationId());
     }
   }
 }
@@ -9,8 +9,10 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -22,6 +24,7 @@ import bio.terra.externalcreds.ExternalCredsException;
 import bio.terra.externalcreds.TestUtils;
 import bio.terra.externalcreds.auditLogging.AuditLogEvent;
 import bio.terra.externalcreds.config.ExternalCredsConfig;
+import bio.terra.externalcreds.config.PassportRefreshConfiguration;
 import bio.terra.externalcreds.config.ProviderProperties;
 import bio.terra.externalcreds.dataAccess.GA4GHPassportDAO;
 import bio.terra.externalcreds.dataAccess.GA4GHVisaDAO;
@@ -46,7 +49,10 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
@@ -68,6 +74,7 @@ import org.springframework.security.oauth2.core.OAuth2Error;
 import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
 import org.springframework.security.oauth2.core.OAuth2RefreshToken;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import reactor.core.publisher.Mono;
 
 public class ProviderServiceTest extends BaseTest {
 
@@ -665,7 +672,8 @@ public class ProviderServiceTest extends BaseTest {
           TestUtils.createRandomPassport()
               .withLinkedAccountId(savedNonExpiredLinkedAccount.getId()));
 
-      passportProviderService.invalidateExpiredLinkedAccountsWithPassports();
+      passportProviderService.invalidateExpiredLinkedAccountsWithPassports(
+          TestUtils.ALL_LINKED_ACCOUNTS_SHARD);
       assertTrue(
           passportDAO
               .getPassport(expiredLinkedAccount.getUserId(), expiredLinkedAccount.getProvider())
@@ -710,13 +718,91 @@ public class ProviderServiceTest extends BaseTest {
       // mock the configs
       when(externalCredsConfigMock.getVisaAndPassportRefreshDuration())
           .thenReturn(Duration.ofMinutes(30));
+      when(externalCredsConfigMock.getPassportRefreshConfiguration())
+          .thenReturn(
+              PassportRefreshConfiguration.create()
+                  .setMaxConcurrentRefreshes(2)
+                  .setMaxConcurrentRefreshesPerProvider(1));
+      when(externalCredsConfigMock.getBackgroundJobPageSize()).thenReturn(500);
 
       // check that authAndRefreshPassport is called exactly once with the expiring linked account
       var providerServiceSpy = Mockito.spy(passportProviderService);
-      providerServiceSpy.refreshExpiringPassports();
+      var refreshSummary =
+          providerServiceSpy.refreshExpiringPassports(TestUtils.ALL_LINKED_ACCOUNTS_SHARD);
+      // the provider client is not mocked so the refresh fails
+      assertEquals(
+          new PassportRefreshSummary.Builder().refreshedCount(0).failedCount(1).build(),
+          refreshSummary);
       verify(providerServiceSpy).authAndRefreshPassport(any());
       verify(providerServiceSpy).authAndRefreshPassport(savedExpiringLinkedAccount);
     }
+
+    @Test
+    void testRefreshesAreConcurrentWithinLimits() {
+      var expiringLinkedAccounts =
+          Stream.of(Provider.RAS, Provider.RAS, Provider.RAS, Provider.FENCE, Provider.FENCE)
+              .map(
+                  provider -> {
+                    var savedLinkedAccount =
+                        linkedAccountDAO.upsertLinkedAccount(
+                            TestUtils.createRandomLinkedAccount(provider));
+                    passportDAO.insertPassport(
+                        TestUtils.createRandomPassport()
+                            .withExpires(new Timestamp(Instant.now().toEpochMilli()))
+                            .withLinkedAccountId(savedLinkedAccount.getId()));
+                    return savedLinkedAccount;
+                  })
+              .toList();
+      var failingLinkedAccount = expiringLinkedAccounts.get(0);
+
+      when(externalCredsConfigMock.getVisaAndPassportRefreshDuration())
+          .thenReturn(Duration.ofMinutes(30));
+      when(externalCredsConfigMock.getPassportRefreshConfiguration())
+          .thenReturn(
+              PassportRefreshConfiguration.create()
+                  .setMaxConcurrentRefreshes(2)
+                  .setMaxConcurrentRefreshesPerProvider(1));
+      // 5 linked accounts are loaded over 3 pages
+      when(externalCredsConfigMock.getBackgroundJobPageSize()).thenReturn(2);
+
+      var inFlight = new EnumMap<Provider, AtomicInteger>(Provider.class);
+      expiringLinkedAccounts.forEach(l -> inFlight.put(l.getProvider(), new AtomicInteger()));
+      var maxInFlightPerProvider = new AtomicInteger();
+      var totalInFlight = new AtomicInteger();
+      var maxTotalInFlight = new AtomicInteger();
+      var providerServiceSpy = Mockito.spy(passportProviderService);
+      doAnswer(
+              invocation -> {
+                LinkedAccount linkedAccount = invocation.getArgument(0);
+                var providerInFlight = inFlight.get(linkedAccount.getProvider());
+                maxInFlightPerProvider.accumulateAndGet(
+                    providerInFlight.incrementAndGet(), Math::max);
+                maxTotalInFlight.accumulateAndGet(totalInFlight.incrementAndGet(), Math::max);
+                try {
+                  TimeUnit.MILLISECONDS.sleep(50);
+                  if (linkedAccount.equals(failingLinkedAccount)) {
+                    throw new ExternalCredsException("refresh failed");
+                  }
+                  return null;
+                } finally {
+                  totalInFlight.decrementAndGet();
+                  providerInFlight.decrementAndGet();
+                }
+              })
+          .when(providerServiceSpy)
+          .authAndRefreshPassport(any());
+
+      var refreshSummary =
+          providerServiceSpy.refreshExpiringPassports(TestUtils.ALL_LINKED_ACCOUNTS_SHARD);
+
+      assertEquals(
+          new PassportRefreshSummary.Builder().refreshedCount(4).failedCount(1).build(),
+          refreshSummary);
+      assertEquals(1, maxInFlightPerProvider.get());
+      // the RAS and FENCE refreshes on the same page ran at the same time
+      assertEquals(2, maxTotalInFlight.get());
+      expiringLinkedAccounts.forEach(l -> verify(providerServiceSpy).authAndRefreshPassport(l));
+    }
   }
 
   @Nested
@@ -724,7 +810,6 @@ public class ProviderServiceTest extends BaseTest {
   class ValidateVisaWithProvider {
     @Autowired private PassportProviderService passportProviderService;
     @Autowired private LinkedAccountService linkedAccountService;
-    @Autowired private GA4GHVisaDAO visaDAO;
 
     @MockBean ExternalCredsConfig externalCredsConfigMock;
 
@@ -741,22 +826,8 @@ public class ProviderServiceTest extends BaseTest {
               visaVerificationDetails, HttpStatus.OK, "Valid")) {
 
         var responseBody =
-            passportProviderService.validateVisaWithProvider(visaVerificationDetails);
+            passportProviderService.validateVisaWithProviderAsync(visaVerificationDetails).block();
         assertEquals(true, responseBody);
-
-        // verify that visa last validated has been updated
-        var updatedVisas =
-            visaDAO.listVisas(
-                savedLinkedAccountWithPassportAndVisa.getLinkedAccount().getUserId(),
-                savedLinkedAccountWithPassportAndVisa.getLinkedAccount().getProvider());
-        assertEquals(savedLinkedAccountWithPassportAndVisa.getVisas().size(), updatedVisas.size());
-        assertTrue(
-            savedLinkedAccountWithPassportAndVisa
-                .getVisas()
-                .get(0)
-                .getLastValidated()
-                .get()
-                .before(updatedVisas.get(0).getLastValidated().get()));
       }
     }
 
@@ -773,19 +844,8 @@ public class ProviderServiceTest extends BaseTest {
               visaVerificationDetails, HttpStatus.BAD_REQUEST, "Invalid Passport")) {
 
         var responseBody =
-            passportProviderService.validateVisaWithProvider(visaVerificationDetails);
+            passportProviderService.validateVisaWithProviderAsync(visaVerificationDetails).block();
         assertEquals(false, responseBody);
-
-        // verify that visa last validated has NOT been updated
-        var unchangedVisas =
-            visaDAO.listVisas(
-                savedLinkedAccountWithPassportAndVisa.getLinkedAccount().getUserId(),
-                savedLinkedAccountWithPassportAndVisa.getLinkedAccount().getProvider());
-        assertEquals(
-            savedLinkedAccountWithPassportAndVisa.getVisas().size(), unchangedVisas.size());
-        assertEquals(
-            savedLinkedAccountWithPassportAndVisa.getVisas().get(0).getLastValidated().get(),
-            unchangedVisas.get(0).getLastValidated().get());
       }
     }
 
@@ -797,7 +857,7 @@ public class ProviderServiceTest extends BaseTest {
 
       assertThrows(
           NotFoundException.class,
-          () -> passportProviderService.validateVisaWithProvider(visaVerificationDetails));
+          () -> passportProviderService.validateVisaWithProviderAsync(visaVerificationDetails));
     }
 
     @Test
@@ -810,7 +870,7 @@ public class ProviderServiceTest extends BaseTest {
 
       assertThrows(
           NotFoundException.class,
-          () -> passportProviderService.validateVisaWithProvider(visaVerificationDetails));
+          () -> passportProviderService.validateVisaWithProviderAsync(visaVerificationDetails));
     }
 
     private ClientAndServer mockValidationEndpointConfigsAndResponse(
@@ -849,6 +909,7 @@ public class ProviderServiceTest extends BaseTest {
   class ValidateAccessTokenVisas {
     @Autowired private PassportProviderService passportProviderService;
     @Autowired private LinkedAccountService linkedAccountService;
+    @Autowired private GA4GHVisaDAO visaDAO;
 
     @Test
     void testValidResponse() {
@@ -858,12 +919,17 @@ public class ProviderServiceTest extends BaseTest {
 
       var expectedVisaDetails =
           getExpectedVisaVerificationDetails(savedLinkedAccountWithPassportAndVisa);
-      doReturn(true).when(providerServiceSpy).validateVisaWithProvider(expectedVisaDetails);
+      doReturn(Mono.just(true))
+          .when(providerServiceSpy)
+          .validateVisaWithProviderAsync(expectedVisaDetails);
 
-      // check that validatePassportWithProvider is called once and no exceptions are thrown
-      providerServiceSpy.validateAccessTokenVisas();
-      verify(providerServiceSpy).validateVisaWithProvider(any());
-      verify(providerServiceSpy).validateVisaWithProvider(expectedVisaDetails);
+      // check that validateVisaWithProviderAsync is called once and no exceptions are thrown
+      providerServiceSpy.validateAccessTokenVisas(TestUtils.ALL_LINKED_ACCOUNTS_SHARD);
+      verify(providerServiceSpy).validateVisaWithProviderAsync(any());
+      verify(providerServiceSpy).validateVisaWithProviderAsync(expectedVisaDetails);
+
+      // verify that visa last validated has been updated
+      assertVisaLastValidatedUpdated(savedLinkedAccountWithPassportAndVisa, true);
     }
 
     @Test
@@ -875,19 +941,64 @@ public class ProviderServiceTest extends BaseTest {
       // mock the behavior of helper functions which already have their own tests
       var expectedVisaDetails =
           getExpectedVisaVerificationDetails(savedLinkedAccountWithPassportAndVisa);
-      doReturn(false).when(providerServiceSpy).validateVisaWithProvider(expectedVisaDetails);
+      doReturn(Mono.just(false))
+          .when(providerServiceSpy)
+          .validateVisaWithProviderAsync(expectedVisaDetails);
       doNothing()
           .when(providerServiceSpy)
           .authAndRefreshPassport(savedLinkedAccountWithPassportAndVisa.getLinkedAccount());
 
-      // check that validatePassportWithProvider is called once and no exceptions are thrown
-      providerServiceSpy.validateAccessTokenVisas();
-      verify(providerServiceSpy).validateVisaWithProvider(any());
-      verify(providerServiceSpy).validateVisaWithProvider(expectedVisaDetails);
+      // check that validateVisaWithProviderAsync is called once and no exceptions are thrown
+      providerServiceSpy.validateAccessTokenVisas(TestUtils.ALL_LINKED_ACCOUNTS_SHARD);
+      verify(providerServiceSpy).validateVisaWithProviderAsync(any());
+      verify(providerServiceSpy).validateVisaWithProviderAsync(expectedVisaDetails);
 
       // check that authAndRefreshPassport was also called once
       verify(providerServiceSpy)
           .authAndRefreshPassport(savedLinkedAccountWithPassportAndVisa.getLinkedAccount());
+
+      // verify that visa last validated has NOT been updated
+      assertVisaLastValidatedUpdated(savedLinkedAccountWithPassportAndVisa, false);
+    }
+
+    @Test
+    void testValidationErrorDoesNotAffectOtherVisas() {
+      var providerServiceSpy = spy(passportProviderService);
+      var failingLinkedAccountWithPassportAndVisa =
+          createLinkedAccountWithOldVisa(linkedAccountService);
+      var validLinkedAccountWithPassportAndVisa =
+          createLinkedAccountWithOldVisa(linkedAccountService);
+
+      doReturn(Mono.error(new ExternalCredsException("validation endpoint unavailable")))
+          .when(providerServiceSpy)
+          .validateVisaWithProviderAsync(
+              getExpectedVisaVerificationDetails(failingLinkedAccountWithPassportAndVisa));
+      doReturn(Mono.just(true))
+          .when(providerServiceSpy)
+          .validateVisaWithProviderAsync(
+              getExpectedVisaVerificationDetails(validLinkedAccountWithPassportAndVisa));
+
+      assertEquals(
+          2, providerServiceSpy.validateAccessTokenVisas(TestUtils.ALL_LINKED_ACCOUNTS_SHARD));
+
+      // visas that could not be validated are neither marked validated nor refreshed
+      assertVisaLastValidatedUpdated(failingLinkedAccountWithPassportAndVisa, false);
+      assertVisaLastValidatedUpdated(validLinkedAccountWithPassportAndVisa, true);
+      verify(providerServiceSpy, never()).authAndRefreshPassport(any());
+    }
+
+    private void assertVisaLastValidatedUpdated(
+        LinkedAccountWithPassportAndVisas savedLinkedAccountWithPassportAndVisa,
+        boolean expectUpdated) {
+      var savedVisas = savedLinkedAccountWithPassportAndVisa.getVisas();
+      var visas =
+          visaDAO.listVisas(
+              savedLinkedAccountWithPassportAndVisa.getLinkedAccount().getUserId(),
+              savedLinkedAccountWithPassportAndVisa.getLinkedAccount().getProvider());
+      assertEquals(savedVisas.size(), visas.size());
+      assertEquals(
+          expectUpdated,
+          savedVisas.get(0).getLastValidated().get().before(visas.get(0).getLastValidated().get()));
     }
   }
 
@@ -72,6 +72,7 @@ class ProviderTokenClientCacheTest extends BaseTest {
           AuthorizationGrantType.AUTHORIZATION_CODE, rasClient.getAuthorizationGrantType());
       assertEquals(providerInfo.getClientId(), rasClient.getClientId());
       assertEquals(providerInfo.getClientSecret(), rasClient.getClientSecret());
+      assertEquals(provider.toString(), rasClient.getRegistrationId());
     }
   }
 
@@ -129,6 +130,7 @@ class ProviderTokenClientCacheTest extends BaseTest {
           AuthorizationGrantType.AUTHORIZATION_CODE, fenceClient.getAuthorizationGrantType());
       assertEquals(providerInfo.getClientId(), fenceClient.getClientId());
       assertEquals(providerInfo.getClientSecret(), fenceClient.getClientSecret());
+      assertEquals(provider.toString(), fenceClient.getRegistrationId());
     }
   }
 }
@@ -0,0 +1,120 @@
+package bio.terra.externalcreds.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import bio.terra.externalcreds.generated.model.Provider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.function.Function;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+
+class RefreshAheadClientCacheTest {
+
+  private Function<Provider, ClientRegistration> loader;
+  private SimpleMeterRegistry meterRegistry;
+  private RefreshAheadClientCache clients;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    loader = mock(Function.class);
+    meterRegistry = new SimpleMeterRegistry();
+    clients = new RefreshAheadClientCache("testClients", loader, meterRegistry);
+  }
+
+  @AfterEach
+  void tearDown() {
+    clients.shutdown();
+  }
+
+  @Test
+  void testClientLoadedOnce() {
+    var client = mock(ClientRegistration.class);
+    when(loader.apply(Provider.RAS)).thenReturn(client);
+
+    assertSame(client, clients.get(Provider.RAS));
+    assertSame(client, clients.get(Provider.RAS));
+    verify(loader, times(1)).apply(Provider.RAS);
+  }
+
+  @Test
+  void testFirstLoadFailureThrown() {
+    when(loader.apply(Provider.RAS)).thenThrow(new IllegalStateException("provider down"));
+
+    assertThrows(IllegalStateException.class, () -> clients.get(Provider.RAS));
+  }
+
+  @Test
+  void testRefreshReplacesClient() {
+    var client = mock(ClientRegistration.class);
+    var refreshedClient = mock(ClientRegistration.class);
+    when(loader.apply(Provider.RAS)).thenReturn(client, refreshedClient);
+    clients.get(Provider.RAS);
+
+    clients.refreshAll().join();
+
+    assertSame(refreshedClient, clients.get(Provider.RAS));
+    assertEquals(
+        1.0,
+        meterRegistry
+            .get("externalcreds.provider_client_cache.refreshes")
+            .tag("outcome", "success")
+            .counter()
+            .count());
+  }
+
+  @Test
+  void testRefreshRunsOnOwnThreads() {
+    var client = mock(ClientRegistration.class);
+    var loadingThreads = new ArrayList<String>();
+    when(loader.apply(Provider.RAS))
+        .thenAnswer(
+            invocation -> {
+              loadingThreads.add(Thread.currentThread().getName());
+              return client;
+            });
+    clients.get(Provider.RAS);
+
+    clients.refreshAll().join();
+
+    assertTrue(loadingThreads.get(1).startsWith("testClients-refresh-"), loadingThreads.get(1));
+  }
+
+  @Test
+  void testFailedRefreshKeepsLastGoodClient() {
+    var client = mock(ClientRegistration.class);
+    var failure = new IllegalStateException("provider down");
+    when(loader.apply(Provider.RAS)).thenReturn(client).thenThrow(failure);
+    clients.get(Provider.RAS);
+
+    clients.refreshAll().join();
+
+    assertSame(client, clients.get(Provider.RAS));
+    assertSame(failure, clients.getRefreshFailure(Provider.RAS).orElseThrow());
+    assertEquals(
+        1.0,
+        meterRegistry
+            .get("externalcreds.provider_client_cache.refreshes")
+            .tag("outcome", "failure")
+            .counter()
+            .count());
+
+    var refreshedClient = mock(ClientRegistration.class);
+    doReturn(refreshedClient).when(loader).apply(Provider.RAS);
+    clients.refreshAll().join();
+
+    assertSame(refreshedClient, clients.get(Provider.RAS));
+    assertTrue(clients.getRefreshFailure(Provider.RAS).isEmpty());
+  }
+}
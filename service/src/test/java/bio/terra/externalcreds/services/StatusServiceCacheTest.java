@@ -10,6 +10,7 @@ import static org.mockito.Mockito.when;
 import bio.terra.externalcreds.BaseTest;
 import bio.terra.externalcreds.dataAccess.SamStatusDAO;
 import bio.terra.externalcreds.generated.model.Provider;
+import java.util.Optional;
 import org.broadinstitute.dsde.workbench.client.sam.ApiException;
 import org.broadinstitute.dsde.workbench.client.sam.model.SystemStatus;
 import org.junit.jupiter.api.BeforeEach;
@@ -58,6 +59,23 @@ class StatusServiceCacheTest extends BaseTest {
     assertEquals(testMessage, status.getMessages().get(0));
   }
 
+  @Test
+  void testGetsFailedRefreshProviderStatuses() {
+    // Arrange
+    var testMessage = "testRefreshFailureMessage";
+    when(providerOAuthClientCache.getProviderClient(any(Provider.class)))
+        .thenReturn(mock(ClientRegistration.class));
+    when(providerOAuthClientCache.getRefreshFailure(any(Provider.class)))
+        .thenReturn(Optional.of(new IllegalArgumentException(testMessage)));
+
+    // Act
+    var status = statusServiceCache.getProviderStatus(Provider.GITHUB);
+
+    // Assert
+    assertFalse(status.isOk());
+    assertEquals(testMessage, status.getMessages().get(0));
+  }
+
   @Test
   void testGetsSuccessfulSamStatus() throws ApiException {
     // Arrange
@@ -1,8 +1,12 @@
 package bio.terra.externalcreds.services;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -14,22 +18,36 @@ import bio.terra.externalcreds.auditLogging.AuditLogEvent;
 import bio.terra.externalcreds.auditLogging.AuditLogEvent.Builder;
 import bio.terra.externalcreds.auditLogging.AuditLogEventType;
 import bio.terra.externalcreds.auditLogging.AuditLogger;
+import bio.terra.externalcreds.config.ExternalCredsConfig;
 import bio.terra.externalcreds.generated.model.Provider;
+import bio.terra.externalcreds.models.AccessTokenRequestInternal;
+import bio.terra.externalcreds.models.AccessTokenResultInternal;
 import bio.terra.externalcreds.models.LinkedAccount;
+import bio.terra.externalcreds.models.LinkedAccountWithAccessToken;
 import java.sql.Timestamp;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpStatus;
 import org.springframework.security.oauth2.core.*;
 
 public class TokenProviderServiceTest extends BaseTest {
 
   @Autowired private TokenProviderService tokenProviderService;
+  @Autowired private ExternalCredsConfig externalCredsConfig;
   @MockBean private AuditLogger auditLoggerMock;
   @MockBean private LinkedAccountService linkedAccountService;
   @MockBean private ProviderTokenClientCache providerTokenClientCacheMock;
@@ -139,4 +157,182 @@ public class TokenProviderServiceTest extends BaseTest {
             tokenProviderService.getProviderAccessToken(
                 linkedAccount.getUserId(), provider, auditLogEventBuilder));
   }
+
+  @Test
+  void testGetProviderAccessTokens() {
+    var cachedLinkedAccount =
+        TestUtils.createRandomLinkedAccount(provider).withId(random.nextInt());
+    var accessTokenCacheEntry =
+        TestUtils.createRandomAccessTokenCacheEntry()
+            .withLinkedAccountId(cachedLinkedAccount.getId().orElseThrow())
+            .withExpiresAt(Instant.now().plus(Duration.ofHours(1)));
+    var unauthorizedLinkedAccount =
+        TestUtils.createRandomLinkedAccount(provider).withId(random.nextInt());
+    var expiredLinkedAccount =
+        TestUtils.createRandomLinkedAccount(provider)
+            .withExpires(Timestamp.from(Instant.now().minusSeconds(60)));
+    var missingUserId = UUID.randomUUID().toString();
+
+    when(linkedAccountService.getLinkedAccountsWithAccessTokens(
+            Set.of(
+                cachedLinkedAccount.getUserId(),
+                unauthorizedLinkedAccount.getUserId(),
+                expiredLinkedAccount.getUserId(),
+                missingUserId)))
+        .thenReturn(
+            List.of(
+                new LinkedAccountWithAccessToken.Builder()
+                    .linkedAccount(cachedLinkedAccount)
+                    .accessTokenCacheEntry(accessTokenCacheEntry)
+                    .build(),
+                new LinkedAccountWithAccessToken.Builder()
+                    .linkedAccount(unauthorizedLinkedAccount)
+                    .build(),
+                new LinkedAccountWithAccessToken.Builder()
+                    .linkedAccount(expiredLinkedAccount)
+                    .build()));
+    var clientRegistration = TestUtils.createClientRegistration(provider);
+    when(providerTokenClientCacheMock.getProviderClient(provider)).thenReturn(clientRegistration);
+    when(oAuth2ServiceMock.authorizeWithRefreshToken(
+            eq(clientRegistration),
+            eq(new OAuth2RefreshToken(unauthorizedLinkedAccount.getRefreshToken(), null)),
+            any(Set.class)))
+        .thenThrow(
+            new OAuth2AuthorizationException(new OAuth2Error(OAuth2ErrorCodes.INVALID_TOKEN)));
+
+    var results =
+        tokenProviderService.getProviderAccessTokens(
+            List.of(
+                createAccessTokenRequest(cachedLinkedAccount.getUserId()),
+                createAccessTokenRequest(unauthorizedLinkedAccount.getUserId()),
+                createAccessTokenRequest(expiredLinkedAccount.getUserId()),
+                createAccessTokenRequest(missingUserId)),
+            Optional.of(clientIP));
+
+    assertEquals(
+        new AccessTokenResultInternal.Builder()
+            .userId(cachedLinkedAccount.getUserId())
+            .provider(provider)
+            .accessToken(accessTokenCacheEntry.getAccessToken())
+            .build(),
+        results.get(0));
+    assertEquals(
+        HttpStatus.INTERNAL_SERVER_ERROR, results.get(1).getError().orElseThrow().getStatusCode());
+    assertInstanceOf(ForbiddenException.class, results.get(2).getError().orElseThrow());
+    assertInstanceOf(NotFoundException.class, results.get(3).getError().orElseThrow());
+  }
+
+  @Test
+  void testConcurrentRequestsShareExchangeLimit() throws Exception {
+    var maxConcurrentExchanges =
+        externalCredsConfig
+            .getBulkAccessTokenConfiguration()
+            .getMaxConcurrentExchangesPerProvider();
+    var linkedAccounts =
+        Stream.generate(
+                () -> TestUtils.createRandomLinkedAccount(provider).withId(random.nextInt()))
+            .limit(maxConcurrentExchanges * 2L)
+            .toList();
+    when(linkedAccountService.getLinkedAccountsWithAccessTokens(any()))
+        .thenReturn(
+            linkedAccounts.stream()
+                .<LinkedAccountWithAccessToken>map(
+                    l -> new LinkedAccountWithAccessToken.Builder().linkedAccount(l).build())
+                .toList());
+    when(providerTokenClientCacheMock.getProviderClient(provider))
+        .thenReturn(TestUtils.createClientRegistration(provider));
+    var inFlight = new AtomicInteger();
+    var maxInFlight = new AtomicInteger();
+    when(oAuth2ServiceMock.authorizeWithRefreshToken(any(), any(), any(Set.class)))
+        .thenAnswer(
+            invocation -> {
+              maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+              TimeUnit.MILLISECONDS.sleep(100);
+              inFlight.decrementAndGet();
+              throw new OAuth2AuthorizationException(
+                  new OAuth2Error(OAuth2ErrorCodes.INVALID_TOKEN));
+            });
+
+    // each request alone stays within the limit, together they would exceed it
+    var requests =
+        List.of(
+            linkedAccounts.subList(0, maxConcurrentExchanges),
+            linkedAccounts.subList(maxConcurrentExchanges, linkedAccounts.size()));
+    var executor = Executors.newFixedThreadPool(requests.size());
+    try {
+      var responses = new ArrayList<Future<List<AccessTokenResultInternal>>>();
+      for (var request : requests) {
+        responses.add(
+            executor.submit(
+                () ->
+                    tokenProviderService.getProviderAccessTokens(
+                        request.stream().map(l -> createAccessTokenRequest(l.getUserId())).toList(),
+                        Optional.of(clientIP))));
+      }
+      for (var response : responses) {
+        response.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    verify(oAuth2ServiceMock, times(linkedAccounts.size()))
+        .authorizeWithRefreshToken(any(), any(), any(Set.class));
+    assertTrue(maxInFlight.get() <= maxConcurrentExchanges);
+  }
+
+  @Test
+  void testSlowExchangeTimesOut() {
+    var bulkConfig = externalCredsConfig.getBulkAccessTokenConfiguration();
+    var exchangeTimeout = bulkConfig.getExchangeTimeout();
+    var cachedLinkedAccount =
+        TestUtils.createRandomLinkedAccount(provider).withId(random.nextInt());
+    var accessTokenCacheEntry =
+        TestUtils.createRandomAccessTokenCacheEntry()
+            .withLinkedAccountId(cachedLinkedAccount.getId().orElseThrow())
+            .withExpiresAt(Instant.now().plus(Duration.ofHours(1)));
+    var slowLinkedAccount = TestUtils.createRandomLinkedAccount(provider).withId(random.nextInt());
+    when(linkedAccountService.getLinkedAccountsWithAccessTokens(any()))
+        .thenReturn(
+            List.of(
+                new LinkedAccountWithAccessToken.Builder()
+                    .linkedAccount(cachedLinkedAccount)
+                    .accessTokenCacheEntry(accessTokenCacheEntry)
+                    .build(),
+                new LinkedAccountWithAccessToken.Builder()
+                    .linkedAccount(slowLinkedAccount)
+                    .build()));
+    when(providerTokenClientCacheMock.getProviderClient(provider))
+        .thenReturn(TestUtils.createClientRegistration(provider));
+    when(oAuth2ServiceMock.authorizeWithRefreshToken(any(), any(), any(Set.class)))
+        .thenAnswer(
+            invocation -> {
+              TimeUnit.SECONDS.sleep(5);
+              throw new OAuth2AuthorizationException(
+                  new OAuth2Error(OAuth2ErrorCodes.INVALID_TOKEN));
+            });
+
+    bulkConfig.setExchangeTimeout(Duration.ofMillis(200));
+    try {
+      var start = Instant.now();
+      var results =
+          tokenProviderService.getProviderAccessTokens(
+              List.of(
+                  createAccessTokenRequest(cachedLinkedAccount.getUserId()),
+                  createAccessTokenRequest(slowLinkedAccount.getUserId())),
+              Optional.of(clientIP));
+
+      assertTrue(Duration.between(start, Instant.now()).compareTo(Duration.ofSeconds(5)) < 0);
+      assertEquals(
+          accessTokenCacheEntry.getAccessToken(), results.get(0).getAccessToken().orElseThrow());
+      assertEquals(
+          HttpStatus.GATEWAY_TIMEOUT, results.get(1).getError().orElseThrow().getStatusCode());
+    } finally {
+      bulkConfig.setExchangeTimeout(exchangeTimeout);
+    }
+  }
+
+  private AccessTokenRequestInternal createAccessTokenRequest(String userId) {
+    return new AccessTokenRequestInternal.Builder().userId(userId).provider(provider).build();
+  }
 }
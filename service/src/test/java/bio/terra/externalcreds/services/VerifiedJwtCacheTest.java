@@ -0,0 +1,108 @@
+package bio.terra.externalcreds.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import bio.terra.externalcreds.config.ExternalCredsConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.jwt.Jwt;
+
+class VerifiedJwtCacheTest {
+  private static final String KEY_ID = "key";
+
+  private VerifiedJwtCache verifiedJwtCache;
+
+  @BeforeEach
+  void setUp() {
+    var externalCredsConfig = mock(ExternalCredsConfig.class);
+    when(externalCredsConfig.getVerifiedJwtCacheMaximumSize()).thenReturn(100L);
+    verifiedJwtCache = new VerifiedJwtCache(externalCredsConfig, new SimpleMeterRegistry());
+  }
+
+  @Test
+  void testVerifiedJwtServedFromCache() {
+    var jwtString = UUID.randomUUID().toString();
+    var decoder = mockDecoder(jwtString, Instant.now().plus(Duration.ofHours(1)));
+
+    var jwt = verifiedJwtCache.decode(jwtString, decoder);
+
+    assertEquals(jwt, verifiedJwtCache.decode(jwtString, decoder));
+    verify(decoder, times(1)).decode(jwtString);
+  }
+
+  @Test
+  void testJwtVerifiedAgainByNewDecoder() {
+    var jwtString = UUID.randomUUID().toString();
+    var expiresAt = Instant.now().plus(Duration.ofHours(1));
+    var decoder = mockDecoder(jwtString, expiresAt);
+    var newDecoder = mockDecoder(jwtString, expiresAt);
+
+    verifiedJwtCache.decode(jwtString, decoder);
+    verifiedJwtCache.decode(jwtString, newDecoder);
+
+    verify(newDecoder).decode(jwtString);
+  }
+
+  @Test
+  void testJwtVerifiedAgainWhenKeyRotatedOut() {
+    var jwtString = UUID.randomUUID().toString();
+    var decoder = mockDecoder(jwtString, Instant.now().plus(Duration.ofHours(1)));
+
+    verifiedJwtCache.decode(jwtString, decoder);
+    when(decoder.hasKey(KEY_ID)).thenReturn(false);
+    verifiedJwtCache.decode(jwtString, decoder);
+
+    verify(decoder, times(2)).decode(jwtString);
+  }
+
+  @Test
+  void testJwtWithoutKeyIdNotCached() {
+    var jwtString = UUID.randomUUID().toString();
+    var decoder = mockDecoder(jwtString, Instant.now().plus(Duration.ofHours(1)), null);
+
+    verifiedJwtCache.decode(jwtString, decoder);
+    verifiedJwtCache.decode(jwtString, decoder);
+
+    verify(decoder, times(2)).decode(jwtString);
+  }
+
+  @Test
+  void testExpiredJwtNotCached() {
+    var jwtString = UUID.randomUUID().toString();
+    var decoder = mockDecoder(jwtString, Instant.now().minus(Duration.ofSeconds(1)));
+
+    verifiedJwtCache.decode(jwtString, decoder);
+    verifiedJwtCache.decode(jwtString, decoder);
+
+    verify(decoder, times(2)).decode(jwtString);
+  }
+
+  private KeySetJwtDecoder mockDecoder(String jwtString, Instant expiresAt) {
+    return mockDecoder(jwtString, expiresAt, KEY_ID);
+  }
+
+  private KeySetJwtDecoder mockDecoder(String jwtString, Instant expiresAt, String keyId) {
+    var decoder = mock(KeySetJwtDecoder.class);
+    when(decoder.hasKey(KEY_ID)).thenReturn(true);
+    var jwtBuilder = Jwt.withTokenValue(jwtString).header("alg", "RS256");
+    if (keyId != null) {
+      jwtBuilder.header("kid", keyId);
+    }
+    when(decoder.decode(jwtString))
+        .thenReturn(
+            jwtBuilder
+                .subject("test")
+                .issuedAt(Instant.now().minus(Duration.ofMinutes(1)))
+                .expiresAt(expiresAt)
+                .build());
+    return decoder;
+  }
+}
@@ -1,10 +1,12 @@
 package bio.terra.externalcreds.visaComparators;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import bio.terra.externalcreds.BaseTest;
 import bio.terra.externalcreds.JwtSigningTestUtils;
+import bio.terra.externalcreds.models.DbGapPermission;
 import bio.terra.externalcreds.models.GA4GHVisa;
 import bio.terra.externalcreds.models.ImmutableGA4GHVisa;
 import bio.terra.externalcreds.models.TokenTypeEnum;
@@ -14,6 +16,9 @@ import com.nimbusds.jwt.JWTClaimsSet;
 import java.sql.Timestamp;
 import java.util.Date;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -110,8 +115,106 @@ class RASv1Dot1VisaComparatorTest extends BaseTest {
             createTestRasVisa(authorization, authorization), createTestRasVisa(authorization)));
   }
 
+  @Test
+  void testAuthorizationFingerprint() {
+    var authorization1 = Map.of("phs_id", "phs000021", "consent_group", "c1", "role", "pi");
+    var authorization2 = Map.of("phs_id", "phs000022", "consent_group", "c1", "role", "pi");
+    var expiringAuthorization1 =
+        Map.of(
+            "phs_id", "phs000021", "consent_group", "c1", "role", "pi", "expiration", 1700000000);
+
+    var fingerprints =
+        Stream.of(
+                createTestRasVisa(authorization1, authorization2),
+                createTestRasVisa(authorization2, expiringAuthorization1),
+                createTestRasVisa(authorization1)
+                    .withVisaType(RASv1Dot1VisaComparator.RAS_VISAS_V_1_1.toUpperCase()))
+            .map(comparator::authorizationFingerprint)
+            .collect(Collectors.toSet());
+
+    assertEquals(2, fingerprints.size());
+    assertTrue(
+        fingerprints.contains(
+            comparator.authorizationFingerprint(createTestRasVisa(authorization1))));
+  }
+
+  @Test
+  void testGetDbGapPermissions() {
+    var visaExpires = new Timestamp(System.currentTimeMillis() + 60000);
+    var visa =
+        createTestRasVisa(
+                Map.of("phs_id", "phs000021", "consent_group", "c1", "role", "pi"),
+                Map.of(
+                    "phs_id",
+                    "phs000022",
+                    "consent_group",
+                    "c2",
+                    "role",
+                    "pi",
+                    "expiration",
+                    1700000000))
+            .withExpires(visaExpires);
+
+    var permissions = comparator.getDbGapPermissions(visa);
+
+    var expiresByPhsId =
+        permissions.stream()
+            .collect(Collectors.toMap(DbGapPermission::getPhsId, p -> p.getExpires(visaExpires)));
+    assertEquals(
+        Map.of("phs000021", visaExpires, "phs000022", new Timestamp(1700000000000L)),
+        expiresByPhsId);
+  }
+
+  @Test
+  void testVisaWithoutDbGapClaimHasNoPermissions() {
+    var visaClaimSet =
+        new JWTClaimsSet.Builder()
+            .expirationTime(new Date(System.currentTimeMillis() + 60000))
+            .issuer("https://stsstg.nih.gov")
+            .claim(
+                JwtUtils.GA4GH_VISA_V1_CLAIM,
+                Map.of(JwtUtils.VISA_TYPE_CLAIM, RASv1Dot1VisaComparator.RAS_VISAS_V_1_1))
+            .build();
+    var visa = createTestRasVisa().withJwt(jwtSigningTestUtils.createSignedJwt(visaClaimSet));
+
+    assertEquals(Set.of(), comparator.getDbGapPermissions(visa));
+    assertEquals(Set.of(), comparator.getDbGapPermissions(visa.withClaims(Map.of())));
+  }
+
+  @Test
+  void testMalformedDbGapPermissionsSkipped() {
+    var visa =
+        createTestRasVisa(
+            Map.of("phs_id", "phs000021", "consent_group", "c1", "role", "pi"),
+            Map.of("phs_id", "phs000022", "consent_group", "c1"),
+            Map.of("consent_group", "c1", "role", "pi"));
+
+    assertEquals(
+        Set.of(
+            new DbGapPermission.Builder().phsId("phs000021").consentGroup("c1").role("pi").build()),
+        comparator.getDbGapPermissions(visa));
+  }
+
+  @Test
+  void testStoredPermissionsAreComparedWithoutParsingJwt() {
+    var authorization = Map.of("phs_id", "phs000021", "consent_group", "c1", "role", "pi");
+    var storedVisa =
+        createTestRasVisa()
+            .withJwt("not a jwt")
+            .withDbGapPermissions(
+                Set.of(
+                    new DbGapPermission.Builder()
+                        .phsId("phs000021")
+                        .consentGroup("c1")
+                        .role("pi")
+                        .expiration(1700000000L)
+                        .build()));
+
+    assertTrue(comparator.authorizationsMatch(storedVisa, createTestRasVisa(authorization)));
+  }
+
   @SafeVarargs
-  private ImmutableGA4GHVisa createTestRasVisa(Map<String, String>... dbgapPermissions) {
+  private ImmutableGA4GHVisa createTestRasVisa(Map<String, ?>... dbgapPermissions) {
     return new GA4GHVisa.Builder()
         .jwt(createVisaJwtString(dbgapPermissions))
         .visaType(RASv1Dot1VisaComparator.RAS_VISAS_V_1_1)
@@ -122,7 +225,7 @@ class RASv1Dot1VisaComparatorTest extends BaseTest {
   }
 
   @SafeVarargs
-  private String createVisaJwtString(Map<String, String>... dbgapPermissions) {
+  private String createVisaJwtString(Map<String, ?>... dbgapPermissions) {
     var visaClaimSet =
         new JWTClaimsSet.Builder()
             .expirationTime(new Date(System.currentTimeMillis() + 60000))